@@ -0,0 +1,22 @@
+-- Mixed workload for the points endpoints: 70% adds, 20% balance reads and 10% spends.
+-- Run with wrk2 (https://github.com/giltene/wrk2), which corrects latency percentiles for coordinated omission:
+--   wrk -t8 -c10000 -d120s -R20000 --latency -s loadtest/points.lua http://localhost:8080
+
+local payers = { "DANNON", "UNILEVER", "MILLER COORS", "ALPHA", "BRAVO" }
+local json = { ["Content-Type"] = "application/json" }
+
+request = function()
+    local r = math.random(100)
+
+    if r <= 70 then
+        local body = string.format(
+            '{ "payer": "%s", "points": %d, "timestamp": "2020-11-%02dT%02d:%02d:00Z" }',
+            payers[math.random(#payers)], math.random(100, 1000),
+            math.random(1, 28), math.random(0, 23), math.random(0, 59))
+        return wrk.format("POST", "/points/transaction", json, body)
+    elseif r <= 90 then
+        return wrk.format("GET", "/points/balances")
+    else
+        return wrk.format("POST", "/points/spend", json, '{ "points": 100 }')
+    end
+end
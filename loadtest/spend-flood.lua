@@ -0,0 +1,11 @@
+-- A flood of spends, for checking admission control: run it alongside a steady rate of balance reads, with
+-- points.admission.enabled on and off, and compare the reads' p99 latency.
+--   wrk -t4 -c1000 -d60s -R20000 --latency -s loadtest/spend-flood.lua http://localhost:8080
+--   wrk -t1 -c10 -d60s -R100 --latency http://localhost:8080/points/balances
+-- Spends turned away with 429 Too Many Requests are counted as non-2xx responses.
+
+local json = { ["Content-Type"] = "application/json" }
+
+request = function()
+    return wrk.format("POST", "/points/spend", json, '{ "points": 1 }')
+end
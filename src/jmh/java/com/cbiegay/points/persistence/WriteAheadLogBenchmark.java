@@ -0,0 +1,114 @@
+package com.cbiegay.points.persistence;
+
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.service.DefaultPointsService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the cost of durable mode: adds per second under each fsync policy, and the time to recover a ledger
+ * from a log of a given length.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class WriteAheadLogBenchmark {
+
+    private static final String[] PAYERS = { "DANNON", "UNILEVER", "MILLER COORS", "ALPHA", "BRAVO" };
+
+    @State(Scope.Benchmark)
+    public static class AppendState {
+
+        @Param({ "ALWAYS", "INTERVAL", "NEVER" })
+        public FsyncPolicy fsync;
+
+        Path directory;
+        WriteAheadLog log;
+        DefaultPointsService service;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("wal-benchmark");
+            log = new WriteAheadLog(directory, fsync, 10, 1_000_000);
+            service = DefaultPointsService.builder().writeAheadLog(log).build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            log.close();
+            deleteRecursively(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RecoveryState {
+
+        @Param({ "1000000", "50000000" })
+        public int logEntries;
+
+        Path directory;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("wal-benchmark");
+
+            // Snapshot interval above the entry count, so recovery replays the whole log
+            try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.NEVER, 10, Long.MAX_VALUE)) {
+                final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+                for (int i = 0; i < logEntries; i++) {
+                    service.addTransaction(new Transaction(PAYERS[i % PAYERS.length], 100, new Date(i)));
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 2, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public void addTransaction(final AppendState state) {
+        final int i = state.next++;
+        state.service.addTransaction(new Transaction(PAYERS[i % PAYERS.length], 100, new Date(i)));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public DefaultPointsService recover(final RecoveryState state) throws IOException {
+        try (WriteAheadLog log = new WriteAheadLog(state.directory, FsyncPolicy.NEVER, 10, Long.MAX_VALUE)) {
+            return DefaultPointsService.builder().writeAheadLog(log).build();
+        }
+    }
+
+    private static void deleteRecursively(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
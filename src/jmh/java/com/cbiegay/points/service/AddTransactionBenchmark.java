@@ -0,0 +1,71 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.model.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures adding a transaction to a ledger that already holds {@code ledgerSize} transactions.
+ * With {@code inOrder} arrivals every new transaction is the newest one; otherwise it lands somewhere in the
+ * past year. The ledger is rebuilt for every iteration so it doesn't grow without bound.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class AddTransactionBenchmark {
+
+    @Param({ "5", "1000" })
+    public int payerCount;
+
+    @Param({ "10000", "1000000" })
+    public int ledgerSize;
+
+    @Param({ "true", "false" })
+    public boolean inOrder;
+
+    @Param({ "OBJECT", "COMPACT" })
+    public LedgerStore store;
+
+    private PointsService service;
+    private String[] payers;
+    private long start;
+    private long nextTimestamp;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        service = DefaultPointsService.builder().ledgerStore(store).build();
+        payers = LedgerFixtures.payers(payerCount);
+        start = new Date().getTime();
+        LedgerFixtures.fill(service, ledgerSize, payers, start);
+
+        nextTimestamp = start;
+    }
+
+    @Benchmark
+    public void addTransaction() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long timestamp = inOrder
+            ? nextTimestamp++
+            : start - random.nextLong(TimeUnit.DAYS.toMillis(365));
+
+        service.addTransaction(new Transaction(
+            payers[random.nextInt(payers.length)], LedgerFixtures.POINTS_PER_TRANSACTION, new Date(timestamp)));
+    }
+}
@@ -0,0 +1,70 @@
+package com.cbiegay.points.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures recomputing balances from a copy of a ledger's unspent points, on pools of different sizes.
+ * The copy is built directly rather than through a ledger, so 100 million rows fit in the heap.
+ * Speedup is the time with parallelism 1 over the time with more threads; it's capped by the cores available.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class BalanceCheckBenchmark {
+
+    @Param({ "10000000", "100000000" })
+    public int rows;
+
+    @Param({ "100", "10000" })
+    public int payerCount;
+
+    @Param({ "1", "4", "8", "16", "32" })
+    public int parallelism;
+
+    private UnspentPoints unspentPoints;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(42);
+        final int[] payers = new int[rows];
+        final int[] points = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            payers[i] = random.nextInt(payerCount);
+            points[i] = LedgerFixtures.POINTS_PER_TRANSACTION;
+        }
+
+        unspentPoints = new UnspentPoints(LedgerFixtures.payers(payerCount), payerCount, payers, points, rows);
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public Map<String, Long> sumPerPayer() {
+        return unspentPoints.sumPerPayer(pool);
+    }
+}
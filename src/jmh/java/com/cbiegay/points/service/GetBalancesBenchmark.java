@@ -0,0 +1,51 @@
+package com.cbiegay.points.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading balances. The cost should follow the number of payers, not the number of stored transactions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class GetBalancesBenchmark {
+
+    @Param({ "default", "concurrent" })
+    public String implementation;
+
+    @Param({ "5", "100", "10000" })
+    public int payerCount;
+
+    @Param({ "100000", "1000000" })
+    public int ledgerSize;
+
+    private PointsService service;
+
+    @Setup
+    public void setUp() {
+        service = "concurrent".equals(implementation) ? new ConcurrentPointsService() : new DefaultPointsService();
+        LedgerFixtures.fill(service, ledgerSize, LedgerFixtures.payers(payerCount), new Date().getTime());
+    }
+
+    @Benchmark
+    public Map<String, Long> getBalances() {
+        return service.getBalances();
+    }
+}
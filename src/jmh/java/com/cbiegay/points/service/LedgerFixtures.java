@@ -0,0 +1,50 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.model.Transaction;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the pre-filled ledgers the benchmarks run against, so their results are comparable with each other.
+ */
+final class LedgerFixtures {
+
+    static final int POINTS_PER_TRANSACTION = 100;
+
+    private LedgerFixtures() {
+    }
+
+    /**
+     * Payer names "PAYER-0" to "PAYER-(count - 1)".
+     */
+    static String[] payers(final int count) {
+        final String[] payers = new String[count];
+        for (int i = 0; i < count; i++) {
+            payers[i] = "PAYER-" + i;
+        }
+        return payers;
+    }
+
+    /**
+     * Add {@code size} transactions of {@link #POINTS_PER_TRANSACTION} points, round-robin across the payers.
+     * They arrive out of order, with timestamps spread over the year before {@code end}.
+     */
+    static void fill(final PointsService service, final int size, final String[] payers, final long end) {
+        final Random random = new Random(42);
+        final List<Transaction> chunk = new ArrayList<>(1000);
+        for (int i = 0; i < size; i++) {
+            final Date timestamp = new Date(end - 1 - (long) (random.nextDouble() * TimeUnit.DAYS.toMillis(365)));
+            chunk.add(new Transaction(payers[i % payers.length], POINTS_PER_TRANSACTION, timestamp));
+
+            if (chunk.size() == 1000) {
+                service.addTransactions(chunk);
+                chunk.clear();
+            }
+        }
+        service.addTransactions(chunk);
+    }
+}
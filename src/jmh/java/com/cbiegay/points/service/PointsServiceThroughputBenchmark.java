@@ -0,0 +1,130 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of the PointsService implementations under a mix of adds, spends and balance reads.
+ * Each "mixed" group runs 6 adding threads, 1 spending thread and 1 reading thread against the same service, each
+ * "readHeavy" group 1 adding, 1 spending and 6 reading threads, and each "preview" group 3 adding, 1 spending and 4
+ * spend previewing threads; run with -PjmhThreads=N (a multiple of 8, up to 64) to add more groups and plot
+ * throughput against thread count.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PointsServiceThroughputBenchmark {
+
+    @Param({ "default", "concurrent" })
+    public String implementation;
+
+    @Param({ "5", "1000" })
+    public int payerCount;
+
+    private PointsService service;
+    private String[] payers;
+
+    @Setup
+    public void setUp() {
+        service = "concurrent".equals(implementation) ? new ConcurrentPointsService() : new DefaultPointsService();
+        payers = LedgerFixtures.payers(payerCount);
+
+        LedgerFixtures.fill(service, 100_000, payers, 1_000_000_000L);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public void addTransaction() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        service.addTransaction(new Transaction(
+            payers[random.nextInt(payers.length)], 100, new Date(random.nextLong(1_000_000_000L))));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public List<PayerPointDelta> spend() {
+        try {
+            return service.spend(50);
+        } catch (InsufficientPointsException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public Map<String, Long> getBalances() {
+        return service.getBalances();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public void addTransactionWhileReading() {
+        addTransaction();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public List<PayerPointDelta> spendWhileReading() {
+        return spend();
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(6)
+    public Map<String, Long> getBalancesWhileReading() {
+        return getBalances();
+    }
+
+    @Benchmark
+    @Group("preview")
+    @GroupThreads(3)
+    public void addTransactionWhilePreviewing() {
+        addTransaction();
+    }
+
+    @Benchmark
+    @Group("preview")
+    @GroupThreads(1)
+    public List<PayerPointDelta> spendWhilePreviewing() {
+        return spend();
+    }
+
+    @Benchmark
+    @Group("preview")
+    @GroupThreads(4)
+    public List<PayerPointDelta> previewSpend() {
+        try {
+            return service.previewSpend(500);
+        } catch (InsufficientPointsException e) {
+            return null;
+        }
+    }
+}
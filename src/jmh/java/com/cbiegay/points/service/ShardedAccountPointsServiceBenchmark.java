@@ -0,0 +1,66 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test for per-account ledgers: each operation earns and then spends points in a random account.
+ * Run with -PjmhThreads=N for N = 1, 2, 4, ... up to the core count to check that throughput scales with
+ * threads once there are enough shards.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardedAccountPointsServiceBenchmark {
+
+    private static final String[] PAYERS = { "DANNON", "UNILEVER", "MILLER COORS" };
+
+    @Param({ "1", "16", "64" })
+    public int shards;
+
+    @Param({ "100000" })
+    public int accounts;
+
+    private ShardedAccountPointsService service;
+    private String[] accountIds;
+
+    @Setup
+    public void setUp() {
+        service = new ShardedAccountPointsService(shards);
+
+        accountIds = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            accountIds[i] = "member-" + i;
+            service.addTransaction(accountIds[i], new Transaction(PAYERS[i % PAYERS.length], 1000, new Date(i)));
+        }
+    }
+
+    @Benchmark
+    public List<PayerPointDelta> addAndSpend() throws InsufficientPointsException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String account = accountIds[random.nextInt(accounts)];
+
+        service.addTransaction(account, new Transaction(PAYERS[random.nextInt(PAYERS.length)], 10, new Date()));
+        return service.spend(account, 10);
+    }
+}
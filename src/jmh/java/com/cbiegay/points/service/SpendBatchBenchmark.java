@@ -0,0 +1,88 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares spending a batch of amounts in one spendBatch call against spending them one at a time.
+ * Each invocation first adds back as many points as it spends, so the ledger size stays constant.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class SpendBatchBenchmark {
+
+    @Param({ "10", "50" })
+    public int batchSize;
+
+    @Param({ "OBJECT", "COMPACT" })
+    public LedgerStore store;
+
+    private DefaultPointsService service;
+    private String[] payers;
+    private List<Integer> amounts;
+    private long nextTimestamp;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        service = DefaultPointsService.builder().ledgerStore(store).build();
+        payers = LedgerFixtures.payers(5);
+
+        final long start = new Date().getTime();
+        LedgerFixtures.fill(service, 100_000, payers, start);
+        nextTimestamp = start;
+
+        // Amounts that split transactions, so spends start and stop part way through them
+        amounts = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            amounts.add(LedgerFixtures.POINTS_PER_TRANSACTION + (i % 2 == 0 ? 50 : -50));
+        }
+    }
+
+    @Benchmark
+    public List<List<PayerPointDelta>> batch() throws InsufficientPointsException {
+        replenish();
+        return service.spendBatch(amounts, true);
+    }
+
+    @Benchmark
+    public List<List<PayerPointDelta>> sequential() throws InsufficientPointsException {
+        replenish();
+
+        final List<List<PayerPointDelta>> results = new ArrayList<>(batchSize);
+        for (final int amount : amounts) {
+            results.add(service.spend(amount));
+        }
+        return results;
+    }
+
+    private void replenish() {
+        final List<Transaction> transactions = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            transactions.add(new Transaction(
+                payers[i % payers.length], LedgerFixtures.POINTS_PER_TRANSACTION, new Date(nextTimestamp++)));
+        }
+        service.addTransactions(transactions);
+    }
+}
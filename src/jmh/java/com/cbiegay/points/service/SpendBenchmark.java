@@ -0,0 +1,77 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures spend latency as the number of stored transactions grows.
+ * Each invocation adds {@code rowsPerSpend} new transactions and spends the same number of points, so the ledger
+ * size stays constant. The more rows a spend covers, the more fragmented the points being spent are: a spend of
+ * the same total drawn from many small transactions instead of a few large ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@State(Scope.Benchmark)
+public class SpendBenchmark {
+
+    @Param({ "10000", "100000", "1000000", "10000000" })
+    public int ledgerSize;
+
+    @Param({ "5", "1000" })
+    public int payerCount;
+
+    @Param({ "1", "16", "256" })
+    public int rowsPerSpend;
+
+    @Param({ "OBJECT", "COMPACT" })
+    public LedgerStore store;
+
+    private DefaultPointsService service;
+    private String[] payers;
+    private long nextTimestamp;
+    private int nextPayer;
+
+    @Setup
+    public void setUp() {
+        service = DefaultPointsService.builder().ledgerStore(store).build();
+        payers = LedgerFixtures.payers(payerCount);
+
+        final long start = new Date().getTime();
+        LedgerFixtures.fill(service, ledgerSize, payers, start);
+
+        nextTimestamp = start;
+    }
+
+    @Benchmark
+    public List<PayerPointDelta> spend() throws InsufficientPointsException {
+        final List<Transaction> replacements = new ArrayList<>(rowsPerSpend);
+        for (int i = 0; i < rowsPerSpend; i++) {
+            nextPayer = (nextPayer + 1) % payers.length;
+            replacements.add(new Transaction(
+                payers[nextPayer], LedgerFixtures.POINTS_PER_TRANSACTION, new Date(nextTimestamp++)));
+        }
+        service.addTransactions(replacements);
+
+        return service.spend(rowsPerSpend * LedgerFixtures.POINTS_PER_TRANSACTION);
+    }
+}
@@ -0,0 +1,94 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures spend latency with each spend strategy, as SpendBenchmark does for oldest first.
+ * Every payer is in one of three tiers, and its points last 30 or 365 days, so each strategy spends from its own
+ * ordering of the payers. Each invocation adds {@code rowsPerSpend} new transactions and spends the same number of
+ * points, so the ledger size stays constant.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@State(Scope.Benchmark)
+public class SpendStrategyBenchmark {
+
+    @Param({ "100000", "1000000" })
+    public int ledgerSize;
+
+    @Param({ "5", "1000" })
+    public int payerCount;
+
+    @Param({ "16" })
+    public int rowsPerSpend;
+
+    @Param({ "OLDEST_FIRST", "EXPIRY_FIRST", "PAYER_PRIORITY", "PROPORTIONAL" })
+    public SpendStrategy strategy;
+
+    @Param({ "OBJECT", "COMPACT" })
+    public LedgerStore store;
+
+    private DefaultPointsService service;
+    private String[] payers;
+    private long nextTimestamp;
+    private int nextPayer;
+
+    @Setup
+    public void setUp() {
+        payers = LedgerFixtures.payers(payerCount);
+
+        final Map<String, Integer> tiers = new HashMap<>();
+        final Map<String, Duration> lifetimes = new HashMap<>();
+        for (int i = 0; i < payers.length; i++) {
+            tiers.put(payers[i], 1 + i % 3);
+            lifetimes.put(payers[i], Duration.ofDays(i % 2 == 0 ? 30 : 365));
+        }
+        service = DefaultPointsService.builder()
+            .ledgerStore(store)
+            .payerPolicies(new PayerPolicies(tiers, lifetimes))
+            .build();
+
+        final long start = new Date().getTime();
+        LedgerFixtures.fill(service, ledgerSize, payers, start);
+
+        nextTimestamp = start;
+    }
+
+    @Benchmark
+    public List<PayerPointDelta> spend() throws InsufficientPointsException {
+        final List<Transaction> replacements = new ArrayList<>(rowsPerSpend);
+        for (int i = 0; i < rowsPerSpend; i++) {
+            nextPayer = (nextPayer + 1) % payers.length;
+            replacements.add(new Transaction(
+                payers[nextPayer], LedgerFixtures.POINTS_PER_TRANSACTION, new Date(nextTimestamp++)));
+        }
+        service.addTransactions(replacements);
+
+        return service.spend(rowsPerSpend * LedgerFixtures.POINTS_PER_TRANSACTION, strategy);
+    }
+}
@@ -0,0 +1,69 @@
+package com.cbiegay.points.web;
+
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parsing transaction timestamps with TimestampParser against Jackson's DateFormat, which the batch reader
+ * and the single transaction endpoint used before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimestampParserBenchmark {
+
+    private static final int TIMESTAMPS = 1000;
+
+    private StdDateFormat dateFormat;
+    private String[] strings;
+    private char[][] characters;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dateFormat = new StdDateFormat();
+        strings = new String[TIMESTAMPS];
+        characters = new char[TIMESTAMPS][];
+        for (int i = 0; i < TIMESTAMPS; i++) {
+            strings[i] = String.format(
+                "2020-11-%02dT%02d:%02d:%02d.%03dZ", 1 + i % 28, i % 24, i % 60, i % 59, i);
+            characters[i] = strings[i].toCharArray();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TIMESTAMPS)
+    public long dateFormat() throws ParseException {
+        long sum = 0;
+        for (final String timestamp : strings) {
+            sum += dateFormat.parse(timestamp).getTime();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TIMESTAMPS)
+    public long timestampParser() {
+        long sum = 0;
+        for (final char[] timestamp : characters) {
+            sum += TimestampParser.parse(timestamp, 0, timestamp.length);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,82 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.model.TransactionBatchResult;
+import com.cbiegay.points.service.DefaultPointsService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ingesting transactions through the batch reader against deserializing and adding them one at a time,
+ * as the single transaction endpoint does. HTTP overhead, which the batch endpoint saves most of, isn't included.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionBatchBenchmark {
+
+    private static final int ROWS = 10_000;
+    private static final String[] PAYERS = { "DANNON", "UNILEVER", "MILLER COORS", "ALPHA", "BRAVO" };
+
+    private ObjectMapper objectMapper;
+    private TransactionBatchReader reader;
+    private byte[] batch;
+    private byte[][] rows;
+    private DefaultPointsService service;
+
+    @Setup(Level.Trial)
+    public void setUpInput() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        reader = new TransactionBatchReader(objectMapper.getFactory(), objectMapper.getDateFormat(), false, 1000);
+
+        final StringBuilder ndjson = new StringBuilder();
+        rows = new byte[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            final String row = String.format(
+                "{ \"payer\": \"%s\", \"points\": %d, \"timestamp\": \"2020-11-%02dT%02d:%02d:00Z\" }",
+                PAYERS[i % PAYERS.length], 100 + i % 900, 1 + i % 28, i % 24, i % 60);
+            rows[i] = row.getBytes(StandardCharsets.UTF_8);
+            ndjson.append(row).append('\n');
+        }
+        batch = ndjson.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpService() {
+        service = new DefaultPointsService();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public TransactionBatchResult batch() throws IOException {
+        return reader.read(new ByteArrayInputStream(batch), service::addTransactions);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void oneAtATime() throws IOException {
+        for (final byte[] row : rows) {
+            service.addTransaction(objectMapper.readValue(row, Transaction.class));
+        }
+    }
+}
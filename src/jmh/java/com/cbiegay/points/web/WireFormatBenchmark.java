@@ -0,0 +1,130 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.model.TransactionBatchResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the CPU cost of the JSON and binary formats: reading a transaction batch, and writing the responses of
+ * the balances and spend endpoints. Only encoding is measured, not HTTP or the service.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireFormatBenchmark {
+
+    private static final int ROWS = 10_000;
+    private static final String[] PAYERS = { "DANNON", "UNILEVER", "MILLER COORS", "ALPHA", "BRAVO" };
+
+    private ObjectMapper objectMapper;
+    private TransactionBatchReader reader;
+    private byte[] jsonBatch;
+    private byte[] binaryBatch;
+    private Map<String, Long> balances;
+    private List<PayerPointDelta> deltas;
+    private ByteArrayOutputStream output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        reader = new TransactionBatchReader(objectMapper.getFactory(), objectMapper.getDateFormat(), false, 1000);
+
+        final StringBuilder ndjson = new StringBuilder();
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        final BinaryCodec.Writer writer = new BinaryCodec.Writer(binary);
+        for (int i = 0; i < ROWS; i++) {
+            final String row = String.format(
+                "{ \"payer\": \"%s\", \"points\": %d, \"timestamp\": \"2020-11-%02dT%02d:%02d:00Z\" }",
+                PAYERS[i % PAYERS.length], 100 + i % 900, 1 + i % 28, i % 24, i % 60);
+            ndjson.append(row).append('\n');
+        }
+        jsonBatch = ndjson.toString().getBytes(StandardCharsets.UTF_8);
+        final List<Transaction> transactions = new ArrayList<>(ROWS);
+        reader.read(new ByteArrayInputStream(jsonBatch), transactions::addAll);
+        for (final Transaction transaction : transactions) {
+            writer.writeTransaction(transaction);
+        }
+        writer.flush();
+        binaryBatch = binary.toByteArray();
+
+        balances = new HashMap<>();
+        deltas = new ArrayList<>();
+        for (final String payer : PAYERS) {
+            balances.put(payer, 123_456L);
+            deltas.add(new PayerPointDelta(payer, -1_234));
+        }
+        output = new ByteArrayOutputStream();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public TransactionBatchResult readBatchJson(final Blackhole blackhole) throws IOException {
+        return reader.read(new ByteArrayInputStream(jsonBatch), blackhole::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public TransactionBatchResult readBatchBinary(final Blackhole blackhole) throws IOException {
+        return reader.readBinary(new ByteArrayInputStream(binaryBatch), blackhole::consume);
+    }
+
+    @Benchmark
+    public int writeBalancesJson() throws IOException {
+        output.reset();
+        objectMapper.writeValue(output, balances);
+        return output.size();
+    }
+
+    @Benchmark
+    public int writeBalancesBinary() throws IOException {
+        output.reset();
+        final BinaryCodec.Writer writer = new BinaryCodec.Writer(output);
+        writer.writeBalances(balances);
+        writer.flush();
+        return output.size();
+    }
+
+    @Benchmark
+    public int writeDeltasJson() throws IOException {
+        output.reset();
+        objectMapper.writeValue(output, deltas);
+        return output.size();
+    }
+
+    @Benchmark
+    public int writeDeltasBinary() throws IOException {
+        output.reset();
+        final BinaryCodec.Writer writer = new BinaryCodec.Writer(output);
+        writer.writeDeltas(deltas);
+        writer.flush();
+        return output.size();
+    }
+}
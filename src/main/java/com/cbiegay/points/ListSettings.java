@@ -0,0 +1,51 @@
+package com.cbiegay.points;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Parsing for settings written as comma-separated lists, e.g. per-payer lifetimes or per-endpoint rate limits.
+ */
+public final class ListSettings {
+
+    private ListSettings() {
+    }
+
+    /**
+     * Parse a comma-separated list of KEY:VALUE settings. Keys may contain spaces; the value is everything after the
+     * last colon.
+     *
+     * @throws IllegalArgumentException if an entry has no colon or its value can't be parsed.
+     */
+    public static <T> Map<String, T> parseMap(final String list, final Function<String, T> parseValue) {
+        final Map<String, T> settings = new HashMap<>();
+        for (final String entry : list.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+
+            final int colon = entry.lastIndexOf(':');
+            if (colon < 1) {
+                throw new IllegalArgumentException("Expected KEY:VALUE but found '" + entry.trim() + "'");
+            }
+            try {
+                settings.put(entry.substring(0, colon).trim(), parseValue.apply(entry.substring(colon + 1).trim()));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid setting '" + entry.trim() + "'", e);
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Parse a comma-separated list of values, skipping blank entries.
+     */
+    public static Set<String> parseSet(final String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).filter(entry -> !entry.isEmpty())
+            .collect(Collectors.toSet());
+    }
+}
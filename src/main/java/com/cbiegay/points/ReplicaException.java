@@ -0,0 +1,17 @@
+package com.cbiegay.points;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Represents a request that a read replica can't serve: a change, which only the replication leader accepts, or a
+ * read while the replica is further behind the leader than it's allowed to be.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class ReplicaException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ReplicaException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,13 @@
+package com.cbiegay.points;
+
+/**
+ * Represents a spend with a strategy that can't put the ledger's points in its order, such as EXPIRY_FIRST while
+ * some points have an expiry of their own rather than their payer's lifetime.
+ */
+public class UnavailableStrategyException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public UnavailableStrategyException(final String message) {
+        super(message);
+    }
+}
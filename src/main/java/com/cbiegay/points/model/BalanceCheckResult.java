@@ -0,0 +1,76 @@
+package com.cbiegay.points.model;
+
+import java.util.List;
+
+/**
+ * Outcome of recomputing payer balances from the ledger's unspent transactions and comparing them against the
+ * balances it reports.
+ */
+public class BalanceCheckResult {
+    private final long transactionsChecked;
+    private final int payersChecked;
+    private final List<BalanceMismatch> mismatches;
+
+    /**
+     * @param transactionsChecked number of unspent transactions summed.
+     * @param payersChecked number of payers whose balance was recomputed.
+     * @param mismatches payers whose recomputed balance differs from the reported one.
+     */
+    public BalanceCheckResult(
+        final long transactionsChecked,
+        final int payersChecked,
+        final List<BalanceMismatch> mismatches) {
+
+        this.transactionsChecked = transactionsChecked;
+        this.payersChecked = payersChecked;
+        this.mismatches = mismatches;
+    }
+
+    public boolean isConsistent() {
+        return mismatches.isEmpty();
+    }
+
+    public long getTransactionsChecked() {
+        return transactionsChecked;
+    }
+
+    public int getPayersChecked() {
+        return payersChecked;
+    }
+
+    public List<BalanceMismatch> getMismatches() {
+        return mismatches;
+    }
+
+    /**
+     * A payer whose recomputed balance differs from its reported balance.
+     */
+    public static class BalanceMismatch {
+        private final String payer;
+        private final Long recomputed;
+        private final Long reported;
+
+        /**
+         * @param payer the payer.
+         * @param recomputed the sum of the payer's unspent points, or null if it has no transactions.
+         * @param reported the balance reported for the payer, or null if none was.
+         */
+        public BalanceMismatch(final String payer, final Long recomputed, final Long reported) {
+            this.payer = payer;
+            this.recomputed = recomputed;
+            this.reported = reported;
+        }
+
+        public String getPayer() {
+            return payer;
+        }
+
+        public Long getRecomputed() {
+            return recomputed;
+        }
+
+        public Long getReported() {
+            return reported;
+        }
+    }
+}
@@ -2,7 +2,7 @@ package com.cbiegay.points.model;
 
 import com.cbiegay.points.InsufficientPointsException;
 
-import java.util.Date;
+import java.util.Comparator;
 
 // Having a separate mutable transaction class may be overkill for this exercise, but I think it's
 // important to distinguish an immutable transaction from one that points can be deducted from.
@@ -10,14 +10,36 @@ import java.util.Date;
  * A mutable version of the Transaction class representing a transaction of points for a payer.
  */
 public class MutableTransaction {
+
+    /**
+     * Orders transactions oldest first, breaking timestamp ties by the order in which they were added.
+     */
+    public static final Comparator<MutableTransaction> OLDEST_FIRST = (a, b) -> a.timestamp != b.timestamp
+        ? Long.compare(a.timestamp, b.timestamp)
+        : Long.compare(a.sequence, b.sequence);
+
     private final String payer;
     private int points;
-    private final Date timestamp;
+    private final long timestamp;
+    private final long sequence;
 
-    public MutableTransaction(Transaction transaction) {
-        this.payer = transaction.getPayer();
-        this.points = transaction.getPoints();
-        this.timestamp = transaction.getTimestamp();
+    /**
+     * @param transaction the transaction to copy.
+     * @param sequence the order in which the transaction was added, used to break timestamp ties.
+     */
+    public MutableTransaction(Transaction transaction, long sequence) {
+        this(transaction.getPayer(), transaction.getPoints(), transaction.getTimestampMillis(), sequence);
+    }
+
+    /**
+     * @param timestamp epoch milliseconds.
+     * @param sequence the order in which the transaction was added, used to break timestamp ties.
+     */
+    public MutableTransaction(String payer, int points, long timestamp, long sequence) {
+        this.payer = payer;
+        this.points = points;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
     }
 
     public String getPayer() {
@@ -28,10 +50,14 @@ public class MutableTransaction {
         return points;
     }
 
-    public Date getTimestamp() {
+    public long getTimestampMillis() {
         return timestamp;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
     /**
      * Spend (deduct) a given number of points from this transaction.
      *
@@ -46,4 +72,13 @@ public class MutableTransaction {
 
         this.points -= points;
     }
+
+    /**
+     * Give back points that were deducted from this transaction.
+     *
+     * @param points number of points to give back.
+     */
+    public void restorePoints(final int points) {
+        this.points += points;
+    }
 }
@@ -0,0 +1,32 @@
+package com.cbiegay.points.model;
+
+/**
+ * How a spend chooses which payers' points to use. Whichever payers it draws on, a spend always takes each payer's
+ * oldest points first.
+ */
+public enum SpendStrategy {
+
+    /**
+     * The oldest points first, whichever payer they're from. The rule in the instructions, and the default.
+     */
+    OLDEST_FIRST,
+
+    /**
+     * The points that expire soonest first, by their payer's lifetime: points expire a set time after their
+     * timestamp, configured per payer; points from payers without one never expire, and are spent last, oldest first.
+     * Refused while any points were added with an expiry of their own, other than their payer's lifetime gives, until
+     * that expiry has passed.
+     */
+    EXPIRY_FIRST,
+
+    /**
+     * Payers in the highest priority tier first: tier 1, then tier 2 and so on, with payers that don't have a tier
+     * last. Oldest points first within a tier.
+     */
+    PAYER_PRIORITY,
+
+    /**
+     * Split the points across every payer with points, in proportion to their balances.
+     */
+    PROPORTIONAL
+}
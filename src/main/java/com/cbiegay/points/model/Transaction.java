@@ -1,19 +1,61 @@
 package com.cbiegay.points.model;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import java.util.Date;
 
 /**
  * Represents a transaction of points.
+ *
+ * Times are kept as epoch milliseconds rather than Dates, so a transaction is one object however it's stored or
+ * sorted; the Date getters and constructors, which Jackson uses, convert.
  */
 public class Transaction {
+
+    /**
+     * Expiry time of a transaction that doesn't have its own expiry.
+     */
+    public static final long NO_EXPIRY = Long.MIN_VALUE;
+
     private final String payer;
     private final Integer points;
-    private final Date timestamp;
+    private final long timestamp;
+    private final long expiresAt;
 
     public Transaction(String payer, Integer points, Date timestamp) {
+        this(payer, points, timestamp, null);
+    }
+
+    /**
+     * @param expiresAt when whatever is left of the points expires; null for the payer's usual lifetime.
+     * @throws IllegalArgumentException if timestamp is null.
+     */
+    @JsonCreator
+    public Transaction(
+        @JsonProperty("payer") String payer,
+        @JsonProperty("points") Integer points,
+        @JsonProperty("timestamp") Date timestamp,
+        @JsonProperty("expiresAt") Date expiresAt) {
+
+        this(payer, points, millisOf(timestamp), expiresAt != null ? expiresAt.getTime() : NO_EXPIRY);
+    }
+
+    public Transaction(String payer, Integer points, long timestamp) {
+        this(payer, points, timestamp, NO_EXPIRY);
+    }
+
+    /**
+     * @param timestamp epoch milliseconds.
+     * @param expiresAt epoch milliseconds when whatever is left of the points expires; NO_EXPIRY for the payer's
+     *        usual lifetime.
+     */
+    public Transaction(String payer, Integer points, long timestamp, long expiresAt) {
         this.payer = payer;
         this.points = points;
         this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
     }
 
     public String getPayer() {
@@ -25,10 +67,42 @@ public class Transaction {
     }
 
     public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    @JsonIgnore
+    public long getTimestampMillis() {
         return timestamp;
     }
 
-    public MutableTransaction toMutableTransaction() {
-        return new MutableTransaction(this);
+    /**
+     * Get when the transaction's points expire, or null if it doesn't have its own expiry.
+     */
+    public Date getExpiresAt() {
+        return hasExpiry() ? new Date(expiresAt) : null;
+    }
+
+    /**
+     * Get when the transaction's points expire, or NO_EXPIRY if it doesn't have its own expiry.
+     */
+    @JsonIgnore
+    public long getExpiresAtMillis() {
+        return expiresAt;
+    }
+
+    @JsonIgnore
+    public boolean hasExpiry() {
+        return expiresAt != NO_EXPIRY;
+    }
+
+    public MutableTransaction toMutableTransaction(final long sequence) {
+        return new MutableTransaction(this, sequence);
+    }
+
+    private static long millisOf(final Date timestamp) {
+        if (timestamp == null) {
+            throw new IllegalArgumentException("Missing timestamp");
+        }
+        return timestamp.getTime();
     }
 }
@@ -0,0 +1,60 @@
+package com.cbiegay.points.model;
+
+import java.util.List;
+
+/**
+ * Outcome of adding a batch of transactions.
+ */
+public class TransactionBatchResult {
+    private final long accepted;
+    private final long rejected;
+    private final List<RejectedRow> rejectedRows;
+
+    /**
+     * @param accepted number of transactions added.
+     * @param rejected number of rows that were not added.
+     * @param rejectedRows details of rejected rows; may be limited to the first few, so can be shorter than rejected.
+     */
+    public TransactionBatchResult(final long accepted, final long rejected, final List<RejectedRow> rejectedRows) {
+        this.accepted = accepted;
+        this.rejected = rejected;
+        this.rejectedRows = rejectedRows;
+    }
+
+    public long getAccepted() {
+        return accepted;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public List<RejectedRow> getRejectedRows() {
+        return rejectedRows;
+    }
+
+    /**
+     * A row of the batch that was not added, and why.
+     */
+    public static class RejectedRow {
+        private final long row;
+        private final String reason;
+
+        /**
+         * @param row the position of the row in the batch, starting at 1.
+         * @param reason why the row was rejected.
+         */
+        public RejectedRow(final long row, final String reason) {
+            this.row = row;
+            this.reason = reason;
+        }
+
+        public long getRow() {
+            return row;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.cbiegay.points.persistence;
+
+/**
+ * When records appended to the write-ahead log are forced to disk.
+ */
+public enum FsyncPolicy {
+
+    /**
+     * Force every record before the operation returns. Nothing acknowledged is lost in a crash, at the cost of one
+     * disk sync per operation.
+     */
+    ALWAYS,
+
+    /**
+     * Group commit: force the log on a fixed interval, so all records written during the interval share one disk
+     * sync. A crash can lose the operations from the last interval.
+     */
+    INTERVAL,
+
+    /**
+     * Never force the log and leave flushing to the operating system. Survives a process crash, but not a power
+     * failure or OS crash.
+     */
+    NEVER
+}
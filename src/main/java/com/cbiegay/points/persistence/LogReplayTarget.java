@@ -0,0 +1,51 @@
+package com.cbiegay.points.persistence;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Receives the operations read back from a write-ahead log during recovery, in the order they were appended.
+ */
+public interface LogReplayTarget {
+
+    void addTransaction(final Transaction transaction);
+
+    /**
+     * @param timestamp when the spend was originally made.
+     */
+    void spend(final int pointsToSpend, final Date timestamp) throws InsufficientPointsException;
+
+    /**
+     * Spend the given points from each payer, as logged by appendAllocatedSpend.
+     *
+     * @param allocation the points spent from each payer, as negative deltas.
+     * @param timestamp when the spend was originally made.
+     */
+    void spendAllocated(final List<PayerPointDelta> allocation, final Date timestamp)
+    throws InsufficientPointsException;
+
+    /**
+     * Expire the points of every transaction that expired before a time, as logged by appendExpiry.
+     */
+    void expire(final Date upTo);
+
+    /**
+     * Restore a transaction from a snapshot. A snapshot holds the state of the ledger rather than the operations that
+     * led to it, so unlike addTransaction this isn't a change to balance history; the snapshot restores that too.
+     */
+    void restoreTransaction(final Transaction transaction);
+
+    /**
+     * Restore a past change to a payer's balance from a snapshot, as a transaction at the time of the change.
+     */
+    void restoreBalanceChange(final Transaction change);
+
+    /**
+     * Restore a transaction to the record of transactions added, from a snapshot, in the order they were added.
+     */
+    void restoreAddedTransaction(final Transaction transaction);
+}
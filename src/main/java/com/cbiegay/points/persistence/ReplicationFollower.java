@@ -0,0 +1,110 @@
+package com.cbiegay.points.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Copies a ledger from a ReplicationLeader: connects to the leader, passes the state and operations it sends to a
+ * ReplicationTarget, and whenever the connection is lost, reconnects and starts a new copy.
+ */
+@Component
+@ConditionalOnProperty(name = "points.service", havingValue = "replica")
+public class ReplicationFollower implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationFollower.class);
+
+    private final InetSocketAddress leader;
+    private final int timeoutMillis;
+    private final long retryIntervalMillis;
+
+    private Thread thread;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    /**
+     * @param leader the leader's replication address, as HOST:PORT.
+     * @param timeoutMillis how long to wait to connect, and for the leader to send anything once connected; longer
+     *        than the leader's heartbeat interval.
+     * @param retryIntervalMillis how long to wait before reconnecting.
+     * @throws IllegalArgumentException if the leader address can't be parsed.
+     */
+    public ReplicationFollower(
+        @Value("${points.replication.leader:localhost:7070}") final String leader,
+        @Value("${points.replication.timeout-ms:5000}") final int timeoutMillis,
+        @Value("${points.replication.retry-interval-ms:1000}") final long retryIntervalMillis) {
+
+        if (timeoutMillis < 1) {
+            throw new IllegalArgumentException("Replication timeout must be at least 1 millisecond");
+        }
+        if (retryIntervalMillis < 0) {
+            throw new IllegalArgumentException("Replication retry interval cannot be negative");
+        }
+
+        final int colon = leader.lastIndexOf(':');
+        if (colon < 1) {
+            throw new IllegalArgumentException("Expected HOST:PORT but found '" + leader + "'");
+        }
+        this.leader = InetSocketAddress.createUnresolved(
+            leader.substring(0, colon).trim(), Integer.parseInt(leader.substring(colon + 1).trim()));
+        this.timeoutMillis = timeoutMillis;
+        this.retryIntervalMillis = retryIntervalMillis;
+    }
+
+    /**
+     * Start copying the leader's ledger in the background. Must be called once.
+     */
+    public void start(final ReplicationTarget target) {
+        thread = new Thread(() -> follow(target), "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Disconnect from the leader and stop copying.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        final Socket connection = socket;
+        if (connection != null) {
+            connection.close();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void follow(final ReplicationTarget target) {
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                // Resolving on every attempt, in case the leader moved
+                connection.connect(new InetSocketAddress(leader.getHostString(), leader.getPort()), timeoutMillis);
+                connection.setSoTimeout(timeoutMillis);
+                connection.setTcpNoDelay(true);
+                log.info("Copying ledger from replication leader {}", leader);
+
+                WriteAheadLog.replayStream(connection.getInputStream(), target.resync(), target::caughtUp);
+            } catch (IOException | RuntimeException e) {
+                // A failure to apply a record also means starting again, from a copy that doesn't depend on it
+                if (!closed) {
+                    log.warn("Lost connection to replication leader {}: {}", leader, e.toString());
+                }
+            }
+
+            try {
+                Thread.sleep(retryIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
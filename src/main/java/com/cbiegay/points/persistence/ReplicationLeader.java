@@ -0,0 +1,272 @@
+package com.cbiegay.points.persistence;
+
+import com.cbiegay.points.model.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+/**
+ * Ships the write-ahead log to read replicas over TCP, so that other nodes can serve reads of the ledger.
+ *
+ * A follower that connects is sent a copy of the ledger's state, taken under the ledger lock, then every record
+ * appended to the log after it, in order, framed as they are on disk. After each burst of records, and every
+ * heartbeatInterval when there are none, the follower is sent a heartbeat with the leader's clock time: once it has
+ * applied the heartbeat, it has every operation the leader logged before that time.
+ *
+ * Records are queued for each follower and sent by a thread of its own, so a slow follower never holds up appends.
+ * A follower that falls more than maxBacklogBytes behind is disconnected; it reconnects and starts again from a new
+ * copy of the state.
+ *
+ * The protocol has no authentication or encryption, so by default the leader only listens on the loopback interface.
+ */
+@Component
+@ConditionalOnProperty(name = "points.replication.role", havingValue = "leader")
+public class ReplicationLeader implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationLeader.class);
+
+    private final InetSocketAddress address;
+    private final long heartbeatIntervalMillis;
+    private final long maxBacklogBytes;
+
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+
+    private ServerSocketChannel serverChannel;
+    private volatile boolean closed;
+
+    /**
+     * @param bindAddress the address to listen for followers on.
+     * @param port the port to listen for followers on; 0 for any free port.
+     * @param heartbeatIntervalMillis the longest time between heartbeats to a follower.
+     * @param maxBacklogBytes how far behind, in bytes of records not yet sent, a follower can fall before it's
+     *        disconnected.
+     */
+    public ReplicationLeader(
+        @Value("${points.replication.bind-address:127.0.0.1}") final String bindAddress,
+        @Value("${points.replication.port:7070}") final int port,
+        @Value("${points.replication.heartbeat-interval-ms:100}") final long heartbeatIntervalMillis,
+        @Value("${points.replication.max-backlog-bytes:67108864}") final long maxBacklogBytes) {
+
+        if (heartbeatIntervalMillis < 1) {
+            throw new IllegalArgumentException("Heartbeat interval must be at least 1 millisecond");
+        }
+        if (maxBacklogBytes < 1) {
+            throw new IllegalArgumentException("Replication backlog must be at least 1 byte");
+        }
+
+        this.address = new InetSocketAddress(bindAddress, port);
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        this.maxBacklogBytes = maxBacklogBytes;
+    }
+
+    /**
+     * Start shipping a log to followers, and listening for them. Must be called once, after the log was recovered,
+     * in the same serialized context as the appends.
+     *
+     * @param lock held while operations are logged and applied; taken while a follower's copy of the state is made.
+     *        The copy is made into records by the follower's own thread, after the lock is released.
+     * @param ledgerState copies transactions which, added to an empty ledger, reproduce the current ledger.
+     * @param balanceHistory copies every change to payer balances so far, as transactions.
+     * @param addedTransactions copies every transaction added so far, in order.
+     * @throws UncheckedIOException if the leader can't listen on its address.
+     */
+    public void start(
+        final WriteAheadLog writeAheadLog,
+        final Lock lock,
+        final WriteAheadLog.StateCopier ledgerState,
+        final WriteAheadLog.StateCopier balanceHistory,
+        final WriteAheadLog.StateCopier addedTransactions) {
+
+        try {
+            serverChannel = ServerSocketChannel.open().bind(address);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to listen for replication followers on " + address, e);
+        }
+        writeAheadLog.setRecordListener(this::publish);
+
+        final Thread acceptor = new Thread(
+            () -> acceptFollowers(lock, ledgerState, balanceHistory, addedTransactions), "replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Get the port the leader listens on, once it's started.
+     */
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Get the number of followers connected.
+     */
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * Stop listening and disconnect every follower.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        for (final Follower follower : followers) {
+            follower.disconnect();
+        }
+    }
+
+    private void acceptFollowers(
+        final Lock lock,
+        final WriteAheadLog.StateCopier ledgerState,
+        final WriteAheadLog.StateCopier balanceHistory,
+        final WriteAheadLog.StateCopier addedTransactions) {
+
+        while (!closed) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!closed) {
+                    log.error("Failed to accept a replication follower", e);
+                }
+                return;
+            }
+
+            // Copying the state, up to the same position in the journal, and registering for the records after it
+            // with no append in between; otherwise a transaction could be both in the copy and in the records.
+            // The copies are made into records later, by the follower's thread
+            final Follower follower = new Follower(channel);
+            lock.lock();
+            try {
+                follower.transactions = ledgerState.copy();
+                follower.balanceChanges = balanceHistory.copy();
+                follower.added = addedTransactions.copy();
+                followers.add(follower);
+            } finally {
+                lock.unlock();
+            }
+
+            final Thread sender = new Thread(follower, "replication-leader-" + follower.name);
+            sender.setDaemon(true);
+            sender.start();
+            log.info("Replication follower {} connected", follower.name);
+        }
+    }
+
+    private void publish(final ByteBuffer records) {
+        if (followers.isEmpty()) {
+            return;
+        }
+
+        // Shared by every follower, which only read it
+        final byte[] copy = new byte[records.remaining()];
+        records.get(copy);
+        for (final Follower follower : followers) {
+            follower.enqueue(copy);
+        }
+    }
+
+    /**
+     * A connected follower, and the thread that sends to it.
+     */
+    private final class Follower implements Runnable {
+        private final SocketChannel channel;
+        private final String name;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong backlogBytes = new AtomicLong();
+
+        /**
+         * The state to send first; cleared once it's sent.
+         */
+        private Supplier<List<Transaction>> transactions;
+        private Supplier<List<Transaction>> balanceChanges;
+        private Supplier<List<Transaction>> added;
+
+        Follower(final SocketChannel channel) {
+            this.channel = channel;
+            this.name = String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+
+        void enqueue(final byte[] records) {
+            if (backlogBytes.addAndGet(records.length) > maxBacklogBytes) {
+                log.warn("Disconnecting replication follower {}, which fell more than {} bytes behind",
+                    name, maxBacklogBytes);
+                disconnect();
+                return;
+            }
+            queue.add(records);
+        }
+
+        void disconnect() {
+            followers.remove(this);
+            try {
+                // Also wakes the sender if it's blocked writing
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close connection to replication follower {}", name, e);
+            }
+        }
+
+        @Override
+        public void run() {
+            final WriteAheadLog.RecordWriter writer = new WriteAheadLog.RecordWriter(channel, null);
+            try {
+                WriteAheadLog.writeReplicaState(writer, transactions.get(), balanceChanges.get(), added.get());
+                transactions = null;
+                balanceChanges = null;
+                added = null;
+
+                while (channel.isOpen()) {
+                    // Every record queued before the heartbeat's time is sent before the heartbeat
+                    final long leaderTime = System.currentTimeMillis();
+                    byte[] records;
+                    while ((records = queue.poll()) != null) {
+                        send(writer, records);
+                    }
+                    writer.writeHeartbeat(leaderTime);
+                    writer.flush();
+
+                    records = queue.poll(heartbeatIntervalMillis, TimeUnit.MILLISECONDS);
+                    if (records != null) {
+                        send(writer, records);
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed && channel.isOpen()) {
+                    log.warn("Lost replication follower {}: {}", name, e.toString());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                disconnect();
+            }
+        }
+
+        private void send(final WriteAheadLog.RecordWriter writer, final byte[] records) throws IOException {
+            backlogBytes.addAndGet(-records.length);
+            writer.writeRecords(records);
+        }
+    }
+}
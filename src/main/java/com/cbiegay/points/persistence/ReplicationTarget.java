@@ -0,0 +1,22 @@
+package com.cbiegay.points.persistence;
+
+/**
+ * Receives the ledger a ReplicationFollower copies from its leader.
+ */
+public interface ReplicationTarget {
+
+    /**
+     * Start a new copy of the leader's ledger, discarding none of the current one until the new one has caught up.
+     *
+     * @return receives the copy: a snapshot of the leader's state through its restore methods, then the operations
+     *         logged after it.
+     */
+    LogReplayTarget resync();
+
+    /**
+     * The copy being received now has every operation the leader logged before a time.
+     *
+     * @param leaderTime a time on the leader's clock, in epoch milliseconds.
+     */
+    void caughtUp(final long leaderTime);
+}
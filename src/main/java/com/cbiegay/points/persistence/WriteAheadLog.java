@@ -0,0 +1,957 @@
+package com.cbiegay.points.persistence;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of ledger operations, so that a ledger can be rebuilt after a restart.
+ *
+ * Operations are appended to numbered segment files before they are applied. Every snapshotInterval records the
+ * log starts a new segment and, in the background, writes a snapshot of the ledger, its balance history and the
+ * transactions added to it as they were at the start of that segment. Once the snapshot is complete, older
+ * segments and snapshots are deleted, so recovery only has to replay the latest snapshot and the segments after it.
+ *
+ * Each record is framed as [length][CRC32][type][payload]. Records of transactions that expire set EXPIRY_FLAG in their
+ * type and end with the expiry. Recovery stops at the first incomplete or corrupt record
+ * and truncates the last segment there, since that is where a crash interrupted a write.
+ *
+ * Appending is not thread-safe; callers must serialize appends (e.g. by holding the lock that also guards the
+ * ledger), so that the log order matches the order operations are applied.
+ *
+ * The same records make up a replication stream (see ReplicationLeader): a snapshot, a SNAPSHOT_END record, then the
+ * records appended after the snapshot, with HEARTBEAT records in between.
+ */
+@Component
+@ConditionalOnProperty(name = "points.wal.enabled", havingValue = "true")
+public class WriteAheadLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final String SEGMENT_PREFIX = "ledger-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SUFFIX = ".log";
+
+    private static final byte TRANSACTION_RECORD = 1;
+
+    private static final byte TIMESTAMPED_SPEND_RECORD = 3;
+
+    /**
+     * A change to a payer's balance at a point in time; only found in snapshots.
+     */
+    private static final byte BALANCE_CHANGE_RECORD = 4;
+
+    /**
+     * A transaction as it was added, in the record of added transactions; only found in snapshots.
+     */
+    private static final byte ADDED_TRANSACTION_RECORD = 5;
+
+    /**
+     * A spend as the points it took from each payer, for spends whose allocation depends on configuration that could
+     * change before the log is replayed.
+     */
+    private static final byte ALLOCATED_SPEND_RECORD = 6;
+
+    /**
+     * An expiry of the points of every transaction that expired before a time.
+     */
+    private static final byte EXPIRY_RECORD = 7;
+
+    /**
+     * The end of the snapshot at the start of a replication stream; the records after it are operations.
+     */
+    private static final byte SNAPSHOT_END_RECORD = 8;
+
+    /**
+     * The leader's clock time in a replication stream; every operation the leader logged before it comes before it.
+     */
+    private static final byte HEARTBEAT_RECORD = 9;
+
+    /**
+     * Set in the type of a transaction record when the transaction has an expiry.
+     */
+    private static final byte EXPIRY_FLAG = 0x40;
+
+    /**
+     * Record length and checksum.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Anything longer is treated as a corrupt length field.
+     */
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long snapshotInterval;
+
+    /**
+     * Runs periodic fsyncs and snapshot writes.
+     */
+    private final ScheduledExecutorService background;
+
+    private final AtomicBoolean snapshotInProgress = new AtomicBoolean();
+
+    private volatile RecordWriter segmentWriter;
+    private long segmentNumber;
+    private long recordsSinceSnapshot;
+
+    /**
+     * Null unless appended records are shipped to a replication leader.
+     */
+    private RecordListener recordListener;
+
+    /**
+     * @param directory the directory holding the log segments and snapshots.
+     * @param fsyncPolicy when appended records are forced to disk.
+     * @param fsyncIntervalMillis how often the log is forced with FsyncPolicy.INTERVAL.
+     * @param snapshotInterval the number of records after which a new snapshot is taken.
+     */
+    public WriteAheadLog(
+        @Value("${points.wal.directory:data/wal}") final Path directory,
+        @Value("${points.wal.fsync:INTERVAL}") final FsyncPolicy fsyncPolicy,
+        @Value("${points.wal.fsync-interval-ms:10}") final long fsyncIntervalMillis,
+        @Value("${points.wal.snapshot-interval:1000000}") final long snapshotInterval) {
+
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be at least 1 record");
+        }
+
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.snapshotInterval = snapshotInterval;
+
+        background = Executors.newScheduledThreadPool(2, runnable -> {
+            final Thread thread = new Thread(runnable, "write-ahead-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            background.scheduleWithFixedDelay(
+                this::forceSegment, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replay the latest snapshot and the log segments after it, then open the log for appending.
+     * Must be called once, before anything is appended.
+     *
+     * Snapshots are only ever renamed into place once written, so one with an incomplete or corrupt record was
+     * damaged afterwards. Recovery then falls back to the snapshot before it, or to the first segment, as long as
+     * the segments after that are still there; otherwise it fails rather than recover part of the ledger.
+     *
+     * @param target receives the recovered operations, in order.
+     * @throws IOException if the log can't be read, or the latest whole snapshot and the segments after it don't
+     *         make up the ledger.
+     */
+    public void recover(final LogReplayTarget target) throws IOException {
+        Files.createDirectories(directory);
+
+        final Replayer replayer = new Replayer(target);
+        final long snapshot = latestWholeSnapshot(replayer);
+
+        final List<Long> segments = fileNumbers(SEGMENT_PREFIX).stream()
+            .filter(number -> number >= snapshot)
+            .collect(Collectors.toList());
+        if (!segments.isEmpty() && segments.get(0) != Math.max(snapshot, 0)) {
+            throw new IOException("Missing write-ahead log segments before " + segmentPath(segments.get(0)));
+        }
+
+        if (snapshot >= 0) {
+            replayer.replay(snapshotPath(snapshot));
+        }
+
+        for (int i = 0; i < segments.size(); i++) {
+            final Path segment = segmentPath(segments.get(i));
+            final long validLength = replayer.replay(segment);
+
+            if (validLength < Files.size(segment)) {
+                if (i < segments.size() - 1) {
+                    throw new IOException("Corrupt record in write-ahead log segment " + segment);
+                }
+
+                log.warn("Truncating incomplete record at position {} of {}", validLength, segment);
+                try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+        }
+
+        segmentNumber = segments.isEmpty() ? Math.max(snapshot, 0) : segments.get(segments.size() - 1);
+        segmentWriter = RecordWriter.open(segmentPath(segmentNumber), this::publish);
+        recordsSinceSnapshot = replayer.segmentRecords;
+
+        deleteFilesBefore(Math.max(snapshot, 0));
+    }
+
+    /**
+     * Append a record of an added transaction.
+     */
+    public void appendTransaction(final Transaction transaction) {
+        checkTransaction(transaction);
+        try {
+            segmentWriter.writeTransaction(transaction);
+            flushAppend();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to write-ahead log", e);
+        }
+    }
+
+    /**
+     * Append records of a batch of added transactions, forcing them to disk together.
+     */
+    public void appendTransactions(final List<Transaction> transactions) {
+        for (final Transaction transaction : transactions) {
+            checkTransaction(transaction);
+        }
+        try {
+            for (final Transaction transaction : transactions) {
+                segmentWriter.writeTransaction(transaction);
+            }
+            flushAppend(transactions.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to write-ahead log", e);
+        }
+    }
+
+    /**
+     * Append a record of a spend.
+     *
+     * @param timestamp when the spend was made.
+     */
+    public void appendSpend(final int pointsToSpend, final Date timestamp) {
+        try {
+            segmentWriter.writeSpend(pointsToSpend, timestamp);
+            flushAppend();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to write-ahead log", e);
+        }
+    }
+
+    /**
+     * Append a record of a spend as the points it takes from each payer. Replaying it spends the same points from the
+     * same payers, whatever strategy chose them.
+     *
+     * @param allocation the points spent from each payer, as negative deltas.
+     * @param timestamp when the spend was made.
+     */
+    public void appendAllocatedSpend(final List<PayerPointDelta> allocation, final Date timestamp) {
+        try {
+            segmentWriter.writeAllocatedSpend(allocation, timestamp);
+            flushAppend();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to write-ahead log", e);
+        }
+    }
+
+    /**
+     * Append a record of an expiry. Replaying it expires the same transactions, since each transaction's expiry is
+     * logged with it.
+     *
+     * @param upTo points that expire before this time are expired.
+     */
+    public void appendExpiry(final Date upTo) {
+        try {
+            segmentWriter.writeExpiry(upTo);
+            flushAppend();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to write-ahead log", e);
+        }
+    }
+
+    /**
+     * Append records of a batch of spends, forcing them to disk together.
+     *
+     * @param timestamp when the spends were made.
+     */
+    public void appendSpends(final List<Integer> pointsToSpend, final Date timestamp) {
+        try {
+            for (final int points : pointsToSpend) {
+                segmentWriter.writeSpend(points, timestamp);
+            }
+            flushAppend(pointsToSpend.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to append to write-ahead log", e);
+        }
+    }
+
+    /**
+     * Start a new snapshot if enough records have been appended since the last one.
+     * Must be called in the same serialized context as the appends, after the appended operations were applied.
+     *
+     * The state is only copied here, which should be quick; it's made into records and written in the background,
+     * so that appends aren't held up for longer than the copy takes.
+     *
+     * @param ledgerState copies transactions which, added to an empty ledger, reproduce the current ledger.
+     * @param balanceHistory copies every change to payer balances so far, as transactions.
+     * @param addedTransactions copies every transaction added so far, in order.
+     */
+    public void snapshotIfDue(
+        final StateCopier ledgerState,
+        final StateCopier balanceHistory,
+        final StateCopier addedTransactions) {
+
+        if (recordsSinceSnapshot < snapshotInterval || !snapshotInProgress.compareAndSet(false, true)) {
+            return;
+        }
+
+        final Supplier<List<Transaction>> transactions = ledgerState.copy();
+        final Supplier<List<Transaction>> balanceChanges = balanceHistory.copy();
+        final Supplier<List<Transaction>> added = addedTransactions.copy();
+        final long snapshotNumber = segmentNumber + 1;
+
+        try {
+            final RecordWriter previousWriter = segmentWriter;
+            segmentWriter = RecordWriter.open(segmentPath(snapshotNumber), this::publish);
+            segmentNumber = snapshotNumber;
+            recordsSinceSnapshot = 0;
+            previousWriter.close();
+        } catch (IOException e) {
+            snapshotInProgress.set(false);
+            throw new UncheckedIOException("Failed to start a new write-ahead log segment", e);
+        }
+
+        background.execute(() -> writeSnapshot(snapshotNumber, transactions, balanceChanges, added));
+    }
+
+    /**
+     * Copies part of a ledger's state, while the ledger can't change, into a supplier that gives it as transactions
+     * later, on another thread.
+     */
+    @FunctionalInterface
+    public interface StateCopier {
+        Supplier<List<Transaction>> copy();
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Pass every record appended from now on to a listener, once it's written to the log.
+     * Must be called in the same serialized context as the appends.
+     */
+    void setRecordListener(final RecordListener recordListener) {
+        this.recordListener = recordListener;
+    }
+
+    /**
+     * Receives appended records, in order, in the serialized context of the appends.
+     */
+    @FunctionalInterface
+    interface RecordListener {
+
+        /**
+         * @param records whole framed records; only valid during the call.
+         */
+        void appended(ByteBuffer records);
+    }
+
+    /**
+     * Write the start of a replication stream: the given state as a snapshot, then SNAPSHOT_END.
+     */
+    static void writeReplicaState(
+        final RecordWriter writer,
+        final List<Transaction> transactions,
+        final List<Transaction> balanceChanges,
+        final List<Transaction> added) throws IOException {
+
+        writeState(writer, transactions, balanceChanges, added);
+        writer.writeSnapshotEnd();
+    }
+
+    /**
+     * Apply a replication stream, the snapshot to target's restore methods and the operations after it to the others,
+     * until the stream fails.
+     *
+     * @param heartbeats receives the time in each heartbeat, once every record before it has been applied.
+     * @throws IOException when the stream ends, fails or has a corrupt record.
+     */
+    static void replayStream(final InputStream in, final LogReplayTarget target, final LongConsumer heartbeats)
+    throws IOException {
+
+        new Replayer(target).replayStream(new DataInputStream(new BufferedInputStream(in, 64 * 1024)), heartbeats);
+    }
+
+    /**
+     * Wait for any snapshot in progress, then force and close the log.
+     */
+    @Override
+    public void close() throws IOException {
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (segmentWriter != null) {
+            segmentWriter.close();
+        }
+    }
+
+    private void flushAppend() throws IOException {
+        flushAppend(1);
+    }
+
+    private void flushAppend(final int records) throws IOException {
+        segmentWriter.flush();
+        recordsSinceSnapshot += records;
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            segmentWriter.force();
+        }
+    }
+
+    private void forceSegment() {
+        final RecordWriter writer = segmentWriter;
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.force();
+        } catch (ClosedChannelException e) {
+            // The segment was replaced by a newer one, which forced and closed it
+        } catch (IOException e) {
+            log.error("Failed to force write-ahead log segment", e);
+        }
+    }
+
+    private void writeSnapshot(
+        final long snapshotNumber,
+        final Supplier<List<Transaction>> transactions,
+        final Supplier<List<Transaction>> balanceChanges,
+        final Supplier<List<Transaction>> added) {
+
+        final Path snapshot = snapshotPath(snapshotNumber);
+        final Path partialSnapshot = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+
+        try {
+            try (RecordWriter writer = RecordWriter.open(partialSnapshot, null)) {
+                writeState(writer, transactions.get(), balanceChanges.get(), added.get());
+            }
+
+            Files.move(partialSnapshot, snapshot, StandardCopyOption.ATOMIC_MOVE);
+            deleteFilesBefore(snapshotNumber);
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to write write-ahead log snapshot " + snapshot, e);
+        } finally {
+            snapshotInProgress.set(false);
+        }
+    }
+
+    /**
+     * Refuse a transaction that couldn't be encoded, before anything of it is appended.
+     */
+    private static void checkTransaction(final Transaction transaction) {
+        if (transaction.getPayer() == null) {
+            throw new IllegalArgumentException("Missing payer");
+        }
+        if (transaction.getPoints() == null) {
+            throw new IllegalArgumentException("Missing points");
+        }
+    }
+
+    private static void writeState(
+        final RecordWriter writer,
+        final List<Transaction> transactions,
+        final List<Transaction> balanceChanges,
+        final List<Transaction> added) throws IOException {
+
+        for (final Transaction transaction : transactions) {
+            writer.writeTransaction(transaction);
+        }
+        for (final Transaction change : balanceChanges) {
+            writer.writeBalanceChange(change);
+        }
+        for (final Transaction transaction : added) {
+            writer.writeAddedTransaction(transaction);
+        }
+    }
+
+    private void publish(final ByteBuffer records) {
+        if (recordListener != null) {
+            recordListener.appended(records);
+        }
+    }
+
+    /**
+     * Delete segments and snapshots made obsolete by the snapshot with the given number.
+     */
+    private void deleteFilesBefore(final long snapshotNumber) throws IOException {
+        for (final long segment : fileNumbers(SEGMENT_PREFIX)) {
+            if (segment < snapshotNumber) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+        }
+
+        for (final long snapshot : fileNumbers(SNAPSHOT_PREFIX)) {
+            if (snapshot < snapshotNumber) {
+                Files.deleteIfExists(snapshotPath(snapshot));
+            }
+        }
+    }
+
+    private Path segmentPath(final long number) {
+        return directory.resolve(SEGMENT_PREFIX + number + SUFFIX);
+    }
+
+    private Path snapshotPath(final long number) {
+        return directory.resolve(SNAPSHOT_PREFIX + number + SUFFIX);
+    }
+
+    /**
+     * Get the number of the latest snapshot whose records are all whole, or -1 if there's none.
+     */
+    private long latestWholeSnapshot(final Replayer replayer) throws IOException {
+        final List<Long> snapshots = fileNumbers(SNAPSHOT_PREFIX);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            final Path snapshot = snapshotPath(snapshots.get(i));
+            final long validLength = replayer.check(snapshot);
+            if (validLength == Files.size(snapshot)) {
+                return snapshots.get(i);
+            }
+            log.error("Skipping write-ahead log snapshot {}, which has a corrupt record at position {}",
+                snapshot, validLength);
+        }
+        return -1;
+    }
+
+    /**
+     * Get the numbers of the files with the given prefix, in ascending order.
+     */
+    private List<Long> fileNumbers(final String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                .map(file -> file.getFileName().toString())
+                .filter(name -> name.startsWith(prefix) && name.endsWith(SUFFIX))
+                .map(name -> Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length())))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Buffers encoded records and writes them to a file or, for replication, a socket.
+     */
+    static final class RecordWriter implements Closeable {
+        private final WritableByteChannel channel;
+        private final CRC32 checksum = new CRC32();
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        /**
+         * Null unless the records written are also passed on.
+         */
+        private final RecordListener listener;
+
+        RecordWriter(final WritableByteChannel channel, final RecordListener listener) {
+            this.channel = channel;
+            this.listener = listener;
+        }
+
+        /**
+         * Open a writer that appends to a file.
+         *
+         * @param listener receives the records once they're written to the file; may be null.
+         */
+        static RecordWriter open(final Path file, final RecordListener listener) throws IOException {
+            final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            return new RecordWriter(channel, listener);
+        }
+
+        void writeTransaction(final Transaction transaction) throws IOException {
+            writeTransaction(TRANSACTION_RECORD, transaction);
+        }
+
+        void writeBalanceChange(final Transaction change) throws IOException {
+            writeTransaction(BALANCE_CHANGE_RECORD, change);
+        }
+
+        void writeAddedTransaction(final Transaction transaction) throws IOException {
+            writeTransaction(ADDED_TRANSACTION_RECORD, transaction);
+        }
+
+        void writeSpend(final int pointsToSpend, final Date timestamp) throws IOException {
+            final int start = startRecord(1 + 4 + 8);
+            buffer.put(TIMESTAMPED_SPEND_RECORD).putInt(pointsToSpend).putLong(timestamp.getTime());
+            endRecord(start);
+        }
+
+        void writeExpiry(final Date upTo) throws IOException {
+            final int start = startRecord(1 + 8);
+            buffer.put(EXPIRY_RECORD).putLong(upTo.getTime());
+            endRecord(start);
+        }
+
+        void writeSnapshotEnd() throws IOException {
+            final int start = startRecord(1);
+            buffer.put(SNAPSHOT_END_RECORD);
+            endRecord(start);
+        }
+
+        void writeHeartbeat(final long leaderTime) throws IOException {
+            final int start = startRecord(1 + 8);
+            buffer.put(HEARTBEAT_RECORD).putLong(leaderTime);
+            endRecord(start);
+        }
+
+        /**
+         * Write records that are already framed, as passed to a RecordListener.
+         */
+        void writeRecords(final byte[] records) throws IOException {
+            if (buffer.remaining() < records.length) {
+                flush();
+            }
+
+            if (buffer.remaining() < records.length) {
+                final ByteBuffer direct = ByteBuffer.wrap(records);
+                while (direct.hasRemaining()) {
+                    channel.write(direct);
+                }
+            } else {
+                buffer.put(records);
+            }
+        }
+
+        void writeAllocatedSpend(final List<PayerPointDelta> allocation, final Date timestamp) throws IOException {
+            final byte[][] payers = new byte[allocation.size()][];
+            int length = 1 + 8 + 4;
+            for (int i = 0; i < payers.length; i++) {
+                payers[i] = allocation.get(i).getPayer().getBytes(StandardCharsets.UTF_8);
+                length += 4 + payers[i].length + 4;
+            }
+
+            final int start = startRecord(length);
+            try {
+                buffer.put(ALLOCATED_SPEND_RECORD).putLong(timestamp.getTime()).putInt(payers.length);
+                for (int i = 0; i < payers.length; i++) {
+                    buffer.putInt(payers[i].length).put(payers[i]).putInt(allocation.get(i).getPoints());
+                }
+            } catch (RuntimeException e) {
+                abandonRecord(start);
+                throw e;
+            }
+            endRecord(start);
+        }
+
+        private void writeTransaction(final byte type, final Transaction transaction) throws IOException {
+            final byte[] payer = transaction.getPayer().getBytes(StandardCharsets.UTF_8);
+            final boolean hasExpiry = transaction.hasExpiry();
+            final int start = startRecord(1 + 4 + payer.length + 4 + 8 + (hasExpiry ? 8 : 0));
+
+            try {
+                buffer.put(hasExpiry ? (byte) (type | EXPIRY_FLAG) : type)
+                    .putInt(payer.length)
+                    .put(payer)
+                    .putInt(transaction.getPoints())
+                    .putLong(transaction.getTimestampMillis());
+                if (hasExpiry) {
+                    buffer.putLong(transaction.getExpiresAtMillis());
+                }
+            } catch (RuntimeException e) {
+                abandonRecord(start);
+                throw e;
+            }
+
+            endRecord(start);
+        }
+
+        /**
+         * Write buffered records to the file.
+         */
+        void flush() throws IOException {
+            buffer.flip();
+            final ByteBuffer written = buffer.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            // Only once written, so nothing is passed on that isn't in the log
+            if (listener != null && written.hasRemaining()) {
+                listener.appended(written);
+            }
+            buffer.clear();
+        }
+
+        void force() throws IOException {
+            if (channel instanceof FileChannel) {
+                ((FileChannel) channel).force(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                force();
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * Make room for a record and reserve its header.
+         *
+         * @return the buffer position of the record.
+         */
+        private int startRecord(final int length) throws IOException {
+            if (buffer.remaining() < HEADER_SIZE + length) {
+                flush();
+
+                if (buffer.capacity() < HEADER_SIZE + length) {
+                    buffer = ByteBuffer.allocateDirect(HEADER_SIZE + length);
+                }
+            }
+
+            final int start = buffer.position();
+            buffer.position(start + HEADER_SIZE);
+            return start;
+        }
+
+        /**
+         * Discard the part of a record that was written before encoding it failed, so it's never flushed.
+         */
+        private void abandonRecord(final int start) {
+            buffer.position(start);
+        }
+
+        /**
+         * Fill in the header of the record that starts at the given position.
+         */
+        private void endRecord(final int start) {
+            final int end = buffer.position();
+            final int length = end - start - HEADER_SIZE;
+
+            final ByteBuffer body = buffer.duplicate();
+            body.position(start + HEADER_SIZE).limit(end);
+            checksum.reset();
+            checksum.update(body);
+
+            buffer.putInt(start, length);
+            buffer.putInt(start + 4, (int) checksum.getValue());
+        }
+    }
+
+    /**
+     * Decodes records and applies them to a LogReplayTarget.
+     */
+    private static final class Replayer {
+        private final LogReplayTarget target;
+        private final CRC32 checksum = new CRC32();
+
+        /**
+         * Payer names seen so far, so replayed transactions share one String per payer.
+         */
+        private final Map<String, String> payers = new HashMap<>();
+
+        private byte[] record = new byte[256];
+        private long segmentRecords;
+
+        Replayer(final LogReplayTarget target) {
+            this.target = target;
+        }
+
+        /**
+         * Read every complete record in a file, without replaying any.
+         *
+         * @return the length of the file up to the end of the last complete record.
+         */
+        long check(final Path file) throws IOException {
+            long validLength = 0;
+
+            try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+
+                int length;
+                while ((length = readRecord(in)) > 0) {
+                    validLength += HEADER_SIZE + length;
+                }
+            }
+
+            return validLength;
+        }
+
+        /**
+         * Replay every complete record in a file.
+         *
+         * @return the length of the file up to the end of the last complete record.
+         */
+        long replay(final Path file) throws IOException {
+            final boolean segment = file.getFileName().toString().startsWith(SEGMENT_PREFIX);
+            long validLength = 0;
+
+            try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+
+                int length;
+                while ((length = readRecord(in)) > 0) {
+                    apply(ByteBuffer.wrap(record, 0, length), segment);
+                    validLength += HEADER_SIZE + length;
+                    if (segment) {
+                        segmentRecords++;
+                    }
+                }
+            }
+
+            return validLength;
+        }
+
+        /**
+         * Replay a replication stream until it fails.
+         *
+         * @throws IOException when the stream ends, fails or has a corrupt record.
+         */
+        void replayStream(final DataInputStream in, final LongConsumer heartbeats) throws IOException {
+            boolean segment = false;
+            while (true) {
+                final int length = readRecord(in);
+                if (length < 0) {
+                    throw new IOException("Replication stream ended or has a corrupt record");
+                }
+
+                final ByteBuffer stored = ByteBuffer.wrap(record, 0, length);
+                final byte type = stored.get(0);
+                if (type == SNAPSHOT_END_RECORD) {
+                    segment = true;
+                } else if (type == HEARTBEAT_RECORD) {
+                    stored.get();
+                    heartbeats.accept(stored.getLong());
+                } else {
+                    apply(stored, segment);
+                }
+            }
+        }
+
+        /**
+         * Read the next record into the record array.
+         *
+         * @return its length, or -1 at the end of the input or at a corrupt record.
+         */
+        private int readRecord(final DataInputStream in) throws IOException {
+            final int length;
+            final int expectedChecksum;
+            try {
+                length = in.readInt();
+                expectedChecksum = in.readInt();
+                if (length < 1 || length > MAX_RECORD_SIZE) {
+                    return -1;
+                }
+
+                if (record.length < length) {
+                    record = new byte[length];
+                }
+                in.readFully(record, 0, length);
+            } catch (EOFException e) {
+                return -1;
+            }
+
+            checksum.reset();
+            checksum.update(record, 0, length);
+            return (int) checksum.getValue() == expectedChecksum ? length : -1;
+        }
+
+        /**
+         * @param segment whether the record is from a log segment rather than a snapshot.
+         */
+        private void apply(final ByteBuffer record, final boolean segment) {
+            final byte flaggedType = record.get();
+            final boolean hasExpiry = (flaggedType & EXPIRY_FLAG) != 0;
+            final byte type = (byte) (flaggedType & ~EXPIRY_FLAG);
+
+            if (type == TRANSACTION_RECORD && segment) {
+                target.addTransaction(readTransaction(record, hasExpiry));
+            } else if (type == TRANSACTION_RECORD) {
+                target.restoreTransaction(readTransaction(record, hasExpiry));
+            } else if (type == BALANCE_CHANGE_RECORD) {
+                target.restoreBalanceChange(readTransaction(record, hasExpiry));
+            } else if (type == ADDED_TRANSACTION_RECORD) {
+                target.restoreAddedTransaction(readTransaction(record, hasExpiry));
+            } else if (type == EXPIRY_RECORD) {
+                target.expire(new Date(record.getLong()));
+            } else if (type == TIMESTAMPED_SPEND_RECORD) {
+                spend(record.getInt(), new Date(record.getLong()));
+            } else if (type == ALLOCATED_SPEND_RECORD) {
+                spendAllocated(record);
+            } else {
+                throw new IllegalStateException("Unknown write-ahead log record type " + flaggedType);
+            }
+        }
+
+        private Transaction readTransaction(final ByteBuffer record, final boolean hasExpiry) {
+            final String payer = readPayer(record);
+            final int points = record.getInt();
+            final long timestamp = record.getLong();
+            return new Transaction(payer, points, timestamp, hasExpiry ? record.getLong() : Transaction.NO_EXPIRY);
+        }
+
+        private String readPayer(final ByteBuffer record) {
+            final byte[] payerBytes = new byte[record.getInt()];
+            record.get(payerBytes);
+            return payers.computeIfAbsent(new String(payerBytes, StandardCharsets.UTF_8), name -> name);
+        }
+
+        private void spendAllocated(final ByteBuffer record) {
+            final Date timestamp = new Date(record.getLong());
+            final int payerCount = record.getInt();
+            final List<PayerPointDelta> allocation = new ArrayList<>(payerCount);
+            for (int i = 0; i < payerCount; i++) {
+                final String payer = readPayer(record);
+                allocation.add(new PayerPointDelta(payer, record.getInt()));
+            }
+
+            try {
+                target.spendAllocated(allocation, timestamp);
+            } catch (InsufficientPointsException e) {
+                throw new IllegalStateException("Write-ahead log spends more points than it adds", e);
+            }
+        }
+
+        private void spend(final int pointsToSpend, final Date timestamp) {
+            try {
+                target.spend(pointsToSpend, timestamp);
+            } catch (InsufficientPointsException e) {
+                throw new IllegalStateException("Write-ahead log spends more points than it adds", e);
+            }
+        }
+    }
+}
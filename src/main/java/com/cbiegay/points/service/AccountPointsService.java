@@ -0,0 +1,70 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.UnavailableStrategyException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Service for managing operations on points held by many independent accounts (e.g. reward members).
+ * Each account has its own ledger; operations on one account never affect another.
+ */
+public interface AccountPointsService {
+
+    /**
+     * Add a transaction representing points earned for a payer in an account.
+     *
+     * @param account the account the points belong to.
+     * @param transaction an object representing the points earned for a payer in a transaction.
+     * @throws IllegalArgumentException if the transaction has no payer or no points; nothing is changed.
+     */
+    void addTransaction(final String account, final Transaction transaction);
+
+    /**
+     * Spend points accumulated via transactions in an account, with the account's configured spend strategy.
+     *
+     * @param account the account to spend points from.
+     * @param pointsToSpend the number of points to spend.
+     * @return a list of objects indicating how many points were spent per payer, sorted by points in descending order.
+     * @throws InsufficientPointsException if trying to spend more points than the account has.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     */
+    List<PayerPointDelta> spend(final String account, final int pointsToSpend) throws InsufficientPointsException;
+
+    /**
+     * Spend points accumulated via transactions in an account, choosing which payers to spend from with a strategy.
+     *
+     * @param account the account to spend points from.
+     * @param pointsToSpend the number of points to spend.
+     * @param strategy how to choose the payers; null for the account's configured strategy.
+     * @return a list of objects indicating how many points were spent per payer, sorted by points in descending order.
+     * @throws InsufficientPointsException if trying to spend more points than the account has.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     * @throws UnavailableStrategyException if the strategy can't order the points as it promises; see SpendStrategy.
+     */
+    List<PayerPointDelta> spend(final String account, final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException;
+
+    /**
+     * Expire the points of transactions whose expiry has passed in every account, in batches, so that other operations
+     * can run in between. Expired points are taken from their payers as if spent.
+     *
+     * @param now points that expire before this time are expired.
+     * @param batchSize about how many transactions to expire while holding up other operations on the same accounts.
+     * @return the number of points expired.
+     */
+    long expirePoints(final Date now, final int batchSize);
+
+    /**
+     * Get the current point balances for each payer in an account.
+     *
+     * @param account the account to get balances for.
+     * @return a Map of payer names to point balances, empty if the account has no transactions.
+     */
+    Map<String, Long> getBalances(final String account);
+}
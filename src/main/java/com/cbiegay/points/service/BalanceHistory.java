@@ -0,0 +1,123 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Every change to payer balances, indexed by when it happened, for reading balances as they were at an earlier time.
+ *
+ * Transactions change a balance as of their own timestamp, and spends as of the time they were made. Each payer's
+ * changes are kept in a PrefixSumTree, so reading the balances as of any time takes O(payers * log n) rather than a
+ * scan of the history. A transaction added late with an older timestamp also changes the balances reported for the
+ * times after that timestamp.
+ *
+ * Not thread-safe; PointsService implementations are responsible for synchronizing access.
+ */
+final class BalanceHistory {
+
+    private final Map<String, PrefixSumTree> changesPerPayer = new HashMap<>();
+
+    private BalanceListener listener;
+
+    /**
+     * Record a transaction as a change to its payer's balance at its timestamp.
+     */
+    void recordTransaction(final Transaction transaction) {
+        record(transaction.getPayer(), transaction.getPoints(), transaction.getTimestampMillis());
+    }
+
+    /**
+     * Record the points a spend took from each payer, at the time it was made.
+     */
+    void recordSpend(final List<PayerPointDelta> spent, final long timestamp) {
+        for (final PayerPointDelta delta : spent) {
+            record(delta.getPayer(), delta.getPoints(), timestamp);
+        }
+    }
+
+    void record(final String payer, final long points, final long timestamp) {
+        changesPerPayer.computeIfAbsent(payer, p -> new PrefixSumTree()).add(timestamp, points);
+        if (listener != null && points != 0) {
+            listener.balanceChanged(payer, points);
+        }
+    }
+
+    /**
+     * Tell a listener of every change recorded from now on, in place of any listener set before; null for none.
+     */
+    void setListener(final BalanceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the balance of each payer as of a time, including every change at or before it. Payers whose first
+     * change came after that time are left out.
+     */
+    Map<String, Long> getBalances(final Date asOf) {
+        final long time = asOf.getTime();
+        final Map<String, Long> balances = new HashMap<>();
+
+        for (final Map.Entry<String, PrefixSumTree> payerChanges : changesPerPayer.entrySet()) {
+            final PrefixSumTree changes = payerChanges.getValue();
+            if (changes.getEarliestTimestamp() <= time) {
+                balances.put(payerChanges.getKey(), changes.sumUpTo(time));
+            }
+        }
+
+        return balances;
+    }
+
+    /**
+     * Get the whole history as changes in the form of transactions, one per payer and timestamp.
+     * Recording them into an empty history reproduces this one.
+     */
+    List<Transaction> getChanges() {
+        return copyChanges().get();
+    }
+
+    /**
+     * Copy each payer's changes into arrays, so that they can be made into transactions, as getChanges does, without
+     * holding the lock that guards the history. Costs 16 bytes per change.
+     */
+    Supplier<List<Transaction>> copyChanges() {
+        int size = 0;
+        for (final PrefixSumTree changes : changesPerPayer.values()) {
+            size += changes.size();
+        }
+
+        final String[] payers = new String[size];
+        final long[] timestamps = new long[size];
+        final long[] points = new long[size];
+        final int[] count = { 0 };
+        for (final Map.Entry<String, PrefixSumTree> payerChanges : changesPerPayer.entrySet()) {
+            final String payer = payerChanges.getKey();
+            payerChanges.getValue().forEach((timestamp, value) -> {
+                payers[count[0]] = payer;
+                timestamps[count[0]] = timestamp;
+                points[count[0]++] = value;
+            });
+        }
+
+        return () -> {
+            final List<Transaction> history = new ArrayList<>(count[0]);
+            for (int i = 0; i < count[0]; i++) {
+                // Changes at one timestamp can add up to more than a transaction holds, so split them if they do
+                long pointsLeft = points[i];
+                while (pointsLeft != (int) pointsLeft) {
+                    final int part = pointsLeft > 0 ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+                    history.add(new Transaction(payers[i], part, timestamps[i]));
+                    pointsLeft -= part;
+                }
+                history.add(new Transaction(payers[i], (int) pointsLeft, timestamps[i]));
+            }
+            return history;
+        };
+    }
+}
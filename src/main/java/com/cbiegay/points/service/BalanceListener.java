@@ -0,0 +1,18 @@
+package com.cbiegay.points.service;
+
+/**
+ * Told of each change to a payer's balance as a PointsService makes it: the points of each transaction added, and
+ * the points each spend or expiry takes from each payer.
+ *
+ * Called while the service holds its lock, in the order the changes are made, so implementations must be quick and
+ * must not call back into the service.
+ */
+@FunctionalInterface
+public interface BalanceListener {
+
+    /**
+     * @param payer the payer whose balance changed.
+     * @param points the change, negative for points taken.
+     */
+    void balanceChanged(final String payer, final long points);
+}
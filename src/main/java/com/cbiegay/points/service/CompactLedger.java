@@ -0,0 +1,275 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.model.Transaction;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Ledger that stores transactions in primitive arrays instead of one object per transaction.
+ *
+ * Each payer's unspent transactions form a binary min-heap in its own parallel arrays, ordered oldest first
+ * (timestamp, then sequence), and timestamps are kept as epoch milliseconds, so a transaction costs 20 bytes of array
+ * space and nothing else. Spent transactions are archived to a shared set of arrays, with payers interned to their
+ * ids. Adding, spending and reading balances don't allocate per transaction; spending allocates only its per-payer
+ * result.
+ *
+ * Not thread-safe; PointsService implementations are responsible for synchronizing access.
+ */
+public class CompactLedger extends PayerQueueLedger {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Spent transactions: their payer id and timestamp. Their points are always zero.
+     */
+    private long[] archivedTimestamps;
+    private int[] archivedPayers;
+    private int archivedSize;
+
+    public CompactLedger() {
+        this(PayerPolicies.NONE);
+    }
+
+    public CompactLedger(final PayerPolicies policies) {
+        super(policies);
+        archivedTimestamps = new long[INITIAL_CAPACITY];
+        archivedPayers = new int[INITIAL_CAPACITY];
+    }
+
+    @Override
+    PayerQueue newQueue(final String payer, final int id) {
+        return new ArrayQueue(payer, id);
+    }
+
+    @Override
+    void archiveWithoutPoints(final PayerQueue queue, final Transaction transaction, final long sequence) {
+        archive(queue.id, transaction.getTimestampMillis());
+    }
+
+    @Override
+    int getArchiveSize() {
+        return archivedSize;
+    }
+
+    private void archive(final int payer, final long timestamp) {
+        if (archivedSize == archivedPayers.length) {
+            archivedTimestamps = Arrays.copyOf(archivedTimestamps, archivedSize * 2);
+            archivedPayers = Arrays.copyOf(archivedPayers, archivedSize * 2);
+        }
+
+        archivedTimestamps[archivedSize] = timestamp;
+        archivedPayers[archivedSize] = payer;
+        archivedSize++;
+    }
+
+    /**
+     * A payer's unspent transactions as a min-heap; index i of each array is one transaction.
+     */
+    private final class ArrayQueue extends PayerQueue {
+
+        private long[] timestamps;
+        private long[] sequences;
+        private int[] points;
+        private int size;
+
+        ArrayQueue(final String payer, final int id) {
+            super(payer, id);
+            timestamps = new long[INITIAL_CAPACITY];
+            sequences = new long[INITIAL_CAPACITY];
+            points = new int[INITIAL_CAPACITY];
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        long headTimestamp() {
+            return timestamps[0];
+        }
+
+        @Override
+        long headSequence() {
+            return sequences[0];
+        }
+
+        @Override
+        int headPoints() {
+            return points[0];
+        }
+
+        @Override
+        void insert(final long timestamp, final long sequence, final int transactionPoints) {
+            if (size == timestamps.length) {
+                final int capacity = size * 2;
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                sequences = Arrays.copyOf(sequences, capacity);
+                points = Arrays.copyOf(points, capacity);
+            }
+
+            timestamps[size] = timestamp;
+            sequences[size] = sequence;
+            points[size] = transactionPoints;
+            siftUp(size++);
+        }
+
+        @Override
+        void addToHead(final int transactionPoints) {
+            points[0] += transactionPoints;
+        }
+
+        @Override
+        void takeFromHead(final int transactionPoints, final boolean archive) {
+            points[0] -= transactionPoints;
+            if (points[0] > 0) {
+                return;
+            }
+
+            if (archive) {
+                archive(id, timestamps[0]);
+            }
+            size--;
+            if (size > 0) {
+                move(size, 0);
+                siftDown(0);
+            }
+        }
+
+        @Override
+        void archiveNetted(final long timestamp, final long sequence) {
+            archive(id, timestamp);
+        }
+
+        @Override
+        int removeExpired(final long timestamp, final long sequence) {
+            final int i = find(0, timestamp, sequence);
+            if (i < 0) {
+                return 0;
+            }
+
+            final int transactionPoints = points[i];
+            archive(id, timestamps[i]);
+            size--;
+            if (i < size) {
+                move(size, i);
+                siftDown(siftUp(i));
+            }
+            return transactionPoints;
+        }
+
+        @Override
+        RowCursor cursor() {
+            // Visiting the heap in order without removing anything: the next oldest transaction is always the oldest
+            // of the children of those visited so far
+            final long[] heapTimestamps = timestamps;
+            final long[] heapSequences = sequences;
+            final int[] heapPoints = points;
+            final int heapSize = Math.min(size, heapTimestamps.length);
+
+            final PriorityQueue<Integer> frontier = new PriorityQueue<>((a, b) ->
+                PayerQueue.compare(heapTimestamps[a], heapSequences[a], heapTimestamps[b], heapSequences[b]));
+            if (heapSize > 0) {
+                frontier.add(0);
+            }
+
+            return new RowCursor() {
+                @Override
+                boolean next() {
+                    if (frontier.isEmpty()) {
+                        return false;
+                    }
+
+                    final int i = frontier.poll();
+                    timestamp = heapTimestamps[i];
+                    sequence = heapSequences[i];
+                    points = heapPoints[i];
+
+                    final int left = 2 * i + 1;
+                    if (left < heapSize) {
+                        frontier.add(left);
+                    }
+                    if (left + 1 < heapSize) {
+                        frontier.add(left + 1);
+                    }
+                    return true;
+                }
+            };
+        }
+
+        private int siftUp(int i) {
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (compare(i, parent) >= 0) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+            return i;
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= size) {
+                    return;
+                }
+
+                final int right = left + 1;
+                final int oldestChild = right < size && compare(right, left) < 0 ? right : left;
+                if (compare(i, oldestChild) <= 0) {
+                    return;
+                }
+                swap(i, oldestChild);
+                i = oldestChild;
+            }
+        }
+
+        /**
+         * Find a transaction in the part of the heap under position i, skipping every part whose oldest transaction
+         * is newer than it.
+         *
+         * @return its position, or -1 if it isn't queued.
+         */
+        private int find(final int i, final long timestamp, final long sequence) {
+            if (i >= size) {
+                return -1;
+            }
+
+            final int order = PayerQueue.compare(timestamps[i], sequences[i], timestamp, sequence);
+            if (order >= 0) {
+                return order == 0 ? i : -1;
+            }
+
+            final int inLeft = find(2 * i + 1, timestamp, sequence);
+            return inLeft >= 0 ? inLeft : find(2 * i + 2, timestamp, sequence);
+        }
+
+        /**
+         * Compare the transactions at two heap positions, oldest first, breaking timestamp ties by sequence.
+         */
+        private int compare(final int a, final int b) {
+            return PayerQueue.compare(timestamps[a], sequences[a], timestamps[b], sequences[b]);
+        }
+
+        private void move(final int from, final int to) {
+            timestamps[to] = timestamps[from];
+            sequences[to] = sequences[from];
+            points[to] = points[from];
+        }
+
+        private void swap(final int a, final int b) {
+            final long timestamp = timestamps[a];
+            final long sequence = sequences[a];
+            final int transactionPoints = points[a];
+
+            move(b, a);
+
+            timestamps[b] = timestamp;
+            sequences[b] = sequence;
+            points[b] = transactionPoints;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.BalanceCheckResult;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * PointsService implementation for write-heavy traffic.
+ *
+ * Added transactions are queued on a lock-free queue and applied to the ledger by whichever thread holds the ledger
+ * lock, so adding never waits behind a spend. Spends take the lock, so they are applied one at a time and always see
+ * every transaction added before them. Balances are read from an immutable snapshot that is republished each time
+ * the ledger changes, so reads never take the lock. A newly added transaction may be missing from the balances
+ * for the short time it takes the lock holder to apply it. Spend previews read the ledger optimistically, without
+ * the lock, and likewise may not yet see the latest additions. Balances as of an earlier time are read under the lock,
+ * after applying any queued transactions.
+ *
+ * Every holder of the lock applies whatever was queued while it held it once it lets go (see unlock), so a
+ * transaction is never left queued for longer than the lock is held. Transactions are checked before they're queued,
+ * so that one that can't be applied is turned away by the call that added it rather than failing whichever call
+ * happens to apply it.
+ */
+@Component
+@ConditionalOnProperty(name = "points.service", havingValue = "concurrent")
+public class ConcurrentPointsService implements PointsService {
+
+    /**
+     * Guarded by lock.
+     */
+    private final Ledger ledger;
+
+    /**
+     * Guarded by lock.
+     */
+    private final BalanceHistory balanceHistory;
+
+    /**
+     * Appended to under lock; read without it.
+     */
+    private final TransactionJournal transactionJournal;
+
+    private final StampedLock stampedLock;
+
+    /**
+     * Write view of stampedLock.
+     */
+    private final Lock lock;
+
+    /**
+     * Transactions added but not yet applied to the ledger.
+     */
+    private final Queue<Transaction> pendingTransactions;
+
+    private volatile Map<String, Long> balances;
+
+    private final PayerPolicies payerPolicies;
+
+    private final PointsMetrics metrics;
+
+    public ConcurrentPointsService() {
+        this(LedgerStore.OBJECT);
+    }
+
+    public ConcurrentPointsService(final LedgerStore ledgerStore) {
+        this(ledgerStore, PayerPolicies.NONE);
+    }
+
+    public ConcurrentPointsService(final LedgerStore ledgerStore, final PayerPolicies payerPolicies) {
+        // An empty composite registry discards everything recorded to it
+        this(ledgerStore, payerPolicies, new CompositeMeterRegistry());
+    }
+
+    public ConcurrentPointsService(final LedgerStore ledgerStore, final MeterRegistry meterRegistry) {
+        this(ledgerStore, PayerPolicies.NONE, meterRegistry);
+    }
+
+    @Autowired
+    public ConcurrentPointsService(
+        @Value("${points.ledger.store:OBJECT}") final LedgerStore ledgerStore,
+        final PayerPolicies payerPolicies,
+        final MeterRegistry meterRegistry) {
+
+        ledger = ledgerStore.newLedger(payerPolicies);
+        balanceHistory = new BalanceHistory();
+        transactionJournal = new TransactionJournal();
+        stampedLock = new StampedLock();
+        lock = stampedLock.asWriteLock();
+        this.payerPolicies = payerPolicies;
+        metrics = new PointsMetrics(meterRegistry);
+        metrics.bindLedger(ledger, stampedLock.asReadLock(), this::tryApplyPendingTransactions, meterRegistry);
+        pendingTransactions = new ConcurrentLinkedQueue<>();
+        balances = Collections.emptyMap();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addTransaction(final Transaction transaction) {
+        final long start = System.nanoTime();
+        Ledger.checkTransaction(transaction);
+        pendingTransactions.add(transaction);
+        tryApplyPendingTransactions();
+        metrics.recordAdd(start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addTransactions(final List<Transaction> transactions) {
+        final long start = System.nanoTime();
+        transactions.forEach(Ledger::checkTransaction);
+        pendingTransactions.addAll(transactions);
+        tryApplyPendingTransactions();
+        metrics.recordAdd(start);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> spend(final int pointsToSpend) throws InsufficientPointsException {
+        return spend(pointsToSpend, SpendStrategy.OLDEST_FIRST);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> spend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException {
+
+        final long start = System.nanoTime();
+        metrics.lock(lock);
+        try {
+            applyPendingTransactions();
+
+            final long scannedBefore = ledger.getTransactionsScanned();
+            final List<PayerPointDelta> result = ledger.spend(pointsToSpend, strategy);
+            balanceHistory.recordSpend(result, System.currentTimeMillis());
+
+            metrics.recordSpend(start, ledger.getTransactionsScanned() - scannedBefore);
+            return result;
+        } catch (InsufficientPointsException | IllegalArgumentException e) {
+            metrics.recordFailedSpend(start, e);
+            throw e;
+        } finally {
+            publishBalances();
+            unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<List<PayerPointDelta>> spendBatch(final List<Integer> amounts, final boolean allOrNothing)
+    throws InsufficientPointsException {
+
+        final long start = System.nanoTime();
+        metrics.lock(lock);
+        try {
+            applyPendingTransactions();
+
+            final List<List<PayerPointDelta>> results = ledger.spendBatch(amounts, allOrNothing);
+            final long timestamp = System.currentTimeMillis();
+            for (final List<PayerPointDelta> result : results) {
+                if (result != null) {
+                    balanceHistory.recordSpend(result, timestamp);
+                }
+            }
+            return results;
+        } finally {
+            publishBalances();
+            unlock();
+            metrics.recordSpendBatch(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> previewSpend(final int pointsToSpend) throws InsufficientPointsException {
+        return previewSpend(pointsToSpend, SpendStrategy.OLDEST_FIRST);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> previewSpend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException {
+
+        final long start = System.nanoTime();
+        try {
+            return OptimisticRead.read(
+                stampedLock, () -> ledger.previewSpend(pointsToSpend, strategy), this::tryApplyPendingTransactions);
+        } finally {
+            metrics.recordPreview(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Transactions queued to be applied are applied first, so they expire too if their expiry has passed.
+     */
+    @Override
+    public long expirePoints(final Date now, final int batchSize) {
+        long expired = 0;
+        long upTo;
+        do {
+            metrics.lock(lock);
+            try {
+                final long start = System.nanoTime();
+                applyPendingTransactions();
+                if (ledger.getNextExpiry() >= now.getTime()) {
+                    break;
+                }
+
+                upTo = ledger.getExpiryBatchEnd(now.getTime(), batchSize);
+                final List<PayerPointDelta> result = ledger.expire(upTo);
+                balanceHistory.recordSpend(result, upTo);
+                publishBalances();
+
+                final long batchPoints = DefaultPointsService.sumExpired(result);
+                metrics.recordExpiryBatch(start, batchPoints);
+                expired += batchPoints;
+            } finally {
+                unlock();
+            }
+        } while (upTo < now.getTime());
+
+        return expired;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBalances() {
+        final long start = System.nanoTime();
+        final Map<String, Long> snapshot = balances;
+        metrics.recordBalances(start);
+
+        return snapshot;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBalances(final Date asOf) {
+        final long start = System.nanoTime();
+        metrics.lock(lock);
+        try {
+            applyPendingTransactions();
+            publishBalances();
+            return balanceHistory.getBalances(asOf);
+        } finally {
+            unlock();
+            metrics.recordBalances(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Queued transactions are applied first, so they count in the balances returned rather than as changes.
+     */
+    @Override
+    public Map<String, Long> setBalanceListener(final BalanceListener listener) {
+        metrics.lock(lock);
+        try {
+            applyPendingTransactions();
+            publishBalances();
+            balanceHistory.setListener(listener);
+            return balances;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Transactions still queued to be applied aren't included.
+     */
+    @Override
+    public List<Transaction> getTransactions() {
+        return transactionJournal.view();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BalanceCheckResult checkBalances() {
+        final long start = System.nanoTime();
+        final UnspentPoints unspentPoints;
+        final Map<String, Long> reportedBalances;
+
+        metrics.lock(lock);
+        try {
+            applyPendingTransactions();
+            publishBalances();
+            unspentPoints = ledger.copyUnspentPoints();
+            reportedBalances = ledger.getBalances();
+        } finally {
+            unlock();
+        }
+
+        try {
+            return unspentPoints.check(reportedBalances, ForkJoinPool.commonPool());
+        } finally {
+            metrics.recordBalanceCheck(start);
+        }
+    }
+
+    /**
+     * Release the lock, then apply whatever was queued while it was held. Every holder of the lock, or of its read
+     * view, must let go through here.
+     */
+    private void unlock() {
+        lock.unlock();
+        tryApplyPendingTransactions();
+    }
+
+    /**
+     * Apply queued transactions unless another thread holds the lock.
+     */
+    private void tryApplyPendingTransactions() {
+        // A thread that finds the lock taken can leave its transaction for the lock holder, because every holder
+        // checks the queue again after unlocking (see unlock). That re-check is this loop.
+        while (!pendingTransactions.isEmpty() && lock.tryLock()) {
+            try {
+                applyPendingTransactions();
+                publishBalances();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private void applyPendingTransactions() {
+        Transaction transaction;
+        while ((transaction = pendingTransactions.poll()) != null) {
+            final Transaction withExpiry = payerPolicies.withExpiry(transaction);
+            ledger.addTransaction(withExpiry);
+            balanceHistory.recordTransaction(withExpiry);
+            transactionJournal.append(withExpiry);
+        }
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private void publishBalances() {
+        balances = Collections.unmodifiableMap(ledger.getBalances());
+    }
+}
@@ -1,153 +1,561 @@
 package com.cbiegay.points.service;
 
 import com.cbiegay.points.InsufficientPointsException;
-import com.cbiegay.points.model.MutableTransaction;
+import com.cbiegay.points.model.BalanceCheckResult;
 import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
 import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.persistence.LogReplayTarget;
+import com.cbiegay.points.persistence.ReplicationLeader;
+import com.cbiegay.points.persistence.WriteAheadLog;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 /**
  * Default implementation for PointsService.
+ * Optionally durable: when a WriteAheadLog is configured, the ledger is recovered from it on startup and every
+ * operation is logged before it is applied. A durable service can also lead replication: with a ReplicationLeader
+ * configured, the log is shipped to read replicas as it's appended.
  */
 @Component
+@ConditionalOnProperty(name = "points.service", havingValue = "default", matchIfMissing = true)
 public class DefaultPointsService implements PointsService {
 
     // Singleton Spring beans should typically be stateless and not contain mutable fields.
     // Using a stateful field for the purposes of this exercise, however, in lieu of a persistent data store.
-    // Using synchronized methods to manage concurrent access.
+    // Using a single lock to manage concurrent access; an explicit lock rather than synchronized methods so that the
+    // time spent waiting for it can be measured, and a StampedLock so that spend previews can read without it.
+    private final Ledger ledger;
+
+    /**
+     * Guarded by lock, like the ledger.
+     */
+    private final BalanceHistory balanceHistory;
+
+    /**
+     * Appended to under lock; read without it.
+     */
+    private final TransactionJournal transactionJournal;
+
+    private final StampedLock stampedLock;
+
+    /**
+     * Write view of stampedLock, taken by every operation that changes the ledger.
+     */
+    private final Lock lock;
+
+    private final PayerPolicies payerPolicies;
+
+    private final PointsMetrics metrics;
+
     /**
-     * The transaction history, from which points can be spent.
+     * Null unless running in durable mode.
      */
-    private final List<MutableTransaction> transactions;
+    private final WriteAheadLog writeAheadLog;
 
+    /**
+     * An in-memory service with the object ledger store and no payer policies, recording no metrics.
+     */
     public DefaultPointsService() {
-        transactions = new ArrayList<>();
+        this(builder());
+    }
+
+    /**
+     * @throws IllegalStateException if there's a replication leader but no write-ahead log for it to ship.
+     */
+    @Autowired
+    public DefaultPointsService(
+        final Optional<WriteAheadLog> writeAheadLog,
+        final Optional<ReplicationLeader> replicationLeader,
+        @Value("${points.ledger.store:OBJECT}") final LedgerStore ledgerStore,
+        final PayerPolicies payerPolicies,
+        final MeterRegistry meterRegistry) {
+
+        this(builder()
+            .writeAheadLog(writeAheadLog.orElse(null))
+            .replicationLeader(replicationLeader.orElse(null))
+            .ledgerStore(ledgerStore)
+            .payerPolicies(payerPolicies)
+            .meterRegistry(meterRegistry));
+    }
+
+    /**
+     * @throws IllegalStateException if there's a replication leader but no write-ahead log for it to ship.
+     */
+    private DefaultPointsService(final Builder builder) {
+        ledger = builder.ledgerStore.newLedger(builder.payerPolicies);
+        balanceHistory = new BalanceHistory();
+        transactionJournal = new TransactionJournal();
+        stampedLock = new StampedLock();
+        lock = stampedLock.asWriteLock();
+        payerPolicies = builder.payerPolicies;
+        metrics = new PointsMetrics(builder.meterRegistry);
+        metrics.bindLedger(ledger, stampedLock.asReadLock(), builder.meterRegistry);
+        writeAheadLog = builder.writeAheadLog;
+
+        if (writeAheadLog != null) {
+            recover(writeAheadLog);
+        }
+
+        if (builder.replicationLeader != null) {
+            if (writeAheadLog == null) {
+                throw new IllegalStateException("Replication ships the write-ahead log; set points.wal.enabled=true");
+            }
+            builder.replicationLeader.start(writeAheadLog, lock,
+                ledger::copyCompactedTransactions, balanceHistory::copyChanges, this::copyAddedTransactions);
+        }
+    }
+
+    /**
+     * Start building a service; whatever isn't set is as for the in-memory service of the no-argument constructor.
+     */
+    public static Builder builder() {
+        return new Builder();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized void addTransaction(final Transaction transaction) {
-        transactions.add(transaction.toMutableTransaction());
+    public void addTransaction(final Transaction transaction) {
+        final long start = System.nanoTime();
+        Ledger.checkTransaction(transaction);
+
+        // Logging the expiry from the payer's lifetime, so that replaying the log doesn't depend on configuration
+        final Transaction withExpiry = payerPolicies.withExpiry(transaction);
+        underLock(() -> {
+            if (writeAheadLog != null) {
+                writeAheadLog.appendTransaction(withExpiry);
+            }
+
+            ledger.addTransaction(withExpiry);
+            balanceHistory.recordTransaction(withExpiry);
+            transactionJournal.append(withExpiry);
+            snapshotIfDue();
+            return null;
+        });
+        metrics.recordAdd(start);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized List<PayerPointDelta> spend(final int pointsToSpend) throws InsufficientPointsException {
-        checkIfPointsToSpendIsValid(pointsToSpend);
-        checkIfSufficientPoints(pointsToSpend);
+    public void addTransactions(final List<Transaction> transactions) {
+        final long start = System.nanoTime();
+        transactions.forEach(Ledger::checkTransaction);
+        final List<Transaction> withExpiries = payerPolicies.withExpiries(transactions);
+        underLock(() -> {
+            if (writeAheadLog != null) {
+                writeAheadLog.appendTransactions(withExpiries);
+            }
 
-        // Spending the oldest points first by sorting the transactions by timestamp
-        transactions.sort(Comparator.comparing(MutableTransaction::getTimestamp));
+            for (final Transaction transaction : withExpiries) {
+                ledger.addTransaction(transaction);
+                balanceHistory.recordTransaction(transaction);
+                transactionJournal.append(transaction);
+            }
+            snapshotIfDue();
+            return null;
+        });
+        metrics.recordAdd(start);
+    }
 
-        final Map<String, Integer> pointsSpentPerPayer = spendFromOrderedTransactions(transactions, pointsToSpend);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> spend(final int pointsToSpend) throws InsufficientPointsException {
+        return spend(pointsToSpend, SpendStrategy.OLDEST_FIRST);
+    }
 
-        return pointsSpentMapToList(pointsSpentPerPayer);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> spend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException {
+
+        final long start = System.nanoTime();
+        try {
+            return underLock(() -> {
+                final Date timestamp = new Date();
+                final long scannedBefore = ledger.getTransactionsScanned();
+                final List<PayerPointDelta> result;
+
+                if (writeAheadLog == null) {
+                    result = ledger.spend(pointsToSpend, strategy);
+                } else if (strategy == SpendStrategy.OLDEST_FIRST) {
+                    // Only logging spends that will succeed, so replaying the log never fails
+                    ledger.checkCanSpend(pointsToSpend);
+                    writeAheadLog.appendSpend(pointsToSpend, timestamp);
+                    result = ledger.spend(pointsToSpend);
+                } else {
+                    // Other strategies depend on the payers' tiers and lifetimes, which may be configured differently
+                    // by the time the log is replayed, so logging the points taken from each payer instead
+                    final List<PayerPointDelta> allocation = ledger.previewSpend(pointsToSpend, strategy);
+                    writeAheadLog.appendAllocatedSpend(allocation, timestamp);
+                    result = ledger.spendAllocated(allocation);
+                }
+                balanceHistory.recordSpend(result, timestamp.getTime());
+                snapshotIfDue();
+
+                metrics.recordSpend(start, ledger.getTransactionsScanned() - scannedBefore);
+                return result;
+            });
+        } catch (InsufficientPointsException | IllegalArgumentException e) {
+            metrics.recordFailedSpend(start, e);
+            throw e;
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized Map<String, Integer> getBalances() {
-        final Map<String, Integer> balances = new HashMap<>();
+    public List<List<PayerPointDelta>> spendBatch(final List<Integer> amounts, final boolean allOrNothing)
+    throws InsufficientPointsException {
 
-        for (final MutableTransaction transaction : transactions) {
-            final String payer = transaction.getPayer();
+        final long start = System.nanoTime();
+        try {
+            return underLock(() -> {
+                final Date timestamp = new Date();
+                if (writeAheadLog != null) {
+                    // Only logging spends that will succeed, so replaying the log never fails
+                    writeAheadLog.appendSpends(ledger.checkCanSpendBatch(amounts, allOrNothing), timestamp);
+                }
 
-            if (!balances.containsKey(payer)) {
-                balances.put(payer, transaction.getPoints());
-            } else {
-                final int payerBalance = balances.get(payer);
-                balances.put(payer, payerBalance + transaction.getPoints());
-            }
+                final List<List<PayerPointDelta>> results = ledger.spendBatch(amounts, allOrNothing);
+                recordSpends(results, timestamp.getTime());
+                snapshotIfDue();
+
+                return results;
+            });
+        } finally {
+            metrics.recordSpendBatch(start);
         }
+    }
 
-        return balances;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> previewSpend(final int pointsToSpend) throws InsufficientPointsException {
+        return previewSpend(pointsToSpend, SpendStrategy.OLDEST_FIRST);
     }
 
-    private void checkIfPointsToSpendIsValid(final int pointsToSpend) {
-        // Not in the instructions but we'll assume this rule
-        if (pointsToSpend < 1) {
-            throw new IllegalArgumentException("Cannot spend less than 1 point");
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> previewSpend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException {
+
+        final long start = System.nanoTime();
+        try {
+            return OptimisticRead.read(stampedLock, () -> ledger.previewSpend(pointsToSpend, strategy));
+        } finally {
+            metrics.recordPreview(start);
         }
     }
 
     /**
-     * Throw an exception if trying to spend more points than are available.
+     * {@inheritDoc}
      */
-    private void checkIfSufficientPoints(final int pointsToSpend) throws InsufficientPointsException {
-        int totalAvailablePoints = 0;
-        for (final MutableTransaction transaction : transactions) {
-            totalAvailablePoints += transaction.getPoints();
+    @Override
+    public long expirePoints(final Date now, final int batchSize) {
+        long expired = 0;
+        long batchPoints;
+        while ((batchPoints = underLock(() -> expireBatch(now.getTime(), batchSize))) >= 0) {
+            expired += batchPoints;
         }
+        return expired;
+    }
 
-        if (pointsToSpend > totalAvailablePoints) {
-            throw new InsufficientPointsException();
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBalances() {
+        final long start = System.nanoTime();
+        try {
+            return underLock(ledger::getBalances);
+        } finally {
+            metrics.recordBalances(start);
         }
     }
 
     /**
-     * Spend the specified points from the given ordered list of transactions.
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBalances(final Date asOf) {
+        final long start = System.nanoTime();
+        try {
+            return underLock(() -> balanceHistory.getBalances(asOf));
+        } finally {
+            metrics.recordBalances(start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> setBalanceListener(final BalanceListener listener) {
+        return underLock(() -> {
+            balanceHistory.setListener(listener);
+            return ledger.getBalances();
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Transaction> getTransactions() {
+        return transactionJournal.view();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BalanceCheckResult checkBalances() {
+        final long start = System.nanoTime();
+        // Copying both under the lock, then checking them against each other after letting it go
+        final Supplier<BalanceCheckResult> check = underLock(() -> {
+            final UnspentPoints unspentPoints = ledger.copyUnspentPoints();
+            final Map<String, Long> reportedBalances = ledger.getBalances();
+            return () -> unspentPoints.check(reportedBalances, ForkJoinPool.commonPool());
+        });
+        try {
+            return check.get();
+        } finally {
+            metrics.recordBalanceCheck(start);
+        }
+    }
+
+    /**
+     * Expire the next batch of points due by now. Must be called while holding the lock.
      *
-     * @param transactions transactions, in chronological order.
-     * @param pointsToSpend number of points to spend.
-     * @return a map of payer names to points spent.
+     * @return the points expired, or -1 if there were none due.
      */
-    private Map<String, Integer> spendFromOrderedTransactions(
-        final List<MutableTransaction> transactions,
-        final int pointsToSpend)
-    throws InsufficientPointsException {
+    private long expireBatch(final long now, final int batchSize) {
+        final long start = System.nanoTime();
+        if (ledger.getNextExpiry() >= now) {
+            return -1;
+        }
 
-        int pointsLeftToSpend = pointsToSpend;
-        final Map<String, Integer> pointsSpentPerPayer = new HashMap<>();
+        final long upTo = ledger.getExpiryBatchEnd(now, batchSize);
+        if (writeAheadLog != null) {
+            writeAheadLog.appendExpiry(new Date(upTo));
+        }
 
-        for (final MutableTransaction transaction : transactions) {
-            final String transactionPayer = transaction.getPayer();
-            final int transactionPoints = transaction.getPoints();
+        final List<PayerPointDelta> result = ledger.expire(upTo);
+        balanceHistory.recordSpend(result, upTo);
+        snapshotIfDue();
 
-            final int spentFromTransaction = Math.min(transactionPoints, pointsLeftToSpend);
-            pointsLeftToSpend -= spentFromTransaction;
-            transaction.spendPoints(spentFromTransaction);
+        final long batchPoints = sumExpired(result);
+        metrics.recordExpiryBatch(start, batchPoints);
+        return batchPoints;
+    }
 
-            if (!pointsSpentPerPayer.containsKey(transactionPayer)) {
-                pointsSpentPerPayer.put(transactionPayer, spentFromTransaction * -1);
-            } else {
-                final int pointsSpentForPayer = pointsSpentPerPayer.get(transactionPayer);
-                pointsSpentPerPayer.put(transactionPayer, pointsSpentForPayer - spentFromTransaction);
-            }
+    /**
+     * Run an operation under the lock. Everything that takes the lock goes through here, replaying a log included,
+     * so that the time spent waiting for it is always measured.
+     */
+    private <T, E extends Exception> T underLock(final LockedOperation<T, E> operation) throws E {
+        metrics.lock(lock);
+        try {
+            return operation.run();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            if (pointsLeftToSpend == 0) {
-                break;
+    /**
+     * Get the points taken by an expiry, from the negative deltas it returned.
+     */
+    static long sumExpired(final List<PayerPointDelta> expired) {
+        long points = 0;
+        for (final PayerPointDelta delta : expired) {
+            points -= delta.getPoints();
+        }
+        return points;
+    }
+
+    private void recordSpends(final List<List<PayerPointDelta>> results, final long timestamp) {
+        for (final List<PayerPointDelta> result : results) {
+            if (result != null) {
+                balanceHistory.recordSpend(result, timestamp);
             }
         }
+    }
+
+    private void snapshotIfDue() {
+        if (writeAheadLog != null) {
+            writeAheadLog.snapshotIfDue(
+                ledger::copyCompactedTransactions, balanceHistory::copyChanges, this::copyAddedTransactions);
+        }
+    }
+
+    /**
+     * A view of the journal doesn't change once it's made, so it's its own copy.
+     */
+    private Supplier<List<Transaction>> copyAddedTransactions() {
+        final List<Transaction> added = transactionJournal.view();
+        return () -> added;
+    }
+
+    /**
+     * Get a target that applies operations read back from a log, each under the lock, so the service can be read
+     * while they're applied.
+     */
+    LogReplayTarget replayTarget() {
+        return new LogReplayTarget() {
+            @Override
+            public void addTransaction(final Transaction transaction) {
+                underLock(() -> {
+                    ledger.addTransaction(transaction);
+                    balanceHistory.recordTransaction(transaction);
+                    transactionJournal.append(transaction);
+                    return null;
+                });
+            }
+
+            @Override
+            public void spend(final int pointsToSpend, final Date timestamp) throws InsufficientPointsException {
+                underLock(() -> {
+                    balanceHistory.recordSpend(ledger.spend(pointsToSpend), timestamp.getTime());
+                    return null;
+                });
+            }
+
+            @Override
+            public void spendAllocated(final List<PayerPointDelta> allocation, final Date timestamp)
+            throws InsufficientPointsException {
+
+                underLock(() -> {
+                    balanceHistory.recordSpend(ledger.spendAllocated(allocation), timestamp.getTime());
+                    return null;
+                });
+            }
+
+            @Override
+            public void expire(final Date upTo) {
+                underLock(() -> {
+                    balanceHistory.recordSpend(ledger.expire(upTo.getTime()), upTo.getTime());
+                    return null;
+                });
+            }
+
+            @Override
+            public void restoreTransaction(final Transaction transaction) {
+                underLock(() -> {
+                    ledger.addTransaction(transaction);
+                    return null;
+                });
+            }
+
+            @Override
+            public void restoreBalanceChange(final Transaction change) {
+                underLock(() -> {
+                    balanceHistory.recordTransaction(change);
+                    return null;
+                });
+            }
+
+            @Override
+            public void restoreAddedTransaction(final Transaction transaction) {
+                underLock(() -> {
+                    transactionJournal.append(transaction);
+                    return null;
+                });
+            }
+        };
+    }
 
-        return pointsSpentPerPayer;
+    private void recover(final WriteAheadLog writeAheadLog) {
+        try {
+            writeAheadLog.recover(replayTarget());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to recover ledger from write-ahead log", e);
+        }
     }
 
     /**
-     * Convert a Map of points spent per payer to a list of PayerPointDeltas.
-     * List entries are sorted by points in descending order, to match the example in the instructions.
+     * Builds a DefaultPointsService: in memory unless given a write-ahead log, and leading replication if given a
+     * replication leader too.
      */
-    private List<PayerPointDelta> pointsSpentMapToList(Map<String, Integer> pointsSpentPerPayer) {
-        final List<PayerPointDelta> result = new ArrayList<>();
+    public static final class Builder {
+        private WriteAheadLog writeAheadLog;
+        private ReplicationLeader replicationLeader;
+        private LedgerStore ledgerStore = LedgerStore.OBJECT;
+        private PayerPolicies payerPolicies = PayerPolicies.NONE;
+        // An empty composite registry discards everything recorded to it
+        private MeterRegistry meterRegistry = new CompositeMeterRegistry();
 
-        for (final String payer : pointsSpentPerPayer.keySet()) {
-            final int delta = pointsSpentPerPayer.get(payer);
-            result.add(new PayerPointDelta(payer, delta));
+        private Builder() {
         }
 
-        result.sort((deltaA, deltaB) -> deltaB.getPoints() - deltaA.getPoints());
+        /**
+         * @param writeAheadLog the log to recover the ledger from and log every operation to; null for none.
+         */
+        public Builder writeAheadLog(final WriteAheadLog writeAheadLog) {
+            this.writeAheadLog = writeAheadLog;
+            return this;
+        }
+
+        /**
+         * @param replicationLeader ships the write-ahead log to read replicas; null for none.
+         */
+        public Builder replicationLeader(final ReplicationLeader replicationLeader) {
+            this.replicationLeader = replicationLeader;
+            return this;
+        }
+
+        public Builder ledgerStore(final LedgerStore ledgerStore) {
+            this.ledgerStore = Objects.requireNonNull(ledgerStore);
+            return this;
+        }
+
+        public Builder payerPolicies(final PayerPolicies payerPolicies) {
+            this.payerPolicies = Objects.requireNonNull(payerPolicies);
+            return this;
+        }
+
+        public Builder meterRegistry(final MeterRegistry meterRegistry) {
+            this.meterRegistry = Objects.requireNonNull(meterRegistry);
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException if there's a replication leader but no write-ahead log for it to ship.
+         */
+        public DefaultPointsService build() {
+            return new DefaultPointsService(this);
+        }
+    }
 
-        return result;
+    @FunctionalInterface
+    private interface LockedOperation<T, E extends Exception> {
+        T run() throws E;
     }
 }
@@ -0,0 +1,87 @@
+package com.cbiegay.points.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires points in the background: every sweep interval, expires the points whose expiry has passed in the points
+ * service and in every account.
+ *
+ * Expired points keep counting towards balances, and can still be spent, until the sweep after their expiry. Each
+ * sweep works in batches of about batchSize transactions, releasing the lock between batches, so a backlog of expired
+ * points doesn't hold up other operations for long.
+ */
+@Component
+public class ExpirySweeper implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ExpirySweeper.class);
+
+    private final PointsService pointsService;
+    private final AccountPointsService accountPointsService;
+    private final int batchSize;
+    private final ScheduledExecutorService background;
+
+    /**
+     * @param sweepIntervalMillis the time between the end of one sweep and the start of the next.
+     * @param batchSize about how many transactions to expire while holding a lock.
+     */
+    public ExpirySweeper(
+        final PointsService pointsService,
+        final AccountPointsService accountPointsService,
+        @Value("${points.expiry.sweep-interval-ms:1000}") final long sweepIntervalMillis,
+        @Value("${points.expiry.batch-size:10000}") final int batchSize) {
+
+        if (sweepIntervalMillis < 1) {
+            throw new IllegalArgumentException("Sweep interval must be at least 1 millisecond");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Expiry batch size must be at least 1 transaction");
+        }
+
+        this.pointsService = pointsService;
+        this.accountPointsService = accountPointsService;
+        this.batchSize = batchSize;
+
+        background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        background.scheduleWithFixedDelay(this::sweep, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Expire the points whose expiry has passed.
+     */
+    void sweep() {
+        final Date now = new Date();
+        try {
+            pointsService.expirePoints(now, batchSize);
+            accountPointsService.expirePoints(now, batchSize);
+        } catch (RuntimeException e) {
+            // Logging rather than throwing, which would cancel every later sweep
+            log.error("Failed to expire points", e);
+        }
+    }
+
+    /**
+     * Stop sweeping, waiting for a sweep in progress to finish.
+     */
+    @Override
+    public void close() {
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
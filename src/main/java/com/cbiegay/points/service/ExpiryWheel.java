@@ -0,0 +1,398 @@
+package com.cbiegay.points.service;
+
+import java.util.Arrays;
+
+/**
+ * Transactions waiting for their points to expire, as a hierarchical timer wheel, so that adding one takes constant
+ * time and finding the ones due only visits the slots of the wheel that have any.
+ *
+ * Time is divided into ticks of TICK_MILLIS. The wheel has a level for each byte of a tick number, with a slot for
+ * each value of that byte: a slot at level 0 holds the transactions due in one tick, and a slot at level L those due
+ * in a run of 256^L ticks. A transaction is put at the level of the highest byte in which its tick differs from the
+ * wheel's current tick, so ones due soon are sorted to the tick and ones due later only roughly. When the current tick
+ * reaches a slot at a higher level, the slot's transactions are moved down to the levels below, so each transaction
+ * is moved at most once per level before it expires. Transactions already due when they're added wait in a list of
+ * their own.
+ *
+ * Transactions are identified by their payer's id, timestamp and sequence, and stay in the wheel if their points are
+ * spent before they expire; expiring a transaction that's no longer queued takes nothing.
+ *
+ * Not thread-safe; the ledger is responsible for synchronizing access.
+ */
+final class ExpiryWheel {
+
+    /**
+     * The length of a tick. Transactions due in the same tick expire in the same batch.
+     */
+    static final long TICK_MILLIS = 100;
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = Long.SIZE / SLOT_BITS;
+
+    /**
+     * Slots by level and position, and a bitmap per level of the slots with transactions. A level's arrays are
+     * created when a transaction is first put in it, and slots when first used, so a ledger without expiries, or with
+     * them all due soon, doesn't pay for the levels it never uses.
+     */
+    private final Slot[][] slots;
+    private final long[][] occupied;
+
+    /**
+     * Transactions that were already due when they were added.
+     */
+    private final Slot overdue;
+
+    /**
+     * Every transaction due before this tick has expired, apart from those in overdue.
+     */
+    private long currentTick;
+    private int size;
+
+    ExpiryWheel() {
+        slots = new Slot[LEVELS][];
+        occupied = new long[LEVELS][];
+        overdue = new Slot();
+    }
+
+    @FunctionalInterface
+    interface Visitor {
+        void visit(int payer, long timestamp, long sequence, long expiresAt);
+    }
+
+    /**
+     * Get the number of transactions waiting, including any that were spent since they were added.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add a transaction whose points expire at the given time, in epoch milliseconds.
+     */
+    void add(final int payer, final long timestamp, final long sequence, final long expiresAt) {
+        final long tick = Math.floorDiv(expiresAt, TICK_MILLIS);
+        final Slot slot;
+        if (tick < currentTick) {
+            slot = overdue;
+        } else {
+            final int level = levelOf(tick);
+            slot = slot(level, slotOf(tick, level));
+        }
+
+        slot.add(payer, timestamp, sequence, expiresAt);
+        size++;
+    }
+
+    /**
+     * Get the earliest time a transaction waiting could expire at: Long.MIN_VALUE if any are overdue, the start of the
+     * earliest slot with transactions otherwise, or Long.MAX_VALUE if there are none.
+     */
+    long getNextExpiry() {
+        if (overdue.size > 0) {
+            return Long.MIN_VALUE;
+        }
+
+        final long tick = nextOccupiedTick();
+        return tick == Long.MAX_VALUE ? Long.MAX_VALUE : tick * TICK_MILLIS;
+    }
+
+    /**
+     * Get a time no later than now that expiring up to would visit about the given number of transactions, or
+     * everything due by now if that's fewer. Batches end between slots, so a batch includes every transaction due in
+     * its last tick and can go over when many are due at once.
+     *
+     * Counts whole slots where it can, in the order they fall due, and only moves transactions down the wheel, as
+     * expire would, when the first slot with any is too big for a batch on its own.
+     */
+    long getBatchEnd(final long now, final int maxTransactions) {
+        final long nowTick = Math.floorDiv(now, TICK_MILLIS);
+        long transactions = overdue.size;
+        if (transactions >= maxTransactions) {
+            return endOf(currentTick, nowTick, now);
+        }
+
+        counting:
+        while (true) {
+            // The rest of the current run of level 0 slots, then the later slots of each higher level in turn
+            for (int level = 0; level < LEVELS; level++) {
+                final int from = slotOf(currentTick, level) + (level == 0 ? 0 : 1);
+                for (int position = nextOccupied(level, from); position < SLOTS;
+                    position = nextOccupied(level, position + 1)) {
+
+                    final long slotTick = slotStart(level, position);
+                    if (slotTick > nowTick) {
+                        return now;
+                    }
+
+                    final int slotSize = slots[level][position].size;
+                    if (level > 0 && transactions + slotSize > maxTransactions) {
+                        if (transactions > 0) {
+                            return endOf(slotTick, nowTick, now);
+                        }
+
+                        // Nothing is due before the slot, so the wheel can move on to it and split it up
+                        advanceTo(slotTick);
+                        continue counting;
+                    }
+
+                    transactions += slotSize;
+                    if (transactions >= maxTransactions) {
+                        return endOf(level == 0 ? slotTick + 1 : slotTick + (1L << (level * SLOT_BITS)), nowTick, now);
+                    }
+                }
+            }
+
+            return now;
+        }
+    }
+
+    /**
+     * Expire every transaction due before the given time, in epoch milliseconds, removing it from the wheel.
+     */
+    void expire(final long upTo, final Visitor visitor) {
+        final long upToTick = Math.floorDiv(upTo, TICK_MILLIS);
+        drain(overdue, upTo, visitor);
+
+        while (true) {
+            final long next = nextOccupiedTick();
+            if (next >= upToTick) {
+                if (upToTick > currentTick) {
+                    advanceTo(upToTick);
+                }
+                break;
+            }
+
+            if (next > currentTick) {
+                advanceTo(next);
+                continue;
+            }
+
+            // Every transaction in the current tick's slot is due in it, which is before upTo
+            final int position = slotOf(currentTick, 0);
+            final Slot slot = slots[0][position];
+            for (int i = 0; i < slot.size; i++) {
+                visitor.visit(slot.payers[i], slot.timestamps[i], slot.sequences[i], slot.expiries[i]);
+            }
+            size -= slot.size;
+            slot.clear();
+            clearOccupied(0, position);
+            advanceTo(currentTick + 1);
+        }
+
+        // The tick that upTo falls in is only over up to upTo
+        if (upToTick == currentTick && upTo > upToTick * TICK_MILLIS) {
+            final int position = slotOf(currentTick, 0);
+            if (isOccupied(0, position)) {
+                drain(slots[0][position], upTo, visitor);
+                if (slots[0][position].size == 0) {
+                    clearOccupied(0, position);
+                }
+            }
+        }
+    }
+
+    /**
+     * Visit every transaction waiting, in no particular order.
+     */
+    void forEach(final Visitor visitor) {
+        overdue.forEach(visitor);
+        for (final Slot[] level : slots) {
+            if (level == null) {
+                continue;
+            }
+            for (final Slot slot : level) {
+                if (slot != null) {
+                    slot.forEach(visitor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the current tick forward to one with nothing due before it, moving down the transactions of any higher
+     * level slots it has reached.
+     */
+    private void advanceTo(final long tick) {
+        currentTick = tick;
+
+        // Top down, since a slot's transactions can land in the lower level slots the current tick has also reached
+        for (int level = LEVELS - 1; level > 0; level--) {
+            final int position = slotOf(tick, level);
+            if (isOccupied(level, position)) {
+                final Slot moving = slots[level][position];
+                slots[level][position] = null;
+                clearOccupied(level, position);
+                size -= moving.size;
+
+                for (int i = 0; i < moving.size; i++) {
+                    add(moving.payers[i], moving.timestamps[i], moving.sequences[i], moving.expiries[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the first tick from the current one that starts a slot with transactions, or Long.MAX_VALUE if none do.
+     * Slots at higher levels than 0 that the current tick has reached have always been moved down.
+     */
+    private long nextOccupiedTick() {
+        for (int level = 0; level < LEVELS; level++) {
+            final int position = nextOccupied(level, slotOf(currentTick, level) + (level == 0 ? 0 : 1));
+            if (position < SLOTS) {
+                return slotStart(level, position);
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the first tick of a slot in the current lap of its level.
+     */
+    private long slotStart(final int level, final int position) {
+        final int shift = level * SLOT_BITS;
+        final long higherBits = shift + SLOT_BITS < Long.SIZE ? currentTick >>> (shift + SLOT_BITS) : 0;
+        return (higherBits << (shift + SLOT_BITS)) | ((long) position << shift);
+    }
+
+    /**
+     * Get the time a batch ending before the given tick ends at: the start of the tick, or now if that's earlier.
+     */
+    private static long endOf(final long tick, final long nowTick, final long now) {
+        // Comparing ticks first, since a tick after now's can be too far off to convert to a time
+        return tick > nowTick ? now : tick * TICK_MILLIS;
+    }
+
+    /**
+     * Get the level for a transaction due in a tick no earlier than the current one.
+     */
+    private int levelOf(final long tick) {
+        final long differentBits = tick ^ currentTick;
+        return differentBits == 0 ? 0 : (Long.SIZE - 1 - Long.numberOfLeadingZeros(differentBits)) / SLOT_BITS;
+    }
+
+    private static int slotOf(final long tick, final int level) {
+        return (int) (tick >>> (level * SLOT_BITS)) & (SLOTS - 1);
+    }
+
+    private Slot slot(final int level, final int position) {
+        if (slots[level] == null) {
+            slots[level] = new Slot[SLOTS];
+            occupied[level] = new long[SLOTS / Long.SIZE];
+        }
+
+        Slot slot = slots[level][position];
+        if (slot == null) {
+            slot = new Slot();
+            slots[level][position] = slot;
+        }
+        occupied[level][position / Long.SIZE] |= 1L << position;
+        return slot;
+    }
+
+    private boolean isOccupied(final int level, final int position) {
+        return occupied[level] != null && (occupied[level][position / Long.SIZE] & (1L << position)) != 0;
+    }
+
+    private void clearOccupied(final int level, final int position) {
+        occupied[level][position / Long.SIZE] &= ~(1L << position);
+    }
+
+    /**
+     * Get the first slot at or after a position in a level that has transactions, or SLOTS if none do.
+     */
+    private int nextOccupied(final int level, final int from) {
+        if (occupied[level] == null) {
+            return SLOTS;
+        }
+        for (int word = from / Long.SIZE; word < SLOTS / Long.SIZE; word++) {
+            long bits = occupied[level][word];
+            if (word == from / Long.SIZE) {
+                bits &= -1L << from;
+            }
+            if (bits != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return SLOTS;
+    }
+
+    /**
+     * Expire the transactions in a slot that are due before upTo, keeping the rest.
+     */
+    private void drain(final Slot slot, final long upTo, final Visitor visitor) {
+        int kept = 0;
+        for (int i = 0; i < slot.size; i++) {
+            if (slot.expiries[i] < upTo) {
+                visitor.visit(slot.payers[i], slot.timestamps[i], slot.sequences[i], slot.expiries[i]);
+            } else {
+                slot.move(i, kept++);
+            }
+        }
+        size -= slot.size - kept;
+        slot.size = kept;
+    }
+
+    /**
+     * The transactions in one slot, in parallel arrays.
+     */
+    private static final class Slot {
+        private static final int INITIAL_CAPACITY = 4;
+
+        int[] payers;
+        long[] timestamps;
+        long[] sequences;
+        long[] expiries;
+        int size;
+
+        Slot() {
+            payers = new int[INITIAL_CAPACITY];
+            timestamps = new long[INITIAL_CAPACITY];
+            sequences = new long[INITIAL_CAPACITY];
+            expiries = new long[INITIAL_CAPACITY];
+        }
+
+        void add(final int payer, final long timestamp, final long sequence, final long expiresAt) {
+            if (size == payers.length) {
+                final int capacity = size * 2;
+                payers = Arrays.copyOf(payers, capacity);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                sequences = Arrays.copyOf(sequences, capacity);
+                expiries = Arrays.copyOf(expiries, capacity);
+            }
+
+            payers[size] = payer;
+            timestamps[size] = timestamp;
+            sequences[size] = sequence;
+            expiries[size] = expiresAt;
+            size++;
+        }
+
+        void move(final int from, final int to) {
+            payers[to] = payers[from];
+            timestamps[to] = timestamps[from];
+            sequences[to] = sequences[from];
+            expiries[to] = expiries[from];
+        }
+
+        /**
+         * Empty the slot, letting go of its arrays if they grew, since a level 0 slot is only reused a lap later.
+         */
+        void clear() {
+            if (payers.length > INITIAL_CAPACITY) {
+                payers = new int[INITIAL_CAPACITY];
+                timestamps = new long[INITIAL_CAPACITY];
+                sequences = new long[INITIAL_CAPACITY];
+                expiries = new long[INITIAL_CAPACITY];
+            }
+            size = 0;
+        }
+
+        void forEach(final Visitor visitor) {
+            for (int i = 0; i < size; i++) {
+                visitor.visit(payers[i], timestamps[i], sequences[i], expiries[i]);
+            }
+        }
+    }
+}
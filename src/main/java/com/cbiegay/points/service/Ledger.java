@@ -0,0 +1,244 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.UnavailableStrategyException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * The transactions and balances behind a PointsService.
+ * Implementations are not thread-safe; PointsService implementations are responsible for synchronizing access.
+ */
+public interface Ledger {
+
+    /**
+     * Add a transaction representing points earned (or deducted) for a payer.
+     * Deducted points are taken from the payer's oldest points, and spending never draws on them. Earned points expire
+     * at the transaction's expiresAt, if it has one; the payer's lifetime isn't applied here (see
+     * PayerPolicies.withExpiry).
+     *
+     * @throws IllegalArgumentException if the transaction has no payer or no points; nothing is changed.
+     */
+    void addTransaction(Transaction transaction);
+
+    /**
+     * Refuse a transaction that can't be added to a ledger, before anything is changed for it.
+     *
+     * @throws IllegalArgumentException if the transaction has no payer or no points.
+     */
+    static void checkTransaction(final Transaction transaction) {
+        if (transaction.getPayer() == null) {
+            throw new IllegalArgumentException("Missing payer");
+        }
+        if (transaction.getPoints() == null) {
+            throw new IllegalArgumentException("Missing points");
+        }
+    }
+
+    /**
+     * Spend points, oldest first.
+     *
+     * @param pointsToSpend the number of points to spend.
+     * @return a list of objects indicating how many points were spent per payer, sorted by points in descending order.
+     * @throws InsufficientPointsException if trying to spend more points than are available.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     */
+    default List<PayerPointDelta> spend(final int pointsToSpend) throws InsufficientPointsException {
+        return spend(pointsToSpend, SpendStrategy.OLDEST_FIRST);
+    }
+
+    /**
+     * Spend points, choosing which payers to spend from with a strategy.
+     *
+     * @param pointsToSpend the number of points to spend.
+     * @param strategy how to choose the payers.
+     * @return a list of objects indicating how many points were spent per payer, sorted by points in descending order.
+     * @throws InsufficientPointsException if trying to spend more points than are available.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     * @throws UnavailableStrategyException if the strategy can't order the points as it promises; see SpendStrategy.
+     */
+    List<PayerPointDelta> spend(int pointsToSpend, SpendStrategy strategy) throws InsufficientPointsException;
+
+    /**
+     * Spend the given points from each payer, oldest first. Used to repeat a spend whose allocation was worked out
+     * before, e.g. by previewSpend, whatever strategy it was worked out with.
+     *
+     * @param allocation the points to spend from each payer, as negative deltas.
+     * @return the same allocation, sorted by points in descending order.
+     * @throws InsufficientPointsException if any payer doesn't have the points allocated to it; nothing is spent.
+     * @throws IllegalArgumentException if a payer is allocated less than 1 point, or more than once.
+     */
+    List<PayerPointDelta> spendAllocated(List<PayerPointDelta> allocation) throws InsufficientPointsException;
+
+    /**
+     * Spend several amounts of points in order, as if spend were called for each one in turn.
+     *
+     * @param amounts the numbers of points to spend.
+     * @param allOrNothing if true, spend nothing unless every amount can be spent; if false, skip amounts that
+     *        can't be spent and carry on with the rest.
+     * @return the result of each spend, in order; null for amounts that were skipped.
+     * @throws InsufficientPointsException if all or nothing and there aren't enough points for every amount.
+     * @throws IllegalArgumentException if all or nothing and any amount is less than 1.
+     */
+    default List<List<PayerPointDelta>> spendBatch(final List<Integer> amounts, final boolean allOrNothing)
+    throws InsufficientPointsException {
+
+        checkCanSpendBatch(amounts, allOrNothing);
+
+        // Spent transactions leave the front of the ledger, so each spend picks up where the previous one stopped and
+        // the batch visits each transaction once, apart from any that a spend stops part way through
+        final List<List<PayerPointDelta>> results = new ArrayList<>(amounts.size());
+        for (final int amount : amounts) {
+            results.add(amount >= 1 && amount <= getTotalPoints() ? spend(amount) : null);
+        }
+
+        return results;
+    }
+
+    /**
+     * Work out which amounts of a batch of spends would be spent, without spending anything.
+     * Amounts are spent in order while they fit in the points left, the same rule spendBatch applies.
+     *
+     * @return the amounts that would be spent, in order.
+     * @throws InsufficientPointsException if all or nothing and there aren't enough points for every amount.
+     * @throws IllegalArgumentException if all or nothing and any amount is less than 1.
+     */
+    default List<Integer> checkCanSpendBatch(final List<Integer> amounts, final boolean allOrNothing)
+    throws InsufficientPointsException {
+
+        long pointsLeft = getTotalPoints();
+        final List<Integer> accepted = new ArrayList<>(amounts.size());
+
+        for (final int amount : amounts) {
+            if (amount >= 1 && amount <= pointsLeft) {
+                accepted.add(amount);
+                pointsLeft -= amount;
+            } else if (allOrNothing) {
+                if (amount < 1) {
+                    throw new IllegalArgumentException("Cannot spend less than 1 point");
+                }
+                throw new InsufficientPointsException();
+            }
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Work out what spending points would draw from each payer, without changing anything.
+     *
+     * Safe to call without the lock that guards the ledger as long as the result is thrown away if the ledger
+     * changed in the meantime: it only reads, visits at most as many transactions as the ledger holds, and may throw
+     * an unchecked exception if it reads the ledger in the middle of a change.
+     *
+     * @param pointsToSpend the number of points to spend.
+     * @return the result spend would give.
+     * @throws InsufficientPointsException if trying to spend more points than are available.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     */
+    default List<PayerPointDelta> previewSpend(final int pointsToSpend) throws InsufficientPointsException {
+        return previewSpend(pointsToSpend, SpendStrategy.OLDEST_FIRST);
+    }
+
+    /**
+     * Work out what spending points with a strategy would draw from each payer, without changing anything.
+     * Safe to call without the lock on the same terms as previewSpend(int).
+     *
+     * @return the result spend would give with the same strategy.
+     * @throws InsufficientPointsException if trying to spend more points than are available.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     * @throws UnavailableStrategyException if the strategy can't order the points as it promises; see SpendStrategy.
+     */
+    List<PayerPointDelta> previewSpend(int pointsToSpend, SpendStrategy strategy) throws InsufficientPointsException;
+
+    /**
+     * Get the earliest time, in epoch milliseconds, that points could expire at. Points can't expire before it, but
+     * needn't expire at it.
+     *
+     * @return Long.MIN_VALUE if points are already due to expire; Long.MAX_VALUE if no points expire.
+     */
+    long getNextExpiry();
+
+    /**
+     * Get the time to expire points up to in the next batch of a sweep: now, if that covers few enough transactions,
+     * or else an earlier time covering about the given number. Always later than the last time expired up to, if
+     * anything expires before now, so every batch makes progress.
+     *
+     * Doesn't expire anything, but may reorganize the ledger's record of when points expire.
+     *
+     * @param now the current time in epoch milliseconds.
+     */
+    long getExpiryBatchEnd(long now, int maxTransactions);
+
+    /**
+     * Remove whatever is left of the points of every transaction that expired before a time, as if they were spent.
+     *
+     * @param upTo a time in epoch milliseconds; points that expire at exactly that time are kept.
+     * @return the points removed from each payer, as negative deltas sorted by points in descending order.
+     */
+    List<PayerPointDelta> expire(long upTo);
+
+    /**
+     * Get the number of transactions waiting for their points to expire, including any spent since they were added.
+     */
+    int getExpiringTransactionCount();
+
+    /**
+     * Get a copy of the current point balances for each payer.
+     */
+    Map<String, Long> getBalances();
+
+    /**
+     * Get the sum of all payer balances.
+     */
+    long getTotalPoints();
+
+    /**
+     * Get the number of transactions that still have points to spend.
+     */
+    int getTransactionCount();
+
+    /**
+     * Get the number of transactions whose points have been used up.
+     */
+    int getArchivedTransactionCount();
+
+    /**
+     * Get the total number of transactions visited by all spends so far.
+     */
+    long getTransactionsScanned();
+
+    /**
+     * Check that a spend would succeed, without spending anything.
+     *
+     * @throws InsufficientPointsException if trying to spend more points than are available.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     */
+    void checkCanSpend(int pointsToSpend) throws InsufficientPointsException;
+
+    /**
+     * Get transactions which, added in order to an empty ledger, reproduce this ledger's unspent points and balances.
+     * Used to snapshot the ledger without replaying its spending history.
+     */
+    default List<Transaction> getCompactedTransactions() {
+        return copyCompactedTransactions().get();
+    }
+
+    /**
+     * Copy what getCompactedTransactions needs, so that the transactions can be made, and sorted, without holding the
+     * lock that guards the ledger. The supplier gives the transactions as they were when the copy was made.
+     */
+    Supplier<List<Transaction>> copyCompactedTransactions();
+
+    /**
+     * Copy the payer and points left of every unspent transaction, so that balances can be recomputed from them
+     * without holding the lock that guards the ledger. Costs 8 bytes per unspent transaction.
+     */
+    UnspentPoints copyUnspentPoints();
+}
@@ -0,0 +1,42 @@
+package com.cbiegay.points.service;
+
+/**
+ * How a ledger lays out its transactions in memory.
+ */
+public enum LedgerStore {
+
+    /**
+     * One object per transaction, in an ordered queue per payer. See {@link ObjectLedger}.
+     */
+    OBJECT {
+        @Override
+        public Ledger newLedger(final PayerPolicies policies) {
+            return new ObjectLedger(policies);
+        }
+    },
+
+    /**
+     * Parallel primitive arrays per payer, for a smaller heap and less garbage.
+     * See {@link CompactLedger}.
+     */
+    COMPACT {
+        @Override
+        public Ledger newLedger(final PayerPolicies policies) {
+            return new CompactLedger(policies);
+        }
+    };
+
+    /**
+     * Create an empty ledger using this layout, without payer tiers or expiry.
+     */
+    public Ledger newLedger() {
+        return newLedger(PayerPolicies.NONE);
+    }
+
+    /**
+     * Create an empty ledger using this layout.
+     *
+     * @param policies the payers' tiers and lifetimes, which spend strategies rank payers by.
+     */
+    public abstract Ledger newLedger(PayerPolicies policies);
+}
@@ -0,0 +1,245 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.MutableTransaction;
+import com.cbiegay.points.model.Transaction;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Ledger that keeps each transaction as an object, in an ordered queue per payer.
+ * Not thread-safe; PointsService implementations are responsible for synchronizing access.
+ */
+public class ObjectLedger extends PayerQueueLedger {
+
+    /**
+     * Transactions whose points have been used up, moved out of the live ledger as spending exhausts them.
+     */
+    private final TransactionArchive archive;
+
+    public ObjectLedger() {
+        this(PayerPolicies.NONE);
+    }
+
+    public ObjectLedger(final PayerPolicies policies) {
+        super(policies);
+        archive = new TransactionArchive();
+    }
+
+    @Override
+    PayerQueue newQueue(final String payer, final int id) {
+        return new TransactionQueue(payer, id);
+    }
+
+    @Override
+    void archiveWithoutPoints(final PayerQueue queue, final Transaction transaction, final long sequence) {
+        archive.add(transaction.toMutableTransaction(sequence));
+    }
+
+    @Override
+    int getArchiveSize() {
+        return archive.size();
+    }
+
+    /**
+     * A payer's transactions that still have points to spend, oldest first.
+     *
+     * Transactions newer than every one queued are appended to a deque, which keeps them in order for free; older
+     * ones go in an ordered set. The oldest transaction is the older of the two fronts. Transactions usually arrive
+     * roughly in order, so most never touch the set, whose nodes are spread across the heap once there are many
+     * payers.
+     */
+    private final class TransactionQueue extends PayerQueue {
+
+        private final Deque<MutableTransaction> inOrder;
+        private final NavigableSet<MutableTransaction> outOfOrder;
+
+        /**
+         * The oldest transaction, or null if there are none; read far more often than the queue changes.
+         */
+        private MutableTransaction head;
+
+        TransactionQueue(final String payer, final int id) {
+            super(payer, id);
+            inOrder = new ArrayDeque<>();
+            outOfOrder = new TreeSet<>(MutableTransaction.OLDEST_FIRST);
+        }
+
+        @Override
+        int size() {
+            return inOrder.size() + outOfOrder.size();
+        }
+
+        @Override
+        long headTimestamp() {
+            return head.getTimestampMillis();
+        }
+
+        @Override
+        long headSequence() {
+            return head.getSequence();
+        }
+
+        @Override
+        int headPoints() {
+            return head.getPoints();
+        }
+
+        @Override
+        void insert(final long timestamp, final long sequence, final int points) {
+            final MutableTransaction transaction = new MutableTransaction(payer, points, timestamp, sequence);
+            if (inOrder.isEmpty() || MutableTransaction.OLDEST_FIRST.compare(transaction, inOrder.peekLast()) > 0) {
+                inOrder.addLast(transaction);
+            } else {
+                outOfOrder.add(transaction);
+            }
+
+            if (head == null || MutableTransaction.OLDEST_FIRST.compare(transaction, head) < 0) {
+                head = transaction;
+            }
+        }
+
+        @Override
+        void addToHead(final int points) {
+            head.restorePoints(points);
+        }
+
+        @Override
+        void takeFromHead(final int points, final boolean archive) {
+            try {
+                head.spendPoints(points);
+            } catch (final InsufficientPointsException e) {
+                throw new IllegalStateException("Cannot take more points than the oldest transaction has", e);
+            }
+
+            if (head.getPoints() == 0) {
+                if (head == inOrder.peekFirst()) {
+                    inOrder.pollFirst();
+                } else {
+                    outOfOrder.pollFirst();
+                }
+                if (archive) {
+                    ObjectLedger.this.archive.add(head);
+                }
+                head = older(inOrder.peekFirst(), outOfOrder.isEmpty() ? null : outOfOrder.first());
+            }
+        }
+
+        @Override
+        void archiveNetted(final long timestamp, final long sequence) {
+            archive.add(new MutableTransaction(payer, 0, timestamp, sequence));
+        }
+
+        @Override
+        int removeExpired(final long timestamp, final long sequence) {
+            if (head == null) {
+                return 0;
+            }
+            if (head.getTimestampMillis() == timestamp && head.getSequence() == sequence) {
+                final int points = head.getPoints();
+                takeFromHead(points, true);
+                return points;
+            }
+
+            final MutableTransaction expired = removeFromMiddle(timestamp, sequence);
+            if (expired == null) {
+                return 0;
+            }
+
+            final int points = expired.getPoints();
+            try {
+                expired.spendPoints(points);
+            } catch (final InsufficientPointsException e) {
+                throw new IllegalStateException("Cannot take more points than a transaction has", e);
+            }
+            ObjectLedger.this.archive.add(expired);
+            return points;
+        }
+
+        /**
+         * Remove a transaction that isn't the oldest from whichever collection holds it.
+         *
+         * @return the transaction, or null if it isn't queued.
+         */
+        private MutableTransaction removeFromMiddle(final long timestamp, final long sequence) {
+            final MutableTransaction probe = new MutableTransaction(payer, 0, timestamp, sequence);
+
+            final MutableTransaction outOfOrderMatch = outOfOrder.ceiling(probe);
+            if (outOfOrderMatch != null && MutableTransaction.OLDEST_FIRST.compare(outOfOrderMatch, probe) == 0) {
+                outOfOrder.remove(outOfOrderMatch);
+                return outOfOrderMatch;
+            }
+
+            // The deque is oldest first too, so the search stops at the first newer transaction
+            final Iterator<MutableTransaction> iterator = inOrder.iterator();
+            while (iterator.hasNext()) {
+                final MutableTransaction transaction = iterator.next();
+                final int order = MutableTransaction.OLDEST_FIRST.compare(transaction, probe);
+                if (order == 0) {
+                    iterator.remove();
+                    return transaction;
+                }
+                if (order > 0) {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        RowCursor cursor() {
+            return new RowCursor() {
+                private final Iterator<MutableTransaction> inOrderIterator = inOrder.iterator();
+                private final Iterator<MutableTransaction> outOfOrderIterator = outOfOrder.iterator();
+                private MutableTransaction nextInOrder;
+                private MutableTransaction nextOutOfOrder;
+
+                // Bounded by the size, so that a concurrent change to the set can't send the walk round in circles
+                private int transactionsLeft = size();
+
+                @Override
+                boolean next() {
+                    if (transactionsLeft-- <= 0) {
+                        return false;
+                    }
+
+                    if (nextInOrder == null && inOrderIterator.hasNext()) {
+                        nextInOrder = inOrderIterator.next();
+                    }
+                    if (nextOutOfOrder == null && outOfOrderIterator.hasNext()) {
+                        nextOutOfOrder = outOfOrderIterator.next();
+                    }
+
+                    final MutableTransaction transaction = older(nextInOrder, nextOutOfOrder);
+                    if (transaction == null) {
+                        return false;
+                    }
+                    if (transaction == nextInOrder) {
+                        nextInOrder = null;
+                    } else {
+                        nextOutOfOrder = null;
+                    }
+
+                    timestamp = transaction.getTimestampMillis();
+                    sequence = transaction.getSequence();
+                    points = transaction.getPoints();
+                    return true;
+                }
+            };
+        }
+    }
+
+    /**
+     * The older of two transactions, either of which may be null.
+     */
+    private static MutableTransaction older(final MutableTransaction a, final MutableTransaction b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        return MutableTransaction.OLDEST_FIRST.compare(a, b) <= 0 ? a : b;
+    }
+}
@@ -0,0 +1,79 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Reads a ledger without taking its lock, so that readers never hold up writers.
+ *
+ * The read runs against the ledger as it is, and its result is only used if no write started or finished while it
+ * ran; otherwise it is retried. While writes keep arriving, it spins for a few attempts and then backs off for longer
+ * and longer, up to a millisecond, so that it lands in a gap between writes without taking turns away from them.
+ * Writes that never leave such a gap would starve it, though, so after a bounded number of attempts it takes the
+ * read lock after all, holding writers up for the one read.
+ */
+final class OptimisticRead {
+
+    private static final int SPINS = 8;
+    private static final int MAX_OPTIMISTIC_ATTEMPTS = 32;
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private OptimisticRead() {
+    }
+
+    static <T> T read(final StampedLock lock, final Read<T> read) throws InsufficientPointsException {
+        return read(lock, read, () -> { });
+    }
+
+    /**
+     * @param afterUnlock run after releasing the read lock, if the read had to fall back to it; for owners of the
+     *                    lock that have work to pick up whenever it's let go.
+     */
+    static <T> T read(final StampedLock lock, final Read<T> read, final Runnable afterUnlock)
+    throws InsufficientPointsException {
+
+        long backoffNanos = MIN_BACKOFF_NANOS;
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_ATTEMPTS; attempt++) {
+            final long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    final T result = read.read();
+                    if (lock.validate(stamp)) {
+                        return result;
+                    }
+                } catch (InsufficientPointsException | IllegalArgumentException e) {
+                    if (lock.validate(stamp)) {
+                        throw e;
+                    }
+                } catch (RuntimeException e) {
+                    // Read the ledger in the middle of a change; try again
+                }
+            }
+
+            // A write is in progress, or one ran while reading
+            if (attempt < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(backoffNanos);
+                backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+            }
+        }
+
+        final long stamp = lock.readLock();
+        try {
+            return read.read();
+        } finally {
+            lock.unlockRead(stamp);
+            afterUnlock.run();
+        }
+    }
+
+    @FunctionalInterface
+    interface Read<T> {
+        T read() throws InsufficientPointsException;
+    }
+}
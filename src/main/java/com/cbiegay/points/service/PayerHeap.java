@@ -0,0 +1,214 @@
+package com.cbiegay.points.service;
+
+import java.util.Arrays;
+
+/**
+ * Payers whose queues have points, as a min-heap in the order a spend strategy draws on them: by a rank worked out
+ * from each payer's oldest transaction, then by the age of that transaction. The rank, timestamp and sequence of each
+ * payer's oldest transaction are copied alongside, so ordering the heap doesn't visit the queues.
+ *
+ * A ledger keeps one heap per strategy that orders payers differently, each updated as payers' queues change, so
+ * spending with any of them only reorders the payers it draws from.
+ *
+ * Not thread-safe; the ledger is responsible for synchronizing access.
+ */
+final class PayerHeap {
+
+    /**
+     * The number of heaps a payer can be in at once, which is the length of PayerQueue.heapIndexes.
+     */
+    static final int SLOTS = 3;
+
+    /**
+     * Works out a payer's rank from one of its transactions; lower ranks are spent first. Must not decrease as the
+     * transaction's timestamp increases, so that the payer's oldest transaction always has its lowest rank.
+     */
+    @FunctionalInterface
+    interface Rank {
+        long of(PayerQueue queue, long timestamp);
+    }
+
+    /**
+     * Every payer has the same rank, so the oldest points are spent first.
+     */
+    static final Rank OLDEST = (queue, timestamp) -> 0;
+
+    /**
+     * Ranked by when the points expire by the payer's lifetime; points that don't expire rank last. This is the order
+     * points expire in only while each one's expiry comes from its payer's lifetime, so the ledger refuses to spend by
+     * it otherwise.
+     */
+    static final Rank EXPIRY = (queue, timestamp) ->
+        queue.lifetime == PayerPolicies.NO_EXPIRY ? Long.MAX_VALUE : PayerPolicies.expiresAt(timestamp, queue.lifetime);
+
+    /**
+     * Ranked by the payer's tier.
+     */
+    static final Rank TIER = (queue, timestamp) -> queue.tier;
+
+    private final int slot;
+    private final Rank rank;
+
+    /**
+     * The heap: payers, and the rank, timestamp and sequence of each payer's oldest transaction.
+     * Read without the lock by spend previews.
+     */
+    PayerQueue[] queues;
+    private long[] ranks;
+    private long[] timestamps;
+    private long[] sequences;
+    int count;
+
+    /**
+     * @param slot which of PayerQueue.heapIndexes holds a payer's position in this heap.
+     */
+    PayerHeap(final int slot, final Rank rank, final int capacity) {
+        this.slot = slot;
+        this.rank = rank;
+        queues = new PayerQueue[capacity];
+        ranks = new long[capacity];
+        timestamps = new long[capacity];
+        sequences = new long[capacity];
+    }
+
+    /**
+     * Make room for the given number of payers.
+     */
+    void grow(final int capacity) {
+        queues = Arrays.copyOf(queues, capacity);
+        ranks = Arrays.copyOf(ranks, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+    }
+
+    long rank(final PayerQueue queue, final long timestamp) {
+        return rank.of(queue, timestamp);
+    }
+
+    /**
+     * The payer to spend from first; only valid while the heap isn't empty.
+     */
+    PayerQueue top() {
+        return queues[0];
+    }
+
+    /**
+     * Put a payer in its place after its queue changed, adding or removing it as the queue fills or empties.
+     */
+    void update(final PayerQueue queue) {
+        final int i = queue.heapIndexes[slot];
+        if (queue.isEmpty()) {
+            if (i >= 0) {
+                remove(i);
+            }
+        } else if (i < 0) {
+            queues[count] = queue;
+            queue.heapIndexes[slot] = count;
+            copyHead(count);
+            siftUp(count++);
+        } else {
+            copyHead(i);
+            siftDown(siftUp(i));
+        }
+    }
+
+    /**
+     * Whether a payer at the top of the heap is still first, compared with its children, after points were taken
+     * from its queue.
+     */
+    boolean isStillTop(final PayerQueue queue) {
+        final long headRank = rank.of(queue, queue.headTimestamp());
+        final long timestamp = queue.headTimestamp();
+        final long sequence = queue.headSequence();
+        return (count < 2 || compare(headRank, timestamp, sequence, ranks[1], timestamps[1], sequences[1]) < 0)
+            && (count < 3 || compare(headRank, timestamp, sequence, ranks[2], timestamps[2], sequences[2]) < 0);
+    }
+
+    /**
+     * Compare two transactions in the order this kind of heap spends them: by rank, then oldest first.
+     */
+    static int compare(
+        final long rankA, final long timestampA, final long sequenceA,
+        final long rankB, final long timestampB, final long sequenceB) {
+
+        final int byRank = Long.compare(rankA, rankB);
+        return byRank != 0 ? byRank : PayerQueue.compare(timestampA, sequenceA, timestampB, sequenceB);
+    }
+
+    private void copyHead(final int i) {
+        timestamps[i] = queues[i].headTimestamp();
+        sequences[i] = queues[i].headSequence();
+        ranks[i] = rank.of(queues[i], timestamps[i]);
+    }
+
+    private void remove(final int i) {
+        queues[i].heapIndexes[slot] = -1;
+        count--;
+        if (i < count) {
+            queues[i] = queues[count];
+            queues[i].heapIndexes[slot] = i;
+            ranks[i] = ranks[count];
+            timestamps[i] = timestamps[count];
+            sequences[i] = sequences[count];
+            queues[count] = null;
+            siftDown(siftUp(i));
+        } else {
+            queues[count] = null;
+        }
+    }
+
+    private int siftUp(int i) {
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (compare(i, parent) >= 0) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+        return i;
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= count) {
+                return;
+            }
+
+            final int right = left + 1;
+            final int firstChild = right < count && compare(right, left) < 0 ? right : left;
+            if (compare(i, firstChild) <= 0) {
+                return;
+            }
+            swap(i, firstChild);
+            i = firstChild;
+        }
+    }
+
+    private void swap(final int a, final int b) {
+        final PayerQueue queue = queues[a];
+        final long headRank = ranks[a];
+        final long timestamp = timestamps[a];
+        final long sequence = sequences[a];
+
+        queues[a] = queues[b];
+        ranks[a] = ranks[b];
+        timestamps[a] = timestamps[b];
+        sequences[a] = sequences[b];
+        queues[a].heapIndexes[slot] = a;
+
+        queues[b] = queue;
+        ranks[b] = headRank;
+        timestamps[b] = timestamp;
+        sequences[b] = sequence;
+        queue.heapIndexes[slot] = b;
+    }
+
+    /**
+     * Compare the payers at two heap positions by their oldest transactions.
+     */
+    private int compare(final int a, final int b) {
+        return compare(ranks[a], timestamps[a], sequences[a], ranks[b], timestamps[b], sequences[b]);
+    }
+}
@@ -0,0 +1,153 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.ListSettings;
+import com.cbiegay.points.model.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Per-payer settings: each payer's priority tier, and how long its points last before they expire. Spend strategies
+ * rank payers by both, and services give transactions an expiry from their payer's lifetime as they're added. Payers
+ * without a tier rank last, and payers without a lifetime have the default lifetime, if there is one, or points that
+ * never expire.
+ */
+@Component
+public class PayerPolicies {
+
+    /**
+     * No tiers and no expiry.
+     */
+    public static final PayerPolicies NONE = new PayerPolicies(Collections.emptyMap(), Collections.emptyMap());
+
+    /**
+     * The tier of payers that don't have one; lower tiers are spent first.
+     */
+    static final int NO_TIER = Integer.MAX_VALUE;
+
+    /**
+     * The lifetime of points from payers whose points don't expire.
+     */
+    static final long NO_EXPIRY = -1;
+
+    private final Map<String, Integer> tiers;
+    private final Map<String, Duration> lifetimes;
+
+    /**
+     * Null if points from payers without a lifetime never expire.
+     */
+    private final Duration defaultLifetime;
+
+    /**
+     * @param tiers the priority tier of each payer; tier 1 is spent first.
+     * @param lifetimes how long each payer's points last after their timestamp.
+     */
+    public PayerPolicies(final Map<String, Integer> tiers, final Map<String, Duration> lifetimes) {
+        this(tiers, lifetimes, null);
+    }
+
+    /**
+     * @param tiers the priority tier of each payer; tier 1 is spent first.
+     * @param lifetimes how long each payer's points last after their timestamp.
+     * @param defaultLifetime how long points last for payers without a lifetime; null if they never expire.
+     * @throws IllegalArgumentException if a lifetime is negative.
+     */
+    public PayerPolicies(
+        final Map<String, Integer> tiers,
+        final Map<String, Duration> lifetimes,
+        final Duration defaultLifetime) {
+
+        if ((defaultLifetime != null && defaultLifetime.isNegative())
+            || lifetimes.values().stream().anyMatch(Duration::isNegative)) {
+            throw new IllegalArgumentException("Point lifetimes cannot be negative");
+        }
+
+        this.tiers = Map.copyOf(tiers);
+        this.lifetimes = Map.copyOf(lifetimes);
+        this.defaultLifetime = defaultLifetime;
+    }
+
+    /**
+     * @param tiers payer tiers as a comma-separated list of PAYER:TIER, e.g. "DANNON:1,UNILEVER:2".
+     * @param lifetimes point lifetimes as a comma-separated list of PAYER:DURATION, with ISO-8601 durations, e.g.
+     *        "DANNON:P90D".
+     * @param defaultLifetime the lifetime of points from other payers as an ISO-8601 duration; blank if they never
+     *        expire.
+     * @throws IllegalArgumentException if a setting can't be parsed, or a lifetime is negative.
+     */
+    @Autowired
+    public PayerPolicies(
+        @Value("${points.payers.tiers:}") final String tiers,
+        @Value("${points.payers.lifetimes:}") final String lifetimes,
+        @Value("${points.payers.default-lifetime:}") final String defaultLifetime) {
+
+        this(
+            ListSettings.parseMap(tiers, Integer::valueOf),
+            ListSettings.parseMap(lifetimes, Duration::parse),
+            defaultLifetime.isBlank() ? null : Duration.parse(defaultLifetime.trim()));
+    }
+
+    public boolean hasTiers() {
+        return !tiers.isEmpty();
+    }
+
+    public boolean hasLifetimes() {
+        return !lifetimes.isEmpty() || defaultLifetime != null;
+    }
+
+    /**
+     * Get a transaction with its expiry filled in from its payer's lifetime, so that it expires at the same time
+     * whatever lifetimes are configured later. Transactions that already have an expiry, or whose points never
+     * expire, are returned as they are.
+     */
+    public Transaction withExpiry(final Transaction transaction) {
+        final long lifetime = lifetimeOf(transaction.getPayer());
+        if (transaction.hasExpiry() || lifetime == NO_EXPIRY) {
+            return transaction;
+        }
+
+        final long expiresAt = expiresAt(transaction.getTimestampMillis(), lifetime);
+        return new Transaction(
+            transaction.getPayer(), transaction.getPoints(), transaction.getTimestampMillis(), expiresAt);
+    }
+
+    /**
+     * Get a batch of transactions with their expiries filled in, as withExpiry does; the batch itself if no payer's
+     * points expire.
+     */
+    public List<Transaction> withExpiries(final List<Transaction> transactions) {
+        if (!hasLifetimes()) {
+            return transactions;
+        }
+        return transactions.stream().map(this::withExpiry).collect(Collectors.toList());
+    }
+
+    /**
+     * Get a payer's tier, or NO_TIER if it doesn't have one.
+     */
+    int tierOf(final String payer) {
+        return tiers.getOrDefault(payer, NO_TIER);
+    }
+
+    /**
+     * Get how many milliseconds a payer's points last, or NO_EXPIRY if they don't expire.
+     */
+    long lifetimeOf(final String payer) {
+        final Duration lifetime = lifetimes.getOrDefault(payer, defaultLifetime);
+        return lifetime != null ? lifetime.toMillis() : NO_EXPIRY;
+    }
+
+    /**
+     * Get when points with the given timestamp and lifetime expire, in epoch milliseconds; Long.MAX_VALUE if that's
+     * too far off to represent.
+     */
+    static long expiresAt(final long timestamp, final long lifetime) {
+        return timestamp > Long.MAX_VALUE - lifetime ? Long.MAX_VALUE : timestamp + lifetime;
+    }
+}
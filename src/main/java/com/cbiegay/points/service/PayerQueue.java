@@ -0,0 +1,319 @@
+package com.cbiegay.points.service;
+
+import java.util.Arrays;
+
+/**
+ * One payer's unspent points in a PayerQueueLedger: the payer's transactions that still have points, oldest first
+ * (timestamp, then sequence).
+ *
+ * Only positive points are queued. A negative transaction is netted as soon as it's added, against the payer's
+ * oldest points: they're taken from the front of the queue as if spent, but without being reported by a spend. If
+ * the payer doesn't have enough points queued, the rest is kept as debt, which the payer's next points pay off as
+ * they're added.
+ *
+ * Netting takes the oldest points whatever order transactions are added in. When points are added that are older
+ * than points already netted, the newest netted points are given back to the transactions they came from and the
+ * same amount is netted from the added points instead. The netted points are kept for this until a spend draws on
+ * the payer; from then on the netting is settled, and older points added later aren't netted.
+ *
+ * Subclasses store the queue. Not thread-safe; the ledger is responsible for synchronizing access.
+ */
+abstract class PayerQueue {
+
+    private static final int INITIAL_NETTED_CAPACITY = 2;
+
+    final String payer;
+
+    /**
+     * The payer's id: the number of payers the ledger had seen before it.
+     */
+    final int id;
+
+    /**
+     * Current balance: the points queued, less any debt.
+     */
+    long balance;
+
+    /**
+     * The payer's priority tier, and how many milliseconds its points last; see PayerPolicies.
+     */
+    int tier = PayerPolicies.NO_TIER;
+    long lifetime = PayerPolicies.NO_EXPIRY;
+
+    /**
+     * Position in each of the ledger's heaps of payers while the queue isn't empty; -1 otherwise.
+     */
+    final int[] heapIndexes;
+
+    /**
+     * Points spent from the payer by the spend or expiry in progress, and whether it has drawn on the payer yet.
+     * Zero/false outside of spend.
+     */
+    long spent;
+    boolean touched;
+
+    /**
+     * Points netted since the last spend that drew on the payer, oldest first; each entry is points taken from one
+     * transaction. Every entry is at least as old as every transaction queued, so only the oldest transaction queued
+     * can have had some of its points netted and still have points left.
+     */
+    private long[] nettedTimestamps;
+    private long[] nettedSequences;
+    private int[] nettedPoints;
+    private int nettedCount;
+
+    /**
+     * Transactions whose points have all been netted; they're no longer queued, and are archived once settled.
+     */
+    private int nettedAway;
+
+    /**
+     * Negative points that haven't been netted yet, because the payer had no points queued.
+     */
+    private long debt;
+
+    PayerQueue(final String payer, final int id) {
+        this.payer = payer;
+        this.id = id;
+        heapIndexes = new int[PayerHeap.SLOTS];
+        Arrays.fill(heapIndexes, -1);
+        nettedTimestamps = new long[INITIAL_NETTED_CAPACITY];
+        nettedSequences = new long[INITIAL_NETTED_CAPACITY];
+        nettedPoints = new int[INITIAL_NETTED_CAPACITY];
+    }
+
+    /**
+     * Number of transactions queued.
+     */
+    abstract int size();
+
+    /**
+     * The oldest transaction queued; only valid while the queue isn't empty.
+     */
+    abstract long headTimestamp();
+
+    abstract long headSequence();
+
+    abstract int headPoints();
+
+    /**
+     * Queue a transaction. A transaction with the same sequence must not already be queued.
+     */
+    abstract void insert(long timestamp, long sequence, int points);
+
+    /**
+     * Give points back to the oldest transaction queued.
+     */
+    abstract void addToHead(int points);
+
+    /**
+     * Take points from the oldest transaction queued, removing it once it has none left.
+     *
+     * @param archive whether to archive the transaction if it's removed.
+     */
+    abstract void takeFromHead(int points, boolean archive);
+
+    /**
+     * Archive a transaction whose points were all netted.
+     */
+    abstract void archiveNetted(long timestamp, long sequence);
+
+    /**
+     * Remove a transaction whose points expired, wherever it is in the queue, and archive it. Costs about as much as
+     * the number of transactions queued that are older than it.
+     *
+     * @return the points it had left, or 0 if it isn't queued.
+     */
+    abstract int removeExpired(long timestamp, long sequence);
+
+    /**
+     * Get a cursor over the queued transactions, oldest first, that doesn't change the queue.
+     */
+    abstract RowCursor cursor();
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    long getDebt() {
+        return debt;
+    }
+
+    int getNettedAway() {
+        return nettedAway;
+    }
+
+    /**
+     * Get the number of transactions points are netted from.
+     */
+    int getNettedCount() {
+        return nettedCount;
+    }
+
+    /**
+     * Add a transaction with positive points, netting any debt against it.
+     */
+    void addPoints(final long timestamp, final long sequence, final int points) {
+        // Points netted from newer transactions than this one should have been netted from this one, so give them
+        // back, newest first, and net them again below
+        long released = 0;
+        while (released < points && nettedCount > 0
+            && compare(nettedTimestamps[nettedCount - 1], nettedSequences[nettedCount - 1], timestamp, sequence) > 0) {
+
+            final int last = nettedCount - 1;
+            final int givenBack = (int) Math.min(nettedPoints[last], points - released);
+            restore(nettedTimestamps[last], nettedSequences[last], givenBack);
+
+            nettedPoints[last] -= givenBack;
+            if (nettedPoints[last] == 0) {
+                nettedCount--;
+            }
+            released += givenBack;
+        }
+
+        insert(timestamp, sequence, points);
+        balance += points;
+
+        final long owed = released + debt;
+        debt = 0;
+        net(owed);
+    }
+
+    /**
+     * Net a transaction with negative points against the oldest points queued.
+     */
+    void deductPoints(final int points) {
+        balance += points;
+        net(-(long) points);
+    }
+
+    /**
+     * Settle the netting so far, before a spend draws on the payer: netted points are no longer given back, and
+     * transactions whose points were all netted are archived.
+     */
+    void settle() {
+        for (int i = 0; i < nettedCount; i++) {
+            if (!isHead(nettedTimestamps[i], nettedSequences[i])) {
+                archiveNetted(nettedTimestamps[i], nettedSequences[i]);
+            }
+        }
+        nettedCount = 0;
+        nettedAway = 0;
+    }
+
+    /**
+     * Whether points netted from a transaction could still be given back to it, which settling prevents.
+     */
+    boolean isNetted(final long timestamp, final long sequence) {
+        for (int i = 0; i < nettedCount; i++) {
+            if (nettedTimestamps[i] == timestamp && nettedSequences[i] == sequence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visit each transaction points were netted from, with the points netted from it, oldest first.
+     */
+    void forEachNetted(final NettedVisitor visitor) {
+        for (int i = 0; i < nettedCount; i++) {
+            visitor.visit(nettedTimestamps[i], nettedSequences[i], nettedPoints[i]);
+        }
+    }
+
+    @FunctionalInterface
+    interface NettedVisitor {
+        void visit(long timestamp, long sequence, int points);
+    }
+
+    /**
+     * Compare two transactions oldest first, breaking timestamp ties by sequence.
+     */
+    static int compare(final long timestampA, final long sequenceA, final long timestampB, final long sequenceB) {
+        final int byTimestamp = Long.compare(timestampA, timestampB);
+        return byTimestamp != 0 ? byTimestamp : Long.compare(sequenceA, sequenceB);
+    }
+
+    /**
+     * Take points from the front of the queue as netted, keeping as debt whatever the queue can't cover.
+     */
+    private void net(final long points) {
+        long left = points;
+        while (left > 0 && !isEmpty()) {
+            final int netted = (int) Math.min(headPoints(), left);
+            recordNetted(headTimestamp(), headSequence(), netted);
+            if (netted == headPoints()) {
+                nettedAway++;
+            }
+            takeFromHead(netted, false);
+            left -= netted;
+        }
+        debt += left;
+    }
+
+    /**
+     * Give netted points back to their transaction, which is either the oldest queued or no longer queued.
+     */
+    private void restore(final long timestamp, final long sequence, final int points) {
+        if (isHead(timestamp, sequence)) {
+            addToHead(points);
+        } else {
+            insert(timestamp, sequence, points);
+            nettedAway--;
+        }
+    }
+
+    private boolean isHead(final long timestamp, final long sequence) {
+        return !isEmpty() && headTimestamp() == timestamp && headSequence() == sequence;
+    }
+
+    private void recordNetted(final long timestamp, final long sequence, final int points) {
+        // Usually topping up the newest entry or adding a newer one; added points older than entries that weren't
+        // given back go further in
+        int i = nettedCount;
+        while (i > 0 && compare(nettedTimestamps[i - 1], nettedSequences[i - 1], timestamp, sequence) >= 0) {
+            i--;
+        }
+
+        if (i < nettedCount && nettedTimestamps[i] == timestamp && nettedSequences[i] == sequence) {
+            nettedPoints[i] += points;
+            return;
+        }
+
+        if (nettedCount == nettedPoints.length) {
+            final int capacity = nettedCount * 2;
+            nettedTimestamps = Arrays.copyOf(nettedTimestamps, capacity);
+            nettedSequences = Arrays.copyOf(nettedSequences, capacity);
+            nettedPoints = Arrays.copyOf(nettedPoints, capacity);
+        }
+
+        System.arraycopy(nettedTimestamps, i, nettedTimestamps, i + 1, nettedCount - i);
+        System.arraycopy(nettedSequences, i, nettedSequences, i + 1, nettedCount - i);
+        System.arraycopy(nettedPoints, i, nettedPoints, i + 1, nettedCount - i);
+        nettedTimestamps[i] = timestamp;
+        nettedSequences[i] = sequence;
+        nettedPoints[i] = points;
+        nettedCount++;
+    }
+
+    /**
+     * Walks a queue's transactions oldest first without changing anything.
+     *
+     * Safe to use without the lock that guards the ledger as long as what it reads is thrown away if the ledger
+     * changed: it then visits at most as many transactions as the queue held when it was created, or throws an
+     * unchecked exception.
+     */
+    abstract static class RowCursor {
+        long timestamp;
+        long sequence;
+        int points;
+
+        /**
+         * Move to the next transaction, setting the fields to it.
+         *
+         * @return false if there are no more.
+         */
+        abstract boolean next();
+    }
+}
@@ -0,0 +1,834 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.UnavailableStrategyException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Supplier;
+
+/**
+ * Ledger that keeps each payer's unspent points in its own queue, oldest first, and spends by merging the queues.
+ *
+ * The payers whose queues have points are kept in a min-heap ordered by the oldest transaction in each queue, so the
+ * oldest points in the ledger are always at the front of the queue at the top of the heap. Spending takes from that
+ * queue until it's empty or another payer has older points, then moves the payer down the heap; it visits only the
+ * transactions it draws from, and reorders only the payers it draws from, however many transactions are stored.
+ *
+ * Spend strategies that order payers differently (see SpendStrategy) each have a heap of their own, kept up to date
+ * alongside the first, and spend from it the same way. A heap is only kept for a strategy when its ordering is
+ * configured; otherwise the strategy spends oldest first, which is the order it would give. Proportional spends
+ * don't need an order, only the balances of the payers with points, which are the payers in the first heap.
+ *
+ * Negative transactions are netted against the payer's own points when they're added (see PayerQueue), so spending
+ * only ever sees positive points.
+ *
+ * Transactions with an expiry are also put in an ExpiryWheel, which finds the ones due without looking at the rest.
+ * Expiring a transaction takes whatever is left of its points out of its payer's queue, as a spend would, and settles
+ * the payer's netting first if any of the transaction's points were netted, so that they can't be given back to it.
+ *
+ * Subclasses store the queues and the archive. Not thread-safe; PointsService implementations are responsible for
+ * synchronizing access.
+ */
+abstract class PayerQueueLedger implements Ledger {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    // Sorted by points in descending order, to match the example in the instructions
+    private static final Comparator<PayerPointDelta> MOST_POINTS_FIRST =
+        (deltaA, deltaB) -> deltaB.getPoints() - deltaA.getPoints();
+
+    private final PayerPolicies policies;
+
+    /**
+     * Every payer seen, by name and in the order first seen; the index of a payer in the array is its id.
+     */
+    private final Map<String, PayerQueue> queues;
+    private PayerQueue[] payers;
+    private int payerCount;
+
+    /**
+     * Payers whose queues have points: oldest first, expiring first and in tier order. The last two are null unless
+     * the payers' lifetimes and tiers are configured.
+     */
+    private final PayerHeap oldestFirst;
+    private final PayerHeap expiryFirst;
+    private final PayerHeap priorityFirst;
+
+    /**
+     * Transactions with points that expire, by when.
+     */
+    private final ExpiryWheel expiries;
+
+    /**
+     * Transactions in the expiry wheel whose expiry isn't the one their payer's lifetime gives. EXPIRY_FIRST ranks
+     * payers by their lifetimes, so it can't spend in expiry order until these have expired.
+     */
+    private int ownExpiries;
+
+    /**
+     * Payers the spend or expiry in progress has drawn on so far. Kept between spends so that spending doesn't
+     * allocate.
+     */
+    private PayerQueue[] spentPayers;
+    private int spentPayerCount;
+
+    private long totalPoints;
+    private long nextSequence;
+    private long transactionsScanned;
+
+    /**
+     * Transactions queued across all payers, and transactions whose points have all been netted but not yet settled.
+     */
+    private int transactionCount;
+    private int nettedAway;
+
+    /**
+     * @param policies the payers' tiers and lifetimes, which the spend strategies rank payers by.
+     */
+    PayerQueueLedger(final PayerPolicies policies) {
+        this.policies = policies;
+        queues = new HashMap<>();
+        payers = new PayerQueue[INITIAL_CAPACITY];
+        oldestFirst = new PayerHeap(0, PayerHeap.OLDEST, INITIAL_CAPACITY);
+        expiryFirst = policies.hasLifetimes() ? new PayerHeap(1, PayerHeap.EXPIRY, INITIAL_CAPACITY) : null;
+        priorityFirst = policies.hasTiers() ? new PayerHeap(2, PayerHeap.TIER, INITIAL_CAPACITY) : null;
+        expiries = new ExpiryWheel();
+        spentPayers = new PayerQueue[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Create the empty queue for a payer seen for the first time.
+     *
+     * @param id the payer's id, which is the number of payers seen before it.
+     */
+    abstract PayerQueue newQueue(String payer, int id);
+
+    /**
+     * Archive a transaction with no points, which is never queued.
+     */
+    abstract void archiveWithoutPoints(PayerQueue queue, Transaction transaction, long sequence);
+
+    /**
+     * Get the number of transactions archived.
+     */
+    abstract int getArchiveSize();
+
+    /**
+     * {@inheritDoc}
+     * Negative transactions and transactions without points never expire.
+     */
+    @Override
+    public void addTransaction(final Transaction transaction) {
+        Ledger.checkTransaction(transaction);
+        final PayerQueue queue = queue(transaction.getPayer());
+        final int transactionPoints = transaction.getPoints();
+        final long sequence = nextSequence++;
+        totalPoints += transactionPoints;
+
+        final int sizeBefore = queue.size();
+        final int nettedAwayBefore = queue.getNettedAway();
+
+        if (transactionPoints > 0) {
+            final long timestamp = transaction.getTimestampMillis();
+            queue.addPoints(timestamp, sequence, transactionPoints);
+            if (transaction.hasExpiry()) {
+                expiries.add(queue.id, timestamp, sequence, transaction.getExpiresAtMillis());
+                if (transaction.getExpiresAtMillis() != PayerHeap.EXPIRY.of(queue, timestamp)) {
+                    ownExpiries++;
+                }
+            }
+        } else if (transactionPoints < 0) {
+            queue.deductPoints(transactionPoints);
+        } else {
+            archiveWithoutPoints(queue, transaction, sequence);
+        }
+
+        transactionCount += queue.size() - sizeBefore;
+        nettedAway += queue.getNettedAway() - nettedAwayBefore;
+        updateHeaps(queue);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> spend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException {
+
+        checkCanSpend(pointsToSpend);
+        checkStrategy(strategy);
+
+        if (strategy == SpendStrategy.PROPORTIONAL) {
+            final PayerQueue[] sharers = Arrays.copyOf(oldestFirst.queues, oldestFirst.count);
+            final int[] shares = allocateProportionally(pointsToSpend, sharers);
+            for (int i = 0; i < sharers.length; i++) {
+                if (shares[i] > 0) {
+                    spendFromPayer(sharers[i], shares[i]);
+                }
+            }
+            return finishSpend();
+        }
+
+        final PayerHeap heap = heap(strategy);
+        int pointsLeftToSpend = pointsToSpend;
+
+        // The payers' balances cover what's being spent, and every payer with points is in the heap, so the heap
+        // can't run out before the spend is done
+        while (pointsLeftToSpend > 0) {
+            final PayerQueue queue = heap.top();
+            touch(queue);
+
+            // Taking from this payer until it runs out or another payer comes first; the heap only needs reordering
+            // when the payer moves
+            do {
+                pointsLeftToSpend -= spendFromHead(queue, pointsLeftToSpend);
+            } while (pointsLeftToSpend > 0 && !queue.isEmpty() && heap.isStillTop(queue));
+
+            updateHeaps(queue);
+        }
+
+        return finishSpend();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> spendAllocated(final List<PayerPointDelta> allocation)
+    throws InsufficientPointsException {
+
+        long pointsToSpend = 0;
+        try {
+            for (final PayerPointDelta delta : allocation) {
+                final PayerQueue queue = queues.get(delta.getPayer());
+                if (delta.getPoints() >= 0) {
+                    throw new IllegalArgumentException("Cannot spend less than 1 point");
+                }
+                if (queue != null && queue.touched) {
+                    throw new IllegalArgumentException("Payer " + delta.getPayer() + " is allocated more than once");
+                }
+                if (queue == null || queue.isEmpty() || -(long) delta.getPoints() > queue.balance) {
+                    throw new InsufficientPointsException();
+                }
+                queue.touched = true;
+                pointsToSpend -= delta.getPoints();
+            }
+        } finally {
+            for (final PayerPointDelta delta : allocation) {
+                final PayerQueue queue = queues.get(delta.getPayer());
+                if (queue != null) {
+                    queue.touched = false;
+                }
+            }
+        }
+
+        if (pointsToSpend > Integer.MAX_VALUE) {
+            throw new InsufficientPointsException();
+        }
+        checkCanSpend((int) pointsToSpend);
+
+        for (final PayerPointDelta delta : allocation) {
+            spendFromPayer(queues.get(delta.getPayer()), -delta.getPoints());
+        }
+        return finishSpend();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> previewSpend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException {
+
+        checkCanSpend(pointsToSpend);
+        checkStrategy(strategy);
+
+        if (strategy == SpendStrategy.PROPORTIONAL) {
+            final PayerQueue[] sharers = Arrays.copyOf(oldestFirst.queues, oldestFirst.count);
+            final int[] shares = allocateProportionally(pointsToSpend, sharers);
+
+            final List<PayerPointDelta> result = new ArrayList<>(sharers.length);
+            for (int i = 0; i < sharers.length; i++) {
+                if (shares[i] > 0) {
+                    result.add(new PayerPointDelta(sharers[i].payer, -shares[i]));
+                }
+            }
+            result.sort(MOST_POINTS_FIRST);
+
+            return result;
+        }
+
+        int pointsLeftToSpend = pointsToSpend;
+        final Map<String, Integer> pointsSpentPerPayer = new HashMap<>();
+
+        // Merging the queues without changing them: a cursor walks each queue reached so far, and a payer's children
+        // in the heap can't come before its first transaction, so they join once that's been visited
+        final PayerHeap heap = heap(strategy);
+        final PayerQueue[] heads = heap.queues;
+        final int headCount = Math.min(heap.count, heads.length);
+        final PriorityQueue<HeapCursor> frontier = new PriorityQueue<>(
+            (a, b) -> PayerHeap.compare(a.rank, a.timestamp, a.sequence, b.rank, b.timestamp, b.sequence));
+        addToFrontier(frontier, heap, heads, headCount, 0);
+
+        while (!frontier.isEmpty()) {
+            final HeapCursor cursor = frontier.poll();
+            final int spentFromTransaction = Math.min(cursor.points, pointsLeftToSpend);
+            pointsLeftToSpend -= spentFromTransaction;
+            pointsSpentPerPayer.merge(cursor.queue.payer, -spentFromTransaction, Integer::sum);
+
+            if (pointsLeftToSpend == 0) {
+                break;
+            }
+
+            if (cursor.headsIndex >= 0) {
+                addToFrontier(frontier, heap, heads, headCount, 2 * cursor.headsIndex + 1);
+                addToFrontier(frontier, heap, heads, headCount, 2 * cursor.headsIndex + 2);
+                cursor.headsIndex = -1;
+            }
+            if (cursor.next()) {
+                frontier.add(cursor);
+            }
+        }
+
+        final List<PayerPointDelta> result = new ArrayList<>(pointsSpentPerPayer.size());
+        for (final Map.Entry<String, Integer> payerPointsSpent : pointsSpentPerPayer.entrySet()) {
+            result.add(new PayerPointDelta(payerPointsSpent.getKey(), payerPointsSpent.getValue()));
+        }
+        result.sort(MOST_POINTS_FIRST);
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getNextExpiry() {
+        return expiries.getNextExpiry();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getExpiryBatchEnd(final long now, final int maxTransactions) {
+        return expiries.getBatchEnd(now, maxTransactions);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> expire(final long upTo) {
+        expiries.expire(upTo, this::expireTransaction);
+        return finishSpend();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getExpiringTransactionCount() {
+        return expiries.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBalances() {
+        final Map<String, Long> balances = new HashMap<>(payerCount * 4 / 3 + 1);
+        for (int payer = 0; payer < payerCount; payer++) {
+            balances.put(payers[payer].payer, payers[payer].balance);
+        }
+
+        return balances;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTotalPoints() {
+        return totalPoints;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     * Includes transactions whose points were all netted by negative transactions.
+     */
+    @Override
+    public int getArchivedTransactionCount() {
+        return getArchiveSize() + nettedAway;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTransactionsScanned() {
+        return transactionsScanned;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkCanSpend(final int pointsToSpend) throws InsufficientPointsException {
+        // Not in the instructions but we'll assume this rule
+        if (pointsToSpend < 1) {
+            throw new IllegalArgumentException("Cannot spend less than 1 point");
+        }
+
+        if (pointsToSpend > totalPoints) {
+            throw new InsufficientPointsException();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Each queued transaction is given back the points netted from it, and added oldest first, with its expiry. Each
+     * payer's netted points and debt follow as one negative transaction (or several, if they don't fit in an int),
+     * which nets the same points again.
+     *
+     * The copy is each queued and netted row, each expiry and each payer's debt, in primitive arrays; sorting the rows
+     * and making transactions of them is left to the supplier.
+     */
+    @Override
+    public Supplier<List<Transaction>> copyCompactedTransactions() {
+        final String[] payerNames = new String[payerCount];
+        final long[] owed = new long[payerCount];
+        int size = transactionCount;
+        for (int payer = 0; payer < payerCount; payer++) {
+            payerNames[payer] = payers[payer].payer;
+            owed[payer] = payers[payer].getDebt();
+            size += payers[payer].getNettedCount();
+        }
+
+        final int[] rowPayers = new int[size];
+        final long[] rowTimestamps = new long[size];
+        final long[] rowSequences = new long[size];
+        final int[] rowPoints = new int[size];
+        final int[] rowCount = { 0 };
+        for (int payer = 0; payer < payerCount; payer++) {
+            final int id = payer;
+            final PayerQueue.RowCursor cursor = payers[payer].cursor();
+            while (cursor.next()) {
+                final int i = rowCount[0]++;
+                rowPayers[i] = id;
+                rowTimestamps[i] = cursor.timestamp;
+                rowSequences[i] = cursor.sequence;
+                rowPoints[i] = cursor.points;
+            }
+            payers[payer].forEachNetted((timestamp, sequence, points) -> {
+                final int i = rowCount[0]++;
+                rowPayers[i] = id;
+                rowTimestamps[i] = timestamp;
+                rowSequences[i] = sequence;
+                rowPoints[i] = points;
+                owed[id] += points;
+            });
+        }
+
+        final long[] expirySequences = new long[expiries.size()];
+        final long[] expiryTimes = new long[expiries.size()];
+        final int[] expiryCount = { 0 };
+        expiries.forEach((payer, timestamp, sequence, expiresAt) -> {
+            expirySequences[expiryCount[0]] = sequence;
+            expiryTimes[expiryCount[0]++] = expiresAt;
+        });
+
+        return () -> {
+            final Map<Long, Long> expiriesBySequence = new HashMap<>();
+            for (int i = 0; i < expiryCount[0]; i++) {
+                expiriesBySequence.put(expirySequences[i], expiryTimes[i]);
+            }
+
+            final Integer[] order = new Integer[rowCount[0]];
+            Arrays.setAll(order, i -> i);
+            Arrays.sort(order, (a, b) ->
+                PayerQueue.compare(rowTimestamps[a], rowSequences[a], rowTimestamps[b], rowSequences[b]));
+
+            final List<Transaction> compacted = new ArrayList<>(order.length + payerNames.length);
+            final boolean[] payerHasPoints = new boolean[payerNames.length];
+            for (int i = 0; i < order.length; i++) {
+                final int row = order[i];
+                int points = rowPoints[row];
+
+                // A transaction with points both netted and queued is one row for each
+                while (i + 1 < order.length && rowSequences[order[i + 1]] == rowSequences[row]) {
+                    points += rowPoints[order[++i]];
+                }
+                final Long expiresAt = expiriesBySequence.get(rowSequences[row]);
+                compacted.add(new Transaction(
+                    payerNames[rowPayers[row]], points, rowTimestamps[row],
+                    expiresAt != null ? expiresAt : Transaction.NO_EXPIRY));
+                payerHasPoints[rowPayers[row]] = true;
+            }
+
+            for (int payer = 0; payer < payerNames.length; payer++) {
+                for (final int part : intParts(owed[payer])) {
+                    compacted.add(new Transaction(payerNames[payer], -part, 0L));
+                }
+
+                // A payer whose transactions are all spent still has a (zero) balance
+                if (!payerHasPoints[payer] && owed[payer] == 0) {
+                    compacted.add(new Transaction(payerNames[payer], 0, 0L));
+                }
+            }
+
+            return compacted;
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * A payer's debt is copied as negative rows.
+     */
+    @Override
+    public UnspentPoints copyUnspentPoints() {
+        final String[] payerNames = new String[payerCount];
+        int size = transactionCount;
+        for (int payer = 0; payer < payerCount; payer++) {
+            payerNames[payer] = payers[payer].payer;
+            size += intParts(payers[payer].getDebt()).length;
+        }
+
+        final int[] rowPayers = new int[size];
+        final int[] rowPoints = new int[size];
+        int i = 0;
+        for (int payer = 0; payer < payerCount; payer++) {
+            final PayerQueue.RowCursor cursor = payers[payer].cursor();
+            while (cursor.next()) {
+                rowPayers[i] = payer;
+                rowPoints[i] = cursor.points;
+                i++;
+            }
+            for (final int part : intParts(payers[payer].getDebt())) {
+                rowPayers[i] = payer;
+                rowPoints[i] = -part;
+                i++;
+            }
+        }
+
+        return new UnspentPoints(payerNames, payerCount, rowPayers, rowPoints, size);
+    }
+
+    /**
+     * Get the queue for a payer, creating it if the payer hasn't been seen before.
+     */
+    private PayerQueue queue(final String payer) {
+        final PayerQueue existing = queues.get(payer);
+        if (existing != null) {
+            return existing;
+        }
+
+        if (payerCount == payers.length) {
+            final int capacity = payerCount * 2;
+            payers = Arrays.copyOf(payers, capacity);
+            oldestFirst.grow(capacity);
+            if (expiryFirst != null) {
+                expiryFirst.grow(capacity);
+            }
+            if (priorityFirst != null) {
+                priorityFirst.grow(capacity);
+            }
+            spentPayers = Arrays.copyOf(spentPayers, capacity);
+        }
+
+        final PayerQueue queue = newQueue(payer, payerCount);
+        queue.tier = policies.tierOf(payer);
+        queue.lifetime = policies.lifetimeOf(payer);
+        queues.put(payer, queue);
+        payers[payerCount++] = queue;
+        return queue;
+    }
+
+    /**
+     * Split a non-negative amount into parts that each fit in an int.
+     */
+    private static int[] intParts(final long amount) {
+        final int count = (int) ((amount + Integer.MAX_VALUE - 1) / Integer.MAX_VALUE);
+        final int[] parts = new int[count];
+        long left = amount;
+        for (int i = 0; i < count; i++) {
+            parts[i] = (int) Math.min(left, Integer.MAX_VALUE);
+            left -= parts[i];
+        }
+        return parts;
+    }
+
+    /**
+     * Refuse a strategy that can't order the points as it promises.
+     *
+     * @throws UnavailableStrategyException if spending expiring points first while some have an expiry of their own.
+     */
+    private void checkStrategy(final SpendStrategy strategy) {
+        if (strategy == SpendStrategy.EXPIRY_FIRST && ownExpiries > 0) {
+            throw new UnavailableStrategyException(
+                "Cannot spend expiring points first while some points have an expiry of their own");
+        }
+    }
+
+    /**
+     * Get the heap a strategy spends from; strategies whose ordering isn't configured spend oldest first. Without
+     * lifetimes, EXPIRY_FIRST only gets this far when no points expire, so oldest first is its order.
+     */
+    private PayerHeap heap(final SpendStrategy strategy) {
+        if (strategy == SpendStrategy.EXPIRY_FIRST && expiryFirst != null) {
+            return expiryFirst;
+        }
+        if (strategy == SpendStrategy.PAYER_PRIORITY && priorityFirst != null) {
+            return priorityFirst;
+        }
+        return oldestFirst;
+    }
+
+    /**
+     * Put a payer in its place in each heap after its queue changed.
+     */
+    private void updateHeaps(final PayerQueue queue) {
+        oldestFirst.update(queue);
+        if (expiryFirst != null) {
+            expiryFirst.update(queue);
+        }
+        if (priorityFirst != null) {
+            priorityFirst.update(queue);
+        }
+    }
+
+    /**
+     * Note that the spend in progress draws on a payer, settling its netting the first time.
+     */
+    private void touch(final PayerQueue queue) {
+        if (!queue.touched) {
+            settle(queue);
+            addSpentPayer(queue);
+        }
+    }
+
+    private void addSpentPayer(final PayerQueue queue) {
+        queue.touched = true;
+        spentPayers[spentPayerCount++] = queue;
+    }
+
+    private void settle(final PayerQueue queue) {
+        nettedAway -= queue.getNettedAway();
+        queue.settle();
+    }
+
+    /**
+     * Take whatever is left of an expired transaction's points from its payer, as part of the expiry in progress.
+     */
+    private void expireTransaction(final int payer, final long timestamp, final long sequence, final long expiresAt) {
+        final PayerQueue queue = payers[payer];
+        if (expiresAt != PayerHeap.EXPIRY.of(queue, timestamp)) {
+            ownExpiries--;
+        }
+        if (queue.isNetted(timestamp, sequence)) {
+            settle(queue);
+        }
+
+        final int points = queue.removeExpired(timestamp, sequence);
+        if (points > 0) {
+            if (!queue.touched) {
+                addSpentPayer(queue);
+            }
+            queue.spent += points;
+            transactionCount--;
+            updateHeaps(queue);
+        }
+    }
+
+    /**
+     * Spend up to the given number of points from a payer's oldest transaction.
+     *
+     * @return the points spent.
+     */
+    private int spendFromHead(final PayerQueue queue, final int pointsLeftToSpend) {
+        transactionsScanned++;
+        final int headPoints = queue.headPoints();
+        final int spentFromTransaction = Math.min(headPoints, pointsLeftToSpend);
+        if (spentFromTransaction == headPoints) {
+            transactionCount--;
+        }
+        queue.takeFromHead(spentFromTransaction, true);
+        queue.spent += spentFromTransaction;
+        return spentFromTransaction;
+    }
+
+    /**
+     * Spend points from a payer, oldest first; the payer must have them queued.
+     */
+    private void spendFromPayer(final PayerQueue queue, final int pointsToSpend) {
+        touch(queue);
+        int pointsLeftToSpend = pointsToSpend;
+        while (pointsLeftToSpend > 0) {
+            pointsLeftToSpend -= spendFromHead(queue, pointsLeftToSpend);
+        }
+        updateHeaps(queue);
+    }
+
+    /**
+     * Take what the spend or expiry in progress drew from each payer off their balances, and report it. An expiry can
+     * take more from a payer than fits in an int, which is reported as several deltas.
+     */
+    private List<PayerPointDelta> finishSpend() {
+        final List<PayerPointDelta> result = new ArrayList<>(spentPayerCount);
+        for (int i = 0; i < spentPayerCount; i++) {
+            final PayerQueue queue = spentPayers[i];
+            queue.balance -= queue.spent;
+            totalPoints -= queue.spent;
+            for (long left = queue.spent; left > 0; left -= Integer.MAX_VALUE) {
+                result.add(new PayerPointDelta(queue.payer, (int) -Math.min(left, Integer.MAX_VALUE)));
+            }
+
+            queue.spent = 0;
+            queue.touched = false;
+            spentPayers[i] = null;
+        }
+        spentPayerCount = 0;
+
+        result.sort(MOST_POINTS_FIRST);
+        return result;
+    }
+
+    /**
+     * Split points across the payers with points, in proportion to their balances. Each payer's share is rounded
+     * down, and the points that leaves over go one each to the payers whose shares were rounded down the most,
+     * breaking ties by the age of their oldest points. Only reads the ledger, so is safe for previews.
+     *
+     * @param sharers a copy of the payers with points, i.e. of the oldest first heap.
+     * @return the points to spend from each payer, indexed like sharers.
+     */
+    private static int[] allocateProportionally(final int pointsToSpend, final PayerQueue[] sharers) {
+        // A payer with points queued has no debt, so its balance is the points it has queued
+        long total = 0;
+        for (final PayerQueue sharer : sharers) {
+            total += sharer.balance;
+        }
+
+        final int[] shares = new int[sharers.length];
+        final long[] remainders = new long[sharers.length];
+        int pointsLeft = pointsToSpend;
+        for (int i = 0; i < sharers.length; i++) {
+            final long balance = sharers[i].balance;
+            if (balance <= Long.MAX_VALUE / pointsToSpend) {
+                shares[i] = (int) (balance * pointsToSpend / total);
+                remainders[i] = balance * pointsToSpend % total;
+            } else {
+                final BigInteger[] share = BigInteger.valueOf(balance)
+                    .multiply(BigInteger.valueOf(pointsToSpend))
+                    .divideAndRemainder(BigInteger.valueOf(total));
+                shares[i] = share[0].intValueExact();
+                remainders[i] = share[1].longValueExact();
+            }
+            pointsLeft -= shares[i];
+        }
+
+        if (pointsLeft > 0) {
+            giveToLargestRemainders(pointsLeft, sharers, shares, remainders);
+        }
+        return shares;
+    }
+
+    /**
+     * Add a point to the shares of the given number of payers with the largest remainders, breaking ties by the age
+     * of their oldest points. Fewer points are left over than there are payers, so each gets at most one.
+     */
+    private static void giveToLargestRemainders(
+        final int points,
+        final PayerQueue[] sharers,
+        final int[] shares,
+        final long[] remainders) {
+
+        // Every remainder above the smallest one that gets a point gets one too; only ties at that remainder need
+        // ordering, which keeps the sort of payers small
+        final long[] sortedRemainders = remainders.clone();
+        Arrays.sort(sortedRemainders);
+        final long threshold = sortedRemainders[sortedRemainders.length - points];
+
+        final List<Integer> tied = new ArrayList<>();
+        int pointsLeft = points;
+        for (int i = 0; i < sharers.length; i++) {
+            if (remainders[i] > threshold) {
+                shares[i]++;
+                pointsLeft--;
+            } else if (remainders[i] == threshold) {
+                tied.add(i);
+            }
+        }
+
+        tied.sort((a, b) -> PayerQueue.compare(
+            sharers[a].headTimestamp(), sharers[a].headSequence(),
+            sharers[b].headTimestamp(), sharers[b].headSequence()));
+        for (int i = 0; i < pointsLeft; i++) {
+            shares[tied.get(i)]++;
+        }
+    }
+
+    private static void addToFrontier(
+        final PriorityQueue<HeapCursor> frontier,
+        final PayerHeap heap,
+        final PayerQueue[] heads,
+        final int headCount,
+        final int headsIndex) {
+
+        if (headsIndex < headCount) {
+            final HeapCursor cursor = new HeapCursor(heap, heads[headsIndex], headsIndex);
+            if (cursor.next()) {
+                frontier.add(cursor);
+            }
+        }
+    }
+
+    /**
+     * A cursor over one payer's queue during previewSpend, with the rank of each transaction in the heap being
+     * merged, and the payer's position in that heap until its children have joined the merge.
+     */
+    private static final class HeapCursor extends PayerQueue.RowCursor {
+        final PayerHeap heap;
+        final PayerQueue queue;
+        final PayerQueue.RowCursor rows;
+        long rank;
+        int headsIndex;
+
+        HeapCursor(final PayerHeap heap, final PayerQueue queue, final int headsIndex) {
+            this.heap = heap;
+            this.queue = queue;
+            this.rows = queue.cursor();
+            this.headsIndex = headsIndex;
+        }
+
+        @Override
+        boolean next() {
+            if (!rows.next()) {
+                return false;
+            }
+            timestamp = rows.timestamp;
+            sequence = rows.sequence;
+            points = rows.points;
+            rank = heap.rank(queue, timestamp);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Micrometer meters for a PointsService: operation latencies, transactions scanned per spend, time spent waiting for
+ * the ledger lock, time the lock is held to expire points, and the size of the ledger.
+ *
+ * Recording costs a few atomic increments per operation, so the meters are always on. Latency timers publish
+ * histogram buckets between 1 microsecond and 1 second for server-side percentiles.
+ */
+final class PointsMetrics {
+
+    private final Timer addTimer;
+    private final Timer balancesTimer;
+    private final Timer spendTimer;
+    private final Timer insufficientPointsTimer;
+    private final Timer invalidSpendTimer;
+    private final Timer previewTimer;
+    private final Timer spendBatchTimer;
+    private final Timer balanceCheckTimer;
+    private final Timer lockWaitTimer;
+    private final Timer expiryBatchTimer;
+    private final Counter expiredPoints;
+    private final DistributionSummary transactionsScanned;
+
+    PointsMetrics(final MeterRegistry registry) {
+        addTimer = latencyTimer("points.add", "Time to add transactions", registry);
+        balancesTimer = latencyTimer("points.balances", "Time to read balances", registry);
+        spendTimer = spendTimer("success", registry);
+        insufficientPointsTimer = spendTimer("insufficient_points", registry);
+        invalidSpendTimer = spendTimer("invalid", registry);
+        previewTimer = latencyTimer("points.spend.preview", "Time to preview spends", registry);
+        spendBatchTimer = latencyTimer("points.spend.batch", "Time to apply batches of spends", registry);
+        balanceCheckTimer = latencyTimer("points.balances.check", "Time to recompute and check balances", registry);
+        lockWaitTimer = latencyTimer("points.lock.wait", "Time spent waiting for the ledger lock", registry);
+        expiryBatchTimer =
+            latencyTimer("points.expiry.batch", "Time the ledger lock is held per batch of expiries", registry);
+
+        expiredPoints = Counter.builder("points.expired")
+            .description("Points expired by the expiry sweeper")
+            .baseUnit("points")
+            .register(registry);
+
+        transactionsScanned = DistributionSummary.builder("points.spend.scanned")
+            .description("Transactions visited by each successful spend")
+            .baseUnit("transactions")
+            .publishPercentileHistogram()
+            .maximumExpectedValue(1_000_000.0)
+            .register(registry);
+    }
+
+    /**
+     * Register gauges for the size of a ledger. Gauges are read on scrape, taking the lock that guards the ledger.
+     */
+    void bindLedger(final Ledger ledger, final Lock lock, final MeterRegistry registry) {
+        bindLedger(ledger, lock, () -> { }, registry);
+    }
+
+    /**
+     * Register gauges for the size of a ledger, as above, running afterUnlock each time a gauge lets go of the lock.
+     */
+    void bindLedger(final Ledger ledger, final Lock lock, final Runnable afterUnlock, final MeterRegistry registry) {
+        final LedgerReader read = value -> {
+            lock.lock();
+            try {
+                return value.applyAsLong(ledger);
+            } finally {
+                lock.unlock();
+                afterUnlock.run();
+            }
+        };
+
+        Gauge.builder("points.ledger.transactions", () -> read.read(Ledger::getTransactionCount))
+            .description("Transactions in the ledger; live ones still have points, archived ones are spent")
+            .tag("state", "live")
+            .register(registry);
+        Gauge.builder("points.ledger.transactions", () -> read.read(Ledger::getArchivedTransactionCount))
+            .description("Transactions in the ledger; live ones still have points, archived ones are spent")
+            .tag("state", "archived")
+            .register(registry);
+        Gauge.builder("points.ledger.payers", () -> read.read(l -> l.getBalances().size()))
+            .description("Payers with a balance")
+            .register(registry);
+        Gauge.builder("points.ledger.points", () -> read.read(Ledger::getTotalPoints))
+            .description("Sum of all payer balances")
+            .register(registry);
+        Gauge.builder("points.ledger.expiring", () -> read.read(Ledger::getExpiringTransactionCount))
+            .description("Transactions waiting for their points to expire")
+            .register(registry);
+    }
+
+    /**
+     * Acquire a lock, recording how long it took.
+     */
+    void lock(final Lock lock) {
+        // Skipping the clock when the lock is free, which under light load is almost always
+        if (lock.tryLock()) {
+            lockWaitTimer.record(0, TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        lock.lock();
+        lockWaitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    void recordAdd(final long startNanos) {
+        addTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordBalances(final long startNanos) {
+        balancesTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordSpend(final long startNanos, final long scanned) {
+        spendTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        transactionsScanned.record(scanned);
+    }
+
+    void recordPreview(final long startNanos) {
+        previewTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordSpendBatch(final long startNanos) {
+        spendBatchTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record a batch of expiries, from when the lock was acquired.
+     */
+    void recordExpiryBatch(final long startNanos, final long points) {
+        expiryBatchTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        expiredPoints.increment(points);
+    }
+
+    void recordBalanceCheck(final long startNanos) {
+        balanceCheckTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record a spend that threw, by the kind of failure.
+     */
+    void recordFailedSpend(final long startNanos, final Exception failure) {
+        final Timer timer =
+            failure instanceof InsufficientPointsException ? insufficientPointsTimer : invalidSpendTimer;
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static Timer latencyTimer(final String name, final String description, final MeterRegistry registry) {
+        return Timer.builder(name)
+            .description(description)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofNanos(1000))
+            .maximumExpectedValue(Duration.ofSeconds(1))
+            .register(registry);
+    }
+
+    private static Timer spendTimer(final String outcome, final MeterRegistry registry) {
+        return Timer.builder("points.spend")
+            .description("Time to spend points, by outcome")
+            .tag("outcome", outcome)
+            .publishPercentileHistogram()
+            .minimumExpectedValue(Duration.ofNanos(1000))
+            .maximumExpectedValue(Duration.ofSeconds(1))
+            .register(registry);
+    }
+
+    @FunctionalInterface
+    private interface LedgerReader {
+        long read(ToLongFunction<Ledger> value);
+    }
+}
@@ -1,9 +1,13 @@
 package com.cbiegay.points.service;
 
 import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.UnavailableStrategyException;
+import com.cbiegay.points.model.BalanceCheckResult;
 import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
 import com.cbiegay.points.model.Transaction;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -16,9 +20,18 @@ public interface PointsService {
      * Add a transaction representing points earned for a payer.
      *
      * @param transaction an object representing the points earned for a payer in a transaction.
+     * @throws IllegalArgumentException if the transaction has no payer or no points; nothing is changed.
      */
     void addTransaction(final Transaction transaction);
 
+    /**
+     * Add a batch of transactions. Cheaper than adding them one at a time, since the batch is applied at once.
+     *
+     * @param transactions the transactions to add, in order.
+     * @throws IllegalArgumentException if any transaction has no payer or no points; none are added.
+     */
+    void addTransactions(final List<Transaction> transactions);
+
     /**
      * Spend points accumulated via transactions.
      *
@@ -29,10 +42,111 @@ public interface PointsService {
      */
     List<PayerPointDelta> spend(final int pointsToSpend) throws InsufficientPointsException;
 
+    /**
+     * Spend points accumulated via transactions, choosing which payers to spend from with a strategy.
+     *
+     * @param pointsToSpend the number of points to spend.
+     * @param strategy how to choose the payers; spend(int) is the same as OLDEST_FIRST.
+     * @return a list of objects indicating how many points were spent per payer, sorted by points in descending order.
+     * @throws InsufficientPointsException if trying to spend more points than are available.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     * @throws UnavailableStrategyException if the strategy can't order the points as it promises; see SpendStrategy.
+     */
+    List<PayerPointDelta> spend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException;
+
+    /**
+     * Spend several amounts of points in order, in one operation. Gives the same results as calling spend for each
+     * amount in turn, but without other operations in between.
+     *
+     * @param amounts the numbers of points to spend.
+     * @param allOrNothing if true, spend nothing unless every amount can be spent; if false, skip amounts that
+     *        can't be spent and carry on with the rest.
+     * @return the result of each spend, in order; null for amounts that were skipped.
+     * @throws InsufficientPointsException if all or nothing and there aren't enough points for every amount.
+     * @throws IllegalArgumentException if all or nothing and any amount is less than 1.
+     */
+    List<List<PayerPointDelta>> spendBatch(final List<Integer> amounts, final boolean allOrNothing)
+    throws InsufficientPointsException;
+
+    /**
+     * Work out what spending points would draw from each payer, without spending them.
+     * Doesn't wait for, or hold up, adds and spends in progress.
+     *
+     * @param pointsToSpend the number of points to spend.
+     * @return the result spend would give if called now.
+     * @throws InsufficientPointsException if trying to spend more points than are available.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     */
+    List<PayerPointDelta> previewSpend(final int pointsToSpend) throws InsufficientPointsException;
+
+    /**
+     * Work out what spending points with a strategy would draw from each payer, without spending them.
+     * Doesn't wait for, or hold up, adds and spends in progress.
+     *
+     * @return the result spend would give with the same strategy if called now.
+     * @throws InsufficientPointsException if trying to spend more points than are available.
+     * @throws IllegalArgumentException if pointsToSpend is less than 1.
+     * @throws UnavailableStrategyException if the strategy can't order the points as it promises; see SpendStrategy.
+     */
+    List<PayerPointDelta> previewSpend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException;
+
+    /**
+     * Expire the points of transactions whose expiry has passed, in batches, so that other operations can run in
+     * between. Expired points are taken from their payers as if spent, and count in balance history from the end of
+     * the batch that expired them.
+     *
+     * @param now points that expire before this time are expired.
+     * @param batchSize about how many transactions to expire while holding up other operations.
+     * @return the number of points expired.
+     */
+    long expirePoints(final Date now, final int batchSize);
+
     /**
      * Get the current point balances for each payer.
      *
      * @return a Map of payer names to point balances.
      */
-    Map<String, Integer> getBalances();
+    Map<String, Long> getBalances();
+
+    /**
+     * Get the point balances for each payer as they were at a point in time. Transactions count from their
+     * timestamp and spends from the time they were made.
+     *
+     * @param asOf the point in time; changes at exactly this time are included.
+     * @return a Map of payer names to point balances, leaving out payers with no transactions by that time.
+     */
+    Map<String, Long> getBalances(final Date asOf);
+
+    /**
+     * Get every transaction added so far, as it was added, in the order it was added. The position of each
+     * transaction in the list is its sequence number.
+     *
+     * The list is a read-only view rather than a copy, and reading it doesn't hold up other operations however long
+     * it takes. It covers the transactions added before the call; later ones aren't part of it.
+     *
+     * @return a List of the added transactions, indexed by sequence number.
+     */
+    List<Transaction> getTransactions();
+
+    /**
+     * Report every change to payer balances from now on to a listener, in place of any listener set before.
+     * Only one listener is kept, so callers that need several should fan changes out from it.
+     *
+     * @param listener the listener, or null to stop reporting changes.
+     * @return the current balances, read atomically with setting the listener, so that adding the changes reported
+     *         to them gives the balances at any later time.
+     * @throws UnsupportedOperationException if the service can't report changes.
+     */
+    Map<String, Long> setBalanceListener(final BalanceListener listener);
+
+    /**
+     * Recompute every payer's balance from the ledger's unspent transactions, in parallel, and compare the results
+     * against the balances the ledger reports. For verification and audit; it scans the whole ledger, but only holds
+     * up other operations while the unspent transactions are copied.
+     *
+     * @return the payers whose balances don't match, if any.
+     */
+    BalanceCheckResult checkBalances();
 }
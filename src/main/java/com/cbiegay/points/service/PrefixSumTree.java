@@ -0,0 +1,256 @@
+package com.cbiegay.points.service;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Values added at timestamps, which can sum everything up to a timestamp in O(log n) time.
+ *
+ * Most values arrive in timestamp order, and those are appended to a sorted run of running totals in O(1) time; a
+ * prefix sum of the run is a binary search. A value with an earlier timestamp than the end of the run goes into a
+ * treap instead: a binary search tree on timestamp, kept balanced in expectation by giving each node a random
+ * priority and keeping the tree heap-ordered on it. Each treap node stores the sum of its subtree, so its prefix
+ * sums only need one walk from the root. Values added at a timestamp already in the run or tree are added to its
+ * entry. Both are parallel arrays, costing 16 bytes per run entry and 36 bytes per tree node.
+ *
+ * Not thread-safe.
+ */
+final class PrefixSumTree {
+
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The run: ascending timestamps, and the total of the values up to and including each.
+     */
+    private long[] runTimestamps;
+    private long[] runTotals;
+    private int runSize;
+
+    /**
+     * The tree, of values that arrived out of order.
+     */
+    private long[] timestamps;
+    private long[] values;
+    private long[] sums;
+    private int[] priorities;
+    private int[] left;
+    private int[] right;
+    private int size;
+    private int root;
+
+    private long earliestTimestamp;
+    private final SplittableRandom random;
+
+    PrefixSumTree() {
+        runTimestamps = new long[INITIAL_CAPACITY];
+        runTotals = new long[INITIAL_CAPACITY];
+
+        timestamps = new long[INITIAL_CAPACITY];
+        values = new long[INITIAL_CAPACITY];
+        sums = new long[INITIAL_CAPACITY];
+        priorities = new int[INITIAL_CAPACITY];
+        left = new int[INITIAL_CAPACITY];
+        right = new int[INITIAL_CAPACITY];
+        root = NIL;
+        earliestTimestamp = Long.MAX_VALUE;
+
+        // Seeded so that a tree built from the same values always has the same shape
+        random = new SplittableRandom(0);
+    }
+
+    /**
+     * Add a value at a timestamp.
+     */
+    void add(final long timestamp, final long value) {
+        earliestTimestamp = Math.min(earliestTimestamp, timestamp);
+
+        if (runSize > 0 && timestamp == runTimestamps[runSize - 1]) {
+            runTotals[runSize - 1] += value;
+        } else if (runSize == 0 || timestamp > runTimestamps[runSize - 1]) {
+            append(timestamp, value);
+        } else {
+            root = insert(root, timestamp, value);
+        }
+    }
+
+    /**
+     * Get the sum of the values added at or before a timestamp.
+     */
+    long sumUpTo(final long timestamp) {
+        long sum = runTotalUpTo(timestamp);
+        int node = root;
+
+        while (node != NIL) {
+            if (timestamps[node] <= timestamp) {
+                sum += sum(left[node]) + values[node];
+                node = right[node];
+            } else {
+                node = left[node];
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Get the earliest timestamp a value was added at, or Long.MAX_VALUE if nothing was added.
+     */
+    long getEarliestTimestamp() {
+        return earliestTimestamp;
+    }
+
+    /**
+     * Visit each timestamp with the total of the values added at it, in timestamp order. A timestamp that's in both
+     * the run and the tree is visited twice, once with each part of its total.
+     */
+    void forEach(final Visitor visitor) {
+        int runIndex = 0;
+
+        // Merging the run with an in-order walk of the tree. The tree's expected depth is logarithmic, but walking
+        // with an explicit stack avoids relying on it.
+        final int[] stack = new int[Math.max(size, 1)];
+        int depth = 0;
+        int node = root;
+
+        while (node != NIL || depth > 0) {
+            while (node != NIL) {
+                stack[depth++] = node;
+                node = left[node];
+            }
+            node = stack[--depth];
+
+            while (runIndex < runSize && runTimestamps[runIndex] <= timestamps[node]) {
+                visitRunEntry(runIndex++, visitor);
+            }
+            visitor.visit(timestamps[node], values[node]);
+            node = right[node];
+        }
+
+        while (runIndex < runSize) {
+            visitRunEntry(runIndex++, visitor);
+        }
+    }
+
+    /**
+     * Number of entries, in the run and in the tree.
+     */
+    int size() {
+        return runSize + size;
+    }
+
+    @FunctionalInterface
+    interface Visitor {
+        void visit(long timestamp, long value);
+    }
+
+    private void append(final long timestamp, final long value) {
+        if (runSize == runTimestamps.length) {
+            runTimestamps = Arrays.copyOf(runTimestamps, runSize * 2);
+            runTotals = Arrays.copyOf(runTotals, runSize * 2);
+        }
+
+        runTimestamps[runSize] = timestamp;
+        runTotals[runSize] = (runSize > 0 ? runTotals[runSize - 1] : 0) + value;
+        runSize++;
+    }
+
+    /**
+     * Get the total of the run up to and including a timestamp.
+     */
+    private long runTotalUpTo(final long timestamp) {
+        int low = 0;
+        int high = runSize - 1;
+
+        // Finding the last entry at or before the timestamp
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (runTimestamps[middle] <= timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high >= 0 ? runTotals[high] : 0;
+    }
+
+    private void visitRunEntry(final int index, final Visitor visitor) {
+        visitor.visit(runTimestamps[index], runTotals[index] - (index > 0 ? runTotals[index - 1] : 0));
+    }
+
+    private int insert(int node, final long timestamp, final long value) {
+        if (node == NIL) {
+            return newNode(timestamp, value);
+        }
+
+        sums[node] += value;
+        if (timestamp == timestamps[node]) {
+            values[node] += value;
+        } else if (timestamp < timestamps[node]) {
+            final int child = insert(left[node], timestamp, value);
+            left[node] = child;
+            if (priorities[child] > priorities[node]) {
+                node = rotateRight(node);
+            }
+        } else {
+            final int child = insert(right[node], timestamp, value);
+            right[node] = child;
+            if (priorities[child] > priorities[node]) {
+                node = rotateLeft(node);
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * Make a node's left child the root of its subtree.
+     */
+    private int rotateRight(final int node) {
+        final int child = left[node];
+        left[node] = right[child];
+        right[child] = node;
+
+        sums[child] = sums[node];
+        sums[node] = sum(left[node]) + values[node] + sum(right[node]);
+        return child;
+    }
+
+    /**
+     * Make a node's right child the root of its subtree.
+     */
+    private int rotateLeft(final int node) {
+        final int child = right[node];
+        right[node] = left[child];
+        left[child] = node;
+
+        sums[child] = sums[node];
+        sums[node] = sum(left[node]) + values[node] + sum(right[node]);
+        return child;
+    }
+
+    private long sum(final int node) {
+        return node == NIL ? 0 : sums[node];
+    }
+
+    private int newNode(final long timestamp, final long value) {
+        if (size == timestamps.length) {
+            final int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            values = Arrays.copyOf(values, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            priorities = Arrays.copyOf(priorities, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+        }
+
+        timestamps[size] = timestamp;
+        values[size] = value;
+        sums[size] = value;
+        priorities[size] = random.nextInt();
+        left[size] = NIL;
+        right[size] = NIL;
+        return size++;
+    }
+}
@@ -0,0 +1,267 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.ReplicaException;
+import com.cbiegay.points.model.BalanceCheckResult;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.persistence.LogReplayTarget;
+import com.cbiegay.points.persistence.ReplicationFollower;
+import com.cbiegay.points.persistence.ReplicationTarget;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * PointsService implementation for read replicas: serves reads from a copy of a replication leader's ledger, kept up
+ * to date by a ReplicationFollower, and rejects changes, which only the leader accepts.
+ *
+ * Reads see the ledger as it was on the leader at most maxStaleness ago. When the copy hasn't caught up with the
+ * leader that recently, e.g. because the leader can't be reached, reads fail with a ReplicaException rather than
+ * return stale balances. How recently is measured on this node's clock, from when it last heard it had caught up, so
+ * a difference between the two nodes' clocks doesn't count; the leader's times only mark how far the copy has got.
+ * After the connection to the leader is lost, a new copy is made; the old one keeps serving reads, while it's recent
+ * enough, until the new one has caught up.
+ */
+@Component
+@ConditionalOnProperty(name = "points.service", havingValue = "replica")
+public class ReplicaPointsService implements PointsService, ReplicationTarget {
+
+    private final LedgerStore ledgerStore;
+    private final PayerPolicies payerPolicies;
+    private final long maxStalenessMillis;
+    private final LongSupplier nanoClock;
+
+    /**
+     * The copy reads are served from; null until the first copy has caught up.
+     */
+    private volatile DefaultPointsService replica;
+
+    /**
+     * The copy being made, until it has caught up. Only used by the follower's thread.
+     */
+    private DefaultPointsService pending;
+
+    /**
+     * The leader's time up to which replica has every operation.
+     */
+    private volatile long caughtUpTo;
+
+    /**
+     * This node's nanoClock time when it last caught up.
+     */
+    private volatile long caughtUpAtNanos;
+
+    /**
+     * @param maxStalenessMillis how far behind the leader reads can be.
+     */
+    public ReplicaPointsService(
+        final LedgerStore ledgerStore,
+        final PayerPolicies payerPolicies,
+        final MeterRegistry meterRegistry,
+        final long maxStalenessMillis) {
+
+        this(ledgerStore, payerPolicies, meterRegistry, maxStalenessMillis, System::nanoTime);
+    }
+
+    ReplicaPointsService(
+        final LedgerStore ledgerStore,
+        final PayerPolicies payerPolicies,
+        final MeterRegistry meterRegistry,
+        final long maxStalenessMillis,
+        final LongSupplier nanoClock) {
+
+        if (maxStalenessMillis < 1) {
+            throw new IllegalArgumentException("Maximum staleness must be at least 1 millisecond");
+        }
+
+        this.ledgerStore = ledgerStore;
+        this.payerPolicies = payerPolicies;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.nanoClock = nanoClock;
+
+        Gauge.builder("points.replication.staleness", () -> replica != null ? getStalenessMillis() : Double.NaN)
+            .description("How long since reads last caught up with the replication leader")
+            .baseUnit("milliseconds")
+            .register(meterRegistry);
+    }
+
+    @Autowired
+    public ReplicaPointsService(
+        final ReplicationFollower replicationFollower,
+        @Value("${points.ledger.store:OBJECT}") final LedgerStore ledgerStore,
+        final PayerPolicies payerPolicies,
+        final MeterRegistry meterRegistry,
+        @Value("${points.replication.max-staleness-ms:5000}") final long maxStalenessMillis) {
+
+        this(ledgerStore, payerPolicies, meterRegistry, maxStalenessMillis);
+        replicationFollower.start(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LogReplayTarget resync() {
+        // Not recording the copies' meters, which would keep every copy made reachable from the registry
+        pending = DefaultPointsService.builder().ledgerStore(ledgerStore).payerPolicies(payerPolicies).build();
+        return pending.replayTarget();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void caughtUp(final long leaderTime) {
+        if (pending != null) {
+            replica = pending;
+            pending = null;
+        }
+        caughtUpTo = leaderTime;
+        caughtUpAtNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * @throws ReplicaException always; only the leader accepts changes.
+     */
+    @Override
+    public void addTransaction(final Transaction transaction) {
+        throw readOnly();
+    }
+
+    /**
+     * @throws ReplicaException always; only the leader accepts changes.
+     */
+    @Override
+    public void addTransactions(final List<Transaction> transactions) {
+        throw readOnly();
+    }
+
+    /**
+     * @throws ReplicaException always; only the leader accepts changes.
+     */
+    @Override
+    public List<PayerPointDelta> spend(final int pointsToSpend) {
+        throw readOnly();
+    }
+
+    /**
+     * @throws ReplicaException always; only the leader accepts changes.
+     */
+    @Override
+    public List<PayerPointDelta> spend(final int pointsToSpend, final SpendStrategy strategy) {
+        throw readOnly();
+    }
+
+    /**
+     * @throws ReplicaException always; only the leader accepts changes.
+     */
+    @Override
+    public List<List<PayerPointDelta>> spendBatch(final List<Integer> amounts, final boolean allOrNothing) {
+        throw readOnly();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> previewSpend(final int pointsToSpend) throws InsufficientPointsException {
+        return currentReplica().previewSpend(pointsToSpend);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> previewSpend(final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException {
+
+        return currentReplica().previewSpend(pointsToSpend, strategy);
+    }
+
+    /**
+     * Expires nothing: the leader's expiries arrive with the rest of its log.
+     */
+    @Override
+    public long expirePoints(final Date now, final int batchSize) {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBalances() {
+        return currentReplica().getBalances();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBalances(final Date asOf) {
+        return currentReplica().getBalances(asOf);
+    }
+
+    /**
+     * Not supported: a resync replaces the replica's copy wholesale, which can't be reported as changes.
+     */
+    @Override
+    public Map<String, Long> setBalanceListener(final BalanceListener listener) {
+        throw new UnsupportedOperationException("Replicas don't report changes to balances");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Transaction> getTransactions() {
+        return currentReplica().getTransactions();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BalanceCheckResult checkBalances() {
+        return currentReplica().checkBalances();
+    }
+
+    /**
+     * Get the copy to read from.
+     *
+     * @throws ReplicaException if it's further behind the leader than maxStaleness.
+     */
+    private DefaultPointsService currentReplica() {
+        final DefaultPointsService current = replica;
+        if (current == null) {
+            throw new ReplicaException("Read replica hasn't copied the ledger from the leader yet");
+        }
+
+        final long staleness = getStalenessMillis();
+        if (staleness > maxStalenessMillis) {
+            throw new ReplicaException("Read replica hasn't caught up with the leader for " + staleness
+                + " ms; it has the leader's operations up to " + Instant.ofEpochMilli(caughtUpTo));
+        }
+        return current;
+    }
+
+    private long getStalenessMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - caughtUpAtNanos);
+    }
+
+    private static ReplicaException readOnly() {
+        return new ReplicaException("Read replica; send changes to the replication leader");
+    }
+}
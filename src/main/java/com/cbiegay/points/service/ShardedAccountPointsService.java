@@ -0,0 +1,257 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.ListSettings;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * AccountPointsService implementation that partitions accounts across a fixed number of shards.
+ * Each shard has its own lock and its own account ledgers, so operations on accounts in different shards never
+ * contend with each other.
+ */
+@Component
+public class ShardedAccountPointsService implements AccountPointsService {
+
+    private final Shard[] shards;
+    private final LedgerStore ledgerStore;
+    private final PayerPolicies payerPolicies;
+
+    /**
+     * The strategy each account spends with when a spend doesn't choose one; OLDEST_FIRST for accounts not listed.
+     */
+    private final Map<String, SpendStrategy> spendStrategies;
+
+    public ShardedAccountPointsService(final int shardCount) {
+        this(shardCount, LedgerStore.OBJECT);
+    }
+
+    public ShardedAccountPointsService(final int shardCount, final LedgerStore ledgerStore) {
+        this(shardCount, ledgerStore, PayerPolicies.NONE, Collections.emptyMap());
+    }
+
+    /**
+     * @param spendStrategies the strategy each account spends with by default, as a comma-separated list of
+     *        ACCOUNT:STRATEGY, e.g. "member-42:PROPORTIONAL".
+     */
+    @Autowired
+    public ShardedAccountPointsService(
+        @Value("${points.accounts.shards:16}") final int shardCount,
+        @Value("${points.ledger.store:OBJECT}") final LedgerStore ledgerStore,
+        final PayerPolicies payerPolicies,
+        @Value("${points.accounts.spend-strategies:}") final String spendStrategies) {
+
+        this(shardCount, ledgerStore, payerPolicies, ListSettings.parseMap(spendStrategies, SpendStrategy::valueOf));
+    }
+
+    public ShardedAccountPointsService(
+        final int shardCount,
+        final LedgerStore ledgerStore,
+        final PayerPolicies payerPolicies,
+        final Map<String, SpendStrategy> spendStrategies) {
+
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1");
+        }
+
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+        this.ledgerStore = ledgerStore;
+        this.payerPolicies = payerPolicies;
+        this.spendStrategies = Map.copyOf(spendStrategies);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addTransaction(final String account, final Transaction transaction) {
+        Ledger.checkTransaction(transaction);
+        final Shard shard = shardFor(account);
+
+        final Transaction withExpiry = payerPolicies.withExpiry(transaction);
+
+        synchronized (shard) {
+            final AccountLedger ledger =
+                shard.ledgers.computeIfAbsent(account, key -> new AccountLedger(ledgerStore.newLedger(payerPolicies)));
+            ledger.ledger.addTransaction(withExpiry);
+            if (withExpiry.hasExpiry()) {
+                shard.schedule(ledger, withExpiry.getExpiresAtMillis());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> spend(final String account, final int pointsToSpend)
+    throws InsufficientPointsException {
+
+        return spend(account, pointsToSpend, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<PayerPointDelta> spend(final String account, final int pointsToSpend, final SpendStrategy strategy)
+    throws InsufficientPointsException {
+
+        final SpendStrategy accountStrategy =
+            strategy != null ? strategy : spendStrategies.getOrDefault(account, SpendStrategy.OLDEST_FIRST);
+        final Shard shard = shardFor(account);
+
+        synchronized (shard) {
+            final AccountLedger ledger = shard.ledgers.get(account);
+            if (ledger == null) {
+                // An unknown account has no points, so refusing the spend as an empty ledger would, without one
+                if (pointsToSpend < 1) {
+                    throw new IllegalArgumentException("Cannot spend less than 1 point");
+                }
+                throw new InsufficientPointsException();
+            }
+
+            return ledger.ledger.spend(pointsToSpend, accountStrategy);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBalances(final String account) {
+        final Shard shard = shardFor(account);
+
+        synchronized (shard) {
+            final AccountLedger ledger = shard.ledgers.get(account);
+            return ledger != null ? ledger.ledger.getBalances() : Collections.emptyMap();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Each batch holds up one shard, and expires points in one account. Only the accounts with points due are
+     * visited.
+     */
+    @Override
+    public long expirePoints(final Date now, final int batchSize) {
+        long expired = 0;
+        for (final Shard shard : shards) {
+            final List<AccountLedger> due;
+            synchronized (shard) {
+                due = shard.takeDue(now.getTime());
+            }
+
+            for (final AccountLedger account : due) {
+                final Ledger ledger = account.ledger;
+                long upTo;
+                do {
+                    synchronized (shard) {
+                        if (ledger.getNextExpiry() >= now.getTime()) {
+                            break;
+                        }
+
+                        upTo = ledger.getExpiryBatchEnd(now.getTime(), batchSize);
+                        expired += DefaultPointsService.sumExpired(ledger.expire(upTo));
+                    }
+                } while (upTo < now.getTime());
+
+                synchronized (shard) {
+                    shard.schedule(account, ledger.getNextExpiry());
+                }
+            }
+        }
+        return expired;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    private Shard shardFor(final String account) {
+        // Spreading the high bits of the hash into the low bits, as HashMap does, before picking a shard
+        final int hash = account.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    /**
+     * A partition of the accounts. Guarded by its own monitor.
+     */
+    private static final class Shard {
+        private final Map<String, AccountLedger> ledgers = new HashMap<>();
+
+        /**
+         * The accounts with points to expire, by the earliest time any could expire at. An account rescheduled
+         * earlier leaves its later entry behind, which is dropped when it comes up.
+         */
+        private final PriorityQueue<ScheduledExpiry> expiries = new PriorityQueue<>();
+
+        /**
+         * Make sure an account is visited by the first sweep after a time it could have points to expire at.
+         */
+        void schedule(final AccountLedger ledger, final long expiresAt) {
+            if (expiresAt < ledger.scheduledExpiry) {
+                ledger.scheduledExpiry = expiresAt;
+                expiries.add(new ScheduledExpiry(expiresAt, ledger));
+            }
+        }
+
+        /**
+         * Remove the accounts that could have points due before now from the schedule, and get them. Each must be
+         * scheduled again once its points are expired.
+         */
+        List<AccountLedger> takeDue(final long now) {
+            final List<AccountLedger> due = new ArrayList<>();
+            while (!expiries.isEmpty() && expiries.peek().expiresAt < now) {
+                final ScheduledExpiry next = expiries.poll();
+                if (next.ledger.scheduledExpiry == next.expiresAt) {
+                    next.ledger.scheduledExpiry = Long.MAX_VALUE;
+                    due.add(next.ledger);
+                }
+            }
+            return due;
+        }
+    }
+
+    /**
+     * An account's ledger, with the time its shard will next visit it to expire points; Long.MAX_VALUE if it won't.
+     */
+    private static final class AccountLedger {
+        private final Ledger ledger;
+        private long scheduledExpiry = Long.MAX_VALUE;
+
+        AccountLedger(final Ledger ledger) {
+            this.ledger = ledger;
+        }
+    }
+
+    private static final class ScheduledExpiry implements Comparable<ScheduledExpiry> {
+        private final long expiresAt;
+        private final AccountLedger ledger;
+
+        ScheduledExpiry(final long expiresAt, final AccountLedger ledger) {
+            this.expiresAt = expiresAt;
+            this.ledger = ledger;
+        }
+
+        @Override
+        public int compareTo(final ScheduledExpiry other) {
+            return Long.compare(expiresAt, other.expiresAt);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.model.MutableTransaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cold storage for transactions whose points have been used up.
+ * Archived transactions are kept for the record but are no longer visited when spending points or computing balances.
+ * Not thread-safe; callers are responsible for synchronizing access.
+ */
+public class TransactionArchive {
+
+    private final List<MutableTransaction> transactions = new ArrayList<>();
+
+    /**
+     * Archive a transaction that has no points left.
+     *
+     * @throws IllegalArgumentException if the transaction still has points.
+     */
+    public void add(final MutableTransaction transaction) {
+        if (transaction.getPoints() != 0) {
+            throw new IllegalArgumentException("Cannot archive a transaction with points remaining");
+        }
+
+        transactions.add(transaction);
+    }
+
+    public int size() {
+        return transactions.size();
+    }
+}
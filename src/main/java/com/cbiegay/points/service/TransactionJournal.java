@@ -0,0 +1,140 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.model.Transaction;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Append-only record of the transactions added to a ledger, as they were added and in the order they were added.
+ * The position of a transaction in the journal is its sequence number.
+ *
+ * Transactions are stored in fixed-size chunks of primitive arrays, with payers interned to ids as in CompactLedger,
+ * so each costs 16 bytes. Chunks are never moved once written, which lets readers go through the journal without
+ * the ledger lock: an appended transaction is fully written before the journal size that includes it is published,
+ * so a reader that sees the size sees the transaction. Reading therefore never holds up adding, however long it
+ * takes.
+ *
+ * Appending is not thread-safe; PointsService implementations must append under their ledger lock. Reading is
+ * thread-safe.
+ */
+final class TransactionJournal {
+
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Payer names to ids; only used by the appending thread.
+     */
+    private final Map<String, Integer> payerIds = new HashMap<>();
+
+    private volatile String[] payerNames = new String[4];
+    private volatile Chunk[] chunks = new Chunk[4];
+    private volatile int size;
+
+    /**
+     * Append a transaction.
+     */
+    void append(final Transaction transaction) {
+        final int sequence = size;
+        if (sequence == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Transaction journal is full");
+        }
+
+        final int payer = payerId(transaction.getPayer());
+
+        final int chunkIndex = sequence >>> CHUNK_SHIFT;
+        Chunk[] currentChunks = chunks;
+        if (chunkIndex == currentChunks.length) {
+            currentChunks = Arrays.copyOf(currentChunks, chunkIndex * 2);
+            chunks = currentChunks;
+        }
+        if (currentChunks[chunkIndex] == null) {
+            currentChunks[chunkIndex] = new Chunk();
+        }
+
+        final Chunk chunk = currentChunks[chunkIndex];
+        final int i = sequence & CHUNK_MASK;
+        chunk.timestamps[i] = transaction.getTimestampMillis();
+        chunk.points[i] = transaction.getPoints();
+        chunk.payers[i] = payer;
+
+        // Publishing the transaction; the volatile write orders it after everything written above
+        size = sequence + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get a view of the transactions appended so far. The view's size is fixed when it's made, so transactions
+     * appended afterwards aren't part of it, and reading it doesn't copy the journal.
+     */
+    List<Transaction> view() {
+        // Reading the size before the arrays, so the arrays are at least as new as the size
+        final int viewSize = size;
+        final Chunk[] viewChunks = chunks;
+        final String[] viewPayerNames = payerNames;
+
+        return new View(viewSize, viewChunks, viewPayerNames);
+    }
+
+    private int payerId(final String payer) {
+        final Integer id = payerIds.get(payer);
+        if (id != null) {
+            return id;
+        }
+
+        final int newId = payerIds.size();
+        String[] currentPayerNames = payerNames;
+        if (newId == currentPayerNames.length) {
+            currentPayerNames = Arrays.copyOf(currentPayerNames, newId * 2);
+        }
+        currentPayerNames[newId] = payer;
+        payerNames = currentPayerNames;
+
+        payerIds.put(payer, newId);
+        return newId;
+    }
+
+    private static final class Chunk {
+        private final long[] timestamps = new long[CHUNK_SIZE];
+        private final int[] points = new int[CHUNK_SIZE];
+        private final int[] payers = new int[CHUNK_SIZE];
+    }
+
+    private static final class View extends AbstractList<Transaction> implements RandomAccess {
+
+        private final int size;
+        private final Chunk[] chunks;
+        private final String[] payerNames;
+
+        View(final int size, final Chunk[] chunks, final String[] payerNames) {
+            this.size = size;
+            this.chunks = chunks;
+            this.payerNames = payerNames;
+        }
+
+        @Override
+        public Transaction get(final int sequence) {
+            if (sequence < 0 || sequence >= size) {
+                throw new IndexOutOfBoundsException("No transaction " + sequence + " in a view of " + size);
+            }
+
+            final Chunk chunk = chunks[sequence >>> CHUNK_SHIFT];
+            final int i = sequence & CHUNK_MASK;
+            return new Transaction(payerNames[chunk.payers[i]], chunk.points[i], chunk.timestamps[i]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
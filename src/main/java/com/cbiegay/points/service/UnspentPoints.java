@@ -0,0 +1,133 @@
+package com.cbiegay.points.service;
+
+import com.cbiegay.points.model.BalanceCheckResult;
+import com.cbiegay.points.model.BalanceCheckResult.BalanceMismatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A copy of the payer and points left of every unspent transaction in a ledger, taken under the ledger lock and
+ * summed without it.
+ *
+ * Each payer's unspent points add up to its balance, so summing them recomputes the balances from scratch rather
+ * than from the running totals the ledger keeps. The copy is two int arrays, so it can be summed on many threads:
+ * ranges of rows are split across a ForkJoinPool, each range adds into its own array of per-payer totals, and the
+ * arrays are merged pairwise as the ranges join.
+ */
+public final class UnspentPoints {
+
+    /**
+     * Rows summed by one task without splitting further; large enough that splitting costs little next to summing.
+     */
+    private static final int ROWS_PER_TASK = 1 << 16;
+
+    private final String[] payerNames;
+    private final int payerCount;
+    private final int[] payers;
+    private final int[] points;
+    private final int size;
+
+    /**
+     * @param payerNames the name of each payer id, including payers with no unspent transactions.
+     * @param payerCount the number of payer ids in use.
+     * @param payers the payer id of each row.
+     * @param points the points left in each row.
+     * @param size the number of rows in use.
+     */
+    UnspentPoints(
+        final String[] payerNames,
+        final int payerCount,
+        final int[] payers,
+        final int[] points,
+        final int size) {
+
+        this.payerNames = payerNames;
+        this.payerCount = payerCount;
+        this.payers = payers;
+        this.points = points;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sum the points left per payer, in parallel on a pool.
+     *
+     * @return a Map of every payer name to its unspent points, including payers with none.
+     */
+    public Map<String, Long> sumPerPayer(final ForkJoinPool pool) {
+        final long[] totals = pool.invoke(new SumTask(0, size));
+
+        final Map<String, Long> sums = new HashMap<>(payerCount * 4 / 3 + 1);
+        for (int payer = 0; payer < payerCount; payer++) {
+            sums.put(payerNames[payer], totals[payer]);
+        }
+        return sums;
+    }
+
+    /**
+     * Recompute the balances and compare them against balances the ledger reported at the time of the copy.
+     */
+    public BalanceCheckResult check(final Map<String, Long> liveBalances, final ForkJoinPool pool) {
+        final Map<String, Long> recomputed = sumPerPayer(pool);
+        final List<BalanceMismatch> mismatches = new ArrayList<>();
+
+        for (final Map.Entry<String, Long> payerBalance : liveBalances.entrySet()) {
+            final Long recomputedBalance = recomputed.get(payerBalance.getKey());
+            if (!payerBalance.getValue().equals(recomputedBalance)) {
+                mismatches.add(new BalanceMismatch(payerBalance.getKey(), recomputedBalance, payerBalance.getValue()));
+            }
+        }
+        for (final Map.Entry<String, Long> payerSum : recomputed.entrySet()) {
+            if (!liveBalances.containsKey(payerSum.getKey())) {
+                mismatches.add(new BalanceMismatch(payerSum.getKey(), payerSum.getValue(), null));
+            }
+        }
+
+        return new BalanceCheckResult(size, recomputed.size(), mismatches);
+    }
+
+    /**
+     * Sums a range of rows into an array of per-payer totals, splitting it in half while it's large.
+     */
+    private final class SumTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        SumTask(final int from, final int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                final long[] totals = new long[payerCount];
+                for (int i = from; i < to; i++) {
+                    totals[payers[i]] += points[i];
+                }
+                return totals;
+            }
+
+            final int middle = (from + to) >>> 1;
+            final SumTask right = new SumTask(middle, to);
+            right.fork();
+            final long[] totals = new SumTask(from, middle).compute();
+
+            final long[] rightTotals = right.join();
+            for (int payer = 0; payer < payerCount; payer++) {
+                totals[payer] += rightTotals[payer];
+            }
+            return totals;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.ListSettings;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for the servlet stack's /points endpoints: per-client rate limits, and a bounded queue in front
+ * of the endpoints that contend for the points service's lock, so that a flood of spends is turned away with 429 Too
+ * Many Requests instead of tying up every server thread and holding up balance reads.
+ *
+ * Endpoints are named by the path patterns they're mapped to, e.g. /points/spend or /points/{account}/spend.
+ * Endpoints with a rate limit allow each client that many requests per second, with bursts (see RateLimiter).
+ * Clients are told apart by their address, or by the client header on requests from a trusted proxy, such as a
+ * gateway in front of the app that sets it. The header is ignored from anywhere else, so that clients can't pick a
+ * new identity for each request to get around their limits.
+ *
+ * Queued endpoints share one AdmissionQueue; a request turned away because it's full, or because it waited too long,
+ * is told to retry after a fixed time, and a rate-limited one after its next token is due.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(name = "points.admission.enabled", havingValue = "true")
+public class AdmissionControl implements HandlerInterceptor, WebMvcConfigurer {
+
+    /**
+     * Request attribute marking requests let through the queue, which must leave it when they complete.
+     */
+    private static final String ADMITTED = AdmissionControl.class.getName() + ".ADMITTED";
+
+    private final RateLimiter rateLimiter;
+    private final AdmissionQueue admissionQueue;
+    private final Set<String> queuedEndpoints;
+    private final String clientHeader;
+    private final Set<String> trustedProxies;
+    private final long retryAfterSeconds;
+
+    private final Counter rateLimited;
+    private final Counter queueFull;
+    private final Counter timedOut;
+
+    /**
+     * @param rateLimits rate limits as a comma-separated list of ENDPOINT:RATE or ENDPOINT:RATE/BURST, e.g.
+     *        "/points/spend:50/100".
+     * @param trustedProxies a comma-separated list of the addresses whose client header is trusted.
+     * @param queuedEndpoints a comma-separated list of the endpoints that go through the queue.
+     * @throws IllegalArgumentException if a setting can't be parsed.
+     */
+    @Autowired
+    public AdmissionControl(
+        @Value("${points.admission.rate-limits:}") final String rateLimits,
+        @Value("${points.admission.max-clients:100000}") final int maxClients,
+        @Value("${points.admission.client-header:X-Client-Id}") final String clientHeader,
+        @Value("${points.admission.trusted-proxies:}") final String trustedProxies,
+        @Value("${points.admission.queued-endpoints:/points/spend,/points/spend/batch}") final String queuedEndpoints,
+        @Value("${points.admission.max-concurrent:4}") final int maxConcurrent,
+        @Value("${points.admission.max-queued:64}") final int maxQueued,
+        @Value("${points.admission.max-wait-ms:1000}") final long maxWaitMillis,
+        @Value("${points.admission.retry-after-seconds:1}") final long retryAfterSeconds,
+        final ObjectProvider<MeterRegistry> meterRegistry) {
+
+        this(
+            new RateLimiter(
+                ListSettings.parseMap(rateLimits, RateLimiter.Limit::parse), maxClients, System::nanoTime),
+            new AdmissionQueue(maxConcurrent, maxQueued, maxWaitMillis),
+            ListSettings.parseSet(queuedEndpoints),
+            clientHeader,
+            ListSettings.parseSet(trustedProxies),
+            retryAfterSeconds,
+            meterRegistry.getIfUnique(CompositeMeterRegistry::new));
+    }
+
+    AdmissionControl(
+        final RateLimiter rateLimiter,
+        final AdmissionQueue admissionQueue,
+        final Set<String> queuedEndpoints,
+        final String clientHeader,
+        final Set<String> trustedProxies,
+        final long retryAfterSeconds,
+        final MeterRegistry meterRegistry) {
+
+        if (retryAfterSeconds < 1) {
+            throw new IllegalArgumentException("Retry-After must be at least 1 second");
+        }
+
+        this.rateLimiter = rateLimiter;
+        this.admissionQueue = admissionQueue;
+        this.queuedEndpoints = Set.copyOf(queuedEndpoints);
+        this.clientHeader = clientHeader;
+        this.trustedProxies = Set.copyOf(trustedProxies);
+        this.retryAfterSeconds = retryAfterSeconds;
+
+        rateLimited = rejections("rate_limited", meterRegistry);
+        queueFull = rejections("queue_full", meterRegistry);
+        timedOut = rejections("timed_out", meterRegistry);
+        Gauge.builder("points.admission.queued", admissionQueue::getQueued)
+            .description("Requests waiting to be let through to the points service")
+            .register(meterRegistry);
+        Gauge.builder("points.admission.active", admissionQueue::getActive)
+            .description("Requests let through to the points service and not yet complete")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public void addInterceptors(final InterceptorRegistry registry) {
+        registry.addInterceptor(this).addPathPatterns("/points/**");
+    }
+
+    @Override
+    public boolean preHandle(
+        final HttpServletRequest request,
+        final HttpServletResponse response,
+        final Object handler) {
+
+        // Streamed responses are dispatched again when they complete; only the original request counts
+        final Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        if (request.getDispatcherType() != DispatcherType.REQUEST || pattern == null) {
+            return true;
+        }
+
+        final String endpoint = pattern.toString();
+        final long waitNanos = rateLimiter.tryAcquire(endpoint, clientOf(request));
+        if (waitNanos > 0) {
+            rateLimited.increment();
+            return reject(response, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        }
+
+        if (queuedEndpoints.contains(endpoint)) {
+            switch (admissionQueue.enter()) {
+                case ADMITTED:
+                    request.setAttribute(ADMITTED, Boolean.TRUE);
+                    break;
+                case QUEUE_FULL:
+                    queueFull.increment();
+                    return reject(response, retryAfterSeconds);
+                default:
+                    timedOut.increment();
+                    return reject(response, retryAfterSeconds);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(
+        final HttpServletRequest request,
+        final HttpServletResponse response,
+        final Object handler,
+        final Exception ex) {
+
+        if (request.getAttribute(ADMITTED) != null) {
+            request.removeAttribute(ADMITTED);
+            admissionQueue.exit();
+        }
+    }
+
+    private String clientOf(final HttpServletRequest request) {
+        final String address = request.getRemoteAddr();
+        if (trustedProxies.contains(address)) {
+            final String client = request.getHeader(clientHeader);
+            if (client != null && !client.isEmpty()) {
+                return client;
+            }
+        }
+        return address;
+    }
+
+    private static boolean reject(final HttpServletResponse response, final long retryAfterSeconds) {
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+        return false;
+    }
+
+    private static Counter rejections(final String reason, final MeterRegistry meterRegistry) {
+        return Counter.builder("points.admission.rejected")
+            .description("Requests turned away with 429 Too Many Requests, by reason")
+            .tag("reason", reason)
+            .register(meterRegistry);
+    }
+}
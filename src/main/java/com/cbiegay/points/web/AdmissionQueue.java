@@ -0,0 +1,83 @@
+package com.cbiegay.points.web;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many requests are let through to the points service at once, with a bounded queue of requests waiting
+ * for their turn, first come first served.
+ *
+ * A request that arrives to a full queue is turned away at once rather than joining it, and one that waits longer
+ * than maxWaitMillis gives up, so that a flood of requests is answered quickly instead of holding a server thread
+ * each while they wait for the service's lock.
+ */
+final class AdmissionQueue {
+
+    enum Admission {
+        ADMITTED,
+        QUEUE_FULL,
+        TIMED_OUT
+    }
+
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param maxConcurrent how many requests can be in the service at once.
+     * @param maxQueued how many requests can wait for their turn.
+     * @param maxWaitMillis how long a request waits before giving up.
+     */
+    AdmissionQueue(final int maxConcurrent, final int maxQueued, final long maxWaitMillis) {
+        if (maxConcurrent < 1 || maxQueued < 0 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException(
+                "Admission queue needs at least 1 concurrent request, and no negative queue length or wait");
+        }
+
+        permits = new Semaphore(maxConcurrent, true);
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Wait for a request's turn, unless the queue is full. A request that's admitted must call exit when it's done.
+     */
+    Admission enter() {
+        // A timed tryAcquire, unlike the untimed one, doesn't barge in ahead of requests already waiting
+        try {
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return Admission.ADMITTED;
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                return Admission.QUEUE_FULL;
+            }
+            try {
+                return permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)
+                    ? Admission.ADMITTED
+                    : Admission.TIMED_OUT;
+            } finally {
+                queued.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Admission.TIMED_OUT;
+        }
+    }
+
+    void exit() {
+        permits.release();
+    }
+
+    int getQueued() {
+        return queued.get();
+    }
+
+    int getActive() {
+        return maxConcurrent - permits.availablePermits();
+    }
+}
@@ -0,0 +1,387 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.service.PointsService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams changes to payer balances to any number of subscribers as Server-Sent Events, for GET
+ * /points/balances/stream.
+ *
+ * A subscriber first gets a balances event with every payer's balance, then a deltas event with the change to each
+ * payer whose balance changed, every coalescing window in which any did. Both carry a JSON object of payers to
+ * points. The points service reports each change to this one publisher as it makes it (see
+ * PointsService.setBalanceListener), and the publisher merges them until the window ends, then serializes them once
+ * for every subscriber. However many subscribers there are, the ledger is never read after the first one subscribes.
+ *
+ * Each subscriber has a bounded queue of events waiting to be sent, drained by a sender thread of its own while it
+ * has any, so a slow client only holds up itself. A client whose queue fills up is dropped: its stream is closed, and
+ * an EventSource reconnects and gets the balances afresh. A comment is sent every keepalive interval so that
+ * clients that went away without closing their connection are noticed.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class BalanceStream implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(BalanceStream.class);
+
+    private static final Event KEEPALIVE = new Event(null, "");
+
+    /**
+     * How long a stream stays open before it's closed and the EventSource reconnects.
+     */
+    private static final long STREAM_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final PointsService pointsService;
+    private final ObjectMapper objectMapper;
+    private final long coalesceMillis;
+    private final long keepaliveMillis;
+    private final int maxQueued;
+    private final ScheduledExecutorService publisher;
+    private final Executor senders;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Counter dropped;
+
+    /**
+     * Guards pending, which the points service adds changes to under its own lock.
+     */
+    private final Object pendingLock = new Object();
+    private Map<String, Long> pending = new HashMap<>();
+
+    /**
+     * Guards balances and started, and orders publishing against subscribing.
+     */
+    private final Object publishLock = new Object();
+    private Map<String, Long> balances;
+    private boolean started;
+
+    @Autowired
+    public BalanceStream(
+        final PointsService pointsService,
+        final ObjectMapper objectMapper,
+        @Value("${points.balances.stream.coalesce-ms:100}") final long coalesceMillis,
+        @Value("${points.balances.stream.keepalive-ms:15000}") final long keepaliveMillis,
+        @Value("${points.balances.stream.max-queued:64}") final int maxQueued,
+        final ObjectProvider<MeterRegistry> meterRegistry) {
+
+        this(pointsService, objectMapper, coalesceMillis, keepaliveMillis, maxQueued,
+            Executors.newCachedThreadPool(daemonThreads("balance-stream-sender")),
+            meterRegistry.getIfUnique(CompositeMeterRegistry::new));
+    }
+
+    BalanceStream(
+        final PointsService pointsService,
+        final ObjectMapper objectMapper,
+        final long coalesceMillis,
+        final long keepaliveMillis,
+        final int maxQueued,
+        final Executor senders,
+        final MeterRegistry meterRegistry) {
+
+        if (coalesceMillis < 1 || keepaliveMillis < 1) {
+            throw new IllegalArgumentException("Balance stream intervals must be at least 1 millisecond");
+        }
+        if (maxQueued < 2) {
+            throw new IllegalArgumentException("Balance stream subscribers need room for at least 2 queued events");
+        }
+
+        this.pointsService = pointsService;
+        this.objectMapper = objectMapper;
+        this.coalesceMillis = coalesceMillis;
+        this.keepaliveMillis = keepaliveMillis;
+        this.maxQueued = maxQueued;
+        this.senders = senders;
+        publisher = Executors.newSingleThreadScheduledExecutor(daemonThreads("balance-stream-publisher"));
+
+        dropped = Counter.builder("points.balances.stream.dropped")
+            .description("Balance stream subscribers dropped for falling too far behind")
+            .register(meterRegistry);
+        Gauge.builder("points.balances.stream.subscribers", subscribers::size)
+            .description("Clients subscribed to the balance stream")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Subscribe a client, whose stream starts with the current balances.
+     *
+     * @throws UnsupportedOperationException if the points service doesn't report changes to balances.
+     */
+    public SseEmitter subscribe() {
+        final SseEmitter emitter = new SseEmitter(STREAM_TIMEOUT_MILLIS);
+        final Subscriber subscriber = subscribe(new EmitterSink(emitter));
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(e -> unsubscribe(subscriber));
+        return emitter;
+    }
+
+    Subscriber subscribe(final EventSink sink) {
+        final Subscriber subscriber = new Subscriber(sink);
+        synchronized (publishLock) {
+            start();
+            subscriber.offer(new Event("balances", toJson(balances)));
+            subscribers.add(subscriber);
+        }
+        return subscriber;
+    }
+
+    /**
+     * Start listening to the points service and publishing, unless already started. Must be called while holding
+     * the publish lock.
+     */
+    private void start() {
+        if (started) {
+            return;
+        }
+
+        balances = new HashMap<>(pointsService.setBalanceListener(this::balanceChanged));
+        started = true;
+        publisher.scheduleWithFixedDelay(this::publish, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+        publisher.scheduleWithFixedDelay(this::keepAlive, keepaliveMillis, keepaliveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the points service, under its lock, for each change to a balance.
+     */
+    private void balanceChanged(final String payer, final long points) {
+        synchronized (pendingLock) {
+            pending.merge(payer, points, Long::sum);
+        }
+    }
+
+    /**
+     * Send the changes since the last publish, merged, to every subscriber.
+     */
+    void publish() {
+        try {
+            synchronized (publishLock) {
+                final Map<String, Long> changes;
+                synchronized (pendingLock) {
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    changes = pending;
+                    pending = new HashMap<>();
+                }
+
+                // Changes that cancelled out within the window aren't sent
+                changes.values().removeIf(points -> points == 0);
+                for (final Map.Entry<String, Long> change : changes.entrySet()) {
+                    balances.merge(change.getKey(), change.getValue(), Long::sum);
+                }
+                if (!changes.isEmpty()) {
+                    offerAll(new Event("deltas", toJson(changes)));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Logging rather than throwing, which would cancel every later publish
+            log.error("Failed to publish balance changes", e);
+        }
+    }
+
+    void keepAlive() {
+        offerAll(KEEPALIVE);
+    }
+
+    private void offerAll(final Event event) {
+        for (final Subscriber subscriber : subscribers) {
+            if (!subscriber.offer(event) && subscribers.remove(subscriber)) {
+                dropped.increment();
+                subscriber.close();
+            }
+        }
+    }
+
+    private void unsubscribe(final Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    private String toJson(final Map<String, Long> payerPoints) {
+        try {
+            return objectMapper.writeValueAsString(payerPoints);
+        } catch (JsonProcessingException e) {
+            // A map of strings to numbers always serializes
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Stop publishing and close every subscriber's stream.
+     */
+    @Override
+    public void close() {
+        publisher.shutdown();
+        synchronized (publishLock) {
+            if (started) {
+                pointsService.setBalanceListener(null);
+            }
+        }
+        for (final Subscriber subscriber : subscribers) {
+            subscribers.remove(subscriber);
+            subscriber.close();
+        }
+        if (senders instanceof ExecutorService) {
+            ((ExecutorService) senders).shutdown();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * A server-sent event: a named event with JSON data, or a comment if it has no name.
+     */
+    static final class Event {
+
+        final String name;
+        final String data;
+
+        Event(final String name, final String data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Where a subscriber's events go.
+     */
+    interface EventSink {
+
+        void send(Event event) throws IOException;
+
+        /**
+         * End the stream. Must not block on a send in progress.
+         */
+        void close();
+    }
+
+    private static final class EmitterSink implements EventSink {
+
+        private final SseEmitter emitter;
+
+        EmitterSink(final SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        @Override
+        public void send(final Event event) throws IOException {
+            emitter.send(event.name == null
+                ? SseEmitter.event().comment(event.data)
+                : SseEmitter.event().name(event.name).data(event.data));
+        }
+
+        @Override
+        public void close() {
+            emitter.complete();
+        }
+    }
+
+    /**
+     * A subscriber's queue of events, and the task that sends them.
+     */
+    final class Subscriber implements Runnable {
+
+        private final EventSink sink;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(maxQueued);
+
+        /**
+         * Whether a sender is draining the queue, or about to.
+         */
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        private volatile boolean closed;
+
+        Subscriber(final EventSink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Queue an event to send, without waiting.
+         *
+         * @return false if the queue is full.
+         */
+        boolean offer(final Event event) {
+            if (closed || !queue.offer(event)) {
+                return false;
+            }
+            if (draining.compareAndSet(false, true)) {
+                senders.execute(this);
+            }
+            return true;
+        }
+
+        /**
+         * Discard the events queued and end the stream, from a sender thread, since a send in progress can take
+         * as long as the client lets it.
+         */
+        void close() {
+            closed = true;
+            if (draining.compareAndSet(false, true)) {
+                senders.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            // Draining stays set once the stream is closed, so that nothing is sent after it
+            do {
+                try {
+                    Event event;
+                    while (!closed && (event = queue.poll()) != null) {
+                        sink.send(event);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // The client went away
+                    closed = true;
+                    unsubscribe(this);
+                    queue.clear();
+                    return;
+                }
+                if (closed) {
+                    queue.clear();
+                    sink.close();
+                    return;
+                }
+                draining.set(false);
+                // Events queued, or a close, after the loop above finished, but before draining was cleared
+            } while ((closed || !queue.isEmpty()) && draining.compareAndSet(false, true));
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.PointSpend;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.model.TransactionBatchResult;
+import com.cbiegay.points.model.TransactionBatchResult.RejectedRow;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the points endpoints' requests and responses, an alternative to JSON for clients that
+ * make many calls.
+ *
+ * Integers are variable-length, 7 bits to a byte with the low bits first and the top bit set on every byte but the
+ * last; those that can be negative are zig-zag encoded first, so small numbers of either sign take a byte or two.
+ * Timestamps are epoch milliseconds. A string is its length in bytes then its UTF-8 bytes; a list is its size then
+ * its elements.
+ * <ul>
+ * <li>Transaction: payer, points, timestamp, then 1 and the expiry, or 0 if it has none.</li>
+ * <li>Spend request: points. A batch of spend requests is a list of them.</li>
+ * <li>Spend result: a list of payer and points pairs. A batch of spend results is a list of them, each with one
+ *     added to its size, and 0 for an amount that wasn't spent.</li>
+ * <li>Balances: the number of payers, then payer and balance pairs.</li>
+ * <li>Transaction batch: transactions one after another, up to the end of the body, so it can be streamed.</li>
+ * <li>Transaction batch result: accepted, rejected, then a list of rejected row numbers and reasons.</li>
+ * </ul>
+ */
+final class BinaryCodec {
+
+    static final String MEDIA_TYPE_VALUE = "application/x-points-binary";
+    static final MediaType MEDIA_TYPE = MediaType.valueOf(MEDIA_TYPE_VALUE);
+
+    /**
+     * Anything longer is treated as a corrupt length; payer names are far shorter.
+     */
+    private static final int MAX_STRING_LENGTH = 64 * 1024;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Thrown when the input isn't in the binary format, or ends part way through a value.
+     */
+    static class MalformedInputException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MalformedInputException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Decodes values straight from a buffer over the input, without an intermediate tree or DTOs. Payer names are
+     * looked up by their bytes, so each distinct payer is decoded to a String once per reader rather than once per
+     * row.
+     */
+    static final class Reader {
+        private static final int PAYER_TABLE_SIZE = 256;
+
+        private final InputStream input;
+        private byte[] buffer;
+        private int position;
+        private int limit;
+
+        /**
+         * Open-addressed table of the payer names decoded so far, by the hash of their bytes.
+         */
+        private final byte[][] payerBytes = new byte[PAYER_TABLE_SIZE][];
+        private final String[] payers = new String[PAYER_TABLE_SIZE];
+        private int payerCount;
+
+        Reader(final InputStream input) {
+            this(input, 8 * 1024);
+        }
+
+        /**
+         * @param bufferSize how many bytes to read from the input at a time; small for single values, as allocating
+         *        a large buffer costs more than decoding them.
+         */
+        Reader(final InputStream input, final int bufferSize) {
+            this.input = input;
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * Whether the input has no more bytes.
+         */
+        boolean atEnd() throws IOException {
+            return position == limit && !fill(1);
+        }
+
+        Transaction readTransaction() throws IOException {
+            final String payer = readString();
+            final int points = readSignedInt();
+            final long timestamp = readSignedLong();
+            final boolean hasExpiry = readBoolean();
+            return new Transaction(payer, points, timestamp, hasExpiry ? readSignedLong() : Transaction.NO_EXPIRY);
+        }
+
+        PointSpend readPointSpend() throws IOException {
+            final PointSpend pointSpend = new PointSpend();
+            pointSpend.setPoints(readSignedInt());
+            return pointSpend;
+        }
+
+        List<PointSpend> readPointSpends() throws IOException {
+            final int size = readLength();
+            final List<PointSpend> pointSpends = new ArrayList<>(Math.min(size, 1024));
+            for (int i = 0; i < size; i++) {
+                pointSpends.add(readPointSpend());
+            }
+            return pointSpends;
+        }
+
+        List<PayerPointDelta> readDeltas() throws IOException {
+            return readDeltas(readLength());
+        }
+
+        /**
+         * Read a batch of spend results; amounts that weren't spent are null.
+         */
+        List<List<PayerPointDelta>> readSpendResults() throws IOException {
+            final int size = readLength();
+            final List<List<PayerPointDelta>> results = new ArrayList<>(Math.min(size, 1024));
+            for (int i = 0; i < size; i++) {
+                final int deltas = readLength();
+                results.add(deltas == 0 ? null : readDeltas(deltas - 1));
+            }
+            return results;
+        }
+
+        Map<String, Long> readBalances() throws IOException {
+            final int size = readLength();
+            final Map<String, Long> balances = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                balances.put(readString(), readSignedLong());
+            }
+            return balances;
+        }
+
+        private List<PayerPointDelta> readDeltas(final int size) throws IOException {
+            final List<PayerPointDelta> deltas = new ArrayList<>(Math.min(size, 1024));
+            for (int i = 0; i < size; i++) {
+                deltas.add(new PayerPointDelta(readString(), readSignedInt()));
+            }
+            return deltas;
+        }
+
+        private boolean readBoolean() throws IOException {
+            final long value = readLong();
+            if (value > 1) {
+                throw new MalformedInputException("Expected 0 or 1 but found " + value);
+            }
+            return value == 1;
+        }
+
+        private int readLength() throws IOException {
+            final long length = readLong();
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new MalformedInputException("Length out of range");
+            }
+            return (int) length;
+        }
+
+        private int readSignedInt() throws IOException {
+            final long value = readSignedLong();
+            if (value != (int) value) {
+                throw new MalformedInputException("Points out of range");
+            }
+            return (int) value;
+        }
+
+        private long readSignedLong() throws IOException {
+            final long zigZag = readLong();
+            return (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+
+        /**
+         * Read an unsigned variable-length integer.
+         */
+        private long readLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position == limit && !fill(1)) {
+                    throw new MalformedInputException("Unexpected end of input");
+                }
+
+                final byte b = buffer[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new MalformedInputException("Integer longer than 64 bits");
+        }
+
+        private String readString() throws IOException {
+            final int length = readLength();
+            if (length > MAX_STRING_LENGTH) {
+                throw new MalformedInputException("String longer than " + MAX_STRING_LENGTH + " bytes");
+            }
+            if (limit - position < length && !fill(length)) {
+                throw new MalformedInputException("Unexpected end of input");
+            }
+
+            final String string = lookUpPayer(position, length);
+            position += length;
+            return string;
+        }
+
+        /**
+         * Get the String for the bytes at the given position, decoding it only if it hasn't been seen before.
+         */
+        private String lookUpPayer(final int offset, final int length) {
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+
+            int slot = hash & (PAYER_TABLE_SIZE - 1);
+            while (payerBytes[slot] != null) {
+                if (Arrays.equals(payerBytes[slot], 0, payerBytes[slot].length, buffer, offset, offset + length)) {
+                    return payers[slot];
+                }
+                slot = (slot + 1) & (PAYER_TABLE_SIZE - 1);
+            }
+
+            final String payer = new String(buffer, offset, length, StandardCharsets.UTF_8);
+            // Keeping the table at most half full, so lookups stay short; later payers are decoded every time
+            if (payerCount < PAYER_TABLE_SIZE / 2) {
+                payerBytes[slot] = Arrays.copyOfRange(buffer, offset, offset + length);
+                payers[slot] = payer;
+                payerCount++;
+            }
+            return payer;
+        }
+
+        /**
+         * Read until at least the given number of bytes is buffered.
+         *
+         * @return false if the input ends first.
+         */
+        private boolean fill(final int needed) throws IOException {
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            }
+            if (buffer.length < needed) {
+                buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+            }
+
+            while (limit < needed) {
+                final int read = input.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Encodes values into a buffer, which is written to the output as it fills and when flushed.
+     */
+    static final class Writer {
+        private final OutputStream output;
+        // Small, since most responses are; the output is buffered too, e.g. by the servlet container
+        private final byte[] buffer = new byte[512];
+        private int position;
+
+        Writer(final OutputStream output) {
+            this.output = output;
+        }
+
+        void writeTransaction(final Transaction transaction) throws IOException {
+            writeString(transaction.getPayer());
+            writeSignedLong(transaction.getPoints());
+            writeSignedLong(transaction.getTimestampMillis());
+            if (transaction.hasExpiry()) {
+                writeLong(1);
+                writeSignedLong(transaction.getExpiresAtMillis());
+            } else {
+                writeLong(0);
+            }
+        }
+
+        void writePointSpends(final List<PointSpend> pointSpends) throws IOException {
+            writeLong(pointSpends.size());
+            for (final PointSpend pointSpend : pointSpends) {
+                writePointSpend(pointSpend);
+            }
+        }
+
+        void writePointSpend(final PointSpend pointSpend) throws IOException {
+            writeSignedLong(pointSpend.getPoints());
+        }
+
+        void writeDeltas(final List<?> deltas) throws IOException {
+            writeLong(deltas.size());
+            writeDeltaElements(deltas);
+        }
+
+        /**
+         * Write a batch of spend results; amounts that weren't spent are null.
+         */
+        void writeSpendResults(final List<?> results) throws IOException {
+            writeLong(results.size());
+            for (final Object result : results) {
+                if (result == null) {
+                    writeLong(0);
+                } else {
+                    final List<?> deltas = (List<?>) result;
+                    writeLong(deltas.size() + 1L);
+                    writeDeltaElements(deltas);
+                }
+            }
+        }
+
+        void writeBalances(final Map<?, ?> balances) throws IOException {
+            writeLong(balances.size());
+            for (final Map.Entry<?, ?> balance : balances.entrySet()) {
+                writeString((String) balance.getKey());
+                writeSignedLong((Long) balance.getValue());
+            }
+        }
+
+        void writeBatchResult(final TransactionBatchResult result) throws IOException {
+            writeLong(result.getAccepted());
+            writeLong(result.getRejected());
+            writeLong(result.getRejectedRows().size());
+            for (final RejectedRow row : result.getRejectedRows()) {
+                writeLong(row.getRow());
+                writeString(row.getReason());
+            }
+        }
+
+        /**
+         * Write whatever is buffered to the output.
+         */
+        void flush() throws IOException {
+            output.write(buffer, 0, position);
+            position = 0;
+        }
+
+        private void writeDeltaElements(final List<?> deltas) throws IOException {
+            for (final Object element : deltas) {
+                final PayerPointDelta delta = (PayerPointDelta) element;
+                writeString(delta.getPayer());
+                writeSignedLong(delta.getPoints());
+            }
+        }
+
+        private void writeString(final String string) throws IOException {
+            if (writeAscii(string)) {
+                return;
+            }
+
+            final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeLong(bytes.length);
+            if (buffer.length - position < bytes.length) {
+                flush();
+            }
+            if (bytes.length > buffer.length) {
+                output.write(bytes);
+                return;
+            }
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        /**
+         * Write a string that's all ASCII, as payer names usually are, straight into the buffer without encoding it
+         * to a byte array first.
+         *
+         * @return false, having written nothing, if the string isn't all ASCII or doesn't fit in the buffer.
+         */
+        private boolean writeAscii(final String string) throws IOException {
+            final int length = string.length();
+            // The length takes at most 3 bytes, for strings shorter than the buffer
+            if (length + 3 > buffer.length) {
+                return false;
+            }
+            if (buffer.length - position < length + 3) {
+                flush();
+            }
+
+            final int start = position;
+            writeLong(length);
+            for (int i = 0; i < length; i++) {
+                final char c = string.charAt(i);
+                if (c >= 0x80) {
+                    position = start;
+                    return false;
+                }
+                buffer[position++] = (byte) c;
+            }
+            return true;
+        }
+
+        private void writeSignedLong(final long value) throws IOException {
+            writeLong((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Write an unsigned variable-length integer.
+         */
+        private void writeLong(final long value) throws IOException {
+            // At most 10 bytes
+            if (buffer.length - position < 10) {
+                flush();
+            }
+
+            long rest = value;
+            while ((rest & ~0x7fL) != 0) {
+                buffer[position++] = (byte) ((rest & 0x7f) | 0x80);
+                rest >>>= 7;
+            }
+            buffer[position++] = (byte) rest;
+        }
+    }
+}
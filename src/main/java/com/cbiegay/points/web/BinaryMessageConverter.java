@@ -0,0 +1,138 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.PointSpend;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.model.TransactionBatchResult;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes PointsController's request and response bodies in the binary format (see BinaryCodec) when a
+ * client asks for it with Content-Type or Accept headers.
+ *
+ * Reads transactions and spend requests; writes spend results, balances and transaction batch results. Registered
+ * by BinaryFormatConfigurer.
+ */
+class BinaryMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
+
+    BinaryMessageConverter() {
+        super(BinaryCodec.MEDIA_TYPE);
+    }
+
+    @Override
+    public boolean canRead(final Type type, final Class<?> contextClass, final MediaType mediaType) {
+        return canRead(mediaType) && isReadable(ResolvableType.forType(type));
+    }
+
+    @Override
+    public boolean canWrite(final Type type, final Class<?> clazz, final MediaType mediaType) {
+        return canWrite(mediaType) && isWritable(type != null ? ResolvableType.forType(type) : null, clazz);
+    }
+
+    @Override
+    protected boolean supports(final Class<?> clazz) {
+        // Only used by the non-generic canRead and canWrite, which the overrides above replace
+        return isReadable(ResolvableType.forClass(clazz)) || isWritable(null, clazz);
+    }
+
+    @Override
+    public Object read(final Type type, final Class<?> contextClass, final HttpInputMessage inputMessage)
+    throws IOException {
+
+        // Request bodies other than transaction batches, which PointsController streams itself, are a few bytes
+        final BinaryCodec.Reader reader = new BinaryCodec.Reader(inputMessage.getBody(), 256);
+        final Class<?> bodyClass = ResolvableType.forType(type).resolve(Object.class);
+        try {
+            final Object body;
+            if (bodyClass == Transaction.class) {
+                body = reader.readTransaction();
+            } else if (bodyClass == PointSpend.class) {
+                body = reader.readPointSpend();
+            } else {
+                body = reader.readPointSpends();
+            }
+
+            if (!reader.atEnd()) {
+                throw new HttpMessageNotReadableException("Unexpected data after the request body", inputMessage);
+            }
+            return body;
+        } catch (BinaryCodec.MalformedInputException e) {
+            throw new HttpMessageNotReadableException(e.getMessage(), e, inputMessage);
+        }
+    }
+
+    @Override
+    protected Object readInternal(final Class<?> clazz, final HttpInputMessage inputMessage) throws IOException {
+        return read(clazz, null, inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(final Object body, final Type type, final HttpOutputMessage outputMessage)
+    throws IOException {
+
+        final BinaryCodec.Writer writer = new BinaryCodec.Writer(outputMessage.getBody());
+        if (body instanceof Map) {
+            writer.writeBalances((Map<?, ?>) body);
+        } else if (body instanceof TransactionBatchResult) {
+            writer.writeBatchResult((TransactionBatchResult) body);
+        } else if (body instanceof List && isSpendResults((List<?>) body)) {
+            writer.writeSpendResults((List<?>) body);
+        } else if (body instanceof List) {
+            writer.writeDeltas((List<?>) body);
+        } else {
+            throw new HttpMessageNotWritableException("Cannot write " + body.getClass() + " in the binary format");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Whether a request body type can be read: a transaction, a spend request or a list of them.
+     */
+    private static boolean isReadable(final ResolvableType type) {
+        final Class<?> bodyClass = type.resolve(Object.class);
+        return bodyClass == Transaction.class
+            || bodyClass == PointSpend.class
+            || (bodyClass == List.class && type.getGeneric(0).resolve(Object.class) == PointSpend.class);
+    }
+
+    /**
+     * Whether a response body can be written. Responses declared without their element types, as spend endpoints'
+     * are, are told apart by their elements as they're written.
+     */
+    private static boolean isWritable(final ResolvableType type, final Class<?> clazz) {
+        if (Map.class.isAssignableFrom(clazz)) {
+            return type == null || !type.hasGenerics()
+                || (type.getGeneric(0).resolve(Object.class) == String.class
+                    && type.getGeneric(1).resolve(Object.class) == Long.class);
+        }
+        if (List.class.isAssignableFrom(clazz)) {
+            final Class<?> element = type == null ? Object.class : type.getGeneric(0).resolve(Object.class);
+            return element == Object.class || element == PayerPointDelta.class || element == List.class;
+        }
+        return clazz == TransactionBatchResult.class;
+    }
+
+    /**
+     * Whether a list is a batch of spend results, rather than the deltas of a single spend. An empty list is
+     * written the same way either way.
+     */
+    private static boolean isSpendResults(final List<?> list) {
+        for (final Object element : list) {
+            if (element != null) {
+                return element instanceof List;
+            }
+        }
+        return true;
+    }
+}
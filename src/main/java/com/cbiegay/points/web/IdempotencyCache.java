@@ -0,0 +1,275 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.model.Transaction;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Results of recent requests by their Idempotency-Key header, so that a client retrying a request gets the result
+ * of its first attempt instead of the request being applied twice.
+ *
+ * Keys are spread across independently locked stripes, and a stripe's lock is only held to look up or insert an
+ * entry, never while the request itself runs. Each stripe evicts its least recently used entry once it's full, and
+ * entries expire a fixed time after they're added. A retry that arrives while the first attempt is still running
+ * waits for that attempt's result, and an entry is never evicted while its attempt is running.
+ *
+ * Each entry keeps its request's body and parameters, and a request that reuses a key with a different body or
+ * parameters is refused (see KeyReusedException) rather than given another request's result. Only results are kept:
+ * a request that failed, even for a reason the client caused such as insufficient points, can be retried, and may
+ * succeed once the ledger has changed.
+ */
+@Component
+public class IdempotencyCache {
+
+    public static final String HEADER = "Idempotency-Key";
+
+    private final Stripe[] stripes;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    @Autowired
+    public IdempotencyCache(
+        @Value("${points.idempotency.max-entries:100000}") final int maxEntries,
+        @Value("${points.idempotency.ttl-ms:86400000}") final long ttlMillis,
+        final ObjectProvider<MeterRegistry> meterRegistry) {
+
+        // Without a registry, e.g. in web layer tests, an empty composite registry discards everything recorded to it
+        this(maxEntries, 64, ttlMillis, System::nanoTime, meterRegistry.getIfUnique(CompositeMeterRegistry::new));
+    }
+
+    IdempotencyCache(
+        final int maxEntries,
+        final int stripeCount,
+        final long ttlMillis,
+        final LongSupplier nanoClock,
+        final MeterRegistry meterRegistry) {
+
+        if (maxEntries < stripeCount) {
+            throw new IllegalArgumentException("Idempotency cache needs room for at least one entry per stripe");
+        }
+
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            // Rounding up, so the cache holds at least maxEntries in total
+            stripes[i] = new Stripe((maxEntries + stripeCount - 1) / stripeCount);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.nanoClock = nanoClock;
+
+        hits = Counter.builder("points.idempotency.requests")
+            .description("Requests with an idempotency key, by whether a result was already stored for the key")
+            .tag("result", "hit")
+            .register(meterRegistry);
+        misses = Counter.builder("points.idempotency.requests")
+            .description("Requests with an idempotency key, by whether a result was already stored for the key")
+            .tag("result", "miss")
+            .register(meterRegistry);
+        Gauge.builder("points.idempotency.entries", this::size)
+            .description("Idempotency keys with a stored result")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Run an operation once per key: the first call with a key runs it, and later calls with the same scope and key
+     * return its result without running it again. Calls made while it's running wait for it, and get its exception
+     * if it fails; calls after that run it again.
+     *
+     * @param scope The operation the key belongs to, so that one key can be used with different endpoints
+     * @param key The client's idempotency key; if null or empty, the operation is always run
+     * @param request The request's body and parameters, which a retry must repeat; compared with equals, so it
+     *        must be a value with equals defined over everything in it, not just its identity
+     * @throws KeyReusedException if the key is stored for a different request.
+     */
+    public <V, E extends Exception> V execute(
+        final String scope,
+        final String key,
+        final Object request,
+        final Operation<V, E> operation) throws E {
+
+        if (key == null || key.isEmpty()) {
+            return operation.run();
+        }
+
+        final String cacheKey = scope + ' ' + key;
+        final Stripe stripe = stripes[Math.floorMod(spread(cacheKey.hashCode()), stripes.length)];
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        final long now = nanoClock.getAsLong();
+        final StoredResult stored = stripe.putIfAbsent(
+            cacheKey, new StoredResult(result, request, now + ttlNanos), now);
+        if (stored != null) {
+            if (!Objects.equals(stored.request, request)) {
+                throw new KeyReusedException();
+            }
+            hits.increment();
+            return IdempotencyCache.<V, E>await(stored.result);
+        }
+        misses.increment();
+
+        try {
+            final V value = operation.run();
+            result.complete(value);
+            return value;
+        } catch (Exception e) {
+            stripe.remove(cacheKey, result);
+            result.completeExceptionally(e);
+            throw IdempotencyCache.<E>rethrow(e);
+        } catch (Error e) {
+            stripe.remove(cacheKey, result);
+            result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * A transaction as a request for execute, from all its fields.
+     */
+    static Object requestOf(final Transaction transaction) {
+        return Arrays.asList(
+            transaction.getPayer(),
+            transaction.getPoints(),
+            transaction.getTimestampMillis(),
+            transaction.getExpiresAtMillis());
+    }
+
+    /**
+     * Number of entries stored, including any that have expired but not yet been evicted.
+     */
+    int size() {
+        int size = 0;
+        for (final Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V, E extends Exception> V await(final CompletableFuture<Object> stored) throws E {
+        try {
+            return (V) stored.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw IdempotencyCache.<E>rethrow((Exception) cause);
+        }
+    }
+
+    /**
+     * Rethrow an exception from an Operation, which is either unchecked or its declared exception type.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> E rethrow(final Exception e) throws E {
+        throw (E) e;
+    }
+
+    /**
+     * Mix the high bits of a hash into the low ones, which pick the stripe.
+     */
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    @FunctionalInterface
+    public interface Operation<V, E extends Exception> {
+        V run() throws E;
+    }
+
+    /**
+     * Thrown when an idempotency key is reused for a different request.
+     */
+    static class KeyReusedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        KeyReusedException() {
+            super(HEADER + " was already used for a different request");
+        }
+    }
+
+    /**
+     * One independently locked part of the cache: an access-ordered map that drops its least recently used finished
+     * entry when full. Entries whose attempt is still running are passed over, so while many are running at once
+     * the stripe can hold more than its capacity.
+     */
+    private static final class Stripe {
+
+        private final Map<String, StoredResult> entries;
+
+        Stripe(final int capacity) {
+            entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, StoredResult> eldest) {
+                    if (size() > capacity) {
+                        final Iterator<StoredResult> stored = values().iterator();
+                        while (stored.hasNext()) {
+                            if (stored.next().result.isDone()) {
+                                stored.remove();
+                                break;
+                            }
+                        }
+                    }
+                    // Removed above if at all, as the eldest entry may be one that's still running
+                    return false;
+                }
+            };
+        }
+
+        /**
+         * Store an entry for a key unless an unexpired one is already stored, in which case return that instead.
+         */
+        synchronized StoredResult putIfAbsent(final String key, final StoredResult result, final long nowNanos) {
+            // Comparing by difference, as nanoTime values can overflow
+            final StoredResult stored = entries.get(key);
+            if (stored != null && stored.expiresAtNanos - nowNanos > 0) {
+                return stored;
+            }
+
+            entries.put(key, result);
+            return null;
+        }
+
+        synchronized void remove(final String key, final CompletableFuture<Object> result) {
+            final StoredResult stored = entries.get(key);
+            if (stored != null && stored.result == result) {
+                entries.remove(key);
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    private static final class StoredResult {
+
+        private final CompletableFuture<Object> result;
+        private final Object request;
+        private final long expiresAtNanos;
+
+        StoredResult(final CompletableFuture<Object> result, final Object request, final long expiresAtNanos) {
+            this.result = result;
+            this.request = request;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
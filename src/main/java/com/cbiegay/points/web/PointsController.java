@@ -1,65 +1,401 @@
 package com.cbiegay.points.web;
 
 import com.cbiegay.points.InsufficientPointsException;
-import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.UnavailableStrategyException;
+import com.cbiegay.points.model.BalanceCheckResult;
 import com.cbiegay.points.model.PointSpend;
+import com.cbiegay.points.model.SpendStrategy;
 import com.cbiegay.points.model.Transaction;
-import com.cbiegay.points.service.DefaultPointsService;
+import com.cbiegay.points.model.TransactionBatchResult;
+import com.cbiegay.points.service.AccountPointsService;
 import com.cbiegay.points.service.PointsService;
+import com.cbiegay.points.web.TransactionBatchReader.MalformedBatchException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
 
 /**
  * Controller with endpoints for managing points.
+ * Used on the servlet stack; see PointsRouter for the reactive stack.
+ * Requests that add or spend points can carry an Idempotency-Key header, so that retrying them is safe.
+ * Besides JSON, transactions, spends and balances can be sent and received in a compact binary format (see
+ * BinaryCodec), chosen with the Content-Type and Accept headers.
+ * Balances can also be followed as a stream of changes, rather than polled.
  */
 @Controller
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RequestMapping(path="/points")
 public class PointsController {
 
+    /**
+     * Number of transactions from a batch that are added to the ledger at a time.
+     */
+    private static final int BATCH_CHUNK_SIZE = 1000;
+
+    /**
+     * Header with the cursor to export the next page of transactions from, when there are more.
+     */
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    /**
+     * Response to a transaction the points service refuses, the same from every service implementation.
+     */
+    static final String INVALID_TRANSACTION = "Missing payer or points";
+
+    private static final MediaType TEXT_CSV = new MediaType("text", "csv", StandardCharsets.UTF_8);
+
+    /**
+     * Key of the interceptor that gives an export its own timeout.
+     */
+    private static final String EXPORT_TIMEOUT_KEY = PointsController.class.getName() + ".exportTimeout";
+
     private final PointsService pointsService;
+    private final AccountPointsService accountPointsService;
+    private final TransactionBatchReader transactionBatchReader;
+    private final TransactionExporter transactionExporter;
+    private final IdempotencyCache idempotencyCache;
+    private final BalanceStream balanceStream;
+    private final ExportTimeout exportTimeout;
+
+    public PointsController(
+        final PointsService pointsService,
+        final AccountPointsService accountPointsService,
+        final ObjectMapper objectMapper,
+        final IdempotencyCache idempotencyCache,
+        final BalanceStream balanceStream,
+        @Value("${points.timestamps.strict:false}") final boolean strictTimestamps,
+        @Value("${points.export.timeout-ms:600000}") final long exportTimeoutMillis) {
 
-    public PointsController(final DefaultPointsService pointsService) {
         this.pointsService = Objects.requireNonNull(pointsService);
+        this.accountPointsService = Objects.requireNonNull(accountPointsService);
+        this.idempotencyCache = Objects.requireNonNull(idempotencyCache);
+        this.balanceStream = Objects.requireNonNull(balanceStream);
+        this.transactionBatchReader = new TransactionBatchReader(
+            objectMapper.getFactory(), objectMapper.getDateFormat(), strictTimestamps, BATCH_CHUNK_SIZE);
+        this.transactionExporter = new TransactionExporter(objectMapper.getFactory(), objectMapper.getDateFormat());
+        this.exportTimeout = new ExportTimeout(exportTimeoutMillis);
     }
 
     /**
      * Endpoint for adding a transaction.
      */
     @PostMapping(path="/transaction")
-    public @ResponseBody void addTransaction(@RequestBody final Transaction transaction) {
-        pointsService.addTransaction(transaction);
+    public ResponseEntity<String> addTransaction(
+        @RequestHeader(name = IdempotencyCache.HEADER, required = false) final String idempotencyKey,
+        @RequestBody final Transaction transaction) {
+
+        try {
+            idempotencyCache.execute("transaction", idempotencyKey, IdempotencyCache.requestOf(transaction), () -> {
+                pointsService.addTransaction(transaction);
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_TRANSACTION);
+        }
+        return ResponseEntity.ok().build();
+    }
+
+    /**
+     * Endpoint for adding many transactions, as a JSON array or newline-delimited JSON.
+     * Responds with the number of transactions accepted and rejected, and which rows were rejected.
+     */
+    @PostMapping(
+        path="/transactions/batch",
+        consumes={ MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE })
+    public ResponseEntity<TransactionBatchResult> addTransactionBatch(final InputStream body) throws IOException {
+        try {
+            return ResponseEntity.ok(transactionBatchReader.read(body, pointsService::addTransactions));
+        } catch (MalformedBatchException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getPartialResult());
+        }
+    }
+
+    /**
+     * Endpoint for adding many transactions in the binary format (see BinaryCodec), with the same response as for
+     * JSON.
+     */
+    @PostMapping(path="/transactions/batch", consumes=BinaryCodec.MEDIA_TYPE_VALUE)
+    public ResponseEntity<TransactionBatchResult> addBinaryTransactionBatch(final InputStream body)
+    throws IOException {
+
+        try {
+            return ResponseEntity.ok(transactionBatchReader.readBinary(body, pointsService::addTransactions));
+        } catch (MalformedBatchException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getPartialResult());
+        }
+    }
+
+    /**
+     * Endpoint for exporting the transactions added, in the order they were added, as newline-delimited JSON or CSV.
+     *
+     * A page covers up to limit transactions from the cursor, which is a sequence number, and only includes those
+     * that match the payer and time range (from inclusive, to exclusive, as ISO-8601 instants). A page can therefore
+     * hold fewer rows than the limit, even none, without being the last; when there are more transactions after it,
+     * the X-Next-Cursor header has the cursor for the next page.
+     *
+     * The rows are written as the response is sent, from a view of the transactions taken when the request arrives,
+     * so exporting doesn't hold up adding or spending however many rows it writes. Writing them can take longer than
+     * other requests are allowed, so an export has a timeout of its own (points.export.timeout-ms).
+     */
+    @GetMapping(path="/transactions")
+    public ResponseEntity<StreamingResponseBody> exportTransactions(
+        @RequestParam(defaultValue = "0") final int cursor,
+        @RequestParam(required = false) final Integer limit,
+        @RequestParam(required = false) final String payer,
+        @RequestParam(required = false) final Instant from,
+        @RequestParam(required = false) final Instant to,
+        @RequestParam(defaultValue = "NDJSON") final TransactionExporter.Format format,
+        final WebRequest request) {
+
+        if (cursor < 0 || (limit != null && limit < 1)) {
+            return ResponseEntity.badRequest().build();
+        }
+
+        final List<Transaction> transactions = pointsService.getTransactions();
+        final int start = Math.min(cursor, transactions.size());
+        final int end = limit == null ? transactions.size() : (int) Math.min((long) start + limit, transactions.size());
+        final TransactionExporter.Filter filter = new TransactionExporter.Filter(
+            payer, from == null ? null : Date.from(from), to == null ? null : Date.from(to));
+
+        final ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+            .contentType(format == TransactionExporter.Format.CSV ? TEXT_CSV : MediaType.APPLICATION_NDJSON);
+        if (end < transactions.size()) {
+            response.header(NEXT_CURSOR_HEADER, Integer.toString(end));
+        }
+
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(EXPORT_TIMEOUT_KEY, exportTimeout);
+        return response.body(output -> transactionExporter.write(transactions, start, end, filter, format, output));
     }
 
     /**
-     * Endpoint for spending points.
+     * Endpoint for spending points: oldest first, or with a strategy (see SpendStrategy) chosen by the strategy
+     * parameter.
      */
     @PostMapping(path="/spend")
-    public ResponseEntity spend(@RequestBody final PointSpend pointSpend) {
+    public ResponseEntity spend(
+        @RequestHeader(name = IdempotencyCache.HEADER, required = false) final String idempotencyKey,
+        @RequestBody final PointSpend pointSpend,
+        @RequestParam(required = false) final SpendStrategy strategy) {
+
+        final Object request = Arrays.asList(pointSpend.getPoints(), strategy);
+        return spendResponse(() -> idempotencyCache.execute("spend", idempotencyKey, request, () -> strategy == null
+            ? pointsService.spend(pointSpend.getPoints())
+            : pointsService.spend(pointSpend.getPoints(), strategy)));
+    }
+
+    /**
+     * Endpoint for spending several amounts of points in order, in one operation.
+     * With allOrNothing=false, amounts that can't be spent are skipped and come back as null.
+     */
+    @PostMapping(path="/spend/batch")
+    public ResponseEntity spendBatch(
+        @RequestHeader(name = IdempotencyCache.HEADER, required = false) final String idempotencyKey,
+        @RequestBody final List<PointSpend> pointSpends,
+        @RequestParam(defaultValue = "true") final boolean allOrNothing) {
+
+        final List<Integer> amounts;
         try {
-            final List<PayerPointDelta> response = pointsService.spend(pointSpend.getPoints());
+            amounts = amountsOf(pointSpends);
+        } catch (MissingPointsException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        }
+        return spendResponse(() -> idempotencyCache.execute(
+            "spend/batch", idempotencyKey, Arrays.asList(amounts, allOrNothing),
+            () -> pointsService.spendBatch(amounts, allOrNothing)));
+    }
+
+    /**
+     * Endpoint for seeing what spending points would draw from each payer, without spending them.
+     */
+    @PostMapping(path="/spend/preview")
+    public ResponseEntity previewSpend(
+        @RequestBody final PointSpend pointSpend,
+        @RequestParam(required = false) final SpendStrategy strategy) {
+
+        return spendResponse(() -> strategy == null
+            ? pointsService.previewSpend(pointSpend.getPoints())
+            : pointsService.previewSpend(pointSpend.getPoints(), strategy));
+    }
+
+    /**
+     * Endpoint for retrieving the point balances of all payers: the current ones, or with asOf (an ISO-8601 instant
+     * such as 2020-11-01T00:00:00Z) the ones at that time.
+     */
+    @GetMapping(path="/balances")
+    public @ResponseBody Map<String, Long> getBalances(@RequestParam(required = false) final Instant asOf) {
+        return asOf == null ? pointsService.getBalances() : pointsService.getBalances(Date.from(asOf));
+    }
+
+    /**
+     * Endpoint for following balances as Server-Sent Events: the current balances, then the changes to them as they
+     * happen (see BalanceStream). For dashboards, in place of polling the balances endpoint.
+     * Not available on replicas, which can't report changes.
+     */
+    @GetMapping(path="/balances/stream", produces=MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamBalances() {
+        try {
+            return ResponseEntity.ok(balanceStream.subscribe());
+        } catch (UnsupportedOperationException e) {
+            return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).build();
+        }
+    }
+
+    /**
+     * Endpoint for checking the ledger: recomputes the balances from the unspent transactions and lists any payer
+     * whose balance doesn't match. Scans the whole ledger, so it's meant for verification and audit.
+     */
+    @GetMapping(path="/balances/check")
+    public @ResponseBody BalanceCheckResult checkBalances() {
+        return pointsService.checkBalances();
+    }
+
+    /**
+     * Endpoint for adding a transaction to an account.
+     */
+    @PostMapping(path="/{account}/transaction")
+    public ResponseEntity<String> addAccountTransaction(
+        @RequestHeader(name = IdempotencyCache.HEADER, required = false) final String idempotencyKey,
+        @PathVariable final String account,
+        @RequestBody final Transaction transaction) {
+
+        final String scope = "account/" + account + "/transaction";
+        try {
+            idempotencyCache.execute(scope, idempotencyKey, IdempotencyCache.requestOf(transaction), () -> {
+                accountPointsService.addTransaction(account, transaction);
+                return null;
+            });
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_TRANSACTION);
+        }
+        return ResponseEntity.ok().build();
+    }
+
+    /**
+     * Endpoint for spending points from an account, with the account's configured strategy unless the strategy
+     * parameter chooses one.
+     */
+    @PostMapping(path="/{account}/spend")
+    public ResponseEntity spendFromAccount(
+        @RequestHeader(name = IdempotencyCache.HEADER, required = false) final String idempotencyKey,
+        @PathVariable final String account,
+        @RequestBody final PointSpend pointSpend,
+        @RequestParam(required = false) final SpendStrategy strategy) {
+
+        final String scope = "account/" + account + "/spend";
+        final Object request = Arrays.asList(pointSpend.getPoints(), strategy);
+        return spendResponse(() -> idempotencyCache.execute(scope, idempotencyKey, request, () -> strategy == null
+            ? accountPointsService.spend(account, pointSpend.getPoints())
+            : accountPointsService.spend(account, pointSpend.getPoints(), strategy)));
+    }
+
+    /**
+     * Endpoint for retrieving the current point balances of all payers in an account.
+     */
+    @GetMapping(path="/{account}/balances")
+    public @ResponseBody Map<String, Long> getAccountBalances(@PathVariable final String account) {
+        return accountPointsService.getBalances(account);
+    }
+
+    /**
+     * Perform a spend and convert its result or failure to a response.
+     */
+    private <T> ResponseEntity spendResponse(final Spend<T> spend) {
+        try {
+            final T response = spend.spend();
             return ResponseEntity.ok().body(response);
         } catch (InsufficientPointsException e) {
             return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body("Insufficient points");
+        } catch (UnavailableStrategyException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
         } catch (IllegalArgumentException e) {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Cannot spend less than one point");
         }
     }
 
     /**
-     * Endpoint for retrieving the current point balances of all payers.
+     * Get the amount of each spend in a batch.
+     *
+     * @throws MissingPointsException if the batch has a null spend.
      */
-    @GetMapping(path="/balances")
-    public @ResponseBody Map<String, Integer> getBalances() {
-        return pointsService.getBalances();
+    static List<Integer> amountsOf(final List<PointSpend> pointSpends) {
+        final List<Integer> amounts = new ArrayList<>(pointSpends.size());
+        for (final PointSpend pointSpend : pointSpends) {
+            if (pointSpend == null) {
+                throw new MissingPointsException(amounts.size());
+            }
+            amounts.add(pointSpend.getPoints());
+        }
+        return amounts;
+    }
+
+    /**
+     * Refuse a request that reuses another request's idempotency key.
+     */
+    @ExceptionHandler(IdempotencyCache.KeyReusedException.class)
+    public ResponseEntity<String> keyReused(final IdempotencyCache.KeyReusedException e) {
+        return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(e.getMessage());
+    }
+
+    /**
+     * Thrown when a batch has a null spend, with a message for the client naming the spend.
+     */
+    static class MissingPointsException extends RuntimeException {
+        MissingPointsException(final int index) {
+            super("Missing points in spend " + index);
+        }
+    }
+
+    /**
+     * Sets the timeout of an export's async request just before it starts, in place of the one every async request
+     * gets by default.
+     */
+    private static class ExportTimeout implements CallableProcessingInterceptor {
+        private final long timeoutMillis;
+
+        ExportTimeout(final long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public <T> void beforeConcurrentHandling(final NativeWebRequest request, final Callable<T> task) {
+            ((AsyncWebRequest) request).setTimeout(timeoutMillis);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Spend<T> {
+        T spend() throws InsufficientPointsException;
     }
 }
@@ -0,0 +1,203 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.UnavailableStrategyException;
+import com.cbiegay.points.model.PointSpend;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.service.PointsService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Reactive handlers for the points endpoints, with the same request and response contracts as PointsController.
+ *
+ * Calls into the PointsService are made on a dedicated scheduler, so event loop threads never wait on the service.
+ * Requests that would otherwise each hold a thread while waiting for the ledger lock instead queue up as tasks.
+ * Spend previews don't take the lock, so they run in parallel on the bounded elastic scheduler instead of queueing
+ * behind writes. As with PointsController, requests that add or spend points can carry an Idempotency-Key header.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class PointsHandler {
+
+    private static final ParameterizedTypeReference<List<PointSpend>> POINT_SPEND_LIST =
+        new ParameterizedTypeReference<>() {};
+
+    private final PointsService pointsService;
+    private final Scheduler pointsServiceScheduler;
+    private final IdempotencyCache idempotencyCache;
+
+    public PointsHandler(
+        final PointsService pointsService,
+        final Scheduler pointsServiceScheduler,
+        final IdempotencyCache idempotencyCache) {
+
+        this.pointsService = Objects.requireNonNull(pointsService);
+        this.pointsServiceScheduler = Objects.requireNonNull(pointsServiceScheduler);
+        this.idempotencyCache = Objects.requireNonNull(idempotencyCache);
+    }
+
+    /**
+     * Handler for adding a transaction.
+     */
+    public Mono<ServerResponse> addTransaction(final ServerRequest request) {
+        final String idempotencyKey = idempotencyKey(request);
+
+        return request.bodyToMono(Transaction.class)
+            .switchIfEmpty(missingBody())
+            .flatMap(transaction -> onService(() -> idempotencyCache.execute(
+                "transaction", idempotencyKey, IdempotencyCache.requestOf(transaction), () -> {
+                    pointsService.addTransaction(transaction);
+                    return transaction;
+                })))
+            .flatMap(transaction -> ServerResponse.ok().build())
+            .onErrorResume(IdempotencyCache.KeyReusedException.class, PointsHandler::keyReused)
+            .onErrorResume(IllegalArgumentException.class, e ->
+                ServerResponse.badRequest().bodyValue(PointsController.INVALID_TRANSACTION));
+    }
+
+    /**
+     * Handler for spending points, oldest first or with the strategy in the strategy parameter.
+     */
+    public Mono<ServerResponse> spend(final ServerRequest request) {
+        final String idempotencyKey = idempotencyKey(request);
+        final Optional<SpendStrategy> strategy;
+        try {
+            strategy = spendStrategy(request);
+        } catch (IllegalArgumentException e) {
+            return unknownSpendStrategy();
+        }
+
+        return request.bodyToMono(PointSpend.class)
+            .switchIfEmpty(missingBody())
+            .flatMap(pointSpend -> onService(() -> idempotencyCache.execute(
+                "spend", idempotencyKey, Arrays.asList(pointSpend.getPoints(), strategy.orElse(null)), () ->
+                    strategy.isPresent()
+                        ? pointsService.spend(pointSpend.getPoints(), strategy.get())
+                        : pointsService.spend(pointSpend.getPoints()))))
+            .flatMap(result -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(result))
+            .onErrorResume(IdempotencyCache.KeyReusedException.class, PointsHandler::keyReused)
+            .onErrorResume(InsufficientPointsException.class, e ->
+                ServerResponse.status(HttpStatus.UNPROCESSABLE_ENTITY).bodyValue("Insufficient points"))
+            .onErrorResume(UnavailableStrategyException.class, e ->
+                ServerResponse.badRequest().bodyValue(e.getMessage()))
+            .onErrorResume(IllegalArgumentException.class, e ->
+                ServerResponse.badRequest().bodyValue("Cannot spend less than one point"));
+    }
+
+    /**
+     * Handler for spending several amounts of points in order, in one operation.
+     */
+    public Mono<ServerResponse> spendBatch(final ServerRequest request) {
+        final boolean allOrNothing = request.queryParam("allOrNothing").map(Boolean::parseBoolean).orElse(true);
+        final String idempotencyKey = idempotencyKey(request);
+
+        return request.bodyToMono(POINT_SPEND_LIST)
+            .switchIfEmpty(missingBody())
+            .map(PointsController::amountsOf)
+            .flatMap(amounts -> onService(() -> idempotencyCache.execute(
+                "spend/batch", idempotencyKey, Arrays.asList(amounts, allOrNothing),
+                () -> pointsService.spendBatch(amounts, allOrNothing))))
+            .flatMap(results -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(results))
+            .onErrorResume(PointsController.MissingPointsException.class, e ->
+                ServerResponse.badRequest().bodyValue(e.getMessage()))
+            .onErrorResume(IdempotencyCache.KeyReusedException.class, PointsHandler::keyReused)
+            .onErrorResume(InsufficientPointsException.class, e ->
+                ServerResponse.status(HttpStatus.UNPROCESSABLE_ENTITY).bodyValue("Insufficient points"))
+            .onErrorResume(IllegalArgumentException.class, e ->
+                ServerResponse.badRequest().bodyValue("Cannot spend less than one point"));
+    }
+
+    /**
+     * Handler for seeing what spending points would draw from each payer, without spending them.
+     */
+    public Mono<ServerResponse> previewSpend(final ServerRequest request) {
+        final Optional<SpendStrategy> strategy;
+        try {
+            strategy = spendStrategy(request);
+        } catch (IllegalArgumentException e) {
+            return unknownSpendStrategy();
+        }
+
+        return request.bodyToMono(PointSpend.class)
+            .switchIfEmpty(missingBody())
+            .flatMap(pointSpend -> Mono.fromCallable(() -> strategy.isPresent()
+                    ? pointsService.previewSpend(pointSpend.getPoints(), strategy.get())
+                    : pointsService.previewSpend(pointSpend.getPoints()))
+                .subscribeOn(Schedulers.boundedElastic()))
+            .flatMap(result -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(result))
+            .onErrorResume(InsufficientPointsException.class, e ->
+                ServerResponse.status(HttpStatus.UNPROCESSABLE_ENTITY).bodyValue("Insufficient points"))
+            .onErrorResume(UnavailableStrategyException.class, e ->
+                ServerResponse.badRequest().bodyValue(e.getMessage()))
+            .onErrorResume(IllegalArgumentException.class, e ->
+                ServerResponse.badRequest().bodyValue("Cannot spend less than one point"));
+    }
+
+    /**
+     * Handler for retrieving the point balances of all payers, currently or as of the time in the asOf parameter.
+     */
+    public Mono<ServerResponse> getBalances(final ServerRequest request) {
+        final Optional<String> asOf = request.queryParam("asOf");
+
+        return Mono.fromCallable(() -> asOf.map(Instant::parse).map(Date::from))
+            .flatMap(asOfDate -> onService(() -> asOfDate.isPresent()
+                ? pointsService.getBalances(asOfDate.get())
+                : pointsService.getBalances()))
+            .flatMap(balances -> ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).bodyValue(balances))
+            .onErrorResume(DateTimeParseException.class, e ->
+                ServerResponse.badRequest().bodyValue("asOf must be an ISO-8601 instant"));
+    }
+
+    /**
+     * Read the strategy parameter.
+     *
+     * @throws IllegalArgumentException if it isn't a SpendStrategy.
+     */
+    private static Optional<SpendStrategy> spendStrategy(final ServerRequest request) {
+        return request.queryParam("strategy").map(SpendStrategy::valueOf);
+    }
+
+    private static Mono<ServerResponse> unknownSpendStrategy() {
+        return ServerResponse.badRequest().bodyValue("Unknown spend strategy");
+    }
+
+    private static Mono<ServerResponse> keyReused(final IdempotencyCache.KeyReusedException e) {
+        return ServerResponse.status(HttpStatus.UNPROCESSABLE_ENTITY).bodyValue(e.getMessage());
+    }
+
+    private <T> Mono<T> onService(final ServiceCall<T> call) {
+        return Mono.fromCallable(call::call).subscribeOn(pointsServiceScheduler);
+    }
+
+    private static String idempotencyKey(final ServerRequest request) {
+        return request.headers().firstHeader(IdempotencyCache.HEADER);
+    }
+
+    private static <T> Mono<T> missingBody() {
+        return Mono.error(() -> new ServerWebInputException("Missing request body"));
+    }
+
+    @FunctionalInterface
+    private interface ServiceCall<T> {
+        T call() throws InsufficientPointsException;
+    }
+}
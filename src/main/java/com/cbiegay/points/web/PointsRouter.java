@@ -0,0 +1,55 @@
+package com.cbiegay.points.web;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Routes for the points endpoints when running on the reactive web stack
+ * ({@code spring.main.web-application-type=reactive}). PointsController serves them on the servlet stack.
+ *
+ * Both web starters are on the classpath, so Boot only starts the reactive stack when asked to, and would then run
+ * it on Tomcat, which it prefers over Netty; the server is chosen here instead.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class PointsRouter {
+
+    /**
+     * Threads for PointsService calls, which block, so that they never run on Netty's event loops. Bounded like
+     * Reactor's shared elastic scheduler, but kept apart from it so that other blocking work can't starve the service
+     * or be starved by it. More than one thread, so that whatever the service can do concurrently, such as the
+     * concurrent service's adds and balance reads or spend previews, isn't queued behind a single call.
+     */
+    @Bean(destroyMethod = "dispose")
+    public Scheduler pointsServiceScheduler() {
+        return Schedulers.newBoundedElastic(
+            Schedulers.DEFAULT_BOUNDED_ELASTIC_SIZE, Schedulers.DEFAULT_BOUNDED_ELASTIC_QUEUESIZE, "points-service");
+    }
+
+    /**
+     * Netty for the reactive stack, so that connections are served by its event loops rather than Tomcat's threads.
+     */
+    @Bean
+    public NettyReactiveWebServerFactory reactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> pointsRoutes(final PointsHandler handler) {
+        return RouterFunctions.route()
+            .path("/points", points -> points
+                .POST("/transaction", handler::addTransaction)
+                .POST("/spend", handler::spend)
+                .POST("/spend/batch", handler::spendBatch)
+                .POST("/spend/preview", handler::previewSpend)
+                .GET("/balances", handler::getBalances))
+            .build();
+    }
+}
@@ -0,0 +1,151 @@
+package com.cbiegay.points.web;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket rate limits, per endpoint and client: each client has a bucket of its own for each endpoint with a
+ * limit, which refills at the endpoint's rate up to its burst size, and each request takes a token from it.
+ *
+ * Buckets are created on a client's first request, and dropped once they're full again, since a full bucket is the
+ * same as a new one. So that clients that come and go don't add up, full buckets are swept out at most once a second
+ * whenever there are more than maxBuckets.
+ */
+final class RateLimiter {
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<String, Limit> limits;
+    private final int maxBuckets;
+    private final LongSupplier nanoClock;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private volatile long nextSweep;
+
+    /**
+     * @param limits the limit of each endpoint that has one, by the path pattern it's mapped to.
+     */
+    RateLimiter(final Map<String, Limit> limits, final int maxBuckets, final LongSupplier nanoClock) {
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("Rate limiter needs room for at least one bucket");
+        }
+
+        this.limits = new HashMap<>(limits);
+        this.maxBuckets = maxBuckets;
+        this.nanoClock = nanoClock;
+        nextSweep = nanoClock.getAsLong();
+    }
+
+    /**
+     * Take a token for a request from a client to an endpoint, if there is one.
+     *
+     * @return 0 if the request is within its limit, otherwise how many nanoseconds until it would be.
+     */
+    long tryAcquire(final String endpoint, final String client) {
+        final Limit limit = limits.get(endpoint);
+        if (limit == null) {
+            return 0;
+        }
+
+        final long now = nanoClock.getAsLong();
+        if (buckets.size() > maxBuckets && now - nextSweep >= 0) {
+            nextSweep = now + SWEEP_INTERVAL_NANOS;
+            sweep(now);
+        }
+
+        // Taking the token inside compute, so that a sweep can't drop the bucket in between
+        final long[] wait = new long[1];
+        buckets.compute(endpoint + ' ' + client, (key, bucket) -> {
+            final Bucket current = bucket != null ? bucket : new Bucket(limit, now);
+            wait[0] = current.tryTake(now);
+            return current;
+        });
+        return wait[0];
+    }
+
+    private void sweep(final long now) {
+        for (final String key : buckets.keySet()) {
+            buckets.computeIfPresent(key, (k, bucket) -> bucket.isFull(now) ? null : bucket);
+        }
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    /**
+     * An endpoint's limit: a rate in requests per second, and how many requests a client can make at once after
+     * making none for a while.
+     */
+    static final class Limit {
+
+        private final double perSecond;
+        private final int burst;
+
+        Limit(final double perSecond, final int burst) {
+            if (!(perSecond > 0) || burst < 1) {
+                throw new IllegalArgumentException("Rate limits need a positive rate and a burst of at least 1");
+            }
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        /**
+         * Parse a limit written as RATE or RATE/BURST, e.g. "50/100"; without a burst, it's a second's worth of
+         * requests.
+         */
+        static Limit parse(final String limit) {
+            final int slash = limit.indexOf('/');
+            if (slash < 0) {
+                final double perSecond = Double.parseDouble(limit);
+                return new Limit(perSecond, (int) Math.max(1, Math.ceil(perSecond)));
+            }
+            return new Limit(
+                Double.parseDouble(limit.substring(0, slash).trim()),
+                Integer.parseInt(limit.substring(slash + 1).trim()));
+        }
+    }
+
+    /**
+     * Only used inside the map's compute methods, which lock its key.
+     */
+    private static final class Bucket {
+
+        private final double tokensPerNano;
+        private final int capacity;
+        private double tokens;
+        private long refilledAt;
+
+        Bucket(final Limit limit, final long now) {
+            tokensPerNano = limit.perSecond / TimeUnit.SECONDS.toNanos(1);
+            capacity = limit.burst;
+            tokens = capacity;
+            refilledAt = now;
+        }
+
+        long tryTake(final long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+        }
+
+        boolean isFull(final long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(final long now) {
+            if (now - refilledAt > 0) {
+                tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+                refilledAt = now;
+            }
+        }
+    }
+}
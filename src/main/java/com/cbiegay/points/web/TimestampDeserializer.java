@@ -0,0 +1,49 @@
+package com.cbiegay.points.web;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.deser.std.DateDeserializers;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.jackson.JsonComponent;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Reads dates in request bodies, such as a transaction's timestamp, with TimestampParser rather than Jackson's
+ * DateFormat, which parses with a regular expression and a Calendar per date.
+ *
+ * With strict timestamps, only RFC 3339 timestamps are accepted. Otherwise anything else is read as Jackson would
+ * read it, e.g. a date without a time or epoch milliseconds, so the same requests are accepted either way.
+ */
+@JsonComponent
+public class TimestampDeserializer extends JsonDeserializer<Date> {
+
+    private final JsonDeserializer<Date> fallback = new DateDeserializers.DateDeserializer();
+    private final boolean strict;
+
+    public TimestampDeserializer(@Value("${points.timestamps.strict:false}") final boolean strict) {
+        this.strict = strict;
+    }
+
+    @Override
+    public Date deserialize(final JsonParser parser, final DeserializationContext context) throws IOException {
+        if (parser.hasToken(JsonToken.VALUE_STRING)) {
+            final long timestamp = TimestampParser.parse(
+                parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            if (timestamp != TimestampParser.INVALID) {
+                return new Date(timestamp);
+            }
+            if (strict) {
+                return (Date) context.handleWeirdStringValue(
+                    Date.class, parser.getText(), "not an RFC 3339 timestamp, e.g. 2020-11-02T14:00:00Z");
+            }
+        } else if (strict) {
+            return (Date) context.handleUnexpectedToken(Date.class, parser);
+        }
+
+        return fallback.deserialize(parser, context);
+    }
+}
@@ -0,0 +1,136 @@
+package com.cbiegay.points.web;
+
+/**
+ * Parses ISO-8601 timestamps of the form clients send, e.g. 2020-11-02T14:00:00Z, to epoch milliseconds without
+ * allocating: straight from a parser's character buffer, with no intermediate String, Date or Calendar.
+ *
+ * Only the RFC 3339 profile of ISO-8601 is parsed: a full date, 'T', hours, minutes and seconds, an optional
+ * fraction of a second (digits after the milliseconds are dropped), then 'Z' or an offset of hours and minutes.
+ * Every field is range-checked, including the day against the length of the month and the offset against
+ * +/-18:00. Anything else is left to the caller, which can reject it (strict parsing) or fall back to a DateFormat
+ * that accepts more forms. So are years before 1583, which DateFormats count in the Julian calendar.
+ */
+final class TimestampParser {
+
+    /**
+     * Returned for text that isn't an RFC 3339 timestamp. Not a time any such timestamp can be.
+     */
+    static final long INVALID = Long.MIN_VALUE;
+
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+    /**
+     * The first full year of the Gregorian calendar.
+     */
+    private static final int FIRST_GREGORIAN_YEAR = 1583;
+
+    private static final int MAX_OFFSET_MINUTES = 18 * 60;
+
+    private TimestampParser() {
+    }
+
+    /**
+     * Parse the timestamp in a range of characters.
+     *
+     * @return epoch milliseconds, or INVALID.
+     */
+    static long parse(final char[] text, final int offset, final int length) {
+        // yyyy-MM-ddTHH:mm:ssZ is the shortest
+        if (length < 20) {
+            return INVALID;
+        }
+
+        final int end = offset + length;
+        final int year = digits(text, offset, 4);
+        final int month = digits(text, offset + 5, 2);
+        final int day = digits(text, offset + 8, 2);
+        final int hour = digits(text, offset + 11, 2);
+        final int minute = digits(text, offset + 14, 2);
+        final int second = digits(text, offset + 17, 2);
+        if ((hour | minute | second) < 0 || year < FIRST_GREGORIAN_YEAR
+            || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+            || hour > 23 || minute > 59 || second > 59
+            || text[offset + 4] != '-' || text[offset + 7] != '-' || text[offset + 10] != 'T'
+            || text[offset + 13] != ':' || text[offset + 16] != ':') {
+            return INVALID;
+        }
+
+        int position = offset + 19;
+        int millis = 0;
+        if (text[position] == '.') {
+            final int fractionStart = ++position;
+            while (position < end && position - fractionStart < 9 && isDigit(text[position])) {
+                if (position - fractionStart < 3) {
+                    millis = millis * 10 + (text[position] - '0');
+                }
+                position++;
+            }
+            final int fractionDigits = position - fractionStart;
+            if (fractionDigits == 0) {
+                return INVALID;
+            }
+            for (int i = fractionDigits; i < 3; i++) {
+                millis *= 10;
+            }
+        }
+
+        final int offsetMinutes;
+        if (position == end - 1 && text[position] == 'Z') {
+            offsetMinutes = 0;
+        } else if (position == end - 6 && (text[position] == '+' || text[position] == '-')
+            && text[position + 3] == ':') {
+
+            final int offsetHours = digits(text, position + 1, 2);
+            final int offsetRest = digits(text, position + 4, 2);
+            final int minutes = offsetHours * 60 + offsetRest;
+            if ((offsetHours | offsetRest) < 0 || offsetRest > 59 || minutes > MAX_OFFSET_MINUTES) {
+                return INVALID;
+            }
+            offsetMinutes = text[position] == '-' ? -minutes : minutes;
+        } else {
+            return INVALID;
+        }
+
+        final long secondOfDay = hour * 3600L + minute * 60L + second - offsetMinutes * 60L;
+        return epochDay(year, month, day) * MILLIS_PER_DAY + secondOfDay * 1000L + millis;
+    }
+
+    /**
+     * Get the value of a run of decimal digits, or -1 if any of them isn't one.
+     */
+    private static int digits(final char[] text, final int offset, final int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            final char c = text[i];
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int daysInMonth(final int year, final int month) {
+        if (month == 2) {
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * Get the number of days from 1970-01-01 to a date in the proleptic Gregorian calendar, as LocalDate does.
+     */
+    private static long epochDay(final int year, final int month, final int day) {
+        // Counting years from March, so the leap day is the last of the year
+        final int marchYear = month <= 2 ? year - 1 : year;
+        final int era = Math.floorDiv(marchYear, 400);
+        final int yearOfEra = marchYear - era * 400;
+        final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
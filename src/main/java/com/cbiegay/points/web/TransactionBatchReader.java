@@ -0,0 +1,270 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.model.TransactionBatchResult;
+import com.cbiegay.points.model.TransactionBatchResult.RejectedRow;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads a batch of transactions from either a JSON array or newline-delimited JSON (one object per line), or from
+ * the binary format (see BinaryCodec).
+ * The input is parsed a token at a time and handed on in fixed-size chunks, so the whole batch is never in memory.
+ * Rows that aren't valid transactions are skipped and reported; malformed input stops the read.
+ */
+class TransactionBatchReader {
+
+    /**
+     * The most rejected rows described in a result; any more are only counted.
+     */
+    static final int MAX_REJECTED_ROWS_REPORTED = 100;
+
+    private final JsonFactory jsonFactory;
+    private final DateFormat dateFormat;
+    private final boolean strictTimestamps;
+    private final int chunkSize;
+
+    /**
+     * @param jsonFactory creates the parser for the input.
+     * @param dateFormat parses transaction timestamps that aren't in the RFC 3339 form TimestampParser reads.
+     *        Cloned for each read, since DateFormats aren't thread-safe.
+     * @param strictTimestamps whether to reject timestamps that aren't RFC 3339, rather than parse them with
+     *        dateFormat.
+     * @param chunkSize the number of transactions handed on at a time.
+     */
+    TransactionBatchReader(
+        final JsonFactory jsonFactory,
+        final DateFormat dateFormat,
+        final boolean strictTimestamps,
+        final int chunkSize) {
+
+        this.jsonFactory = jsonFactory;
+        this.dateFormat = dateFormat;
+        this.strictTimestamps = strictTimestamps;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Read transactions from the input and hand them to the consumer in chunks.
+     *
+     * @param input the batch, as a JSON array or newline-delimited JSON.
+     * @param chunkConsumer receives each chunk of valid transactions, in order.
+     * @return the number of rows accepted and rejected.
+     * @throws MalformedBatchException if the input isn't well-formed JSON. Chunks read before the malformed part
+     *         have already been handed on.
+     */
+    TransactionBatchResult read(final InputStream input, final Consumer<List<Transaction>> chunkConsumer)
+    throws IOException {
+
+        final Batch batch = new Batch((DateFormat) dateFormat.clone(), chunkConsumer);
+
+        try (JsonParser parser = jsonFactory.createParser(input)) {
+            JsonToken token = parser.nextToken();
+
+            if (token == JsonToken.START_ARRAY) {
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token == null) {
+                        throw new MalformedBatchException(batch.flush(), "Unexpected end of input");
+                    }
+                    batch.readRow(parser);
+                }
+            } else {
+                // Newline-delimited JSON: a sequence of root-level values
+                while (token != null) {
+                    batch.readRow(parser);
+                    token = parser.nextToken();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            throw new MalformedBatchException(batch.flush(), e.getOriginalMessage());
+        }
+
+        return batch.flush();
+    }
+
+    /**
+     * Read transactions in the binary format and hand them to the consumer in chunks. Every complete row is a valid
+     * transaction, so rows are only rejected by the service.
+     *
+     * @throws MalformedBatchException if the input isn't in the binary format. Chunks read before the malformed part
+     *         have already been handed on.
+     */
+    TransactionBatchResult readBinary(final InputStream input, final Consumer<List<Transaction>> chunkConsumer)
+    throws IOException {
+
+        final Batch batch = new Batch(null, chunkConsumer);
+        final BinaryCodec.Reader reader = new BinaryCodec.Reader(input);
+        try {
+            while (!reader.atEnd()) {
+                batch.rows++;
+                batch.accept(reader.readTransaction());
+            }
+        } catch (BinaryCodec.MalformedInputException e) {
+            throw new MalformedBatchException(batch.flush(), e.getMessage());
+        }
+
+        return batch.flush();
+    }
+
+    /**
+     * State of a single read.
+     */
+    private class Batch {
+        /**
+         * Null when reading the binary format, which has no dates as text.
+         */
+        private final DateFormat dateFormat;
+        private final Consumer<List<Transaction>> chunkConsumer;
+        private final List<RejectedRow> rejectedRows = new ArrayList<>();
+        private List<Transaction> chunk = new ArrayList<>(chunkSize);
+        private long rows;
+        private long accepted;
+        private long rejected;
+
+        Batch(final DateFormat dateFormat, final Consumer<List<Transaction>> chunkConsumer) {
+            this.dateFormat = dateFormat;
+            this.chunkConsumer = chunkConsumer;
+        }
+
+        /**
+         * Read the row that starts at the parser's current token.
+         */
+        void readRow(final JsonParser parser) throws IOException {
+            rows++;
+
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                reject("Expected a transaction object");
+                return;
+            }
+
+            String payer = null;
+            Integer points = null;
+            long timestamp = TimestampParser.INVALID;
+            long expiresAt = Transaction.NO_EXPIRY;
+            String error = null;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken value = parser.nextToken();
+
+                if ("payer".equals(field) && value == JsonToken.VALUE_STRING) {
+                    payer = parser.getText();
+                } else if ("points".equals(field) && value == JsonToken.VALUE_NUMBER_INT
+                    && parser.getNumberType() == JsonParser.NumberType.INT) {
+                    points = parser.getIntValue();
+                } else if ("timestamp".equals(field) && value == JsonToken.VALUE_STRING) {
+                    timestamp = parseTimestamp(parser);
+                    if (timestamp == TimestampParser.INVALID) {
+                        error = "Invalid timestamp";
+                    }
+                } else if ("expiresAt".equals(field) && value == JsonToken.VALUE_STRING) {
+                    expiresAt = parseTimestamp(parser);
+                    if (expiresAt == TimestampParser.INVALID) {
+                        error = "Invalid expiresAt";
+                    }
+                } else if ("expiresAt".equals(field) && value == JsonToken.VALUE_NULL) {
+                    // Optional, so null is the same as leaving it out
+                } else if ("payer".equals(field) || "points".equals(field) || "timestamp".equals(field)
+                    || "expiresAt".equals(field)) {
+                    error = "Invalid " + field;
+                }
+
+                // Ignoring unknown fields, as the single transaction endpoint does
+                parser.skipChildren();
+            }
+
+            if (error == null && (payer == null || points == null || timestamp == TimestampParser.INVALID)) {
+                error = "Missing payer, points or timestamp";
+            }
+
+            if (error != null) {
+                reject(error);
+                return;
+            }
+
+            accept(new Transaction(payer, points, timestamp, expiresAt));
+        }
+
+        /**
+         * Parse the timestamp at the parser's current token, straight from the parser's buffer unless it isn't
+         * RFC 3339 and has to be parsed by the DateFormat.
+         *
+         * @return epoch milliseconds, or TimestampParser.INVALID.
+         */
+        private long parseTimestamp(final JsonParser parser) throws IOException {
+            final long timestamp = TimestampParser.parse(
+                parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            if (timestamp != TimestampParser.INVALID || strictTimestamps) {
+                return timestamp;
+            }
+
+            try {
+                return dateFormat.parse(parser.getText()).getTime();
+            } catch (ParseException e) {
+                return TimestampParser.INVALID;
+            }
+        }
+
+        /**
+         * Add a valid transaction to the chunk, handing the chunk on once it's full.
+         */
+        void accept(final Transaction transaction) {
+            chunk.add(transaction);
+            accepted++;
+
+            if (chunk.size() == chunkSize) {
+                chunkConsumer.accept(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+
+        /**
+         * Hand on any remaining transactions and summarize the read.
+         */
+        TransactionBatchResult flush() {
+            if (!chunk.isEmpty()) {
+                chunkConsumer.accept(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+
+            return new TransactionBatchResult(accepted, rejected, rejectedRows);
+        }
+
+        private void reject(final String reason) {
+            rejected++;
+
+            if (rejectedRows.size() < MAX_REJECTED_ROWS_REPORTED) {
+                rejectedRows.add(new RejectedRow(rows, reason));
+            }
+        }
+    }
+
+    /**
+     * Thrown when a batch isn't well-formed JSON, with the result of the rows read before that point.
+     */
+    static class MalformedBatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final transient TransactionBatchResult partialResult;
+
+        MalformedBatchException(final TransactionBatchResult partialResult, final String message) {
+            super(message);
+            this.partialResult = partialResult;
+        }
+
+        TransactionBatchResult getPartialResult() {
+            return partialResult;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.cbiegay.points.web;
+
+import com.cbiegay.points.model.Transaction;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes transactions to an output stream as newline-delimited JSON or CSV, a row at a time, so an export of any
+ * size is never in memory. Each row carries the transaction's sequence number, which is what an export's cursor is.
+ *
+ * Newline-delimited JSON rows can be sent back to the batch endpoint as they are.
+ */
+class TransactionExporter {
+
+    enum Format {
+        NDJSON,
+        CSV
+    }
+
+    private final JsonFactory jsonFactory;
+    private final DateFormat dateFormat;
+
+    /**
+     * @param jsonFactory creates the generator for newline-delimited JSON.
+     * @param dateFormat formats transaction timestamps. Cloned for each export, since DateFormats aren't thread-safe.
+     */
+    TransactionExporter(final JsonFactory jsonFactory, final DateFormat dateFormat) {
+        this.jsonFactory = jsonFactory;
+        this.dateFormat = dateFormat;
+    }
+
+    /**
+     * Write the transactions in a range of sequence numbers that match a filter.
+     *
+     * @param transactions all transactions, indexed by sequence number.
+     * @param start the first sequence number to write, inclusive.
+     * @param end the last sequence number to write, exclusive.
+     * @param filter which of the transactions in the range to write.
+     * @return the number of rows written.
+     */
+    long write(
+        final List<Transaction> transactions,
+        final int start,
+        final int end,
+        final Filter filter,
+        final Format format,
+        final OutputStream output) throws IOException {
+
+        final DateFormat rowDateFormat = (DateFormat) dateFormat.clone();
+
+        if (format == Format.CSV) {
+            return writeCsv(transactions, start, end, filter, rowDateFormat, output);
+        }
+        return writeNdjson(transactions, start, end, filter, rowDateFormat, output);
+    }
+
+    private long writeNdjson(
+        final List<Transaction> transactions,
+        final int start,
+        final int end,
+        final Filter filter,
+        final DateFormat rowDateFormat,
+        final OutputStream output) throws IOException {
+
+        long rows = 0;
+
+        try (JsonGenerator generator = jsonFactory.createGenerator(output)) {
+            // Leaving the stream open for the caller, and separating rows with newlines rather than a space
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.setRootValueSeparator(null);
+
+            for (int sequence = start; sequence < end; sequence++) {
+                final Transaction transaction = transactions.get(sequence);
+                if (!filter.matches(transaction)) {
+                    continue;
+                }
+
+                generator.writeStartObject();
+                generator.writeNumberField("sequence", sequence);
+                generator.writeStringField("payer", transaction.getPayer());
+                generator.writeNumberField("points", transaction.getPoints());
+                generator.writeStringField("timestamp", rowDateFormat.format(transaction.getTimestamp()));
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+                rows++;
+            }
+        }
+
+        return rows;
+    }
+
+    private long writeCsv(
+        final List<Transaction> transactions,
+        final int start,
+        final int end,
+        final Filter filter,
+        final DateFormat rowDateFormat,
+        final OutputStream output) throws IOException {
+
+        long rows = 0;
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        writer.write("sequence,payer,points,timestamp\r\n");
+
+        for (int sequence = start; sequence < end; sequence++) {
+            final Transaction transaction = transactions.get(sequence);
+            if (!filter.matches(transaction)) {
+                continue;
+            }
+
+            writer.write(Integer.toString(sequence));
+            writer.write(',');
+            writeCsvField(writer, transaction.getPayer());
+            writer.write(',');
+            writer.write(Integer.toString(transaction.getPoints()));
+            writer.write(',');
+            writer.write(rowDateFormat.format(transaction.getTimestamp()));
+            writer.write("\r\n");
+            rows++;
+        }
+
+        // Flushing rather than closing, which would close the caller's stream
+        writer.flush();
+        return rows;
+    }
+
+    /**
+     * Write a field, quoting it as RFC 4180 requires if it contains a separator, quote or line break.
+     */
+    private static void writeCsvField(final Writer writer, final String field) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            final char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+
+        if (!quote) {
+            writer.write(field);
+            return;
+        }
+
+        writer.write('"');
+        writer.write(field.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Which transactions to export: optionally only one payer's, and only those timestamped from a time (inclusive)
+     * until another (exclusive).
+     */
+    static class Filter {
+
+        static final Filter ALL = new Filter(null, null, null);
+
+        private final String payer;
+        private final long from;
+        private final long to;
+
+        /**
+         * @param payer the payer to export, or null for all of them.
+         * @param from the earliest timestamp to export, or null for no limit.
+         * @param to the timestamp to export up to but not including, or null for no limit.         */
+        Filter(final String payer, final Date from, final Date to) {
+            this.payer = payer;
+            this.from = from == null ? Long.MIN_VALUE : from.getTime();
+            this.to = to == null ? Long.MAX_VALUE : to.getTime();
+        }
+
+        boolean matches(final Transaction transaction) {
+            final long timestamp = transaction.getTimestampMillis();
+            return timestamp >= from && timestamp < to && (payer == null || payer.equals(transaction.getPayer()));
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.cbiegay.points;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for ListSettings.
+ */
+public class ListSettingsTest {
+
+    @Test
+    public void parseMap_valueIsAfterLastColon() {
+        assertEquals(
+            Map.of("DANNON", 1, "UNILEVER FOODS", 2, "urn:payer:3", 3),
+            ListSettings.parseMap("DANNON:1, UNILEVER FOODS : 2,,urn:payer:3:3", Integer::valueOf));
+        assertEquals(Map.of(), ListSettings.parseMap("", Integer::valueOf));
+    }
+
+    @Test
+    public void parseMap_rejectsInvalidEntries() {
+        assertThrows(IllegalArgumentException.class, () -> ListSettings.parseMap("DANNON", Integer::valueOf));
+        assertThrows(IllegalArgumentException.class, () -> ListSettings.parseMap("DANNON:one", Integer::valueOf));
+    }
+
+    @Test
+    public void parseSet_skipsBlankEntries() {
+        assertEquals(
+            Set.of("/points/spend", "/points/spend/batch"),
+            ListSettings.parseSet(" /points/spend,, /points/spend/batch "));
+        assertEquals(Set.of(), ListSettings.parseSet(""));
+    }
+}
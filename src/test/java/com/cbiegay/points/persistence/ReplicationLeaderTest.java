@@ -0,0 +1,59 @@
+package com.cbiegay.points.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import com.cbiegay.points.model.Transaction;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unit tests for ReplicationLeader.
+ */
+public class ReplicationLeaderTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void follower_copiesEveryPartOfTheStateUnderTheLock() throws Exception {
+        final ReentrantLock lock = new ReentrantLock();
+        final Queue<String> copied = new ConcurrentLinkedQueue<>();
+
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.NEVER, 10, 3);
+             ReplicationLeader leader = new ReplicationLeader("127.0.0.1", 0, 10, 1 << 20)) {
+
+            leader.start(
+                log, lock, copier("ledger", lock, copied), copier("history", lock, copied),
+                copier("journal", lock, copied));
+
+            // A copy of the journal taken after the lock is released could include records also sent after the copy
+            try (SocketChannel follower = SocketChannel.open(new InetSocketAddress("127.0.0.1", leader.getPort()))) {
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (leader.getFollowerCount() < 1 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+                assertEquals(1, leader.getFollowerCount());
+            }
+        }
+
+        assertEquals(List.of("ledger locked", "history locked", "journal locked"), List.copyOf(copied));
+    }
+
+    private static WriteAheadLog.StateCopier copier(
+        final String name,
+        final ReentrantLock lock,
+        final Queue<String> copied) {
+
+        return () -> {
+            copied.add(name + (lock.isHeldByCurrentThread() ? " locked" : " unlocked"));
+            return List::<Transaction>of;
+        };
+    }
+}
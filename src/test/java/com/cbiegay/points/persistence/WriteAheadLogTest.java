@@ -0,0 +1,353 @@
+package com.cbiegay.points.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.service.DefaultPointsService;
+import com.cbiegay.points.service.LedgerStore;
+import com.cbiegay.points.service.PayerPolicies;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Unit tests for WriteAheadLog, through a durable DefaultPointsService.
+ */
+public class WriteAheadLogTest {
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void recover_replaysTransactionsAndSpends() throws Exception {
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            addExampleTransactions(service);
+            service.spend(5000);
+        }
+
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            assertExampleBalancesAfterSpend(service.getBalances());
+
+            // Points spent before the restart aren't spent again
+            final List<PayerPointDelta> result = service.spend(1000);
+            assertEquals(1, result.size());
+            assertEquals("MILLER COORS", result.get(0).getPayer());
+            assertEquals(-1000, result.get(0).getPoints());
+        }
+    }
+
+    @Test
+    public void recover_replaysOnlyBatchSpendsThatWereApplied() throws Exception {
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            addExampleTransactions(service);
+            service.spendBatch(List.of(2000, 100_000, 0, 3000), false);
+        }
+
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            assertExampleBalancesAfterSpend(service.getBalances());
+        }
+    }
+
+    @Test
+    public void recover_replaysStrategySpendsAsLoggedWhateverTheConfiguration() throws Exception {
+        final PayerPolicies tiers = new PayerPolicies(Map.of("MILLER COORS", 1), Map.of());
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service =
+                DefaultPointsService.builder()
+                    .writeAheadLog(log)
+                    .ledgerStore(LedgerStore.COMPACT)
+                    .payerPolicies(tiers)
+                    .build();
+            addExampleTransactions(service);
+            service.spend(5000, SpendStrategy.PAYER_PRIORITY);
+        }
+
+        // Replayed without the tiers, the spend still comes from MILLER COORS
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder()
+                .writeAheadLog(log)
+                .ledgerStore(LedgerStore.COMPACT)
+                .build();
+            final Map<String, Long> balances = service.getBalances();
+            assertEquals(1100, balances.get("DANNON"));
+            assertEquals(200, balances.get("UNILEVER"));
+            assertEquals(5000, balances.get("MILLER COORS"));
+        }
+    }
+
+    @Test
+    public void recover_replaysExpiriesWhateverTheConfiguration() throws Exception {
+        final PayerPolicies lifetimes = new PayerPolicies(Map.of(), Map.of(), Duration.ofDays(1));
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service =
+                DefaultPointsService.builder()
+                    .writeAheadLog(log)
+                    .ledgerStore(LedgerStore.COMPACT)
+                    .payerPolicies(lifetimes)
+                    .build();
+            addExampleTransactions(service);
+            assertEquals(300, service.expirePoints(parseDate("2020-11-02 12:00:00 GMT"), 1));
+            service.spend(5000);
+        }
+
+        // Replayed without the lifetimes, the same points have expired, and the rest still expire when they would have
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            final Map<String, Long> balances = service.getBalances();
+            assertEquals(1000, balances.get("DANNON"));
+            assertEquals(0, balances.get("UNILEVER"));
+            assertEquals(5000, balances.get("MILLER COORS"));
+
+            assertEquals(5000, service.expirePoints(parseDate("2020-11-03 00:00:00 GMT"), 1000));
+            assertEquals(1000, service.getBalances().get("DANNON"));
+        }
+    }
+
+    @Test
+    public void recover_fromSnapshot() throws Exception {
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            addExampleTransactions(service);
+            service.spend(5000);
+        }
+
+        // Snapshots may be skipped while an earlier one is still being written, so only checking that there is one
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.anyMatch(file -> file.getFileName().toString().startsWith("snapshot-")));
+        }
+        assertFalse(Files.exists(directory.resolve("ledger-0.log")));
+
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            assertExampleBalancesAfterSpend(service.getBalances());
+        }
+    }
+
+    @Test
+    public void recover_fromSnapshotKeepsBalanceHistory() throws Exception {
+        final Date beforeSpend;
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service = DefaultPointsService.builder()
+                .writeAheadLog(log)
+                .ledgerStore(LedgerStore.COMPACT)
+                .build();
+            addExampleTransactions(service);
+            beforeSpend = new Date(System.currentTimeMillis() - 1);
+            service.spend(5000);
+            service.addTransaction(new Transaction("UNILEVER", 50, parseDate("2020-11-03 10:00:00 GMT")));
+        }
+
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service = DefaultPointsService.builder()
+                .writeAheadLog(log)
+                .ledgerStore(LedgerStore.COMPACT)
+                .build();
+
+            final Map<String, Long> firstDay = service.getBalances(parseDate("2020-10-31 23:59:59 GMT"));
+            assertEquals(2, firstDay.size());
+            assertEquals(100, firstDay.get("DANNON"));
+            assertEquals(200, firstDay.get("UNILEVER"));
+
+            final Map<String, Long> unspent = service.getBalances(beforeSpend);
+            assertEquals(1100, unspent.get("DANNON"));
+            assertEquals(250, unspent.get("UNILEVER"));
+            assertEquals(10000, unspent.get("MILLER COORS"));
+
+            assertEquals(service.getBalances(), service.getBalances(new Date(System.currentTimeMillis() + 1)));
+        }
+    }
+
+    @Test
+    public void recover_fromSnapshotKeepsAddedTransactions() throws Exception {
+        final List<Transaction> added;
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            addExampleTransactions(service);
+            service.spend(5000);
+            service.addTransaction(new Transaction("UNILEVER", 50, parseDate("2020-11-03 10:00:00 GMT")));
+            added = service.getTransactions();
+        }
+
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            final List<Transaction> recovered = service.getTransactions();
+
+            assertEquals(6, recovered.size());
+            for (int i = 0; i < added.size(); i++) {
+                assertEquals(added.get(i).getPayer(), recovered.get(i).getPayer());
+                assertEquals(added.get(i).getPoints(), recovered.get(i).getPoints());
+                assertEquals(added.get(i).getTimestamp(), recovered.get(i).getTimestamp());
+            }
+        }
+    }
+
+    @Test
+    public void recover_ignoresIncompleteLastRecord() throws Exception {
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            addExampleTransactions(service);
+            service.spend(5000);
+        }
+
+        // A record that was cut off part way through being written
+        Files.write(directory.resolve("ledger-0.log"), new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.APPEND);
+
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            assertExampleBalancesAfterSpend(service.getBalances());
+            service.addTransaction(new Transaction("UNILEVER", 50, parseDate("2020-11-03 10:00:00 GMT")));
+        }
+
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            assertEquals(50, service.getBalances().get("UNILEVER"));
+        }
+    }
+
+    @Test
+    public void recover_failsOnDamagedSnapshotWithoutEarlierSegments() throws Exception {
+        try (WriteAheadLog log = newLog(2)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            addExampleTransactions(service);
+            service.spend(5000);
+        }
+
+        final Path snapshot;
+        try (Stream<Path> files = Files.list(directory)) {
+            snapshot = files
+                .filter(file -> file.getFileName().toString().matches("snapshot-[0-9]+\\.log"))
+                .findFirst()
+                .get();
+        }
+        final byte[] contents = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(contents, contents.length - 3));
+
+        try (WriteAheadLog log = newLog(2)) {
+            assertThrows(
+                UncheckedIOException.class, () -> DefaultPointsService.builder().writeAheadLog(log).build());
+        }
+    }
+
+    @Test
+    public void recover_skipsDamagedSnapshotWhenEarlierSegmentsRemain() throws Exception {
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            addExampleTransactions(service);
+            service.spend(5000);
+        }
+
+        // As if damaged after it was written, but before the segment it replaces was deleted
+        Files.write(directory.resolve("snapshot-0.log"), new byte[] { 0, 0, 0, 40, 1, 2 });
+
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            assertExampleBalancesAfterSpend(service.getBalances());
+        }
+    }
+
+    @Test
+    public void appendTransaction_refusesTransactionsItCouldNotReplay() throws Exception {
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            addExampleTransactions(service);
+
+            final Date timestamp = parseDate("2020-11-02 15:00:00 GMT");
+            assertThrows(IllegalArgumentException.class,
+                () -> log.appendTransaction(new Transaction("DANNON", null, timestamp)));
+            assertThrows(IllegalArgumentException.class, () -> log.appendTransactions(
+                Arrays.asList(new Transaction("DANNON", 100, timestamp), new Transaction(null, 100, timestamp))));
+            service.spend(5000);
+        }
+
+        // Nothing of the refused transactions was logged, so the records after them are still replayed
+        try (WriteAheadLog log = newLog(1000)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            assertExampleBalancesAfterSpend(service.getBalances());
+        }
+    }
+
+    @Test
+    public void recordWriter_discardsRecordThatFailsToEncode() throws Exception {
+        final Path file = directory.resolve("records.log");
+        try (WriteAheadLog.RecordWriter writer = WriteAheadLog.RecordWriter.open(file, null)) {
+            assertThrows(NullPointerException.class,
+                () -> writer.writeTransaction(new Transaction("DANNON", null, 0L)));
+        }
+
+        assertEquals(0, Files.size(file));
+    }
+
+    @Test
+    public void snapshotIfDue_copiesStateInPlaceAndWritesItInBackground() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final Map<String, Thread> threads = new ConcurrentHashMap<>();
+
+        try (WriteAheadLog log = newLog(3)) {
+            final DefaultPointsService service = DefaultPointsService.builder().writeAheadLog(log).build();
+            service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+            service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+            log.appendTransaction(new Transaction("UNILEVER", 100, parseDate("2020-10-31 12:00:00 GMT")));
+
+            final WriteAheadLog.StateCopier copier = () -> {
+                threads.put("copy", Thread.currentThread());
+                return () -> {
+                    threads.put("write", Thread.currentThread());
+                    return List.of();
+                };
+            };
+            log.snapshotIfDue(copier, copier, copier);
+            assertEquals(caller, threads.get("copy"));
+        }
+
+        // Closing the log waits for the snapshot to be written
+        assertNotEquals(caller, threads.get("write"));
+    }
+
+    private WriteAheadLog newLog(final long snapshotInterval) throws IOException {
+        return new WriteAheadLog(directory, FsyncPolicy.ALWAYS, 10, snapshotInterval);
+    }
+
+    private void addExampleTransactions(final DefaultPointsService service) throws ParseException {
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+        service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+    }
+
+    private void assertExampleBalancesAfterSpend(final Map<String, Long> balances) {
+        assertEquals(3, balances.size());
+        assertEquals(1000, balances.get("DANNON"));
+        assertEquals(0, balances.get("UNILEVER"));
+        assertEquals(5300, balances.get("MILLER COORS"));
+    }
+
+    private Date parseDate(String dateString) throws ParseException {
+        return dateFormat.parse(dateString);
+    }
+}
@@ -0,0 +1,381 @@
+package com.cbiegay.points.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static com.cbiegay.points.model.SpendStrategy.EXPIRY_FIRST;
+import static com.cbiegay.points.model.SpendStrategy.PAYER_PRIORITY;
+import static com.cbiegay.points.model.SpendStrategy.PROPORTIONAL;
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.UnavailableStrategyException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Unit tests for CompactLedger.
+ */
+public class CompactLedgerTest {
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+
+    @Test
+    public void spend_exampleFromInstructions() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+
+        ledger.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        ledger.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        ledger.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+        ledger.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+        ledger.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+
+        final List<PayerPointDelta> result = ledger.spend(5000);
+
+        assertEquals(3, result.size());
+        assertEquals("DANNON", result.get(0).getPayer());
+        assertEquals(-100, result.get(0).getPoints());
+        assertEquals("UNILEVER", result.get(1).getPayer());
+        assertEquals(-200, result.get(1).getPoints());
+        assertEquals("MILLER COORS", result.get(2).getPayer());
+        assertEquals(-4700, result.get(2).getPoints());
+
+        final Map<String, Long> balances = ledger.getBalances();
+        assertEquals(1000, balances.get("DANNON"));
+        assertEquals(0, balances.get("UNILEVER"));
+        assertEquals(5300, balances.get("MILLER COORS"));
+    }
+
+    @Test
+    public void spend_insufficientPoints() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction("DANNON", 100, parseDate("2020-11-02 14:00:00 GMT")));
+
+        assertThrows(InsufficientPointsException.class, () -> ledger.spend(101));
+        assertThrows(IllegalArgumentException.class, () -> ledger.spend(0));
+        assertEquals(100, ledger.getBalances().get("DANNON"));
+    }
+
+    @Test
+    public void getCompactedTransactions_reproducesLedger() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 11:00:00 GMT")));
+        ledger.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 10:00:00 GMT")));
+        ledger.addTransaction(new Transaction("CHARLIE", 100, parseDate("2020-11-01 12:00:00 GMT")));
+        ledger.spend(150);
+
+        final CompactLedger restored = new CompactLedger();
+        ledger.getCompactedTransactions().forEach(restored::addTransaction);
+
+        assertEquals(ledger.getBalances(), restored.getBalances());
+        assertEquals(sorted(ledger.spend(150)), sorted(restored.spend(150)));
+    }
+
+    @Test
+    public void addTransaction_negativeNettedAgainstPayersOldestPointsAddedLater() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 12:00:00 GMT")));
+        ledger.addTransaction(new Transaction("ALPHA", -50, parseDate("2020-11-01 13:00:00 GMT")));
+        ledger.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 11:00:00 GMT")));
+        ledger.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 10:00:00 GMT")));
+
+        // The 50 points were netted from the 12:00 transaction, then moved to the older 10:00 one once it was added
+        assertEquals(List.of("ALPHA=-50", "BRAVO=-50"), sorted(ledger.previewSpend(100)));
+        assertEquals(List.of("ALPHA=-50", "BRAVO=-50"), sorted(ledger.spend(100)));
+        assertEquals(List.of("ALPHA=-100", "BRAVO=-50"), sorted(ledger.spend(150)));
+        assertEquals(0, ledger.getBalances().get("ALPHA"));
+        assertEquals(0, ledger.getTransactionCount());
+        assertEquals(3, ledger.getArchivedTransactionCount());
+    }
+
+    @Test
+    public void addTransaction_negativeWithoutPointsIsPaidOffByNextPoints() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction("ALPHA", -50, parseDate("2020-11-01 12:00:00 GMT")));
+        ledger.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 10:00:00 GMT")));
+
+        assertEquals(-50, ledger.getBalances().get("ALPHA"));
+        assertEquals(50, ledger.getTotalPoints());
+        assertTrue(ledger.copyUnspentPoints().check(ledger.getBalances(), ForkJoinPool.commonPool()).isConsistent());
+        assertThrows(InsufficientPointsException.class, () -> ledger.spend(51));
+
+        ledger.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 11:00:00 GMT")));
+
+        assertEquals(List.of("ALPHA=-50", "BRAVO=-100"), sorted(ledger.spend(150)));
+        assertEquals(0, ledger.getTotalPoints());
+    }
+
+    @Test
+    public void spend_visitsOnlyTransactionsItDrawsFrom() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        for (int payer = 0; payer < 100; payer++) {
+            for (int hour = 0; hour < 10; hour++) {
+                final Date timestamp = new Date(TimeUnit.HOURS.toMillis(hour) + payer);
+                ledger.addTransaction(new Transaction("PAYER-" + payer, 100, timestamp));
+            }
+            // Netted when added, so spending never sees it
+            ledger.addTransaction(new Transaction("PAYER-" + payer, -100, new Date(TimeUnit.HOURS.toMillis(20))));
+        }
+
+        ledger.spend(250);
+
+        assertEquals(3, ledger.getTransactionsScanned());
+        assertEquals(898, ledger.getTransactionCount());
+    }
+
+    @Test
+    public void getCompactedTransactions_reproducesNettingAndDebt() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 12:00:00 GMT")));
+        ledger.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 13:00:00 GMT")));
+        ledger.addTransaction(new Transaction("ALPHA", -150, parseDate("2020-11-01 14:00:00 GMT")));
+        ledger.addTransaction(new Transaction("BRAVO", -80, parseDate("2020-11-01 14:00:00 GMT")));
+        ledger.addTransaction(new Transaction("CHARLIE", 100, parseDate("2020-11-01 11:00:00 GMT")));
+
+        final CompactLedger restored = new CompactLedger();
+        ledger.getCompactedTransactions().forEach(restored::addTransaction);
+        assertEquals(ledger.getBalances(), restored.getBalances());
+
+        // Netting can still move to older points added after the snapshot
+        final Transaction older = new Transaction("ALPHA", 100, parseDate("2020-11-01 10:00:00 GMT"));
+        ledger.addTransaction(older);
+        restored.addTransaction(older);
+        restored.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 09:00:00 GMT")));
+        ledger.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 09:00:00 GMT")));
+
+        assertEquals(List.of("ALPHA=-80", "BRAVO=-20", "CHARLIE=-100"), sorted(restored.spend(200)));
+        assertEquals(List.of("ALPHA=-80", "BRAVO=-20", "CHARLIE=-100"), sorted(ledger.spend(200)));
+        assertEquals(ledger.getBalances(), restored.getBalances());
+    }
+
+    @Test
+    public void spend_expiryFirstSpendsPointsThatExpireSoonest() throws Exception {
+        final CompactLedger ledger = new CompactLedger(new PayerPolicies(
+            Map.of(), Map.of("DANNON", Duration.ofDays(30), "UNILEVER", Duration.ofDays(1))));
+        ledger.addTransaction(new Transaction("MILLER COORS", 5000, parseDate("2020-10-01 10:00:00 GMT")));
+        ledger.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-10-31 10:00:00 GMT")));
+        ledger.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-11-01 10:00:00 GMT")));
+
+        // Oldest first would spend MILLER COORS, whose points never expire
+        assertEquals(List.of("DANNON=-900", "UNILEVER=-200"), sorted(ledger.previewSpend(1100, EXPIRY_FIRST)));
+        assertEquals(List.of("DANNON=-900", "UNILEVER=-200"), sorted(ledger.spend(1100, EXPIRY_FIRST)));
+        assertEquals(List.of("DANNON=-100", "MILLER COORS=-100"), sorted(ledger.spend(200, EXPIRY_FIRST)));
+    }
+
+    @Test
+    public void spend_expiryFirstIsRefusedWhilePointsHaveTheirOwnExpiry() throws Exception {
+        final PayerPolicies policies = new PayerPolicies(Map.of(), Map.of("DANNON", Duration.ofDays(30)));
+        final CompactLedger ledger = new CompactLedger(policies);
+        ledger.addTransaction(
+            policies.withExpiry(new Transaction("DANNON", 1000, parseDate("2020-10-31 10:00:00 GMT"))));
+        ledger.addTransaction(new Transaction(
+            "UNILEVER", 200, parseDate("2020-11-01 10:00:00 GMT"), parseDate("2020-11-02 10:00:00 GMT")));
+
+        // UNILEVER's points expire first, but by their own expiry, which payers aren't ranked by
+        assertThrows(UnavailableStrategyException.class, () -> ledger.previewSpend(100, EXPIRY_FIRST));
+        assertThrows(UnavailableStrategyException.class, () -> ledger.spend(100, EXPIRY_FIRST));
+
+        ledger.expire(parseDate("2020-11-03 00:00:00 GMT").getTime());
+        assertEquals(List.of("DANNON=-100"), sorted(ledger.spend(100, EXPIRY_FIRST)));
+    }
+
+    @Test
+    public void spend_payerPrioritySpendsHighestTierFirst() throws Exception {
+        final CompactLedger ledger = new CompactLedger(
+            new PayerPolicies(Map.of("MILLER COORS", 1, "DANNON", 2), Map.of()));
+        addExampleTransactions(ledger);
+
+        assertEquals(List.of("DANNON=-500", "MILLER COORS=-10000"), sorted(ledger.spend(10500, PAYER_PRIORITY)));
+
+        // DANNON's oldest points were spent first, and UNILEVER has no tier so comes last
+        assertEquals(List.of("DANNON=-600", "UNILEVER=-100"), sorted(ledger.previewSpend(700, PAYER_PRIORITY)));
+        assertEquals(List.of("DANNON=-600", "UNILEVER=-100"), sorted(ledger.spend(700, PAYER_PRIORITY)));
+    }
+
+    @Test
+    public void spend_strategyWithoutPoliciesSpendsOldestFirst() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        addExampleTransactions(ledger);
+
+        assertEquals(sorted(ledger.previewSpend(5000)), sorted(ledger.previewSpend(5000, PAYER_PRIORITY)));
+        assertEquals(sorted(ledger.previewSpend(5000)), sorted(ledger.spend(5000, EXPIRY_FIRST)));
+    }
+
+    @Test
+    public void spend_proportionalSplitsByBalance() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        addExampleTransactions(ledger);
+
+        // Balances of 1100, 200 and 10000 out of 11300: shares of 110.1, 20.02 and 1000.88 are rounded down, and the
+        // point that leaves over goes to the share rounded down the most
+        assertEquals(List.of("DANNON=-110", "MILLER COORS=-1001", "UNILEVER=-20"),
+            sorted(ledger.previewSpend(1131, PROPORTIONAL)));
+        assertEquals(List.of("DANNON=-110", "MILLER COORS=-1001", "UNILEVER=-20"),
+            sorted(ledger.spend(1131, PROPORTIONAL)));
+
+        final Map<String, Long> balances = ledger.getBalances();
+        assertEquals(990, balances.get("DANNON"));
+        assertEquals(180, balances.get("UNILEVER"));
+        assertEquals(8999, balances.get("MILLER COORS"));
+    }
+
+    @Test
+    public void spend_proportionalGivesRoundingTiesToOldestPoints() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction("DANNON", 1, parseDate("2020-11-02 14:00:00 GMT")));
+        ledger.addTransaction(new Transaction("UNILEVER", 1, parseDate("2020-10-31 11:00:00 GMT")));
+        ledger.addTransaction(new Transaction("MILLER COORS", 1, parseDate("2020-11-01 14:00:00 GMT")));
+
+        assertEquals(List.of("MILLER COORS=-1", "UNILEVER=-1"), sorted(ledger.spend(2, PROPORTIONAL)));
+    }
+
+    @Test
+    public void spendAllocated_spendsNothingIfAnyPayerIsShort() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        addExampleTransactions(ledger);
+
+        assertThrows(InsufficientPointsException.class, () -> ledger.spendAllocated(List.of(
+            new PayerPointDelta("MILLER COORS", -500), new PayerPointDelta("UNILEVER", -201))));
+        assertThrows(IllegalArgumentException.class, () -> ledger.spendAllocated(List.of(
+            new PayerPointDelta("UNILEVER", -100), new PayerPointDelta("UNILEVER", -100))));
+        assertEquals(11300, ledger.getTotalPoints());
+
+        assertEquals(List.of("DANNON=-150", "MILLER COORS=-500"), sorted(ledger.spendAllocated(List.of(
+            new PayerPointDelta("MILLER COORS", -500), new PayerPointDelta("DANNON", -150)))));
+        assertEquals(950, ledger.getBalances().get("DANNON"));
+    }
+
+    @Test
+    public void expire_takesWhatIsLeftOfExpiredTransactionsAnywhereInTheQueue() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction(
+            "ALPHA", 100, parseDate("2020-11-01 10:00:00 GMT"), parseDate("2020-12-01 00:00:00 GMT")));
+        ledger.addTransaction(new Transaction(
+            "ALPHA", 200, parseDate("2020-11-01 11:00:00 GMT"), parseDate("2020-11-15 00:00:00 GMT")));
+        ledger.addTransaction(new Transaction("ALPHA", 300, parseDate("2020-11-01 12:00:00 GMT")));
+        ledger.addTransaction(new Transaction(
+            "BRAVO", 50, parseDate("2020-11-01 09:00:00 GMT"), parseDate("2020-11-14 00:00:00 GMT")));
+        ledger.spend(120);
+
+        // BRAVO's points were already spent, and points expiring at exactly upTo are kept
+        final long expiry = parseDate("2020-11-15 00:00:00 GMT").getTime();
+        assertEquals(List.of(), ledger.expire(expiry));
+        assertEquals(List.of("ALPHA=-200"), sorted(ledger.expire(expiry + 1)));
+        assertEquals(330, ledger.getBalances().get("ALPHA"));
+        assertEquals(330, ledger.getTotalPoints());
+        assertEquals(2, ledger.getTransactionCount());
+        assertEquals(2, ledger.getArchivedTransactionCount());
+
+        // The rest of the 10:00 points are spent, and the 12:00 points don't expire
+        assertEquals(List.of("ALPHA=-40"), sorted(ledger.spend(40)));
+        assertEquals(List.of(), ledger.expire(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, ledger.getNextExpiry());
+    }
+
+    @Test
+    public void expire_nettedPointsAreNotGivenBackToExpiredTransactions() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction(
+            "ALPHA", 100, parseDate("2020-11-01 12:00:00 GMT"), parseDate("2020-11-10 00:00:00 GMT")));
+        ledger.addTransaction(new Transaction("ALPHA", -50, parseDate("2020-11-01 13:00:00 GMT")));
+
+        assertEquals(List.of("ALPHA=-50"), sorted(ledger.expire(parseDate("2020-11-11 00:00:00 GMT").getTime())));
+
+        // Older points would otherwise take over the netting and give the 50 points back to the expired transaction
+        ledger.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 10:00:00 GMT")));
+
+        assertEquals(100, ledger.getBalances().get("ALPHA"));
+        assertTrue(ledger.copyUnspentPoints().check(ledger.getBalances(), ForkJoinPool.commonPool()).isConsistent());
+        assertThrows(InsufficientPointsException.class, () -> ledger.spend(101));
+        assertEquals(List.of("ALPHA=-100"), sorted(ledger.spend(100)));
+    }
+
+    @Test
+    public void getCompactedTransactions_keepsExpiries() throws Exception {
+        final CompactLedger ledger = new CompactLedger();
+        ledger.addTransaction(new Transaction(
+            "ALPHA", 100, parseDate("2020-11-01 12:00:00 GMT"), parseDate("2020-11-10 00:00:00 GMT")));
+        ledger.addTransaction(new Transaction("ALPHA", -30, parseDate("2020-11-01 13:00:00 GMT")));
+        ledger.addTransaction(new Transaction(
+            "BRAVO", 100, parseDate("2020-11-01 11:00:00 GMT"), parseDate("2020-11-20 00:00:00 GMT")));
+        ledger.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 14:00:00 GMT")));
+
+        final ObjectLedger restored = new ObjectLedger();
+        ledger.getCompactedTransactions().forEach(restored::addTransaction);
+
+        for (final String date : List.of("2020-11-15 00:00:00 GMT", "2020-11-25 00:00:00 GMT")) {
+            final long upTo = parseDate(date).getTime();
+            assertEquals(sorted(ledger.expire(upTo)), sorted(restored.expire(upTo)));
+            assertEquals(ledger.getBalances(), restored.getBalances());
+        }
+        assertEquals(100, restored.getBalances().get("BRAVO"));
+    }
+
+    /**
+     * Random adds, spend previews and spends, out of order and with negative and zero-point transactions, should give
+     * the same results as the object ledger.
+     */
+    @Test
+    public void matchesObjectLedger() throws Exception {
+        final Random random = new Random(7);
+        final CompactLedger compact = new CompactLedger();
+        final ObjectLedger reference = new ObjectLedger();
+
+        for (int i = 0; i < 20_000; i++) {
+            if (random.nextInt(4) > 0) {
+                final Transaction transaction = new Transaction(
+                    "PAYER-" + random.nextInt(50),
+                    random.nextInt(10) == 0 ? -random.nextInt(100) : random.nextInt(1000),
+                    new Date(random.nextInt(10_000)));
+                compact.addTransaction(transaction);
+                reference.addTransaction(transaction);
+            } else {
+                final int pointsToSpend = 1 + random.nextInt(5000);
+                if (pointsToSpend > reference.getTotalPoints()) {
+                    assertThrows(InsufficientPointsException.class, () -> compact.spend(pointsToSpend));
+                } else {
+                    final List<String> expected = sorted(reference.spend(pointsToSpend));
+                    assertEquals(expected, sorted(compact.previewSpend(pointsToSpend)));
+                    assertEquals(expected, sorted(compact.spend(pointsToSpend)));
+                }
+            }
+
+            assertEquals(reference.getTotalPoints(), compact.getTotalPoints());
+        }
+
+        assertEquals(reference.getBalances(), compact.getBalances());
+    }
+
+    private void addExampleTransactions(final Ledger ledger) throws ParseException {
+        ledger.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        ledger.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        ledger.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+        ledger.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+        ledger.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+    }
+
+    /**
+     * Spend results in a comparable form, since payers with equal deltas may be listed in either order.
+     */
+    private List<String> sorted(final List<PayerPointDelta> deltas) {
+        return deltas.stream()
+            .sorted(Comparator.comparing(PayerPointDelta::getPayer))
+            .map(delta -> delta.getPayer() + "=" + delta.getPoints())
+            .collect(Collectors.toList());
+    }
+
+    private Date parseDate(final String dateString) throws ParseException {
+        return dateFormat.parse(dateString);
+    }
+}
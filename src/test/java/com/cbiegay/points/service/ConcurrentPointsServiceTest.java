@@ -0,0 +1,252 @@
+package com.cbiegay.points.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for ConcurrentPointsService.
+ */
+public class ConcurrentPointsServiceTest {
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+
+    @Test
+    public void getBalances_afterTransactionsAdded() throws Exception {
+        final ConcurrentPointsService service = new ConcurrentPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+
+        final Map<String, Long> balances = service.getBalances();
+
+        assertEquals(2, balances.size());
+        assertEquals(800, balances.get("DANNON"));
+        assertEquals(200, balances.get("UNILEVER"));
+    }
+
+    @Test
+    public void getBalancesAsOf_includesOnlyChangesUpToThatTime() throws Exception {
+        final ConcurrentPointsService service = new ConcurrentPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+
+        final Date beforeSpend = new Date(System.currentTimeMillis() - 1);
+        service.spend(300);
+
+        // The negative transaction came before the points it deducts from
+        final Map<String, Long> firstDay = service.getBalances(parseDate("2020-10-31 23:59:59 GMT"));
+        assertEquals(2, firstDay.size());
+        assertEquals(-200, firstDay.get("DANNON"));
+        assertEquals(200, firstDay.get("UNILEVER"));
+
+        final Map<String, Long> unspent = service.getBalances(beforeSpend);
+        assertEquals(800, unspent.get("DANNON"));
+        assertEquals(200, unspent.get("UNILEVER"));
+
+        assertEquals(service.getBalances(), service.getBalances(new Date(System.currentTimeMillis() + 1)));
+    }
+
+    @Test
+    public void spend_multiplePayersNotChronologicalOrder() throws Exception {
+        final ConcurrentPointsService service = new ConcurrentPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+        service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+
+        final List<PayerPointDelta> result = service.spend(5000);
+
+        assertEquals(3, result.size());
+        assertEquals("DANNON", result.get(0).getPayer());
+        assertEquals(-100, result.get(0).getPoints());
+        assertEquals("UNILEVER", result.get(1).getPayer());
+        assertEquals(-200, result.get(1).getPoints());
+        assertEquals("MILLER COORS", result.get(2).getPayer());
+        assertEquals(-4700, result.get(2).getPoints());
+
+        final Map<String, Long> balances = service.getBalances();
+
+        assertEquals(1000, balances.get("DANNON"));
+        assertEquals(0, balances.get("UNILEVER"));
+        assertEquals(5300, balances.get("MILLER COORS"));
+    }
+
+    @Test
+    public void spend_overSpendingThrowsException() throws Exception {
+        final ConcurrentPointsService service = new ConcurrentPointsService();
+
+        service.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-02 14:00:00 GMT")));
+
+        assertThrows(InsufficientPointsException.class, () -> service.spend(101));
+        assertThrows(IllegalArgumentException.class, () -> service.spend(0));
+        assertEquals(100, service.getBalances().get("ALPHA"));
+    }
+
+    @Test
+    public void concurrentAddsAndSpends_noPointsLost() throws Exception {
+        final ConcurrentPointsService service = new ConcurrentPointsService();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final AtomicInteger successfulSpends = new AtomicInteger();
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int thread = 0; thread < 6; thread++) {
+                final String payer = "PAYER" + thread;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        service.addTransaction(new Transaction(payer, 10, new Date(i)));
+                    }
+                }));
+            }
+
+            for (int thread = 0; thread < 2; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        try {
+                            service.spend(10);
+                            successfulSpends.incrementAndGet();
+                        } catch (InsufficientPointsException e) {
+                            // Spending can get ahead of adding; try again
+                        }
+                    }
+                }));
+            }
+
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final long totalBalance = service.getBalances().values().stream().mapToLong(Long::longValue).sum();
+        assertEquals(6 * 2000 * 10 - successfulSpends.get() * 10L, totalBalance);
+        assertTrue(service.checkBalances().isConsistent());
+    }
+
+    @Test
+    public void previewSpend_consistentWhileWritersRun() throws Exception {
+        for (final LedgerStore store : LedgerStore.values()) {
+            final ConcurrentPointsService service = new ConcurrentPointsService(store);
+            for (int i = 0; i < 1000; i++) {
+                service.addTransaction(new Transaction("PAYER" + i % 7, 10, new Date(i)));
+            }
+
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                // Churning the ledger: every spend exhausts a transaction and every add lands somewhere in the middle
+                final Future<?> writer = executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        service.addTransaction(new Transaction("PAYER" + i % 7, 10, new Date(i % 1000)));
+                        try {
+                            service.spend(10);
+                        } catch (InsufficientPointsException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+
+                while (!writer.isDone()) {
+                    final List<PayerPointDelta> preview = service.previewSpend(5000);
+                    assertEquals(-5000, preview.stream().mapToInt(PayerPointDelta::getPoints).sum());
+                }
+                writer.get();
+            } finally {
+                executor.shutdown();
+            }
+
+            final Map<String, Long> balancesBefore = service.getBalances();
+            service.previewSpend(5000);
+            assertEquals(balancesBefore, service.getBalances());
+        }
+    }
+
+    @Test
+    public void setBalanceListener_countsQueuedTransactionsInBalancesReturned() throws Exception {
+        final ConcurrentPointsService service = new ConcurrentPointsService();
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+
+        final List<String> changes = new ArrayList<>();
+        final Map<String, Long> balances = service.setBalanceListener(
+            (payer, points) -> changes.add(payer + " " + points));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.spend(900);
+
+        assertEquals(Map.of("DANNON", 1000L), balances);
+        assertEquals(List.of("UNILEVER 200", "UNILEVER -200", "DANNON -700"), changes);
+    }
+
+    @Test
+    public void addTransaction_appliedOnceReadsUnderLockFinish() throws Exception {
+        final ConcurrentPointsService service = new ConcurrentPointsService();
+        final Date asOf = new Date(0);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            // Each round's last add may find a reader holding the lock; it must still be applied once the reader
+            // lets go, without waiting for another write
+            for (int round = 1; round <= 200; round++) {
+                final AtomicBoolean stop = new AtomicBoolean();
+                final Future<?> reader = executor.submit(() -> {
+                    while (!stop.get()) {
+                        service.getBalances(asOf);
+                        service.checkBalances();
+                    }
+                });
+                for (int i = 0; i < 50; i++) {
+                    service.addTransaction(new Transaction("DANNON", 1, new Date(i)));
+                }
+                stop.set(true);
+                reader.get();
+
+                assertEquals(round * 50L, service.getBalances().get("DANNON"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void addTransaction_rejectsTransactionsThatCantBeApplied() throws Exception {
+        final ConcurrentPointsService service = new ConcurrentPointsService();
+        final Date timestamp = parseDate("2020-11-02 14:00:00 GMT");
+
+        assertThrows(
+            IllegalArgumentException.class, () -> service.addTransaction(new Transaction(null, 100, timestamp)));
+        assertThrows(IllegalArgumentException.class, () -> service.addTransactions(List.of(
+            new Transaction("DANNON", 100, timestamp),
+            new Transaction("UNILEVER", null, timestamp))));
+
+        // Nothing bad was queued, so other callers aren't affected
+        service.addTransaction(new Transaction("DANNON", 300, timestamp));
+        assertEquals(-100, service.spend(100).get(0).getPoints());
+        assertEquals(Map.of("DANNON", 200L), service.getBalances());
+        assertEquals(1, service.getTransactions().size());
+    }
+
+    private Date parseDate(String dateString) throws ParseException {
+        return dateFormat.parse(dateString);
+    }
+}
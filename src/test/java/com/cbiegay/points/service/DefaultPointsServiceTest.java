@@ -1,15 +1,22 @@
 package com.cbiegay.points.service;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.BalanceCheckResult;
 import com.cbiegay.points.model.PayerPointDelta;
 import com.cbiegay.points.model.Transaction;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Test;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,7 +44,7 @@ public class DefaultPointsServiceTest {
         service.addTransaction(new Transaction("MILLER COORS", -50, parseDate("2020-11-01 14:00:00 GMT")));
         service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
 
-        final Map<String, Integer> balances = service.getBalances();
+        final Map<String, Long> balances = service.getBalances();
 
         assertEquals(3, balances.size());
         assertEquals(1100, balances.get("DANNON"));
@@ -45,6 +52,79 @@ public class DefaultPointsServiceTest {
         assertEquals(9950, balances.get("MILLER COORS"));
     }
 
+    @Test
+    public void getBalances_includesPayersWithNoPointsLeft() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("ALPHA", 0, parseDate("2020-11-01 11:00:00 GMT")));
+        service.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 12:00:00 GMT")));
+        service.addTransaction(new Transaction("CHARLIE", 100, parseDate("2020-11-01 13:00:00 GMT")));
+        service.spend(100);
+
+        final Map<String, Long> balances = service.getBalances();
+
+        assertEquals(3, balances.size());
+        assertEquals(0, balances.get("ALPHA"));
+        assertEquals(0, balances.get("BRAVO"));
+        assertEquals(100, balances.get("CHARLIE"));
+    }
+
+    @Test
+    public void getBalances_doesNotOverflowIntegerRange() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("ALPHA", Integer.MAX_VALUE, parseDate("2020-11-01 11:00:00 GMT")));
+        service.addTransaction(new Transaction("ALPHA", Integer.MAX_VALUE, parseDate("2020-11-01 12:00:00 GMT")));
+        service.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 13:00:00 GMT")));
+
+        assertEquals(2L * Integer.MAX_VALUE, service.getBalances().get("ALPHA"));
+
+        final List<PayerPointDelta> result = service.spend(Integer.MAX_VALUE);
+
+        assertEquals(1, result.size());
+        assertEquals(-Integer.MAX_VALUE, result.get(0).getPoints());
+        assertEquals(Integer.MAX_VALUE, service.getBalances().get("ALPHA"));
+    }
+
+    @Test
+    public void getBalancesAsOf_includesOnlyChangesUpToThatTime() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+        service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+
+        final Date beforeSpend = new Date(System.currentTimeMillis() - 1);
+        service.spend(5000);
+
+        assertEquals(0, service.getBalances(parseDate("2020-10-31 09:59:59 GMT")).size());
+
+        final Map<String, Long> morning = service.getBalances(parseDate("2020-10-31 11:00:00 GMT"));
+        assertEquals(2, morning.size());
+        assertEquals(300, morning.get("DANNON"));
+        assertEquals(200, morning.get("UNILEVER"));
+
+        final Map<String, Long> unspent = service.getBalances(beforeSpend);
+        assertEquals(3, unspent.size());
+        assertEquals(1100, unspent.get("DANNON"));
+        assertEquals(200, unspent.get("UNILEVER"));
+        assertEquals(10000, unspent.get("MILLER COORS"));
+
+        assertEquals(service.getBalances(), service.getBalances(new Date(System.currentTimeMillis() + 1)));
+    }
+
+    @Test
+    public void getBalancesAsOf_includesSpendsFromBatches() throws Exception {
+        final DefaultPointsService service = DefaultPointsService.builder().ledgerStore(LedgerStore.COMPACT).build();
+
+        service.addTransaction(new Transaction("DANNON", 100, parseDate("2020-11-02 14:00:00 GMT")));
+        service.spendBatch(List.of(60, 50, 40), false);
+
+        assertEquals(0, service.getBalances(new Date(System.currentTimeMillis() + 1)).get("DANNON"));
+    }
+
     @Test
     public void spend_singlePayer() throws Exception {
         final DefaultPointsService service = new DefaultPointsService();
@@ -58,7 +138,7 @@ public class DefaultPointsServiceTest {
         assertEquals("DANNON", result.get(0).getPayer());
         assertEquals(-250, result.get(0).getPoints());
 
-        final Map<String, Integer> balances = service.getBalances();
+        final Map<String, Long> balances = service.getBalances();
 
         assertEquals(1, balances.size());
         assertEquals(50, balances.get("DANNON"));
@@ -84,7 +164,7 @@ public class DefaultPointsServiceTest {
         assertEquals("MILLER COORS", result.get(2).getPayer());
         assertEquals(-4700, result.get(2).getPoints());
 
-        final Map<String, Integer> balances = service.getBalances();
+        final Map<String, Long> balances = service.getBalances();
 
         assertEquals(3, balances.size());
         assertEquals(1000, balances.get("DANNON"));
@@ -112,7 +192,7 @@ public class DefaultPointsServiceTest {
         assertEquals("MILLER COORS", result.get(2).getPayer());
         assertEquals(-4700, result.get(2).getPoints());
 
-        final Map<String, Integer> balances = service.getBalances();
+        final Map<String, Long> balances = service.getBalances();
 
         assertEquals(3, balances.size());
         assertEquals(1000, balances.get("DANNON"));
@@ -159,7 +239,7 @@ public class DefaultPointsServiceTest {
         assertEquals("BRAVO", result2.get(2).getPayer());
         assertEquals(-100, result2.get(2).getPoints());
 
-        final Map<String, Integer> balances = service.getBalances();
+        final Map<String, Long> balances = service.getBalances();
 
         assertEquals(3, balances.size());
         assertEquals(0, balances.get("ALPHA"));
@@ -167,6 +247,44 @@ public class DefaultPointsServiceTest {
         assertEquals(245, balances.get("CHARLIE"));
     }
 
+    @Test
+    public void spend_equalTimestampsSpentInOrderAdded() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 11:00:00 GMT")));
+        service.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 11:00:00 GMT")));
+        service.addTransaction(new Transaction("CHARLIE", 100, parseDate("2020-11-01 11:00:00 GMT")));
+
+        final List<PayerPointDelta> result = service.spend(150);
+
+        assertEquals(2, result.size());
+        assertEquals("BRAVO", result.get(0).getPayer());
+        assertEquals(-50, result.get(0).getPoints());
+        assertEquals("ALPHA", result.get(1).getPayer());
+        assertEquals(-100, result.get(1).getPoints());
+    }
+
+    @Test
+    public void spend_responseDoesntContainPreviouslySpentPayers() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 11:00:00 GMT")));
+        service.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 12:00:00 GMT")));
+
+        service.spend(100);
+        final List<PayerPointDelta> result = service.spend(50);
+
+        assertEquals(1, result.size());
+        assertEquals("BRAVO", result.get(0).getPayer());
+        assertEquals(-50, result.get(0).getPoints());
+
+        final Map<String, Long> balances = service.getBalances();
+
+        assertEquals(2, balances.size());
+        assertEquals(0, balances.get("ALPHA"));
+        assertEquals(50, balances.get("BRAVO"));
+    }
+
     @Test
     public void spend_overSpendingThrowsException() throws Exception {
         final DefaultPointsService service = new DefaultPointsService();
@@ -187,6 +305,256 @@ public class DefaultPointsServiceTest {
         assertThrows(IllegalArgumentException.class, () -> service.spend(-1));
     }
 
+    @Test
+    public void addTransaction_refusesTransactionMissingPayerOrPoints() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        assertThrows(IllegalArgumentException.class,
+            () -> service.addTransaction(new Transaction("ALPHA", null, parseDate("2020-11-02 14:00:00 GMT"))));
+        assertThrows(IllegalArgumentException.class,
+            () -> service.addTransaction(new Transaction(null, 100, parseDate("2020-11-02 14:00:00 GMT"))));
+        assertThrows(IllegalArgumentException.class, () -> service.addTransactions(List.of(
+            new Transaction("ALPHA", 100, parseDate("2020-11-02 14:00:00 GMT")),
+            new Transaction("BRAVO", null, parseDate("2020-11-03 15:00:00 GMT")))));
+
+        assertEquals(0, service.getBalances().size());
+        assertEquals(0, service.getTransactions().size());
+    }
+
+    @Test
+    public void spendBatch_matchesSequentialSpends() throws Exception {
+        final DefaultPointsService batchService = new DefaultPointsService();
+        final DefaultPointsService sequentialService = new DefaultPointsService();
+        for (final DefaultPointsService service : List.of(batchService, sequentialService)) {
+            service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+            service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+            service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+            service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+            service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+        }
+
+        final List<List<PayerPointDelta>> results = batchService.spendBatch(List.of(150, 250, 4600), true);
+
+        assertEquals(3, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            final List<PayerPointDelta> expected = sequentialService.spend(List.of(150, 250, 4600).get(i));
+            assertEquals(expected.size(), results.get(i).size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(expected.get(j).getPayer(), results.get(i).get(j).getPayer());
+                assertEquals(expected.get(j).getPoints(), results.get(i).get(j).getPoints());
+            }
+        }
+        assertEquals(sequentialService.getBalances(), batchService.getBalances());
+    }
+
+    @Test
+    public void spendBatch_allOrNothingSpendsNothingIfAnyAmountFails() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 100, parseDate("2020-11-02 14:00:00 GMT")));
+
+        assertThrows(InsufficientPointsException.class, () -> service.spendBatch(List.of(60, 50), true));
+        assertThrows(IllegalArgumentException.class, () -> service.spendBatch(List.of(60, 0), true));
+        assertEquals(100, service.getBalances().get("DANNON"));
+    }
+
+    @Test
+    public void spendBatch_bestEffortSkipsAmountsThatCantBeSpent() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 100, parseDate("2020-11-02 14:00:00 GMT")));
+
+        final List<List<PayerPointDelta>> results = service.spendBatch(List.of(60, 50, 0, 40), false);
+
+        assertEquals(4, results.size());
+        assertEquals(-60, results.get(0).get(0).getPoints());
+        assertNull(results.get(1));
+        assertNull(results.get(2));
+        assertEquals(-40, results.get(3).get(0).getPoints());
+        assertEquals(0, service.getBalances().get("DANNON"));
+    }
+
+    @Test
+    public void previewSpend_matchesSpendWithoutSpending() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+        service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+
+        final List<PayerPointDelta> preview = service.previewSpend(5000);
+
+        assertEquals(3, preview.size());
+        assertEquals("DANNON", preview.get(0).getPayer());
+        assertEquals(-100, preview.get(0).getPoints());
+        assertEquals("UNILEVER", preview.get(1).getPayer());
+        assertEquals(-200, preview.get(1).getPoints());
+        assertEquals("MILLER COORS", preview.get(2).getPayer());
+        assertEquals(-4700, preview.get(2).getPoints());
+        assertEquals(1100, service.getBalances().get("DANNON"));
+        assertEquals(10000, service.getBalances().get("MILLER COORS"));
+
+        final List<PayerPointDelta> result = service.spend(5000);
+
+        assertEquals(preview.size(), result.size());
+        for (int i = 0; i < preview.size(); i++) {
+            assertEquals(preview.get(i).getPayer(), result.get(i).getPayer());
+            assertEquals(preview.get(i).getPoints(), result.get(i).getPoints());
+        }
+    }
+
+    @Test
+    public void previewSpend_overSpendingThrowsException() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 100, parseDate("2020-11-02 14:00:00 GMT")));
+
+        assertThrows(InsufficientPointsException.class, () -> service.previewSpend(101));
+        assertThrows(IllegalArgumentException.class, () -> service.previewSpend(0));
+    }
+
+    @Test
+    public void getTransactions_inOrderAddedAndFixedWhenTaken() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.spend(300);
+        service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+
+        final List<Transaction> transactions = service.getTransactions();
+        service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+
+        assertEquals(3, transactions.size());
+        assertEquals("DANNON", transactions.get(0).getPayer());
+        assertEquals(1000, transactions.get(0).getPoints());
+        assertEquals(parseDate("2020-11-02 14:00:00 GMT"), transactions.get(0).getTimestamp());
+        assertEquals("UNILEVER", transactions.get(1).getPayer());
+        assertEquals(200, transactions.get(1).getPoints());
+        assertEquals("DANNON", transactions.get(2).getPayer());
+        assertEquals(-200, transactions.get(2).getPoints());
+        assertEquals(4, service.getTransactions().size());
+    }
+
+    @Test
+    public void getTransactions_keepsEveryTransactionAdded() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+        final Date timestamp = parseDate("2020-11-01 00:00:00 GMT");
+
+        for (int i = 0; i < 10000; i++) {
+            service.addTransaction(new Transaction("PAYER-" + (i % 7), i, new Date(timestamp.getTime() + i)));
+        }
+
+        final List<Transaction> transactions = service.getTransactions();
+        assertEquals(10000, transactions.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("PAYER-" + (i % 7), transactions.get(i).getPayer());
+            assertEquals(i, transactions.get(i).getPoints());
+            assertEquals(timestamp.getTime() + i, transactions.get(i).getTimestamp().getTime());
+        }
+    }
+
+    @Test
+    public void checkBalances_consistentAfterAddsAndSpends() throws Exception {
+        for (final LedgerStore store : LedgerStore.values()) {
+            final DefaultPointsService service = DefaultPointsService.builder().ledgerStore(store).build();
+
+            service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+            service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+            service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+            service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+            service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+            service.spend(5000);
+
+            final BalanceCheckResult result = service.checkBalances();
+
+            assertTrue(result.isConsistent());
+            assertEquals(3, result.getPayersChecked());
+            assertEquals(2, result.getTransactionsChecked());
+        }
+    }
+
+    @Test
+    public void expirePoints_takesExpiredPointsInBatches() throws Exception {
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final PayerPolicies payerPolicies = new PayerPolicies(Map.of(), Map.of("UNILEVER", Duration.ofDays(1)));
+        final DefaultPointsService service =
+            DefaultPointsService.builder()
+                .ledgerStore(LedgerStore.COMPACT)
+                .payerPolicies(payerPolicies)
+                .meterRegistry(registry)
+                .build();
+
+        service.addTransaction(new Transaction(
+            "DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT"), parseDate("2020-11-03 00:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 100, parseDate("2020-11-02 10:00:00 GMT")));
+
+        assertEquals(200, service.expirePoints(parseDate("2020-11-02 12:00:00 GMT"), 1));
+        assertEquals(100, service.getBalances().get("UNILEVER"));
+
+        // Expired points count as spent from the end of the batch that expired them, which is no later than now
+        assertEquals(200, service.getBalances(parseDate("2020-11-01 10:59:59 GMT")).get("UNILEVER"));
+        assertEquals(0, service.getBalances(parseDate("2020-11-02 09:59:59 GMT")).get("UNILEVER"));
+
+        assertEquals(1100, service.expirePoints(parseDate("2020-11-03 12:00:00 GMT"), 1));
+        assertEquals(0, service.expirePoints(parseDate("2020-11-03 12:00:00 GMT"), 1));
+
+        final Map<String, Long> balances = service.getBalances();
+        assertEquals(0, balances.get("DANNON"));
+        assertEquals(0, balances.get("UNILEVER"));
+        assertEquals(10000, balances.get("MILLER COORS"));
+        assertEquals(3, registry.get("points.expiry.batch").timer().count());
+        assertEquals(1300, registry.get("points.expired").counter().count());
+    }
+
+    @Test
+    public void setBalanceListener_reportsChangesAfterBalancesReturned() throws Exception {
+        final DefaultPointsService service = new DefaultPointsService();
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+
+        final Map<String, Long> changed = new HashMap<>();
+        final Map<String, Long> balances = new HashMap<>(
+            service.setBalanceListener((payer, points) -> changed.merge(payer, points, Long::sum)));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+        service.spend(900);
+
+        assertEquals(Map.of("DANNON", 1000L), balances);
+        assertEquals(Map.of("DANNON", -900L, "UNILEVER", 0L), changed);
+        changed.forEach((payer, points) -> balances.merge(payer, points, Long::sum));
+        assertEquals(service.getBalances(), balances);
+
+        service.setBalanceListener(null);
+        service.addTransaction(new Transaction("DANNON", 100, parseDate("2020-11-03 14:00:00 GMT")));
+        assertEquals(-900L, changed.get("DANNON"));
+    }
+
+    @Test
+    public void metrics_recordedPerOperation() throws Exception {
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final DefaultPointsService service = DefaultPointsService.builder().meterRegistry(registry).build();
+
+        service.addTransaction(new Transaction("ALPHA", 100, parseDate("2020-11-01 11:00:00 GMT")));
+        service.addTransaction(new Transaction("BRAVO", 100, parseDate("2020-11-01 12:00:00 GMT")));
+        service.addTransaction(new Transaction("CHARLIE", 100, parseDate("2020-11-01 13:00:00 GMT")));
+        service.spend(150);
+        assertThrows(InsufficientPointsException.class, () -> service.spend(1000));
+        service.getBalances();
+
+        assertEquals(3, registry.get("points.add").timer().count());
+        assertEquals(1, registry.get("points.spend").tag("outcome", "success").timer().count());
+        assertEquals(1, registry.get("points.spend").tag("outcome", "insufficient_points").timer().count());
+        assertEquals(2, registry.get("points.spend.scanned").summary().totalAmount());
+        assertEquals(2, registry.get("points.ledger.transactions").tag("state", "live").gauge().value());
+        assertEquals(1, registry.get("points.ledger.transactions").tag("state", "archived").gauge().value());
+        assertEquals(150, registry.get("points.ledger.points").gauge().value());
+        assertEquals(6, registry.get("points.lock.wait").timer().count());
+    }
+
     private Date parseDate(String dateString) throws ParseException {
         return dateFormat.parse(dateString);
     }
@@ -0,0 +1,109 @@
+package com.cbiegay.points.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Unit tests for ExpiryWheel.
+ */
+public class ExpiryWheelTest {
+
+    @Test
+    public void getNextExpiry_emptyWheel() {
+        final ExpiryWheel wheel = new ExpiryWheel();
+
+        assertEquals(Long.MAX_VALUE, wheel.getNextExpiry());
+        assertEquals(1000, wheel.getBatchEnd(1000, 10));
+    }
+
+    @Test
+    public void expire_keepsTransactionsExpiringAtOrAfterUpTo() {
+        final ExpiryWheel wheel = new ExpiryWheel();
+        wheel.add(0, 1, 1, 1050);
+        wheel.add(0, 2, 2, 1049);
+        wheel.add(1, 3, 3, 5000);
+
+        assertEquals(1000, wheel.getNextExpiry());
+        assertEquals(List.of(2L), expire(wheel, 1050));
+        assertEquals(List.of(1L), expire(wheel, 1051));
+        assertEquals(1, wheel.size());
+        assertEquals(5000, wheel.getNextExpiry());
+    }
+
+    @Test
+    public void add_transactionAlreadyDueExpiresNext() {
+        final ExpiryWheel wheel = new ExpiryWheel();
+        wheel.add(0, 1, 1, 100_000);
+        expire(wheel, 50_000);
+
+        wheel.add(0, 2, 2, 10);
+
+        assertEquals(Long.MIN_VALUE, wheel.getNextExpiry());
+        assertEquals(List.of(2L), expire(wheel, 50_000));
+    }
+
+    @Test
+    public void getBatchEnd_coversAboutBatchSizeTransactions() {
+        final ExpiryWheel wheel = new ExpiryWheel();
+        for (int i = 0; i < 10; i++) {
+            // Two transactions due in each of ten ticks
+            wheel.add(0, i, 2 * i, i * ExpiryWheel.TICK_MILLIS);
+            wheel.add(0, i, 2 * i + 1, i * ExpiryWheel.TICK_MILLIS + 1);
+        }
+
+        // Batches end between ticks, so a batch of 3 takes both transactions in its last tick
+        final long end = wheel.getBatchEnd(10_000, 3);
+        assertEquals(2 * ExpiryWheel.TICK_MILLIS, end);
+        assertEquals(List.of(0L, 1L, 2L, 3L), expire(wheel, end));
+        assertEquals(10_000, wheel.getBatchEnd(10_000, 100));
+    }
+
+    @Test
+    public void expire_matchesScanForTransactionsFarApart() {
+        final Random random = new Random(42);
+        final ExpiryWheel wheel = new ExpiryWheel();
+        final Map<Long, Long> waiting = new HashMap<>();
+        long now = 0;
+
+        for (int i = 0; i < 5000; i++) {
+            // Spread over years, so transactions are moved down through several levels before they expire
+            final long expiresAt = now + (long) (random.nextDouble() * Math.pow(10, 1 + random.nextInt(11)));
+            wheel.add(0, 0, i, expiresAt);
+            waiting.put((long) i, expiresAt);
+
+            if (i % 50 == 0) {
+                now += random.nextInt(10_000_000);
+                final long upTo = wheel.getBatchEnd(now, 1 + random.nextInt(100));
+                final List<Long> expected = new ArrayList<>();
+                waiting.forEach((sequence, expiry) -> {
+                    if (expiry < upTo) {
+                        expected.add(sequence);
+                    }
+                });
+                expected.forEach(waiting::remove);
+                expected.sort(null);
+
+                assertEquals(expected, expire(wheel, upTo));
+                assertEquals(waiting.size(), wheel.size());
+                assertTrue(waiting.values().stream().allMatch(expiry -> expiry >= wheel.getNextExpiry()));
+            }
+        }
+    }
+
+    /**
+     * Expire up to a time, returning the sequences of the transactions expired in order.
+     */
+    private List<Long> expire(final ExpiryWheel wheel, final long upTo) {
+        final List<Long> sequences = new ArrayList<>();
+        wheel.expire(upTo, (payer, timestamp, sequence, expiresAt) -> sequences.add(sequence));
+        sequences.sort(null);
+        return sequences;
+    }
+}
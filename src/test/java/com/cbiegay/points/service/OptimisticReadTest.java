@@ -0,0 +1,89 @@
+package com.cbiegay.points.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.cbiegay.points.InsufficientPointsException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Unit tests for OptimisticRead.
+ */
+public class OptimisticReadTest {
+
+    private final StampedLock lock = new StampedLock();
+
+    @Test
+    public void read_retriesWithoutLockingWhileWritesKeepArriving() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+
+        final int result = OptimisticRead.read(lock, () -> {
+            assertFalse(lock.isReadLocked());
+            // Each of the first 20 attempts sees a write finish while it reads
+            if (attempts.incrementAndGet() <= 20) {
+                lock.unlockWrite(lock.writeLock());
+            }
+            return 100;
+        });
+
+        assertEquals(100, result);
+        assertEquals(21, attempts.get());
+    }
+
+    @Test
+    public void read_fallsBackToReadLockIfWritesNeverLeaveAGap() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicBoolean readLocked = new AtomicBoolean();
+        final AtomicBoolean unlocked = new AtomicBoolean();
+
+        final int result = OptimisticRead.read(lock, () -> {
+            attempts.incrementAndGet();
+            readLocked.set(lock.isReadLocked());
+            // Every optimistic attempt sees a write finish while it reads
+            if (!lock.isReadLocked()) {
+                lock.unlockWrite(lock.writeLock());
+            }
+            return 100;
+        }, () -> unlocked.set(!lock.isReadLocked()));
+
+        assertEquals(100, result);
+        assertEquals(33, attempts.get());
+        assertTrue(readLocked.get());
+        assertTrue(unlocked.get());
+    }
+
+    @Test
+    public void read_waitsForWriteInProgress() throws Exception {
+        final long stamp = lock.writeLock();
+        final Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            lock.unlockWrite(stamp);
+        });
+        writer.start();
+
+        assertEquals(100, (int) OptimisticRead.read(lock, () -> 100));
+        writer.join();
+    }
+
+    @Test
+    public void read_throwsOnlyIfNoWriteRan() {
+        final AtomicInteger attempts = new AtomicInteger();
+
+        assertThrows(InsufficientPointsException.class, () -> OptimisticRead.read(lock, () -> {
+            if (attempts.incrementAndGet() == 1) {
+                lock.unlockWrite(lock.writeLock());
+            }
+            throw new InsufficientPointsException();
+        }));
+        assertEquals(2, attempts.get());
+    }
+}
@@ -0,0 +1,80 @@
+package com.cbiegay.points.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for PrefixSumTree.
+ */
+public class PrefixSumTreeTest {
+
+    @Test
+    public void sumUpTo_emptyTree() {
+        final PrefixSumTree tree = new PrefixSumTree();
+
+        assertEquals(0, tree.sumUpTo(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, tree.getEarliestTimestamp());
+    }
+
+    @Test
+    public void sumUpTo_includesValuesAtTimestamp() {
+        final PrefixSumTree tree = new PrefixSumTree();
+        tree.add(20, 5);
+        tree.add(10, 1);
+        tree.add(20, -2);
+        tree.add(30, 100);
+
+        assertEquals(3, tree.size());
+        assertEquals(10, tree.getEarliestTimestamp());
+        assertEquals(0, tree.sumUpTo(9));
+        assertEquals(1, tree.sumUpTo(10));
+        assertEquals(1, tree.sumUpTo(19));
+        assertEquals(4, tree.sumUpTo(20));
+        assertEquals(104, tree.sumUpTo(30));
+    }
+
+    @Test
+    public void sumUpTo_matchesScanForValuesInAnyOrder() {
+        final Random random = new Random(42);
+        final PrefixSumTree tree = new PrefixSumTree();
+        final List<long[]> added = new ArrayList<>();
+
+        for (int i = 0; i < 5000; i++) {
+            // Mostly increasing timestamps, like spends and recent transactions, with some late arrivals
+            final long timestamp = random.nextInt(10) == 0 ? random.nextInt(i + 1) : i;
+            final long value = random.nextInt(2001) - 1000;
+            tree.add(timestamp, value);
+            added.add(new long[] { timestamp, value });
+        }
+
+        for (int query = -1; query <= 5000; query += 37) {
+            long expected = 0;
+            for (final long[] change : added) {
+                if (change[0] <= query) {
+                    expected += change[1];
+                }
+            }
+            assertEquals(expected, tree.sumUpTo(query));
+        }
+    }
+
+    @Test
+    public void forEach_visitsTimestampsInOrder() {
+        final PrefixSumTree tree = new PrefixSumTree();
+        for (final long timestamp : new long[] { 5, 3, 9, 1, 7, 3 }) {
+            tree.add(timestamp, timestamp);
+        }
+
+        final List<Long> visited = new ArrayList<>();
+        tree.forEach((timestamp, value) -> {
+            visited.add(timestamp);
+            visited.add(value);
+        });
+
+        assertEquals(List.of(1L, 1L, 3L, 6L, 5L, 5L, 7L, 7L, 9L, 9L), visited);
+    }
+}
@@ -0,0 +1,163 @@
+package com.cbiegay.points.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import com.cbiegay.points.ReplicaException;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.persistence.FsyncPolicy;
+import com.cbiegay.points.persistence.LogReplayTarget;
+import com.cbiegay.points.persistence.ReplicationFollower;
+import com.cbiegay.points.persistence.ReplicationLeader;
+import com.cbiegay.points.persistence.WriteAheadLog;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for ReplicaPointsService, with a leader and followers replicating over localhost.
+ */
+public class ReplicaPointsServiceTest {
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void replica_copiesLeaderStateThenLaterOperations() throws Exception {
+        try (WriteAheadLog log = new WriteAheadLog(directory, FsyncPolicy.NEVER, 10, 3);
+             ReplicationLeader leader = new ReplicationLeader("127.0.0.1", 0, 10, 1 << 20)) {
+
+            final DefaultPointsService service = DefaultPointsService.builder()
+                .writeAheadLog(log)
+                .replicationLeader(leader)
+                .ledgerStore(LedgerStore.COMPACT)
+                .meterRegistry(new SimpleMeterRegistry())
+                .build();
+            service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+            service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+            service.addTransaction(new Transaction("DANNON", -200, parseDate("2020-10-31 15:00:00 GMT")));
+            service.spend(150);
+
+            try (ReplicationFollower first = new ReplicationFollower("localhost:" + leader.getPort(), 5000, 10);
+                 ReplicationFollower second = new ReplicationFollower("localhost:" + leader.getPort(), 5000, 10)) {
+
+                final ReplicaPointsService firstReplica = newReplica(first);
+                final ReplicaPointsService secondReplica = newReplica(second);
+                awaitBalances(service.getBalances(), firstReplica);
+
+                // Operations after the copy, including ones across a snapshot of the leader's log
+                service.addTransaction(new Transaction("MILLER COORS", 10000, parseDate("2020-11-01 14:00:00 GMT")));
+                service.spend(5000, SpendStrategy.PROPORTIONAL);
+                service.spendBatch(List.of(100, 200), true);
+                service.expirePoints(new Date(), 10);
+
+                awaitBalances(service.getBalances(), firstReplica);
+                awaitBalances(service.getBalances(), secondReplica);
+                assertEquals(service.getTransactions().size(), firstReplica.getTransactions().size());
+                assertEquals(
+                    service.getBalances(parseDate("2020-10-31 12:00:00 GMT")),
+                    firstReplica.getBalances(parseDate("2020-10-31 12:00:00 GMT")));
+            }
+        }
+    }
+
+    @Test
+    public void replica_rejectsChanges() throws Exception {
+        final ReplicaPointsService replica = newReplica(5000);
+        replica.resync();
+        replica.caughtUp(System.currentTimeMillis());
+
+        final Transaction transaction = new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT"));
+        assertThrows(ReplicaException.class, () -> replica.addTransaction(transaction));
+        assertThrows(ReplicaException.class, () -> replica.addTransactions(List.of(transaction)));
+        assertThrows(ReplicaException.class, () -> replica.spend(100));
+        assertThrows(ReplicaException.class, () -> replica.spendBatch(List.of(100), true));
+        assertEquals(0, replica.getBalances().size());
+    }
+
+    @Test
+    public void replica_readsFailUntilCaughtUpAndWhenTooFarBehind() throws Exception {
+        final AtomicLong nanoTime = new AtomicLong();
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        final ReplicaPointsService replica = new ReplicaPointsService(
+            LedgerStore.OBJECT, PayerPolicies.NONE, registry, 5000, nanoTime::get);
+
+        final LogReplayTarget target = replica.resync();
+        target.addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+        assertThrows(ReplicaException.class, replica::getBalances);
+
+        // Staleness is timed on the replica's clock, so the leader's clock being well behind doesn't count
+        replica.caughtUp(System.currentTimeMillis() - 60_000);
+        assertEquals(Map.of("DANNON", 300L), replica.getBalances());
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(5000));
+        assertEquals(Map.of("DANNON", 300L), replica.getBalances());
+        assertEquals(5000, registry.get("points.replication.staleness").gauge().value());
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertThrows(ReplicaException.class, replica::getBalances);
+
+        // Nor does it being ahead
+        replica.caughtUp(System.currentTimeMillis() + 60_000);
+        assertEquals(Map.of("DANNON", 300L), replica.getBalances());
+    }
+
+    @Test
+    public void replica_servesOldCopyUntilNewOneCatchesUp() throws Exception {
+        final ReplicaPointsService replica = newReplica(5000);
+        replica.resync().addTransaction(new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+        replica.caughtUp(System.currentTimeMillis());
+
+        final LogReplayTarget target = replica.resync();
+        target.restoreTransaction(new Transaction("DANNON", 100, parseDate("2020-10-31 10:00:00 GMT")));
+        assertEquals(Map.of("DANNON", 300L), replica.getBalances());
+
+        replica.caughtUp(System.currentTimeMillis());
+        assertEquals(Map.of("DANNON", 100L), replica.getBalances());
+    }
+
+    private ReplicaPointsService newReplica(final long maxStalenessMillis) {
+        return new ReplicaPointsService(
+            LedgerStore.OBJECT, PayerPolicies.NONE, new SimpleMeterRegistry(), maxStalenessMillis);
+    }
+
+    private ReplicaPointsService newReplica(final ReplicationFollower follower) {
+        return new ReplicaPointsService(
+            follower, LedgerStore.OBJECT, PayerPolicies.NONE, new SimpleMeterRegistry(), 5000);
+    }
+
+    /**
+     * Wait for a replica to have the given balances, failing if it doesn't within a few seconds.
+     */
+    private void awaitBalances(final Map<String, Long> expected, final ReplicaPointsService replica)
+    throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                if (expected.equals(replica.getBalances())) {
+                    return;
+                }
+            } catch (ReplicaException e) {
+                // Not caught up yet
+            }
+            Thread.sleep(10);
+        }
+        assertEquals(expected, replica.getBalances());
+    }
+
+    private Date parseDate(String dateString) throws ParseException {
+        return dateFormat.parse(dateString);
+    }
+}
@@ -0,0 +1,137 @@
+package com.cbiegay.points.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Unit tests for ShardedAccountPointsService.
+ */
+public class ShardedAccountPointsServiceTest {
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+
+    @Test
+    public void getBalances_unknownAccountIsEmpty() {
+        final ShardedAccountPointsService service = new ShardedAccountPointsService(4);
+        assertEquals(0, service.getBalances("nobody").size());
+    }
+
+    @Test
+    public void accountsAreIndependent() throws Exception {
+        final ShardedAccountPointsService service = new ShardedAccountPointsService(4);
+
+        service.addTransaction("alice", new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+        service.addTransaction("alice", new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction("bob", new Transaction("DANNON", 1000, parseDate("2020-10-30 10:00:00 GMT")));
+
+        final List<PayerPointDelta> result = service.spend("alice", 400);
+
+        assertEquals(2, result.size());
+        assertEquals("UNILEVER", result.get(0).getPayer());
+        assertEquals(-100, result.get(0).getPoints());
+        assertEquals("DANNON", result.get(1).getPayer());
+        assertEquals(-300, result.get(1).getPoints());
+
+        final Map<String, Long> aliceBalances = service.getBalances("alice");
+        assertEquals(2, aliceBalances.size());
+        assertEquals(0, aliceBalances.get("DANNON"));
+        assertEquals(100, aliceBalances.get("UNILEVER"));
+
+        final Map<String, Long> bobBalances = service.getBalances("bob");
+        assertEquals(1, bobBalances.size());
+        assertEquals(1000, bobBalances.get("DANNON"));
+    }
+
+    @Test
+    public void spend_overSpendingThrowsException() throws Exception {
+        final ShardedAccountPointsService service = new ShardedAccountPointsService(4);
+
+        service.addTransaction("alice", new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+
+        assertThrows(InsufficientPointsException.class, () -> service.spend("alice", 301));
+        assertThrows(InsufficientPointsException.class, () -> service.spend("bob", 1));
+        assertThrows(IllegalArgumentException.class, () -> service.spend("bob", 0));
+        assertEquals(0, service.getBalances("bob").size());
+    }
+
+    @Test
+    public void spend_usesAccountsConfiguredStrategyUnlessOneIsChosen() throws Exception {
+        final ShardedAccountPointsService service = new ShardedAccountPointsService(
+            4, LedgerStore.OBJECT, PayerPolicies.NONE, "alice:PROPORTIONAL");
+
+        for (final String account : List.of("alice", "bob")) {
+            service.addTransaction(account, new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+            service.addTransaction(account, new Transaction("UNILEVER", 100, parseDate("2020-10-31 11:00:00 GMT")));
+        }
+
+        assertEquals(List.of("UNILEVER=-10", "DANNON=-30"), describe(service.spend("alice", 40)));
+        assertEquals(List.of("DANNON=-40"), describe(service.spend("alice", 40, SpendStrategy.OLDEST_FIRST)));
+        assertEquals(List.of("DANNON=-40"), describe(service.spend("bob", 40)));
+    }
+
+    @Test
+    public void expirePoints_expiresPointsInEveryAccount() throws Exception {
+        final ShardedAccountPointsService service = new ShardedAccountPointsService(
+            4, LedgerStore.OBJECT, new PayerPolicies(Map.of(), Map.of(), Duration.ofDays(1)), Map.of());
+
+        service.addTransaction("alice", new Transaction("DANNON", 300, parseDate("2020-10-31 10:00:00 GMT")));
+        service.addTransaction("alice", new Transaction("UNILEVER", 200, parseDate("2020-11-01 11:00:00 GMT")));
+        service.addTransaction("bob", new Transaction(
+            "DANNON", 1000, parseDate("2020-10-30 10:00:00 GMT"), parseDate("2020-11-05 00:00:00 GMT")));
+
+        assertEquals(300, service.expirePoints(parseDate("2020-11-02 00:00:00 GMT"), 1));
+        assertEquals(0, service.getBalances("alice").get("DANNON"));
+        assertEquals(200, service.getBalances("alice").get("UNILEVER"));
+        assertEquals(1000, service.getBalances("bob").get("DANNON"));
+
+        assertEquals(1200, service.expirePoints(parseDate("2020-11-06 00:00:00 GMT"), 1));
+    }
+
+    @Test
+    public void expirePoints_expiresPointsAddedSinceAnAccountWasLastSwept() throws Exception {
+        final ShardedAccountPointsService service = new ShardedAccountPointsService(1);
+
+        service.addTransaction("alice", new Transaction(
+            "DANNON", 300, parseDate("2020-10-30 10:00:00 GMT"), parseDate("2020-11-05 00:00:00 GMT")));
+        assertEquals(0, service.expirePoints(parseDate("2020-11-02 00:00:00 GMT"), 1));
+
+        // Due before the points the account was scheduled for
+        service.addTransaction("alice", new Transaction(
+            "UNILEVER", 200, parseDate("2020-10-30 11:00:00 GMT"), parseDate("2020-11-03 00:00:00 GMT")));
+        assertEquals(200, service.expirePoints(parseDate("2020-11-04 00:00:00 GMT"), 1));
+        assertEquals(300, service.expirePoints(parseDate("2020-11-06 00:00:00 GMT"), 1));
+        assertEquals(0, service.expirePoints(parseDate("2020-11-07 00:00:00 GMT"), 1));
+    }
+
+    @Test
+    public void constructor_rejectsInvalidSpendStrategy() {
+        assertThrows(IllegalArgumentException.class,
+            () -> new ShardedAccountPointsService(4, LedgerStore.OBJECT, PayerPolicies.NONE, "alice:NEWEST_FIRST"));
+    }
+
+    @Test
+    public void constructor_rejectsInvalidShardCount() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardedAccountPointsService(0));
+    }
+
+    private List<String> describe(final List<PayerPointDelta> deltas) {
+        return deltas.stream().map(delta -> delta.getPayer() + "=" + delta.getPoints()).collect(Collectors.toList());
+    }
+
+    private Date parseDate(String dateString) throws ParseException {
+        return dateFormat.parse(dateString);
+    }
+}
@@ -0,0 +1,67 @@
+package com.cbiegay.points.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import com.cbiegay.points.model.BalanceCheckResult;
+import com.cbiegay.points.model.BalanceCheckResult.BalanceMismatch;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Unit tests for UnspentPoints.
+ */
+public class UnspentPointsTest {
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @Test
+    public void sumPerPayer_matchesSequentialSumAcrossTasks() {
+        final int size = 1_000_003;
+        final int[] payers = new int[size];
+        final int[] points = new int[size];
+        final long[] expected = new long[3];
+        for (int i = 0; i < size; i++) {
+            payers[i] = i % 3;
+            points[i] = i % 2 == 0 ? i : -i / 2;
+            expected[payers[i]] += points[i];
+        }
+
+        final Map<String, Long> sums =
+            new UnspentPoints(new String[] { "ALPHA", "BRAVO", "CHARLIE", "DELTA" }, 4, payers, points, size)
+                .sumPerPayer(pool);
+
+        assertEquals(4, sums.size());
+        assertEquals(expected[0], sums.get("ALPHA"));
+        assertEquals(expected[1], sums.get("BRAVO"));
+        assertEquals(expected[2], sums.get("CHARLIE"));
+        assertEquals(0, sums.get("DELTA"));
+    }
+
+    @Test
+    public void check_reportsPayersThatDontMatch() {
+        final String[] payerNames = { "ALPHA", "BRAVO", "CHARLIE" };
+        final UnspentPoints unspentPoints =
+            new UnspentPoints(payerNames, 3, new int[] { 0, 1, 0, 2 }, new int[] { 100, 50, 25, 10 }, 4);
+
+        final BalanceCheckResult result =
+            unspentPoints.check(Map.of("ALPHA", 125L, "BRAVO", 40L, "DELTA", 0L), pool);
+
+        assertFalse(result.isConsistent());
+        assertEquals(4, result.getTransactionsChecked());
+        assertEquals(3, result.getMismatches().size());
+
+        final Map<String, BalanceMismatch> mismatches = Map.of(
+            result.getMismatches().get(0).getPayer(), result.getMismatches().get(0),
+            result.getMismatches().get(1).getPayer(), result.getMismatches().get(1),
+            result.getMismatches().get(2).getPayer(), result.getMismatches().get(2));
+        assertEquals(50, mismatches.get("BRAVO").getRecomputed());
+        assertEquals(40, mismatches.get("BRAVO").getReported());
+        assertEquals(10, mismatches.get("CHARLIE").getRecomputed());
+        assertNull(mismatches.get("CHARLIE").getReported());
+        assertNull(mismatches.get("DELTA").getRecomputed());
+        assertEquals(0, mismatches.get("DELTA").getReported());
+    }
+}
@@ -0,0 +1,190 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.DispatcherType;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for AdmissionControl.
+ */
+public class AdmissionControlTest {
+
+    private static final String GATEWAY = "10.0.0.100";
+
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void preHandle_rejectsClientsOverRateLimit() throws Exception {
+        final AdmissionControl admissionControl = newAdmissionControl(new AdmissionQueue(4, 4, 1000));
+
+        assertTrue(admit(admissionControl, "/points/spend", "alice"));
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        assertFalse(admissionControl.preHandle(request("/points/spend", "alice"), response, null));
+        assertEquals(429, response.getStatus());
+        assertEquals("2", response.getHeader("Retry-After"));
+
+        // Other clients, and other endpoints, aren't held back by Alice's requests
+        assertTrue(admit(admissionControl, "/points/spend", "bob"));
+        assertTrue(admit(admissionControl, "/points/balances", "alice"));
+
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertTrue(admit(admissionControl, "/points/spend", "alice"));
+        assertEquals(1, meterRegistry.get("points.admission.rejected").tag("reason", "rate_limited").counter().count());
+    }
+
+    @Test
+    public void preHandle_identifiesClientsByAddressWithoutHeader() throws Exception {
+        final AdmissionControl admissionControl = newAdmissionControl(new AdmissionQueue(4, 4, 1000));
+
+        assertTrue(admissionControl.preHandle(direct("10.0.0.1", null), new MockHttpServletResponse(), null));
+        assertFalse(admissionControl.preHandle(direct("10.0.0.1", null), new MockHttpServletResponse(), null));
+        assertTrue(admissionControl.preHandle(direct("10.0.0.2", null), new MockHttpServletResponse(), null));
+
+        // A proxy's requests without the header all count as its own
+        assertTrue(admissionControl.preHandle(direct(GATEWAY, null), new MockHttpServletResponse(), null));
+        assertFalse(admissionControl.preHandle(direct(GATEWAY, null), new MockHttpServletResponse(), null));
+    }
+
+    @Test
+    public void preHandle_ignoresClientHeaderFromUntrustedAddresses() throws Exception {
+        final AdmissionControl admissionControl = newAdmissionControl(new AdmissionQueue(4, 4, 1000));
+
+        assertTrue(admissionControl.preHandle(direct("10.0.0.1", "alice"), new MockHttpServletResponse(), null));
+        assertFalse(admissionControl.preHandle(direct("10.0.0.1", "bob"), new MockHttpServletResponse(), null));
+
+        // Alice's requests through the gateway are limited separately from her direct ones
+        assertTrue(admit(admissionControl, "/points/spend", "alice"));
+    }
+
+    @Test
+    public void preHandle_rejectsAtOnceWhenQueueFull() throws Exception {
+        final AdmissionQueue admissionQueue = new AdmissionQueue(1, 1, TimeUnit.MINUTES.toMillis(1));
+        final AdmissionControl admissionControl = newAdmissionControl(admissionQueue);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            final MockHttpServletRequest running = request("/points/spend/batch", "alice");
+            assertTrue(admissionControl.preHandle(running, new MockHttpServletResponse(), null));
+
+            final MockHttpServletRequest waiting = request("/points/spend/batch", "bob");
+            final Future<Boolean> waited = executor.submit(
+                () -> admissionControl.preHandle(waiting, new MockHttpServletResponse(), null));
+            awaitQueued(admissionQueue, 1);
+
+            final MockHttpServletResponse response = new MockHttpServletResponse();
+            assertFalse(admissionControl.preHandle(request("/points/spend/batch", "carol"), response, null));
+            assertEquals(429, response.getStatus());
+            assertEquals("3", response.getHeader("Retry-After"));
+            assertEquals(
+                1, meterRegistry.get("points.admission.rejected").tag("reason", "queue_full").counter().count());
+
+            // Endpoints that aren't queued are let through regardless
+            assertTrue(admit(admissionControl, "/points/balances", "dave"));
+
+            admissionControl.afterCompletion(running, new MockHttpServletResponse(), null, null);
+            assertTrue(waited.get(5, TimeUnit.SECONDS));
+            assertEquals(1, meterRegistry.get("points.admission.active").gauge().value());
+            admissionControl.afterCompletion(waiting, new MockHttpServletResponse(), null, null);
+            assertEquals(0, meterRegistry.get("points.admission.active").gauge().value());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void preHandle_rejectsAfterWaitingTooLong() throws Exception {
+        final AdmissionControl admissionControl = newAdmissionControl(new AdmissionQueue(1, 4, 10));
+
+        assertTrue(admit(admissionControl, "/points/spend/batch", "alice"));
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        assertFalse(admissionControl.preHandle(request("/points/spend/batch", "bob"), response, null));
+        assertEquals(429, response.getStatus());
+        assertEquals(1, meterRegistry.get("points.admission.rejected").tag("reason", "timed_out").counter().count());
+    }
+
+    @Test
+    public void preHandle_ignoresAsyncDispatches() throws Exception {
+        final AdmissionControl admissionControl = newAdmissionControl(new AdmissionQueue(1, 0, 0));
+
+        final MockHttpServletRequest request = request("/points/spend", "alice");
+        assertTrue(admissionControl.preHandle(request, new MockHttpServletResponse(), null));
+        request.setDispatcherType(DispatcherType.ASYNC);
+        assertTrue(admissionControl.preHandle(request, new MockHttpServletResponse(), null));
+        admissionControl.afterCompletion(request, new MockHttpServletResponse(), null, null);
+
+        assertTrue(admit(admissionControl, "/points/spend", "bob"));
+    }
+
+    /**
+     * Admission control allowing each client one spend every two seconds, and queueing spends.
+     */
+    private AdmissionControl newAdmissionControl(final AdmissionQueue admissionQueue) {
+        final RateLimiter rateLimiter = new RateLimiter(
+            Map.of("/points/spend", RateLimiter.Limit.parse("0.5/1")), 100, nanoTime::get);
+        return new AdmissionControl(
+            rateLimiter,
+            admissionQueue,
+            Set.of("/points/spend", "/points/spend/batch"),
+            "X-Client-Id",
+            Set.of(GATEWAY),
+            3,
+            meterRegistry);
+    }
+
+    private static boolean admit(
+        final AdmissionControl admissionControl,
+        final String endpoint,
+        final String client) throws Exception {
+
+        return admissionControl.preHandle(request(endpoint, client), new MockHttpServletResponse(), null);
+    }
+
+    /**
+     * A request from a client through the gateway.
+     */
+    private static MockHttpServletRequest request(final String endpoint, final String client) {
+        return request(endpoint, GATEWAY, client);
+    }
+
+    /**
+     * A spend from an address, with the client header if client isn't null.
+     */
+    private static MockHttpServletRequest direct(final String address, final String client) {
+        return request("/points/spend", address, client);
+    }
+
+    private static MockHttpServletRequest request(final String endpoint, final String address, final String client) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("POST", endpoint);
+        request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, endpoint);
+        request.setRemoteAddr(address);
+        if (client != null) {
+            request.addHeader("X-Client-Id", client);
+        }
+        return request;
+    }
+
+    private static void awaitQueued(final AdmissionQueue admissionQueue, final int expected)
+    throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (admissionQueue.getQueued() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, admissionQueue.getQueued());
+    }
+}
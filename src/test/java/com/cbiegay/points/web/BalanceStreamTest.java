@@ -0,0 +1,214 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.service.DefaultPointsService;
+import com.cbiegay.points.service.LedgerStore;
+import com.cbiegay.points.service.PayerPolicies;
+import com.cbiegay.points.service.PointsService;
+import com.cbiegay.points.service.ReplicaPointsService;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for BalanceStream. Publishing is driven by the tests rather than the coalescing window, which is set
+ * longer than any test runs.
+ */
+public class BalanceStreamTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void subscribe_balancesThenChangesMergedPerPublish() throws Exception {
+        final PointsService service = new DefaultPointsService();
+        service.addTransaction(new Transaction("DANNON", 1000, parseDate("2020-11-02 14:00:00 GMT")));
+        final BalanceStream stream = newStream(service, 8, Runnable::run, new SimpleMeterRegistry());
+
+        final List<BalanceStream.Event> events = new ArrayList<>();
+        stream.subscribe(new CollectingSink(events));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-10-31 11:00:00 GMT")));
+        service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-11-03 14:00:00 GMT")));
+        service.spend(100);
+        stream.publish();
+        stream.publish();
+
+        assertEquals(2, events.size());
+        assertEquals("balances", events.get(0).name);
+        assertEquals(Map.of("DANNON", 1000L), payerPoints(events.get(0)));
+        assertEquals("deltas", events.get(1).name);
+        assertEquals(Map.of("DANNON", 300L, "UNILEVER", 100L), payerPoints(events.get(1)));
+
+        // Later subscribers start from the balances as of the last publish
+        final List<BalanceStream.Event> laterEvents = new ArrayList<>();
+        service.addTransaction(new Transaction("DANNON", 50, parseDate("2020-11-04 14:00:00 GMT")));
+        stream.subscribe(new CollectingSink(laterEvents));
+        stream.publish();
+        stream.keepAlive();
+
+        assertEquals(Map.of("DANNON", 1300L, "UNILEVER", 100L), payerPoints(laterEvents.get(0)));
+        assertEquals(Map.of("DANNON", 50L), payerPoints(laterEvents.get(1)));
+        assertNull(laterEvents.get(2).name);
+        assertEquals(4, events.size());
+        stream.close();
+    }
+
+    @Test
+    public void subscribe_changesThatCancelOutNotSent() throws Exception {
+        final PointsService service = new DefaultPointsService();
+        final BalanceStream stream = newStream(service, 8, Runnable::run, new SimpleMeterRegistry());
+
+        final List<BalanceStream.Event> events = new ArrayList<>();
+        stream.subscribe(new CollectingSink(events));
+        service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-11-02 14:00:00 GMT")));
+        service.addTransaction(new Transaction("UNILEVER", 200, parseDate("2020-11-02 15:00:00 GMT")));
+        service.spend(300);
+        stream.publish();
+
+        assertEquals(2, events.size());
+        assertEquals(Map.of("UNILEVER", 200L), payerPoints(events.get(1)));
+        stream.close();
+    }
+
+    @Test
+    public void slowSubscriber_droppedWithoutHoldingUpOthers() throws Exception {
+        final PointsService service = new DefaultPointsService();
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final ExecutorService senders = Executors.newCachedThreadPool();
+        final BalanceStream stream = newStream(service, 4, senders, registry);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch slowClosed = new CountDownLatch(1);
+        stream.subscribe(new BalanceStream.EventSink() {
+            @Override
+            public void send(final BalanceStream.Event event) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void close() {
+                slowClosed.countDown();
+            }
+        });
+        final BlockingQueue<BalanceStream.Event> fastEvents = new LinkedBlockingQueue<>();
+        stream.subscribe(new CollectingSink(fastEvents));
+        assertEquals("balances", fastEvents.poll(5, TimeUnit.SECONDS).name);
+
+        // The slow subscriber is stuck sending its first event, so its queue fills up while the other keeps up
+        for (int i = 1; i <= 5; i++) {
+            service.addTransaction(new Transaction("DANNON", i, parseDate("2020-11-02 14:00:00 GMT")));
+            stream.publish();
+            assertEquals(Map.of("DANNON", (long) i), payerPoints(fastEvents.poll(5, TimeUnit.SECONDS)));
+        }
+
+        assertEquals(1, stream.getSubscriberCount());
+        assertEquals(1, registry.get("points.balances.stream.dropped").counter().count());
+        assertEquals(1, registry.get("points.balances.stream.subscribers").gauge().value());
+
+        // The stream is closed once the send it's stuck on returns
+        release.countDown();
+        assertTrue(slowClosed.await(5, TimeUnit.SECONDS));
+        stream.close();
+        senders.shutdown();
+    }
+
+    @Test
+    public void failedSend_unsubscribes() throws Exception {
+        final PointsService service = new DefaultPointsService();
+        final BalanceStream stream = newStream(service, 8, Runnable::run, new SimpleMeterRegistry());
+
+        final List<BalanceStream.Event> events = new ArrayList<>();
+        stream.subscribe(new CollectingSink(events) {
+            @Override
+            public void send(final BalanceStream.Event event) throws IOException {
+                super.send(event);
+                if (event.name == null) {
+                    throw new IOException("Broken pipe");
+                }
+            }
+        });
+        assertEquals(1, stream.getSubscriberCount());
+
+        stream.keepAlive();
+        assertEquals(0, stream.getSubscriberCount());
+        service.addTransaction(new Transaction("DANNON", 300, parseDate("2020-11-02 14:00:00 GMT")));
+        stream.publish();
+        assertEquals(2, events.size());
+        stream.close();
+    }
+
+    @Test
+    public void subscribe_failsForReplicas() {
+        final PointsService replica = new ReplicaPointsService(
+            LedgerStore.OBJECT, PayerPolicies.NONE, new SimpleMeterRegistry(), 5000);
+        final BalanceStream stream = newStream(replica, 8, Runnable::run, new SimpleMeterRegistry());
+
+        final CollectingSink sink = new CollectingSink(new ArrayList<>());
+        assertThrows(UnsupportedOperationException.class, () -> stream.subscribe(sink));
+        assertEquals(0, stream.getSubscriberCount());
+        stream.close();
+    }
+
+    private BalanceStream newStream(
+        final PointsService service,
+        final int maxQueued,
+        final Executor senders,
+        final MeterRegistry registry) {
+
+        return new BalanceStream(service, objectMapper, NEVER, NEVER, maxQueued, senders, registry);
+    }
+
+    private Map<String, Long> payerPoints(final BalanceStream.Event event) throws IOException {
+        return objectMapper.readValue(event.data, new TypeReference<Map<String, Long>>() { });
+    }
+
+    private Date parseDate(String dateString) throws ParseException {
+        return dateFormat.parse(dateString);
+    }
+
+    private static class CollectingSink implements BalanceStream.EventSink {
+
+        private final Collection<BalanceStream.Event> events;
+
+        CollectingSink(final Collection<BalanceStream.Event> events) {
+            this.events = events;
+        }
+
+        @Override
+        public void send(final BalanceStream.Event event) throws IOException {
+            events.add(event);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
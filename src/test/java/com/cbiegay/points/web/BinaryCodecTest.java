@@ -0,0 +1,113 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.PointSpend;
+import com.cbiegay.points.model.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for BinaryCodec.
+ */
+public class BinaryCodecTest {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final BinaryCodec.Writer writer = new BinaryCodec.Writer(bytes);
+
+    @Test
+    public void transaction_roundTripsWithExtremeValues() throws Exception {
+        writer.writeTransaction(new Transaction("DANNON", Integer.MIN_VALUE, new Date(-1), new Date(Long.MAX_VALUE)));
+        writer.writeTransaction(new Transaction("\u00dcNILEVER", Integer.MAX_VALUE, new Date(1604325600000L)));
+        writer.flush();
+
+        final BinaryCodec.Reader reader = reader();
+        final Transaction first = reader.readTransaction();
+        assertEquals("DANNON", first.getPayer());
+        assertEquals(Integer.MIN_VALUE, first.getPoints());
+        assertEquals(-1, first.getTimestamp().getTime());
+        assertEquals(Long.MAX_VALUE, first.getExpiresAt().getTime());
+
+        final Transaction second = reader.readTransaction();
+        assertEquals("\u00dcNILEVER", second.getPayer());
+        assertEquals(Integer.MAX_VALUE, second.getPoints());
+        assertNull(second.getExpiresAt());
+        assertTrue(reader.atEnd());
+    }
+
+    @Test
+    public void transaction_smallerThanJson() throws Exception {
+        writer.writeTransaction(new Transaction("DANNON", 1000, new Date(1604325600000L)));
+        writer.flush();
+
+        // {"payer":"DANNON","points":1000,"timestamp":"2020-11-02T14:00:00.000+00:00"} is 75 bytes
+        assertEquals(1 + 6 + 2 + 6 + 1, bytes.size());
+    }
+
+    @Test
+    public void spendResults_roundTripWithSkippedAmounts() throws Exception {
+        writer.writeSpendResults(Arrays.asList(
+            List.of(new PayerPointDelta("DANNON", -100), new PayerPointDelta("UNILEVER", -200)),
+            null,
+            List.of()));
+        writer.flush();
+
+        final List<List<PayerPointDelta>> results = reader().readSpendResults();
+        assertEquals(3, results.size());
+        assertEquals("UNILEVER", results.get(0).get(1).getPayer());
+        assertEquals(-200, results.get(0).get(1).getPoints());
+        assertNull(results.get(1));
+        assertEquals(0, results.get(2).size());
+    }
+
+    @Test
+    public void balancesAndSpends_roundTrip() throws Exception {
+        writer.writeBalances(Map.of("DANNON", 1100L, "UNILEVER", -5_000_000_000L));
+        final PointSpend pointSpend = new PointSpend();
+        pointSpend.setPoints(5000);
+        writer.writePointSpends(List.of(pointSpend, pointSpend));
+        writer.flush();
+
+        final BinaryCodec.Reader reader = reader();
+        assertEquals(Map.of("DANNON", 1100L, "UNILEVER", -5_000_000_000L), reader.readBalances());
+        final List<PointSpend> pointSpends = reader.readPointSpends();
+        assertEquals(2, pointSpends.size());
+        assertEquals(5000, pointSpends.get(1).getPoints());
+    }
+
+    @Test
+    public void reader_decodesEachPayerOnce() throws Exception {
+        writer.writeDeltas(List.of(new PayerPointDelta("DANNON", -100), new PayerPointDelta("DANNON", -200)));
+        writer.flush();
+
+        final List<PayerPointDelta> deltas = reader().readDeltas();
+        assertSame(deltas.get(0).getPayer(), deltas.get(1).getPayer());
+    }
+
+    @Test
+    public void reader_rejectsMalformedInput() throws Exception {
+        writer.writeTransaction(new Transaction("DANNON", 1000, new Date(1604325600000L)));
+        writer.flush();
+        final byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+        final byte[] outOfRange = { 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f };
+
+        assertThrows(BinaryCodec.MalformedInputException.class, () ->
+            new BinaryCodec.Reader(new ByteArrayInputStream(truncated)).readTransaction());
+        assertThrows(BinaryCodec.MalformedInputException.class, () ->
+            new BinaryCodec.Reader(new ByteArrayInputStream(outOfRange)).readTransaction());
+    }
+
+    private BinaryCodec.Reader reader() {
+        return new BinaryCodec.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
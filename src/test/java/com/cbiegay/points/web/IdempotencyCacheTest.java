@@ -0,0 +1,174 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import com.cbiegay.points.InsufficientPointsException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for IdempotencyCache.
+ */
+public class IdempotencyCacheTest {
+
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final IdempotencyCache cache = new IdempotencyCache(4, 2, 1000, nanoTime::get, meterRegistry);
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @Test
+    public void execute_returnsStoredResultForRepeatedKey() {
+        assertEquals(1, cache.execute("spend", "key-1", 0, runs::incrementAndGet));
+        assertEquals(1, cache.execute("spend", "key-1", 0, runs::incrementAndGet));
+        assertEquals(1, runs.get());
+
+        assertEquals(1, meterRegistry.get("points.idempotency.requests").tag("result", "hit").counter().count());
+        assertEquals(1, meterRegistry.get("points.idempotency.requests").tag("result", "miss").counter().count());
+    }
+
+    @Test
+    public void execute_alwaysRunsWithoutKey() {
+        cache.execute("spend", null, 0, runs::incrementAndGet);
+        cache.execute("spend", null, 0, runs::incrementAndGet);
+        cache.execute("spend", "", 0, runs::incrementAndGet);
+
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void execute_keepsScopesSeparate() {
+        assertEquals(1, cache.execute("spend", "key-1", 0, runs::incrementAndGet));
+        assertEquals(2, cache.execute("transaction", "key-1", 0, runs::incrementAndGet));
+    }
+
+    @Test
+    public void execute_runsAgainOnceExpired() {
+        cache.execute("spend", "key-1", 0, runs::incrementAndGet);
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertEquals(1, cache.execute("spend", "key-1", 0, runs::incrementAndGet));
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(2, cache.execute("spend", "key-1", 0, runs::incrementAndGet));
+    }
+
+    @Test
+    public void execute_evictsLeastRecentlyUsedKeys() {
+        for (int i = 0; i < 100; i++) {
+            cache.execute("spend", "key-" + i, 0, runs::incrementAndGet);
+        }
+
+        assertEquals(4, cache.size());
+        assertEquals(101, cache.execute("spend", "key-0", 0, runs::incrementAndGet));
+    }
+
+    @Test
+    public void execute_doesNotStoreFailures() {
+        assertThrows(InsufficientPointsException.class, () ->
+            cache.execute("spend", "key-1", 0, () -> {
+                runs.incrementAndGet();
+                throw new InsufficientPointsException();
+            }));
+        assertThrows(IllegalArgumentException.class, () ->
+            cache.execute("spend", "key-1", 0, () -> {
+                runs.incrementAndGet();
+                throw new IllegalArgumentException();
+            }));
+        assertThrows(IllegalStateException.class, () ->
+            cache.execute("spend", "key-1", 0, () -> {
+                runs.incrementAndGet();
+                throw new IllegalStateException();
+            }));
+
+        assertEquals(4, cache.execute("spend", "key-1", 0, runs::incrementAndGet));
+        assertEquals(4, cache.execute("spend", "key-1", 0, runs::incrementAndGet));
+    }
+
+    @Test
+    public void execute_refusesKeyReusedForDifferentRequest() {
+        assertEquals(1, cache.execute("spend", "key-1", 100, runs::incrementAndGet));
+
+        assertThrows(IdempotencyCache.KeyReusedException.class, () ->
+            cache.execute("spend", "key-1", 200, runs::incrementAndGet));
+        assertEquals(1, cache.execute("spend", "key-1", 100, runs::incrementAndGet));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void execute_refusesKeyReusedForDifferentRequestWithSameHash() {
+        // "Aa" and "BB" have the same hash code
+        assertEquals(1, cache.execute("spend", "key-1", Arrays.asList("Aa", 100), runs::incrementAndGet));
+
+        assertThrows(IdempotencyCache.KeyReusedException.class, () ->
+            cache.execute("spend", "key-1", Arrays.asList("BB", 100), runs::incrementAndGet));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void execute_neverEvictsAttemptsInProgress() throws Exception {
+        final IdempotencyCache oneStripe = new IdempotencyCache(2, 1, 1000, nanoTime::get, meterRegistry);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            final Future<Integer> running = executor.submit(() -> oneStripe.execute("spend", "key-0", 0, () -> {
+                started.countDown();
+                finish.await();
+                return runs.incrementAndGet();
+            }));
+            started.await();
+
+            // The attempt in progress is the least recently used entry throughout
+            for (int i = 1; i <= 10; i++) {
+                oneStripe.execute("spend", "key-" + i, 0, () -> 0);
+            }
+            assertEquals(2, oneStripe.size());
+
+            final Future<Integer> retry = executor.submit(() ->
+                oneStripe.execute("spend", "key-0", 0, runs::incrementAndGet));
+            finish.countDown();
+
+            assertEquals(1, running.get(5, TimeUnit.SECONDS));
+            assertEquals(1, retry.get(5, TimeUnit.SECONDS));
+            assertEquals(1, runs.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void execute_retryWaitsForAttemptInProgress() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            final Future<Integer> first = executor.submit(() -> cache.execute("spend", "key-1", 0, () -> {
+                started.countDown();
+                finish.await();
+                return runs.incrementAndGet();
+            }));
+            started.await();
+
+            final Future<Integer> retry = executor.submit(() ->
+                cache.execute("spend", "key-1", 0, runs::incrementAndGet));
+            finish.countDown();
+
+            assertEquals(1, first.get(5, TimeUnit.SECONDS));
+            assertEquals(1, retry.get(5, TimeUnit.SECONDS));
+            assertEquals(1, runs.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,26 +1,49 @@
 package com.cbiegay.points.web;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
+import static org.springframework.http.MediaType.TEXT_EVENT_STREAM;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.UnavailableStrategyException;
+import com.cbiegay.points.model.BalanceCheckResult;
+import com.cbiegay.points.model.BalanceCheckResult.BalanceMismatch;
 import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
 import com.cbiegay.points.model.Transaction;
-import com.cbiegay.points.service.DefaultPointsService;
+import com.cbiegay.points.service.AccountPointsService;
+import com.cbiegay.points.service.PointsService;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -32,6 +55,7 @@ import java.util.Map;
  * Unit tests for PointsController.
  */
 @WebMvcTest(PointsController.class)
+@Import(IdempotencyCache.class)
 public class PointsControllerTest {
 
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
@@ -40,11 +64,20 @@ public class PointsControllerTest {
     private MockMvc mockMvc;
 
     @MockBean
-    private DefaultPointsService pointsService;
+    private PointsService pointsService;
+
+    @MockBean
+    private AccountPointsService accountPointsService;
+
+    @MockBean
+    private BalanceStream balanceStream;
 
     @Captor
     private ArgumentCaptor<Transaction> transactionCaptor;
 
+    @Captor
+    private ArgumentCaptor<List<Transaction>> transactionListCaptor;
+
     @Test
     public void addTransaction_handlesAddedTransactionSuccessfully() throws Exception {
         mockMvc.perform(
@@ -59,6 +92,98 @@ public class PointsControllerTest {
         assertEquals(toDate("2020-11-02T14:00:00Z"), transactionCaptor.getValue().getTimestamp());
     }
 
+    @Test
+    public void addTransaction_returnsErrorIfPointsMissing() throws Exception {
+        doThrow(new IllegalArgumentException("Missing points")).when(pointsService).addTransaction(any());
+
+        mockMvc.perform(
+            post("/points/transaction")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"payer\": \"DANNON\", \"timestamp\": \"2020-11-02T14:00:00Z\" }"))
+            .andExpect(status().isBadRequest())
+            .andExpect(content().string("Missing payer or points"));
+    }
+
+    @Test
+    public void addTransaction_acceptsTimestampsInOtherForms() throws Exception {
+        mockMvc.perform(
+            post("/points/transaction")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02\" }"))
+            .andExpect(status().isOk());
+        mockMvc.perform(
+            post("/points/transaction")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": 1604325600000 }"))
+            .andExpect(status().isOk());
+
+        verify(pointsService, times(2)).addTransaction(transactionCaptor.capture());
+        assertEquals(toDate("2020-11-02T00:00:00Z"), transactionCaptor.getAllValues().get(0).getTimestamp());
+        assertEquals(toDate("2020-11-02T14:00:00Z"), transactionCaptor.getAllValues().get(1).getTimestamp());
+    }
+
+    @Test
+    public void addTransaction_withRepeatedIdempotencyKeyAddsOnce() throws Exception {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            mockMvc.perform(
+                post("/points/transaction")
+                    .header("Idempotency-Key", "transaction-key-1")
+                    .contentType(APPLICATION_JSON)
+                    .content("{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\" }"))
+                .andExpect(status().isOk());
+        }
+
+        verify(pointsService, times(1)).addTransaction(transactionCaptor.capture());
+    }
+
+    @Test
+    public void addTransactionBatch_addsValidRowsAndReportsRejectedRows() throws Exception {
+        mockMvc.perform(
+            post("/points/transactions/batch")
+                .contentType(APPLICATION_NDJSON)
+                .content("{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\" }\n"
+                    + "{ \"payer\": \"UNILEVER\" }\n"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("{\"accepted\":1,\"rejected\":1,"
+                + "\"rejectedRows\":[{\"row\":2,\"reason\":\"Missing payer, points or timestamp\"}]}"));
+
+        verify(pointsService).addTransactions(transactionListCaptor.capture());
+        assertEquals(1, transactionListCaptor.getValue().size());
+        assertEquals("DANNON", transactionListCaptor.getValue().get(0).getPayer());
+        assertEquals(toDate("2020-11-02T14:00:00Z"), transactionListCaptor.getValue().get(0).getTimestamp());
+    }
+
+    @Test
+    public void addTransactionBatch_returnsErrorOnMalformedJson() throws Exception {
+        mockMvc.perform(
+            post("/points/transactions/batch")
+                .contentType(APPLICATION_JSON)
+                .content("[{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\" }, {"))
+            .andExpect(status().is(HttpStatus.BAD_REQUEST.value()))
+            .andExpect(content().json("{\"accepted\":1,\"rejected\":0}"));
+    }
+
+    @Test
+    public void addTransactionBatch_readsBinaryFormat() throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final BinaryCodec.Writer writer = new BinaryCodec.Writer(body);
+        writer.writeTransaction(new Transaction("DANNON", 1000, toDate("2020-11-02T14:00:00Z")));
+        writer.writeTransaction(new Transaction("UNILEVER", -200, toDate("2020-10-31T11:00:00Z")));
+        writer.flush();
+
+        mockMvc.perform(
+            post("/points/transactions/batch")
+                .contentType(BinaryCodec.MEDIA_TYPE)
+                .content(body.toByteArray()))
+            .andExpect(status().isOk())
+            .andExpect(content().json("{\"accepted\":2,\"rejected\":0}"));
+
+        verify(pointsService).addTransactions(transactionListCaptor.capture());
+        assertEquals(2, transactionListCaptor.getValue().size());
+        assertEquals(-200, transactionListCaptor.getValue().get(1).getPoints());
+        assertEquals(toDate("2020-11-02T14:00:00Z"), transactionListCaptor.getValue().get(0).getTimestamp());
+    }
+
     @Test
     public void spend_handlesPointSpendSuccessfully() throws Exception {
         final List<PayerPointDelta> payerPointDeltas = Arrays.asList(
@@ -78,6 +203,44 @@ public class PointsControllerTest {
         verify(pointsService).spend(5000);
     }
 
+    @Test
+    public void spend_withRepeatedIdempotencyKeySpendsOnce() throws Exception {
+        when(pointsService.spend(5000)).thenReturn(Arrays.asList(new PayerPointDelta("ALPHA", -5000)));
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            mockMvc.perform(
+                post("/points/spend")
+                    .header("Idempotency-Key", "spend-key-1")
+                    .contentType(APPLICATION_JSON)
+                    .content("{ \"points\": 5000 }"))
+                .andExpect(status().isOk())
+                .andExpect(content().json("[{\"payer\":\"ALPHA\",\"points\":-5000}]"));
+        }
+
+        verify(pointsService, times(1)).spend(5000);
+    }
+
+    @Test
+    public void spend_withIdempotencyKeyOfDifferentRequestIsRefused() throws Exception {
+        when(pointsService.spend(5000)).thenReturn(Arrays.asList(new PayerPointDelta("ALPHA", -5000)));
+
+        mockMvc.perform(
+            post("/points/spend")
+                .header("Idempotency-Key", "spend-key-2")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 5000 }"))
+            .andExpect(status().isOk());
+        mockMvc.perform(
+            post("/points/spend")
+                .header("Idempotency-Key", "spend-key-2")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 6000 }"))
+            .andExpect(status().is(HttpStatus.UNPROCESSABLE_ENTITY.value()))
+            .andExpect(content().string("Idempotency-Key was already used for a different request"));
+
+        verify(pointsService, never()).spend(6000);
+    }
+
     @Test
     public void spend_returnsErrorOnOverspend() throws Exception {
         when(pointsService.spend(5000)).thenThrow(InsufficientPointsException.class);
@@ -102,10 +265,130 @@ public class PointsControllerTest {
             .andExpect(content().string("Cannot spend less than one point"));
     }
 
+    @Test
+    public void spendBatch_returnsErrorIfSpendMissing() throws Exception {
+        mockMvc.perform(
+            post("/points/spend/batch")
+                .contentType(APPLICATION_JSON)
+                .content("[{ \"points\": 100 }, null]"))
+            .andExpect(status().is(HttpStatus.BAD_REQUEST.value()))
+            .andExpect(content().string("Missing points in spend 1"));
+
+        verify(pointsService, never()).spendBatch(anyList(), anyBoolean());
+    }
+
+    @Test
+    public void spend_withStrategySpendsWithIt() throws Exception {
+        when(pointsService.spend(5000, SpendStrategy.PROPORTIONAL)).thenReturn(Arrays.asList(
+            new PayerPointDelta("ALPHA", -2000),
+            new PayerPointDelta("BRAVO", -3000)));
+
+        mockMvc.perform(
+            post("/points/spend?strategy=PROPORTIONAL")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 5000 }"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("[{\"payer\":\"ALPHA\",\"points\":-2000},{\"payer\":\"BRAVO\"}]"));
+
+        verify(pointsService, never()).spend(anyInt());
+    }
+
+    @Test
+    public void spend_returnsErrorIfUnknownStrategy() throws Exception {
+        mockMvc.perform(
+            post("/points/spend?strategy=NEWEST_FIRST")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 5000 }"))
+            .andExpect(status().is(HttpStatus.BAD_REQUEST.value()));
+
+        verify(pointsService, never()).spend(anyInt());
+    }
+
+    @Test
+    public void spendBatch_returnsResultPerSpend() throws Exception {
+        when(pointsService.spendBatch(List.of(100, 200), false)).thenReturn(Arrays.asList(
+            List.of(new PayerPointDelta("ALPHA", -100)),
+            null));
+
+        mockMvc.perform(
+            post("/points/spend/batch?allOrNothing=false")
+                .contentType(APPLICATION_JSON)
+                .content("[{ \"points\": 100 }, { \"points\": 200 }]"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("[[{\"payer\":\"ALPHA\",\"points\":-100}],null]"));
+    }
+
+    @Test
+    public void spendBatch_returnsErrorOnOverspend() throws Exception {
+        when(pointsService.spendBatch(List.of(100, 200), true)).thenThrow(InsufficientPointsException.class);
+
+        mockMvc.perform(
+            post("/points/spend/batch")
+                .contentType(APPLICATION_JSON)
+                .content("[{ \"points\": 100 }, { \"points\": 200 }]"))
+            .andExpect(status().is(HttpStatus.UNPROCESSABLE_ENTITY.value()))
+            .andExpect(content().string("Insufficient points"));
+    }
+
+    @Test
+    public void previewSpend_returnsDeltasWithoutSpending() throws Exception {
+        when(pointsService.previewSpend(5000)).thenReturn(Arrays.asList(
+            new PayerPointDelta("ALPHA", -2000),
+            new PayerPointDelta("BRAVO", -3000)));
+
+        mockMvc.perform(
+            post("/points/spend/preview")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 5000 }"))
+            .andExpect(status().isOk())
+            .andExpect(content().json(
+                "[{\"payer\":\"ALPHA\",\"points\":-2000},{\"payer\":\"BRAVO\",\"points\":-3000}]"));
+
+        verify(pointsService, never()).spend(anyInt());
+    }
+
+    @Test
+    public void previewSpend_withStrategyPreviewsIt() throws Exception {
+        when(pointsService.previewSpend(5000, SpendStrategy.EXPIRY_FIRST)).thenReturn(Arrays.asList(
+            new PayerPointDelta("ALPHA", -5000)));
+
+        mockMvc.perform(
+            post("/points/spend/preview?strategy=EXPIRY_FIRST")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 5000 }"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("[{\"payer\":\"ALPHA\",\"points\":-5000}]"));
+    }
+
+    @Test
+    public void spend_returnsErrorIfStrategyUnavailable() throws Exception {
+        when(pointsService.spend(5000, SpendStrategy.EXPIRY_FIRST))
+            .thenThrow(new UnavailableStrategyException("Cannot spend expiring points first"));
+
+        mockMvc.perform(
+            post("/points/spend?strategy=EXPIRY_FIRST")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 5000 }"))
+            .andExpect(status().is(HttpStatus.BAD_REQUEST.value()))
+            .andExpect(content().string("Cannot spend expiring points first"));
+    }
+
+    @Test
+    public void previewSpend_returnsErrorOnOverspend() throws Exception {
+        when(pointsService.previewSpend(5000)).thenThrow(InsufficientPointsException.class);
+
+        mockMvc.perform(
+            post("/points/spend/preview")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 5000 }"))
+            .andExpect(status().is(HttpStatus.UNPROCESSABLE_ENTITY.value()))
+            .andExpect(content().string("Insufficient points"));
+    }
+
     @Test
     public void getBalances_returnsBalanceData() throws Exception {
         when(pointsService.getBalances()).thenReturn(
-            Map.of("ALPHA", 100, "BRAVO", 200));
+            Map.of("ALPHA", 100L, "BRAVO", 200L));
 
         mockMvc.perform(
             get("/points/balances"))
@@ -113,6 +396,192 @@ public class PointsControllerTest {
             .andExpect(content().json("{\"ALPHA\":100,\"BRAVO\":200}"));
     }
 
+    @Test
+    public void getBalances_asOfReturnsBalancesAtThatTime() throws Exception {
+        when(pointsService.getBalances(toDate("2020-11-01T00:00:00Z"))).thenReturn(Map.of("ALPHA", 50L));
+
+        mockMvc.perform(
+            get("/points/balances").param("asOf", "2020-11-01T00:00:00Z"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("{\"ALPHA\":50}"));
+    }
+
+    @Test
+    public void getBalances_inBinaryFormatWhenAccepted() throws Exception {
+        when(pointsService.getBalances()).thenReturn(Map.of("ALPHA", 100L));
+
+        final MvcResult result = mockMvc.perform(
+            get("/points/balances").accept(BinaryCodec.MEDIA_TYPE))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType(BinaryCodec.MEDIA_TYPE))
+            .andReturn();
+
+        final BinaryCodec.Reader reader =
+            new BinaryCodec.Reader(new ByteArrayInputStream(result.getResponse().getContentAsByteArray()));
+        assertEquals(Map.of("ALPHA", 100L), reader.readBalances());
+    }
+
+    @Test
+    public void getBalances_returnsErrorIfAsOfInvalid() throws Exception {
+        mockMvc.perform(
+            get("/points/balances").param("asOf", "yesterday"))
+            .andExpect(status().is(HttpStatus.BAD_REQUEST.value()));
+    }
+
+    @Test
+    public void streamBalances_sendsEventsFromBalanceStream() throws Exception {
+        final SseEmitter emitter = new SseEmitter();
+        emitter.send(SseEmitter.event().name("balances").data("{\"DANNON\":300}"));
+        emitter.complete();
+        when(balanceStream.subscribe()).thenReturn(emitter);
+
+        final MvcResult result = mockMvc.perform(get("/points/balances/stream"))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(content().contentTypeCompatibleWith(TEXT_EVENT_STREAM))
+            .andExpect(content().string("event:balances\ndata:{\"DANNON\":300}\n\n"));
+    }
+
+    @Test
+    public void streamBalances_notImplementedWhenServiceCantReportChanges() throws Exception {
+        when(balanceStream.subscribe()).thenThrow(new UnsupportedOperationException());
+
+        mockMvc.perform(get("/points/balances/stream"))
+            .andExpect(status().isNotImplemented());
+    }
+
+    @Test
+    public void checkBalances_returnsMismatches() throws Exception {
+        when(pointsService.checkBalances()).thenReturn(
+            new BalanceCheckResult(2, 2, List.of(new BalanceMismatch("ALPHA", 100L, 90L))));
+
+        mockMvc.perform(
+            get("/points/balances/check"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("{\"consistent\":false,\"transactionsChecked\":2,\"payersChecked\":2,"
+                + "\"mismatches\":[{\"payer\":\"ALPHA\",\"recomputed\":100,\"reported\":90}]}"));
+    }
+
+    @Test
+    public void exportTransactions_streamsPageAsNewlineDelimitedJson() throws Exception {
+        when(pointsService.getTransactions()).thenReturn(exampleTransactions());
+
+        final MvcResult result = mockMvc.perform(
+            get("/points/transactions").param("cursor", "1").param("limit", "1"))
+            .andExpect(request().asyncStarted())
+            .andExpect(header().string(PointsController.NEXT_CURSOR_HEADER, "2"))
+            .andReturn();
+        assertEquals(600000, result.getRequest().getAsyncContext().getTimeout());
+
+        mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType(APPLICATION_NDJSON))
+            .andExpect(content().string(
+                "{\"sequence\":1,\"payer\":\"UNILEVER\",\"points\":200,"
+                    + "\"timestamp\":\"2020-10-31T11:00:00.000+00:00\"}\n"));
+    }
+
+    @Test
+    public void exportTransactions_filtersCsvByPayerAndTime() throws Exception {
+        when(pointsService.getTransactions()).thenReturn(exampleTransactions());
+
+        final MvcResult result = mockMvc.perform(
+            get("/points/transactions")
+                .param("format", "CSV")
+                .param("payer", "DANNON")
+                .param("from", "2020-11-01T00:00:00Z"))
+            .andExpect(request().asyncStarted())
+            .andExpect(header().doesNotExist(PointsController.NEXT_CURSOR_HEADER))
+            .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+            .andExpect(status().isOk())
+            .andExpect(content().string(
+                "sequence,payer,points,timestamp\r\n0,DANNON,1000,2020-11-02T14:00:00.000+00:00\r\n"));
+    }
+
+    @Test
+    public void exportTransactions_returnsErrorIfCursorOrLimitInvalid() throws Exception {
+        mockMvc.perform(
+            get("/points/transactions").param("cursor", "-1"))
+            .andExpect(status().is(HttpStatus.BAD_REQUEST.value()));
+        mockMvc.perform(
+            get("/points/transactions").param("limit", "0"))
+            .andExpect(status().is(HttpStatus.BAD_REQUEST.value()));
+
+        verify(pointsService, never()).getTransactions();
+    }
+
+    @Test
+    public void addAccountTransaction_addsTransactionToAccount() throws Exception {
+        mockMvc.perform(
+            post("/points/member-42/transaction")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\" }"))
+            .andExpect(status().isOk());
+
+        verify(accountPointsService).addTransaction(eq("member-42"), transactionCaptor.capture());
+        assertEquals("DANNON", transactionCaptor.getValue().getPayer());
+        assertEquals(1000, transactionCaptor.getValue().getPoints());
+    }
+
+    @Test
+    public void spendFromAccount_handlesPointSpendSuccessfully() throws Exception {
+        when(accountPointsService.spend("member-42", 300)).thenReturn(List.of(new PayerPointDelta("ALPHA", -300)));
+
+        mockMvc.perform(
+            post("/points/member-42/spend")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 300 }"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("[{\"payer\":\"ALPHA\",\"points\":-300}]"));
+    }
+
+    @Test
+    public void spendFromAccount_withStrategySpendsWithIt() throws Exception {
+        when(accountPointsService.spend("member-42", 300, SpendStrategy.PAYER_PRIORITY))
+            .thenReturn(List.of(new PayerPointDelta("ALPHA", -300)));
+
+        mockMvc.perform(
+            post("/points/member-42/spend?strategy=PAYER_PRIORITY")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 300 }"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("[{\"payer\":\"ALPHA\",\"points\":-300}]"));
+    }
+
+    @Test
+    public void spendFromAccount_returnsErrorOnOverspend() throws Exception {
+        when(accountPointsService.spend("member-42", 300)).thenThrow(InsufficientPointsException.class);
+
+        mockMvc.perform(
+            post("/points/member-42/spend")
+                .contentType(APPLICATION_JSON)
+                .content("{ \"points\": 300 }"))
+            .andExpect(status().is(HttpStatus.UNPROCESSABLE_ENTITY.value()))
+            .andExpect(content().string("Insufficient points"));
+    }
+
+    @Test
+    public void getAccountBalances_returnsBalanceData() throws Exception {
+        when(accountPointsService.getBalances("member-42")).thenReturn(Map.of("ALPHA", 100L));
+
+        mockMvc.perform(
+            get("/points/member-42/balances"))
+            .andExpect(status().isOk())
+            .andExpect(content().json("{\"ALPHA\":100}"));
+    }
+
+    private List<Transaction> exampleTransactions() throws ParseException {
+        return List.of(
+            new Transaction("DANNON", 1000, toDate("2020-11-02T14:00:00Z")),
+            new Transaction("UNILEVER", 200, toDate("2020-10-31T11:00:00Z")),
+            new Transaction("DANNON", -200, toDate("2020-10-31T15:00:00Z")));
+    }
+
     private Date toDate(final String isoDate) throws ParseException {
         return dateFormat.parse(
             isoDate
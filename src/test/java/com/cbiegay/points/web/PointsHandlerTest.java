@@ -0,0 +1,267 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import com.cbiegay.points.InsufficientPointsException;
+import com.cbiegay.points.model.PayerPointDelta;
+import com.cbiegay.points.model.SpendStrategy;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.service.PointsService;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for the reactive points routes, checking they keep PointsController's contracts.
+ * Running on the reactive stack, which application.properties doesn't choose.
+ */
+@WebFluxTest(properties = "spring.main.web-application-type=reactive")
+@Import({ PointsRouter.class, PointsHandler.class, IdempotencyCache.class })
+public class PointsHandlerTest {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @MockBean
+    private PointsService pointsService;
+
+    @Captor
+    private ArgumentCaptor<Transaction> transactionCaptor;
+
+    @Test
+    public void addTransaction_handlesAddedTransactionSuccessfully() {
+        webTestClient.post().uri("/points/transaction")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\" }")
+            .exchange()
+            .expectStatus().isOk();
+
+        verify(pointsService).addTransaction(transactionCaptor.capture());
+        assertEquals("DANNON", transactionCaptor.getValue().getPayer());
+        assertEquals(1000, transactionCaptor.getValue().getPoints());
+    }
+
+    @Test
+    public void addTransaction_returnsErrorIfPointsMissing() {
+        doThrow(new IllegalArgumentException("Missing points")).when(pointsService).addTransaction(any());
+
+        webTestClient.post().uri("/points/transaction")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"payer\": \"DANNON\", \"timestamp\": \"2020-11-02T14:00:00Z\" }")
+            .exchange()
+            .expectStatus().isBadRequest()
+            .expectBody(String.class).isEqualTo("Missing payer or points");
+    }
+
+    @Test
+    public void spend_handlesPointSpendSuccessfully() throws Exception {
+        when(pointsService.spend(eq(5000))).thenReturn(Arrays.asList(
+            new PayerPointDelta("ALPHA", 2000),
+            new PayerPointDelta("BRAVO", 3000)));
+
+        webTestClient.post().uri("/points/spend")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"points\": 5000 }")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody().json("[{\"payer\":\"ALPHA\",\"points\":2000},{\"payer\":\"BRAVO\",\"points\":3000}]");
+    }
+
+    @Test
+    public void spend_returnsErrorOnOverspend() throws Exception {
+        when(pointsService.spend(eq(5000))).thenThrow(new InsufficientPointsException());
+
+        webTestClient.post().uri("/points/spend")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"points\": 5000 }")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY)
+            .expectBody(String.class).isEqualTo("Insufficient points");
+    }
+
+    @Test
+    public void spend_withRepeatedIdempotencyKeySpendsOnce() throws Exception {
+        when(pointsService.spend(eq(5000))).thenReturn(Arrays.asList(new PayerPointDelta("ALPHA", -5000)));
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            webTestClient.post().uri("/points/spend")
+                .header("Idempotency-Key", "spend-key-1")
+                .contentType(APPLICATION_JSON)
+                .bodyValue("{ \"points\": 5000 }")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().json("[{\"payer\":\"ALPHA\",\"points\":-5000}]");
+        }
+
+        verify(pointsService, times(1)).spend(5000);
+    }
+
+    @Test
+    public void spend_withIdempotencyKeyOfDifferentRequestIsRefused() throws Exception {
+        when(pointsService.spend(eq(5000))).thenReturn(Arrays.asList(new PayerPointDelta("ALPHA", -5000)));
+
+        webTestClient.post().uri("/points/spend")
+            .header("Idempotency-Key", "spend-key-2")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"points\": 5000 }")
+            .exchange()
+            .expectStatus().isOk();
+        webTestClient.post().uri("/points/spend")
+            .header("Idempotency-Key", "spend-key-2")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"points\": 6000 }")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY)
+            .expectBody(String.class).isEqualTo("Idempotency-Key was already used for a different request");
+
+        verify(pointsService, never()).spend(6000);
+    }
+
+    @Test
+    public void spend_returnsErrorIfBodyMissing() {
+        webTestClient.post().uri("/points/spend")
+            .contentType(APPLICATION_JSON)
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void spendBatch_returnsResultPerSpend() throws Exception {
+        when(pointsService.spendBatch(List.of(100, 200), false)).thenReturn(Arrays.asList(
+            List.of(new PayerPointDelta("ALPHA", -100)),
+            null));
+
+        webTestClient.post().uri("/points/spend/batch?allOrNothing=false")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("[{ \"points\": 100 }, { \"points\": 200 }]")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody().json("[[{\"payer\":\"ALPHA\",\"points\":-100}],null]");
+    }
+
+    @Test
+    public void spendBatch_returnsErrorOnOverspend() throws Exception {
+        when(pointsService.spendBatch(List.of(100, 200), true)).thenThrow(new InsufficientPointsException());
+
+        webTestClient.post().uri("/points/spend/batch")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("[{ \"points\": 100 }, { \"points\": 200 }]")
+            .exchange()
+            .expectStatus().isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY)
+            .expectBody(String.class).isEqualTo("Insufficient points");
+    }
+
+    @Test
+    public void spend_returnsErrorIfInvalidPointsValue() throws Exception {
+        when(pointsService.spend(eq(0))).thenThrow(new IllegalArgumentException());
+
+        webTestClient.post().uri("/points/spend")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"points\": 0 }")
+            .exchange()
+            .expectStatus().isBadRequest()
+            .expectBody(String.class).isEqualTo("Cannot spend less than one point");
+    }
+
+    @Test
+    public void spendBatch_returnsErrorIfSpendMissing() throws Exception {
+        webTestClient.post().uri("/points/spend/batch")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("[{ \"points\": 100 }, null]")
+            .exchange()
+            .expectStatus().isBadRequest()
+            .expectBody(String.class).isEqualTo("Missing points in spend 1");
+
+        verify(pointsService, never()).spendBatch(anyList(), anyBoolean());
+    }
+
+    @Test
+    public void previewSpend_returnsDeltasWithoutSpending() throws Exception {
+        when(pointsService.previewSpend(eq(5000))).thenReturn(Arrays.asList(new PayerPointDelta("ALPHA", -5000)));
+
+        webTestClient.post().uri("/points/spend/preview")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"points\": 5000 }")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody().json("[{\"payer\":\"ALPHA\",\"points\":-5000}]");
+
+        verify(pointsService, never()).spend(anyInt());
+    }
+
+    @Test
+    public void spend_withStrategySpendsWithIt() throws Exception {
+        when(pointsService.spend(eq(5000), eq(SpendStrategy.PROPORTIONAL))).thenReturn(Arrays.asList(
+            new PayerPointDelta("ALPHA", -2000),
+            new PayerPointDelta("BRAVO", -3000)));
+
+        webTestClient.post().uri("/points/spend?strategy=PROPORTIONAL")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"points\": 5000 }")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody().json("[{\"payer\":\"ALPHA\",\"points\":-2000},{\"payer\":\"BRAVO\",\"points\":-3000}]");
+
+        verify(pointsService, never()).spend(anyInt());
+    }
+
+    @Test
+    public void previewSpend_returnsErrorIfUnknownStrategy() {
+        webTestClient.post().uri("/points/spend/preview?strategy=NEWEST_FIRST")
+            .contentType(APPLICATION_JSON)
+            .bodyValue("{ \"points\": 5000 }")
+            .exchange()
+            .expectStatus().isBadRequest()
+            .expectBody(String.class).isEqualTo("Unknown spend strategy");
+    }
+
+    @Test
+    public void getBalances_returnsBalanceData() {
+        when(pointsService.getBalances()).thenReturn(Map.of("ALPHA", 100L, "BRAVO", 200L));
+
+        webTestClient.get().uri("/points/balances")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody().json("{\"ALPHA\":100,\"BRAVO\":200}");
+    }
+
+    @Test
+    public void getBalances_asOfReturnsBalancesAtThatTime() {
+        when(pointsService.getBalances(Date.from(Instant.parse("2020-11-01T00:00:00Z"))))
+            .thenReturn(Map.of("ALPHA", 50L));
+
+        webTestClient.get().uri("/points/balances?asOf=2020-11-01T00:00:00Z")
+            .exchange()
+            .expectStatus().isOk()
+            .expectBody().json("{\"ALPHA\":50}");
+    }
+
+    @Test
+    public void getBalances_returnsErrorIfAsOfInvalid() {
+        webTestClient.get().uri("/points/balances?asOf=yesterday")
+            .exchange()
+            .expectStatus().isBadRequest();
+    }
+}
@@ -0,0 +1,77 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unit tests for RateLimiter.
+ */
+public class RateLimiterTest {
+
+    private final AtomicLong nanoTime = new AtomicLong();
+    private final RateLimiter rateLimiter = new RateLimiter(
+        Map.of("/points/spend", RateLimiter.Limit.parse("2/3")), 2, nanoTime::get);
+
+    @Test
+    public void tryAcquire_allowsBurstThenRate() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("/points/spend", "alice"));
+        }
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), rateLimiter.tryAcquire("/points/spend", "alice"));
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(400));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), rateLimiter.tryAcquire("/points/spend", "alice"));
+
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, rateLimiter.tryAcquire("/points/spend", "alice"));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), rateLimiter.tryAcquire("/points/spend", "alice"));
+    }
+
+    @Test
+    public void tryAcquire_limitsEachClientSeparately() {
+        for (int i = 0; i < 3; i++) {
+            rateLimiter.tryAcquire("/points/spend", "alice");
+        }
+
+        assertEquals(0, rateLimiter.tryAcquire("/points/spend", "bob"));
+        assertEquals(0, rateLimiter.tryAcquire("/points/balances", "alice"));
+    }
+
+    @Test
+    public void tryAcquire_dropsFullBucketsOnceOverMaximum() {
+        rateLimiter.tryAcquire("/points/spend", "alice");
+        rateLimiter.tryAcquire("/points/spend", "bob");
+        rateLimiter.tryAcquire("/points/spend", "carol");
+        assertEquals(3, rateLimiter.size());
+
+        // Alice's and Bob's buckets have refilled; Carol's, which has just been used again, hasn't
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        rateLimiter.tryAcquire("/points/spend", "carol");
+        rateLimiter.tryAcquire("/points/spend", "dave");
+        assertEquals(2, rateLimiter.size());
+    }
+
+    @Test
+    public void parse_rateWithOrWithoutBurst() {
+        final RateLimiter limiter = new RateLimiter(
+            Map.of(
+                "/points/spend", RateLimiter.Limit.parse("0.5"),
+                "/points/spend/batch", RateLimiter.Limit.parse("10 / 1")),
+            100,
+            nanoTime::get);
+
+        assertEquals(0, limiter.tryAcquire("/points/spend", "alice"));
+        assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.tryAcquire("/points/spend", "alice"));
+        assertEquals(0, limiter.tryAcquire("/points/spend/batch", "alice"));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), limiter.tryAcquire("/points/spend/batch", "alice"));
+
+        assertThrows(IllegalArgumentException.class, () -> RateLimiter.Limit.parse("0"));
+        assertThrows(IllegalArgumentException.class, () -> RateLimiter.Limit.parse("10/0"));
+        assertThrows(NumberFormatException.class, () -> RateLimiter.Limit.parse("fast"));
+    }
+}
@@ -0,0 +1,62 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+
+/**
+ * Unit tests for TimestampParser.
+ */
+public class TimestampParserTest {
+
+    @Test
+    public void parse_rfc3339Timestamps() {
+        assertEquals(Instant.parse("2020-11-02T14:00:00Z").toEpochMilli(), parse("2020-11-02T14:00:00Z"));
+        assertEquals(Instant.parse("2020-11-02T14:00:00.120Z").toEpochMilli(), parse("2020-11-02T14:00:00.12Z"));
+        assertEquals(Instant.parse("2020-11-02T14:00:00.123Z").toEpochMilli(), parse("2020-11-02T14:00:00.123456789Z"));
+        assertEquals(
+            OffsetDateTime.parse("2020-11-02T14:00:00-05:30").toInstant().toEpochMilli(),
+            parse("2020-11-02T14:00:00-05:30"));
+        assertEquals(Instant.parse("2024-02-29T23:59:59Z").toEpochMilli(), parse("2024-02-29T23:59:59Z"));
+        assertEquals(Instant.parse("1969-12-31T23:59:59.999Z").toEpochMilli(), parse("1969-12-31T23:59:59.999Z"));
+    }
+
+    @Test
+    public void parse_parsesPartOfABuffer() {
+        final char[] buffer = "{\"timestamp\":\"2020-11-02T14:00:00Z\"}".toCharArray();
+
+        assertEquals(Instant.parse("2020-11-02T14:00:00Z").toEpochMilli(), TimestampParser.parse(buffer, 14, 20));
+    }
+
+    @Test
+    public void parse_rejectsOtherForms() {
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:00Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:00:00"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:00:00+0530"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02 14:00:00Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:00:00.Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:00:00.1234567891Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:00:00Zulu"));
+        assertEquals(TimestampParser.INVALID, parse("1604325600000"));
+    }
+
+    @Test
+    public void parse_rejectsOutOfRangeFields() {
+        assertEquals(TimestampParser.INVALID, parse("2020-13-02T14:00:00Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-31T14:00:00Z"));
+        assertEquals(TimestampParser.INVALID, parse("2023-02-29T14:00:00Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T24:00:00Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:60:00Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:00:60Z"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T14:00:00+18:01"));
+        assertEquals(TimestampParser.INVALID, parse("2020-11-02T-1:00:00Z"));
+        assertEquals(TimestampParser.INVALID, parse("1582-10-15T00:00:00Z"));
+    }
+
+    private long parse(final String text) {
+        return TimestampParser.parse(text.toCharArray(), 0, text.length());
+    }
+}
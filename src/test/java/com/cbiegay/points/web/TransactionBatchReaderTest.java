@@ -0,0 +1,167 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.model.TransactionBatchResult;
+import com.cbiegay.points.web.TransactionBatchReader.MalformedBatchException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Unit tests for TransactionBatchReader.
+ */
+public class TransactionBatchReaderTest {
+
+    private final TransactionBatchReader reader =
+        new TransactionBatchReader(new JsonFactory(), new StdDateFormat(), false, 2);
+    private final List<List<Transaction>> chunks = new ArrayList<>();
+
+    @Test
+    public void read_jsonArrayInChunks() throws Exception {
+        final TransactionBatchResult result = reader.read(input(
+            "[{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\" },"
+                + "{ \"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": \"2020-10-31T11:00:00Z\" },"
+                + "{ \"payer\": \"DANNON\", \"points\": -200, \"timestamp\": \"2020-10-31T15:00:00Z\" }]"),
+            chunks::add);
+
+        assertEquals(3, result.getAccepted());
+        assertEquals(0, result.getRejected());
+        assertEquals(2, chunks.size());
+        assertEquals(2, chunks.get(0).size());
+        assertEquals(1, chunks.get(1).size());
+        assertEquals("DANNON", chunks.get(1).get(0).getPayer());
+        assertEquals(-200, chunks.get(1).get(0).getPoints());
+    }
+
+    @Test
+    public void read_newlineDelimitedJson() throws Exception {
+        final TransactionBatchResult result = reader.read(input(
+            "{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\" }\n"
+                + "{ \"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": \"2020-10-31T11:00:00Z\" }\n"),
+            chunks::add);
+
+        assertEquals(2, result.getAccepted());
+        assertEquals(1, chunks.size());
+        assertEquals("UNILEVER", chunks.get(0).get(1).getPayer());
+    }
+
+    @Test
+    public void read_rejectsInvalidRows() throws Exception {
+        final TransactionBatchResult result = reader.read(input(
+            "[{ \"payer\": \"DANNON\", \"timestamp\": \"2020-11-02T14:00:00Z\" },"
+                + "{ \"payer\": \"DANNON\", \"points\": \"lots\", \"timestamp\": \"2020-11-02T14:00:00Z\" },"
+                + "{ \"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"yesterday\" },"
+                + "42,"
+                + "{ \"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"2020-11-02T14:00:00Z\","
+                + " \"note\": [1] }]"),
+            chunks::add);
+
+        assertEquals(1, result.getAccepted());
+        assertEquals(4, result.getRejected());
+        assertEquals(1, result.getRejectedRows().get(0).getRow());
+        assertEquals("Missing payer, points or timestamp", result.getRejectedRows().get(0).getReason());
+        assertEquals(2, result.getRejectedRows().get(1).getRow());
+        assertEquals("Invalid points", result.getRejectedRows().get(1).getReason());
+        assertEquals(3, result.getRejectedRows().get(2).getRow());
+        assertEquals("Invalid timestamp", result.getRejectedRows().get(2).getReason());
+        assertEquals(4, result.getRejectedRows().get(3).getRow());
+        assertEquals(1, chunks.size());
+    }
+
+    @Test
+    public void read_optionalExpiry() throws Exception {
+        final TransactionBatchResult result = reader.read(input(
+            "{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\","
+                + " \"expiresAt\": \"2021-11-02T14:00:00Z\" }\n"
+                + "{ \"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": \"2020-10-31T11:00:00Z\" }\n"
+                + "{ \"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": \"2020-10-31T11:00:00Z\","
+                + " \"expiresAt\": \"soon\" }\n"),
+            chunks::add);
+
+        assertEquals(2, result.getAccepted());
+        assertEquals("Invalid expiresAt", result.getRejectedRows().get(0).getReason());
+        assertEquals(1635861600000L, chunks.get(0).get(0).getExpiresAt().getTime());
+        assertNull(chunks.get(0).get(1).getExpiresAt());
+    }
+
+    @Test
+    public void read_malformedJsonKeepsEarlierRows() {
+        final MalformedBatchException exception = assertThrows(MalformedBatchException.class, () -> reader.read(
+            input("{ \"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00Z\" }\n"
+                + "{ \"payer\": \"UNILEVER\", \"points\": 2"),
+            chunks::add));
+
+        assertEquals(1, exception.getPartialResult().getAccepted());
+        assertEquals(1, chunks.size());
+    }
+
+    @Test
+    public void read_otherTimestampFormsOnlyWhenNotStrict() throws Exception {
+        final String batch = "{ \"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"2020-11-02\" }\n"
+            + "{ \"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"2020-11-02T14:00:00.000+0000\" }\n"
+            + "{ \"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"2020-11-02T14:00:00.000+00:00\" }\n";
+        final TransactionBatchReader strictReader =
+            new TransactionBatchReader(new JsonFactory(), new StdDateFormat(), true, 2);
+
+        final TransactionBatchResult result = reader.read(input(batch), chunks::add);
+        final TransactionBatchResult strictResult = strictReader.read(input(batch), chunks::add);
+
+        assertEquals(3, result.getAccepted());
+        assertEquals(1604275200000L, chunks.get(0).get(0).getTimestampMillis());
+        assertEquals(1604325600000L, chunks.get(0).get(1).getTimestampMillis());
+        assertEquals(1, strictResult.getAccepted());
+        assertEquals(2, strictResult.getRejected());
+        assertEquals("Invalid timestamp", strictResult.getRejectedRows().get(1).getReason());
+    }
+
+    @Test
+    public void readBinary_transactionsInChunks() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final BinaryCodec.Writer writer = new BinaryCodec.Writer(bytes);
+        writer.writeTransaction(new Transaction("DANNON", 1000, new Date(1604325600000L)));
+        writer.writeTransaction(new Transaction("UNILEVER", 200, new Date(1604142000000L), new Date(1635678000000L)));
+        writer.writeTransaction(new Transaction("DANNON", -200, new Date(1604156400000L)));
+        writer.flush();
+
+        final TransactionBatchResult result =
+            reader.readBinary(new ByteArrayInputStream(bytes.toByteArray()), chunks::add);
+
+        assertEquals(3, result.getAccepted());
+        assertEquals(2, chunks.size());
+        assertEquals(1635678000000L, chunks.get(0).get(1).getExpiresAt().getTime());
+        assertEquals(-200, chunks.get(1).get(0).getPoints());
+        assertEquals(1604156400000L, chunks.get(1).get(0).getTimestamp().getTime());
+    }
+
+    @Test
+    public void readBinary_truncatedRowKeepsEarlierRows() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final BinaryCodec.Writer writer = new BinaryCodec.Writer(bytes);
+        writer.writeTransaction(new Transaction("DANNON", 1000, new Date(1604325600000L)));
+        writer.writeTransaction(new Transaction("UNILEVER", 200, new Date(1604142000000L)));
+        writer.flush();
+        final byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 3);
+
+        final MalformedBatchException exception = assertThrows(MalformedBatchException.class, () ->
+            reader.readBinary(new ByteArrayInputStream(truncated), chunks::add));
+
+        assertEquals(1, exception.getPartialResult().getAccepted());
+        assertEquals(1, chunks.size());
+    }
+
+    private InputStream input(final String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
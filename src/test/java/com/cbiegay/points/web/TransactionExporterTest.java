@@ -0,0 +1,93 @@
+package com.cbiegay.points.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import com.cbiegay.points.model.Transaction;
+import com.cbiegay.points.model.TransactionBatchResult;
+import com.cbiegay.points.web.TransactionExporter.Filter;
+import com.cbiegay.points.web.TransactionExporter.Format;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Unit tests for TransactionExporter.
+ */
+public class TransactionExporterTest {
+
+    private final TransactionExporter exporter = new TransactionExporter(new JsonFactory(), new StdDateFormat());
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private final List<Transaction> transactions = List.of(
+        new Transaction("DANNON", 1000, date("2020-11-02T14:00:00Z")),
+        new Transaction("UNILEVER", 200, date("2020-10-31T11:00:00Z")),
+        new Transaction("DANNON", -200, date("2020-10-31T15:00:00Z")),
+        new Transaction("MILLER COORS", 10000, date("2020-11-01T14:00:00Z")),
+        new Transaction("DANNON", 300, date("2020-10-31T10:00:00Z")));
+
+    @Test
+    public void write_newlineDelimitedJsonWithSequenceNumbers() throws Exception {
+        final long rows = exporter.write(transactions, 1, 3, Filter.ALL, Format.NDJSON, output);
+
+        assertEquals(2, rows);
+        assertEquals(
+            "{\"sequence\":1,\"payer\":\"UNILEVER\",\"points\":200,\"timestamp\":\"2020-10-31T11:00:00.000+00:00\"}\n"
+                + "{\"sequence\":2,\"payer\":\"DANNON\",\"points\":-200,"
+                + "\"timestamp\":\"2020-10-31T15:00:00.000+00:00\"}\n",
+            output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void write_csvWithHeader() throws Exception {
+        final List<Transaction> quoted = List.of(new Transaction("SMITH, \"JONES\"", 50, date("2020-11-01T00:00:00Z")));
+
+        exporter.write(quoted, 0, 1, Filter.ALL, Format.CSV, output);
+
+        assertEquals(
+            "sequence,payer,points,timestamp\r\n"
+                + "0,\"SMITH, \"\"JONES\"\"\",50,2020-11-01T00:00:00.000+00:00\r\n",
+            output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void write_onlyMatchingPayerAndTimeRange() throws Exception {
+        final Filter filter = new Filter("DANNON", date("2020-10-31T10:00:00Z"), date("2020-11-02T14:00:00Z"));
+
+        final long rows = exporter.write(transactions, 0, transactions.size(), filter, Format.CSV, output);
+
+        assertEquals(2, rows);
+        assertEquals(
+            "sequence,payer,points,timestamp\r\n"
+                + "2,DANNON,-200,2020-10-31T15:00:00.000+00:00\r\n"
+                + "4,DANNON,300,2020-10-31T10:00:00.000+00:00\r\n",
+            output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void write_newlineDelimitedJsonCanBeReadBackAsBatch() throws Exception {
+        exporter.write(transactions, 0, transactions.size(), Filter.ALL, Format.NDJSON, output);
+
+        final List<Transaction> read = new ArrayList<>();
+        final TransactionBatchResult result =
+            new TransactionBatchReader(new JsonFactory(), new StdDateFormat(), false, 10)
+                .read(new ByteArrayInputStream(output.toByteArray()), read::addAll);
+
+        assertEquals(transactions.size(), result.getAccepted());
+        for (int i = 0; i < transactions.size(); i++) {
+            assertEquals(transactions.get(i).getPayer(), read.get(i).getPayer());
+            assertEquals(transactions.get(i).getPoints(), read.get(i).getPoints());
+            assertEquals(transactions.get(i).getTimestamp(), read.get(i).getTimestamp());
+        }
+    }
+
+    private static Date date(final String instant) {
+        return Date.from(Instant.parse(instant));
+    }
+}